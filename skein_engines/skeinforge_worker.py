@@ -0,0 +1,98 @@
+"""
+Long-lived skeinforge worker for ReplicatorG.
+
+Run with the skeinforge application directory as the working directory.  The
+interpreter and the skeinforge modules are loaded once; jobs then arrive on
+stdin, one per block:
+
+  JOB
+  ARG <command line argument>     (repeated; same arguments as skeinforge.py)
+  END
+
+Everything skeinforge prints while working is passed through on stdout.  When
+a job finishes the worker prints
+
+  @@RG DONE <exit code>
+
+A line reading PING is answered with "@@RG PONG", and QUIT ends the worker.
+"""
+
+import copy
+import os
+import sys
+import traceback
+
+sys.path.insert(0, os.getcwd())
+
+import skeinforge
+
+DONE = '@@RG DONE'
+
+
+# Module globals that skeinforge's main() changes from the command line: the
+# preference overrides and the profile directory, under their names in the
+# different skeinforge versions.
+JOB_GLOBALS = [
+	('fabmetheus_utilities.settings', 'overrides'),
+	('fabmetheus_utilities.settings', 'globalTemporaryOverrides'),
+	('fabmetheus_utilities.archive', 'settingsPath'),
+	('fabmetheus_utilities.archive', 'globalTemporarySettingsPath')]
+
+
+def saveGlobals():
+	'Remember the values of the job globals as they were after import.'
+	saved = []
+	for moduleName, name in JOB_GLOBALS:
+		module = sys.modules.get(moduleName)
+		if module is not None and hasattr(module, name):
+			saved.append((module, name, copy.copy(getattr(module, name))))
+	return saved
+
+
+def resetGlobals(saved):
+	'Forget the overrides and profile directory left behind by the last job.'
+	for module, name, value in saved:
+		setattr(module, name, copy.copy(value))
+
+
+def runJob(args, saved):
+	resetGlobals(saved)
+	sys.argv = ['skeinforge.py'] + args
+	code = 0
+	try:
+		skeinforge.main()
+	except SystemExit:
+		if sys.exc_info()[1].code:
+			code = 1
+	except Exception:
+		traceback.print_exc()
+		code = 1
+	sys.stderr.flush()
+	sys.stdout.write('\n%s %d\n' % (DONE, code))
+	sys.stdout.flush()
+
+
+def main():
+	saved = saveGlobals()
+	args = None
+	while True:
+		line = sys.stdin.readline()
+		if not line:
+			break
+		line = line.rstrip('\r\n')
+		if line == 'PING':
+			sys.stdout.write('@@RG PONG\n')
+			sys.stdout.flush()
+		elif line == 'QUIT':
+			break
+		elif line == 'JOB':
+			args = []
+		elif line.startswith('ARG ') and args is not None:
+			args.append(line[4:])
+		elif line == 'END' and args is not None:
+			runJob(args, saved)
+			args = None
+
+
+if __name__ == '__main__':
+	main()
@@ -60,6 +60,7 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -77,6 +78,9 @@ import javax.swing.UIManager;
 
 import replicatorg.app.ui.MainWindow;
 import replicatorg.app.ui.NotificationHandler;
+import replicatorg.machine.MachineDescriptor;
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.MachineFarm;
 import replicatorg.machine.MachineLoader;
 import replicatorg.uploader.FirmwareUploader;
 import ch.randelshofer.quaqua.QuaquaManager;
@@ -110,7 +114,13 @@ public class Base {
 	 * The machine controller in use.
 	 */
 	private static MachineLoader machineLoader;
+	private static MachineFarm machineFarm;
 	
+	static {
+		// Time startup from here, before the preferences and the log are set up
+		Startup.begin();
+	}
+
 	/**
 	 * The user preferences store.
 	 */
@@ -437,6 +447,13 @@ public class Base {
 	
 
 	static public void main(String args[]) {
+		if (args.length > 0 && args[0].equals("--build")) {
+			// No windows: see HeadlessBuild
+			String[] buildArgs = new String[args.length - 1];
+			System.arraycopy(args, 1, buildArgs, 0, buildArgs.length);
+			HeadlessBuild.main(buildArgs);
+			return;
+		}
 
 		// make sure that this is running on java 1.5 or better.
 		if (Base.javaVersion < 1.5f) {
@@ -492,12 +509,14 @@ public class Base {
 				}
 			} else if(args[i].startsWith("-")){
 				System.out.println("Usage: ./replicatorg [--debug DEBUGLEVEL] [--alternate-prefs ALTERNATE_PREFS_NAME] [--clean-prefs] [filename.stl]");
+				System.out.println("       ./replicatorg --build [options] [filename.gcode]   (build with no windows; --build --help for more)");
 				System.exit(1);
 			} else if (supportedExtension(args[i])) {
 				// grab any opened file from the command line
 				Base.openedAtStartup = args[i];
 			}
 		}
+		Startup.phase("preferences");
 		
 
 		// Use the default system proxy settings
@@ -505,8 +524,20 @@ public class Base {
     	// Use antialiasing implicitly
 		System.setProperty("j3d.implicitAntialiasing", "true");
 		
-		// Start the firmware check thread.
-		FirmwareUploader.checkFirmware();
+		// Read the machine catalog and the selected machine's descriptor
+		// while the window is built; the machine can't be loaded without
+		// them, but nothing before that needs them.
+		Startup.background("machine descriptor", new Callable<MachineDescriptor>() {
+			public MachineDescriptor call() {
+				return MachineFactory.getDescriptor(preferences.get("machine.name", "The Replicator Dual"));
+			}
+		});
+		// Check for new firmware once the window is up.
+		Startup.later(new Runnable() {
+			public void run() {
+				FirmwareUploader.checkFirmware();
+			}
+		});
 		
 		// MAC OS X ONLY:
 		// register a temporary/early version of the mrj open document handler,
@@ -603,6 +634,7 @@ public class Base {
 
 		// use native popups so they don't look so crappy on osx
 		JPopupMenu.setDefaultLightWeightPopupEnabled(false);
+		Startup.phase("look and feel");
 		
 		SwingUtilities.invokeLater(new Runnable() {
 //		    private TrayIcon trayIcon;
@@ -615,12 +647,14 @@ public class Base {
 				
 				// build the editor object
 				editor = new MainWindow();
+				Startup.phase("build window");
 				
 				notificationHandler = NotificationHandler.Factory.getHandler(editor, Base.preferences.getBoolean("ui.preferSystemTrayNotifications", false));
 
 				// Get sizing preferences. This is an issue of contention; let's look at how
 				// other programs decide how to size themselves.
 				editor.restorePreferences();
+				Startup.phase("open last file");
 				// add shutdown hook to store preferences
 				Runtime.getRuntime().addShutdownHook(new Thread("Shutdown Hook") {
 					final private MainWindow w = editor; 
@@ -633,10 +667,12 @@ public class Base {
 				String machineName = preferences.get("machine.name", "");
 				
 				editor.loadMachine(machineName, autoconnect);
+				Startup.phase("load machine");
 				
 				// show the window
 				editor.setVisible(true);
 				checkDirectories();
+				Startup.finished();
 				UpdateChecker.checkLatestVersion(editor);
 		    }
 		});
@@ -1086,6 +1122,21 @@ public class Base {
 		writer.close();
 	}
 
+	/**
+	 * Put a freshly written file in place of another.  The new file should
+	 * already have been forced out to disk.  Where a file can be renamed over
+	 * another this is one step, so the other is never left half written.
+	 * Windows won't rename over an existing file, so there the other is
+	 * deleted first, and if the rename still fails the new file is copied.
+	 */
+	static public void replaceFile(File tmp, File dest) throws IOException {
+		if (tmp.renameTo(dest)) { return; }
+		dest.delete();
+		if (tmp.renameTo(dest)) { return; }
+		copyFile(tmp, dest);
+		tmp.delete();
+	}
+
 	static public void copyDir(File sourceDir, File targetDir)
 			throws IOException {
 		targetDir.mkdirs();
@@ -1152,4 +1203,17 @@ public class Base {
 		}
 		return machineLoader;
 	}
+
+	/** Get the print farm, loading its machines if this is the first time **/
+	static public synchronized MachineFarm getMachineFarm() {
+		if (machineFarm == null) {
+			machineFarm = new MachineFarm();
+		}
+		return machineFarm;
+	}
+
+	/** True if the print farm has been opened **/
+	static public synchronized boolean hasMachineFarm() {
+		return machineFarm != null;
+	}
 }
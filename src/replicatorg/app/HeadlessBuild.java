@@ -0,0 +1,403 @@
+package replicatorg.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import replicatorg.app.gcode.GCodeFileSource;
+import replicatorg.app.gcode.GCodeLayerIndex;
+import replicatorg.drivers.SDCardCapture;
+import replicatorg.drivers.StopException;
+import replicatorg.machine.Machine;
+import replicatorg.machine.MachineCallbackHandler;
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.MachineListener;
+import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineState;
+import replicatorg.machine.MachineStateChangeEvent;
+import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.machine.builder.HaltHandler;
+import replicatorg.machine.model.ToolModel;
+
+/**
+ * Builds a gcode file on a machine from the command line, with no windows,
+ * for running machines from scripts on servers with no display.  Started with
+ * "replicatorg --build ..." (see Base.main) or on its own.  Nothing from AWT
+ * or Swing is touched.
+ *
+ * What happens is reported on standard output as JSON, one object per line,
+ * each with an "event" of "state", "progress", "temperature", "halt" or
+ * "done"; log messages and anything else printed go to standard error.  How
+ * it ended is also told by the exit status (see the EXIT_ constants).
+ */
+public class HeadlessBuild implements MachineListener, HaltHandler {
+	/** The build ran to its end, or to a program end (M2, M30). */
+	public static final int EXIT_DONE = 0;
+	/** The machine couldn't be loaded or connected, or the build failed. */
+	public static final int EXIT_FAILED = 1;
+	/** The command line was wrong. */
+	public static final int EXIT_USAGE = 2;
+	/** The build was ended by a halt in the gcode (M0, or M1 when stopping at them). */
+	public static final int EXIT_HALTED = 3;
+
+	private static final String USAGE =
+		"Usage: replicatorg --build [options] [FILE.gcode]\n" +
+		"  --machine NAME           machine type, as named in the machine descriptors\n" +
+		"                           (default: the last one chosen in ReplicatorG)\n" +
+		"  --port PORT              serial port (default: the last one chosen in ReplicatorG)\n" +
+		"  --output FILE.s3g        write the build to an .s3g file; no machine is needed\n" +
+		"  --upload NAME            write the build to NAME on the machine's SD card\n" +
+		"  --sd NAME                build NAME from the machine's SD card; no FILE is given\n" +
+		"  --optional-halt ACTION   at an optional halt (M1), 'stop' (the default) or 'continue'\n" +
+		"  --interval SECONDS       how often to report progress and temperatures (default 1)\n" +
+		"  --connect-timeout SECONDS  how long to wait for the machine (default 30)\n" +
+		"  --list-machines          list the machine types and exit\n" +
+		"  --help                   show this and exit\n" +
+		"An .s3g file can't be sent to a machine from here; upload it to the SD card\n" +
+		"and build it with --sd.\n" +
+		"Exit status: 0 done, 1 failed, 2 bad command line, 3 ended by a halt.";
+
+	private final PrintStream out;
+	private final long intervalMs;
+	private final boolean continueAtOptionalHalt;
+
+	private final LinkedBlockingQueue<MachineState> states = new LinkedBlockingQueue<MachineState>();
+	private volatile MachineProgressEvent progress = null;
+	private volatile StopException.StopType endingHalt = null;
+	private volatile String lastMessage = null;
+	private volatile int finalLines = 0;
+	private final Map<Integer,Long> lastTemperature = new HashMap<Integer,Long>();
+
+	private HeadlessBuild(PrintStream out, long intervalMs, boolean continueAtOptionalHalt) {
+		this.out = out;
+		this.intervalMs = intervalMs;
+		this.continueAtOptionalHalt = continueAtOptionalHalt;
+	}
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		// Keep standard output for the JSON; anything else printed goes to standard error
+		PrintStream out = System.out;
+		System.setOut(System.err);
+		System.exit(run(args, out));
+	}
+
+	private static int usage(String problem) {
+		System.err.println(problem);
+		System.err.println(USAGE);
+		return EXIT_USAGE;
+	}
+
+	static int run(String[] args, PrintStream out) {
+		String machineName = Base.preferences.get("machine.name", null);
+		String port = Base.preferences.get("serial.portname", null);
+		String output = null, upload = null, sd = null, file = null;
+		boolean continueAtOptionalHalt = false;
+		double interval = 1, connectTimeout = 30;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--help")) {
+					System.err.println(USAGE);
+					return EXIT_DONE;
+				} else if (arg.equals("--list-machines")) {
+					for (String name : MachineFactory.getMachineNames()) { out.println(name); }
+					return EXIT_DONE;
+				} else if (arg.equals("--machine") && i+1 < args.length) {
+					machineName = args[++i];
+				} else if (arg.equals("--port") && i+1 < args.length) {
+					port = args[++i];
+				} else if (arg.equals("--output") && i+1 < args.length) {
+					output = args[++i];
+				} else if (arg.equals("--upload") && i+1 < args.length) {
+					upload = args[++i];
+				} else if (arg.equals("--sd") && i+1 < args.length) {
+					sd = args[++i];
+				} else if (arg.equals("--optional-halt") && i+1 < args.length) {
+					String action = args[++i];
+					if (!action.equals("stop") && !action.equals("continue")) {
+						return usage("--optional-halt must be 'stop' or 'continue'");
+					}
+					continueAtOptionalHalt = action.equals("continue");
+				} else if (arg.equals("--interval") && i+1 < args.length) {
+					interval = Double.parseDouble(args[++i]);
+				} else if (arg.equals("--connect-timeout") && i+1 < args.length) {
+					connectTimeout = Double.parseDouble(args[++i]);
+				} else if (arg.startsWith("-") || file != null) {
+					return usage("Unexpected argument: " + arg);
+				} else {
+					file = arg;
+				}
+			}
+		} catch (NumberFormatException nfe) {
+			return usage("Not a number: " + nfe.getMessage());
+		}
+		if ((sd == null) == (file == null)) {
+			return usage(sd == null ? "No file to build" : "--sd builds from the SD card; don't give a file too");
+		}
+		if ((output != null ? 1 : 0) + (upload != null ? 1 : 0) + (sd != null ? 1 : 0) > 1) {
+			return usage("Only one of --output, --upload and --sd can be given");
+		}
+		if (file != null && file.toLowerCase().endsWith(".s3g")) {
+			return usage("An .s3g file can only be built from the machine's SD card");
+		}
+		if (machineName == null) {
+			return usage("No machine type; give one with --machine");
+		}
+		if (output == null && port == null) {
+			return usage("No serial port; give one with --port");
+		}
+
+		HeadlessBuild build = new HeadlessBuild(out, Math.max(100, (long)(interval * 1000)), continueAtOptionalHalt);
+		return build.run(machineName, port, file != null ? new File(file) : null,
+				output, upload, sd, (long)(connectTimeout * 1000));
+	}
+
+	private int run(String machineName, String port, File file, String output, String upload, String sd,
+			long connectTimeoutMs) {
+		GCodeFileSource source = null;
+		double estimate = 0;
+		if (file != null) {
+			try {
+				// The index is the one pass over the file before building it, and
+				// its estimate is good enough to report the time left against
+				GCodeLayerIndex index = GCodeLayerIndex.get(file);
+				source = new GCodeFileSource(file, index);
+				estimate = index.getTotalSeconds() * 1000;
+			} catch (IOException ioe) {
+				return done(EXIT_FAILED, "failed", "Could not read " + file + ": " + ioe.getMessage());
+			}
+		}
+
+		MachineCallbackHandler callbackHandler = new MachineCallbackHandler();
+		callbackHandler.setDaemon(true);
+		callbackHandler.addMachineListener(this);
+		callbackHandler.start();
+		final Machine machine = MachineFactory.load(machineName, callbackHandler);
+		if (machine == null) {
+			return done(EXIT_FAILED, "failed", "No machine type named '" + machineName + "'");
+		}
+		machine.setHaltHandler(this);
+		machine.setAlwaysMonitorTemperature(true);
+		machine.setCheckpointing(false);
+		final boolean[] finished = { false };
+		Runtime.getRuntime().addShutdownHook(new Thread("Headless build shutdown") {
+			public void run() {
+				synchronized (finished) {
+					if (finished[0]) { return; }
+				}
+				// Interrupted: don't leave the machine running
+				machine.stopAll();
+				machine.dispose();
+				emit("done", "result", "interrupted", "lines", linesDone());
+			}
+		});
+
+		int status;
+		try {
+			status = build(machine, port, source, estimate, output, upload, sd, connectTimeoutMs);
+		} catch (InterruptedException ie) {
+			status = done(EXIT_FAILED, "failed", "Interrupted");
+		}
+		synchronized (finished) {
+			finished[0] = true;
+		}
+		machine.dispose();
+		callbackHandler.interrupt();
+		return status;
+	}
+
+	private int build(Machine machine, String port, GCodeFileSource source, double estimate,
+			String output, String upload, String sd, long connectTimeoutMs) throws InterruptedException {
+		if (output != null) {
+			if (!(machine.getDriver() instanceof SDCardCapture)) {
+				return done(EXIT_FAILED, "failed", "This type of machine can't write .s3g files");
+			}
+			machine.buildToFile(source, output);
+		} else {
+			// Wait for the first state, so as not to mistake it for the outcome of connecting
+			waitFor(connectTimeoutMs, false);
+			machine.connect(port);
+			MachineState state = waitFor(connectTimeoutMs, true);
+			if (state == null || !state.canPrint()) {
+				return done(EXIT_FAILED, "failed", state == null ? "Timed out connecting on " + port :
+						(lastMessage != null ? lastMessage : "Could not connect on " + port));
+			}
+			if ((upload != null || sd != null) && !(machine.getDriver() instanceof SDCardCapture)) {
+				return done(EXIT_FAILED, "failed", "This type of machine has no SD card");
+			}
+			if (sd != null) {
+				machine.buildRemote(sd);
+			} else if (upload != null) {
+				machine.upload(source, upload);
+			} else {
+				machine.startBuild(source, estimate);
+			}
+		}
+
+		// Wait for the build to start, then to end
+		long started = System.currentTimeMillis();
+		boolean building = false;
+		long lastProgress = 0;
+		while (true) {
+			MachineState state = states.poll(intervalMs, TimeUnit.MILLISECONDS);
+			if (state != null && state.isBuilding()) {
+				building = true;
+			} else if (state != null && building) {
+				break;
+			} else if (!building && System.currentTimeMillis() - started > connectTimeoutMs) {
+				return done(EXIT_FAILED, "failed", lastMessage != null ? lastMessage : "The build didn't start");
+			}
+			long now = System.currentTimeMillis();
+			MachineProgressEvent p = progress;
+			if (building && p != null && now - lastProgress >= intervalMs) {
+				lastProgress = now;
+				emitProgress(p);
+			}
+		}
+
+		// Progress events can trail the change of state; the builder knows how far it got
+		finalLines = machine.getLinesProcessed();
+		MachineProgressEvent p = progress;
+		if (p != null) {
+			machineProgress(new MachineProgressEvent(p.getElapsed(), p.getEstimated(),
+					machine.getLinesProcessed(), p.getTotalLines()));
+			emitProgress(progress);
+		}
+		MachineState end = machine.getMachineState();
+		if (endingHalt != null && endingHalt != StopException.StopType.PROGRAM_END) {
+			return done(EXIT_HALTED, "halted", endingHalt.toString());
+		}
+		// Writing to a file ends offline, but an error (such as the gcode
+		// becoming unreadable partway) is a failure either way
+		if (end.getState() == MachineState.State.ERROR || output == null && !end.canPrint()) {
+			return done(EXIT_FAILED, "failed", lastMessage != null ? lastMessage : end.getState().toString());
+		}
+		return done(EXIT_DONE, "done", null);
+	}
+
+	/**
+	 * Wait for the next state of the machine, skipping CONNECTING.
+	 * @return the state, or null if there was none in time
+	 */
+	private MachineState waitFor(long timeoutMs, boolean skipConnecting) throws InterruptedException {
+		long until = System.currentTimeMillis() + timeoutMs;
+		while (true) {
+			long left = until - System.currentTimeMillis();
+			if (left <= 0) { return null; }
+			MachineState state = states.poll(left, TimeUnit.MILLISECONDS);
+			if (state == null) { return null; }
+			if (!skipConnecting || state.getState() != MachineState.State.CONNECTING) { return state; }
+		}
+	}
+
+	private int linesDone() {
+		MachineProgressEvent p = progress;
+		return Math.max(finalLines, p != null ? p.getLines() : 0);
+	}
+
+	private int done(int status, String result, String message) {
+		emit("done", "result", result, "exit", status, "lines", linesDone(), "message", message);
+		return status;
+	}
+
+	private void emitProgress(MachineProgressEvent p) {
+		double proportion = p.getTotalLines() > 0 ? (double)p.getLines() / p.getTotalLines() : 0;
+		emit("progress", "lines", p.getLines(), "total", p.getTotalLines(),
+				"percent", Math.round(proportion * 1000) / 10.0,
+				"elapsed", Math.round(p.getElapsed() / 1000),
+				"remaining", p.getEstimated() > 0 ? Math.round(p.getEstimated() * (1 - proportion) / 1000) : null);
+	}
+
+	public void machineStateChanged(MachineStateChangeEvent evt) {
+		MachineState state = evt.getState();
+		if (evt.getMessage() != null) { lastMessage = evt.getMessage(); }
+		emit("state", "state", state.getState().toString(), "message", evt.getMessage());
+		states.add(state);
+	}
+
+	public void machineProgress(MachineProgressEvent event) {
+		MachineProgressEvent p = progress;
+		if (p == null || event.getLines() >= p.getLines()) {
+			progress = event;
+		}
+	}
+
+	public void toolStatusChanged(MachineToolStatusEvent event) {
+		ToolModel tool = event.getTool();
+		long now = System.currentTimeMillis();
+		synchronized (lastTemperature) {
+			Long last = lastTemperature.get(tool.getIndex());
+			if (last != null && now - last < intervalMs) { return; }
+			lastTemperature.put(tool.getIndex(), now);
+		}
+		if (tool.hasHeatedPlatform()) {
+			emit("temperature", "tool", tool.getIndex(), "name", tool.getName(),
+					"current", tool.getCurrentTemperature(), "target", tool.getTargetTemperature(),
+					"platform_current", tool.getPlatformCurrentTemperature(),
+					"platform_target", tool.getPlatformTargetTemperature());
+		} else {
+			emit("temperature", "tool", tool.getIndex(), "name", tool.getName(),
+					"current", tool.getCurrentTemperature(), "target", tool.getTargetTemperature());
+		}
+	}
+
+	public boolean halted(StopException e) {
+		boolean go = e.getType() == StopException.StopType.OPTIONAL_HALT && continueAtOptionalHalt;
+		if (!go) { endingHalt = e.getType(); }
+		emit("halt", "type", e.getType().toString(), "message", e.getPlainMessage(),
+				"action", go ? "continue" : "stop");
+		return go;
+	}
+
+	/**
+	 * Write one line of JSON: the event, then the given names and values.
+	 * Null values are left out.
+	 */
+	private void emit(String event, Object... fields) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"event\":");
+		appendString(sb, event);
+		for (int i = 0; i + 1 < fields.length; i += 2) {
+			Object value = fields[i+1];
+			if (value == null) { continue; }
+			sb.append(',');
+			appendString(sb, fields[i].toString());
+			sb.append(':');
+			if (value instanceof Double && (((Double)value).isNaN() || ((Double)value).isInfinite())) {
+				sb.append("null");
+			} else if (value instanceof Number || value instanceof Boolean) {
+				sb.append(value);
+			} else {
+				appendString(sb, value.toString());
+			}
+		}
+		sb.append('}');
+		synchronized (out) {
+			out.println(sb);
+			out.flush();
+		}
+	}
+
+	private static void appendString(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+}
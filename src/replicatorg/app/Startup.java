@@ -0,0 +1,159 @@
+package replicatorg.app;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+/**
+ * Runs ReplicatorG's startup and keeps the time each part of it takes.
+ *
+ * Startup is a series of phases on the main and event threads (preferences,
+ * look and feel, building the window, loading the machine), marked with
+ * phase().  Work that none of those need straight away (reading the machine
+ * descriptors, the first serial port scan) is started with background() and
+ * runs alongside them; whoever needs the result waits for it with get().
+ * Work that can wait until the window is up (checking for new firmware and
+ * new versions) is started with later().
+ *
+ * When the window is showing, finished() writes the times to the log as one
+ * line, so a slow startup shows which part got slower.
+ */
+public class Startup {
+	private static long start = System.nanoTime();
+	private static long phaseStart = start;
+	private static boolean finished = false;
+	private static final List<String> phases = new ArrayList<String>();
+	private static final List<String> backgroundPhases = new ArrayList<String>();
+	private static final List<Runnable> laterTasks = new ArrayList<Runnable>();
+
+	private static final ExecutorService pool = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Startup worker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private Startup() {}
+
+	/**
+	 * Start the clock.  Base calls this as it is loaded, before it sets up
+	 * the preferences and the log, so that the first phase covers those.
+	 */
+	static synchronized void begin() {
+		start = phaseStart = System.nanoTime();
+	}
+
+	private static long millisSince(long nanos) {
+		return (System.nanoTime() - nanos) / 1000000;
+	}
+
+	/**
+	 * Mark the end of a phase of startup.  It is timed from the end of the
+	 * phase before it.
+	 */
+	public static synchronized void phase(String name) {
+		if (finished) { return; }
+		long now = System.nanoTime();
+		phases.add(name + " " + (now - phaseStart) / 1000000 + " ms");
+		phaseStart = now;
+	}
+
+	/**
+	 * Start a piece of startup work on a worker thread.
+	 * @return the result, for get() to wait for
+	 */
+	public static <T> Future<T> background(final String name, final Callable<T> task) {
+		return pool.submit(new Callable<T>() {
+			public T call() throws Exception {
+				long begin = System.nanoTime();
+				try {
+					return task.call();
+				} finally {
+					synchronized (Startup.class) {
+						backgroundPhases.add(name + " " + millisSince(begin) + " ms");
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for the result of background work.  If the work failed, the
+	 * failure is logged and null returned; the caller can then do the work
+	 * itself.
+	 */
+	public static <T> T get(Future<T> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException ee) {
+			Base.logger.log(Level.WARNING, "Startup work failed", ee.getCause());
+			return null;
+		} finally {
+			if (interrupted) { Thread.currentThread().interrupt(); }
+		}
+	}
+
+	/**
+	 * Run a task once the window is up, or straight away if it already is.
+	 */
+	public static synchronized void later(Runnable task) {
+		if (finished) {
+			pool.execute(task);
+		} else {
+			laterTasks.add(task);
+		}
+	}
+
+	/**
+	 * Startup is over: log the times and start the tasks that were put off
+	 * until now.
+	 */
+	public static void finished() {
+		List<Runnable> tasks;
+		StringBuilder sb = new StringBuilder();
+		synchronized (Startup.class) {
+			if (finished) { return; }
+			phase("show window");
+			finished = true;
+			sb.append("Started in ").append(millisSince(start)).append(" ms (");
+			for (int i = 0; i < phases.size(); i++) {
+				sb.append(i == 0 ? "" : ", ").append(phases.get(i));
+			}
+			sb.append(")");
+			if (!backgroundPhases.isEmpty()) {
+				sb.append(", alongside: ");
+				for (int i = 0; i < backgroundPhases.size(); i++) {
+					sb.append(i == 0 ? "" : ", ").append(backgroundPhases.get(i));
+				}
+			}
+			tasks = new ArrayList<Runnable>(laterTasks);
+			laterTasks.clear();
+		}
+		try {
+			// The JVM's own startup, before main() ran
+			long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+			sb.append("; window up ").append(System.currentTimeMillis() - jvmStart).append(" ms after the JVM started");
+		} catch (Throwable t) {
+			// No management support; the times above will do.
+		}
+		Base.logger.info(sb.toString());
+		for (Runnable task : tasks) {
+			pool.execute(task);
+		}
+	}
+}
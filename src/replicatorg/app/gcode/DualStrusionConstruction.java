@@ -1,12 +1,10 @@
 package replicatorg.app.gcode;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
@@ -15,8 +13,6 @@ import replicatorg.app.Base;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.machine.model.WipeModel;
-import replicatorg.model.GCodeSource;
-import replicatorg.util.Point5d;
 
 
 /**
@@ -33,15 +29,33 @@ import replicatorg.util.Point5d;
 public class DualStrusionConstruction
 {
 
-	private MutableGCodeSource result;
 	private final File leftFile, rightFile;
-	private MutableGCodeSource left, right;
 	private final MutableGCodeSource start, end;
 	private final boolean useWipes;
 	private final WipeModel leftWipe;
 	private final WipeModel rightWipe;
 	private final MachineType machineType;
 	
+	/**
+	 * Layer heights closer than this are treated as the same layer, so that
+	 * rounding differences between the two files don't cost toolchanges
+	 */
+	private static final double HEIGHT_TOLERANCE = 0.01;
+	/**
+	 * A guess at what a toolchange costs beyond its dwells, for travelling to
+	 * the wipe position and back and for the moves themselves
+	 */
+	private static final double TOOLCHANGE_TRAVEL_SECONDS = 10;
+	
+	/**
+	 * How many layers of each input may be read ahead of the merge
+	 */
+	private static final int READ_AHEAD_LAYERS = 8;
+	
+	private int toolchanges = 0;
+	private int toolchangesAvoided = 0;
+	private double toolchangeSeconds = 0;
+	
 	public DualStrusionConstruction(File leftFile, File rightFile,
 									MutableGCodeSource startSource, MutableGCodeSource endSource,
 									MachineType type, boolean useWipes)
@@ -73,17 +87,41 @@ public class DualStrusionConstruction
 			rightWipe = null;
 		}
 	}
-	public MutableGCodeSource getCombinedFile()
+
+	/**
+	 * @return the number of toolchanges in the combined code
+	 */
+	public int getToolchangeCount()
+	{
+		return toolchanges;
+	}
+	
+	/**
+	 * @return how many toolchanges a strict layer-by-layer merge would have
+	 * made that this one didn't
+	 */
+	public int getToolchangesAvoided()
+	{
+		return toolchangesAvoided;
+	}
+	
+	/**
+	 * @return a rough estimate of the print time the avoided toolchanges would
+	 * have taken, in seconds
+	 */
+	public double getEstimatedSecondsSaved()
 	{
-		return result;	
+		return toolchangesAvoided * toolchangeSeconds;
 	}
 
 	/**
-	 * This method handles shuffling together two gcodes, it first executes
-	 * preprocessing and then hands the gcodes off to Layer_Helper
+	 * This method handles shuffling together two gcodes and writing the result
+	 * to a file.  Both inputs are read a layer at a time and the merged code is
+	 * written out as it is made, so only a layer from each input is ever held
+	 * in memory, however big the files are.
 	 * 
 	 */
-	public void combine()
+	public void combine(File dest) throws IOException
 	{
 
 		/* Potential order of things to do:
@@ -108,189 +146,53 @@ public class DualStrusionConstruction
 		 * 
 		 * 
 		 */
-		left = new MutableGCodeSource(leftFile);
-		right = new MutableGCodeSource(rightFile);
-		
-		left.stripStartEndBestEffort();
-		right.stripStartEndBestEffort();
-		
-		stripNonLayerTagComments(left);
-		stripNonLayerTagComments(right);
-
-		LinkedList<Layer> leftLayers = newOldParseLayers(left);
-		LinkedList<Layer> rightLayers = newOldParseLayers(right);
-
-		final LinkedList<Layer> merged = doMerge(leftLayers, rightLayers);
-		
-		//process start & end before adding them
-//		duplicateToolheadLines(start); we have dual-start.gcode to do this, now
-//		duplicateToolheadLines(end);
-
-		merged.add(0, new Layer(0d, start.asList()));
-		merged.add(new Layer(Double.MAX_VALUE, end.asList()));
-
-		result = new MutableGCodeSource();
-		for(Layer l : merged)
-		{
-			result.add(l.getCommands());
-		}
-		
-		result.addProgressUpdates();
-	}
-	
-	/**
-	 * removes all lines that are skeinforge tag comments, but not layer tags.
-	 */
-	public void stripNonLayerTagComments(MutableGCodeSource source) {
-		String line;
-		for(Iterator<String> i = source.iterator(); i.hasNext();)
+		// LayerReader drops everything outside the layer tags, which takes care
+		// of the start and end code, and skips the tag comments that aren't
+		// layer tags.
+		LayerReader left = null, right = null;
+		LineFilter.FileWriterFilter sink = null;
+		try
 		{
-			line = i.next();
+			left = new LayerReader(leftFile);
+			right = new LayerReader(rightFile);
+			// Each file is read and scanned on its own thread, a few layers ahead
+			// of the merge, so the two are prepared side by side.
+			left.startReadAhead(READ_AHEAD_LAYERS);
+			right.startReadAhead(READ_AHEAD_LAYERS);
 			
-			if(line.startsWith("(<") &&	!(line.startsWith("(<layer>") || line.startsWith("(</layer")))
-			{
-				i.remove();
-			}
+			// Progress is judged by characters written, so the total only needs to
+			// be about right; the inputs are a little bigger than what we keep.
+			final long expected = LineFilter.countChars(start) + leftFile.length() +
+					rightFile.length() + LineFilter.countChars(end);
+			sink = new LineFilter.FileWriterFilter(dest);
+			final LineFilter out = LineFilter.progressUpdates(expected).then(sink);
+			out.begin();
+			//process start & end before adding them
+//			duplicateToolheadLines(start); we have dual-start.gcode to do this, now
+//			duplicateToolheadLines(end);
+			for(String line : start)
+				out.line(line);
+			doMerge(left, right, out);
+			for(String line : end)
+				out.line(line);
+			out.end();
 		}
-	}
-	
-	/**
-	 * Takes a GCodeSource, assumed to be lacking any start- or end- specific blocks of code
-	 * and to be in order of increasing layer height, and returns a LinkedList of Layers. Each Layer
-	 * should contain codes for a single height. The list should be in sorted order from lowest
-	 * height to highest.
-	 * We use a LinkedList because all this is internal, so it doesn't change any interfaces if we 
-	 * want to change it, and a LinkedList doubles as a Queue, which is handy for doMerge().
-	 * 
-	 * WARNING: This code assumes that the source gcode follows one of two formats:
-	 *   Either the extruder is turned off at the end of each layer using an M103,
-	 *   Or the gcode uses 5D, and there are no M103/M101/M108 commands
-	 *   
-	 * These should be safe assumptions for any code generated by Skeinforge
-	 * @param source
-	 * @return
-	 */
-	private LinkedList<Layer> parseLayers(final GCodeSource source)
-	{
-		/*
-		 * So this is a little more complicated than just breaking up stuff by Z height,
-		 * there may be M commands between layers, some of which belong to the previous 
-		 * layer, and some to the next. 
-		 * To get around this we:
-		 * Walk through the source
-		 *   // this assumes that every layer ends with the extruder off
-		 *   keep a trailing pointer to the last M103 we saw, and a count of the last layer height 
-		 *   we saw when we see a new layer height, break off a new layer after the previous M103
-		 *   
-		 *   but, with 5d, there won't be any M103, layers should have no associated pre/post Mcodes
-		 *   
-		 */
-
-		final LinkedList<Layer> layers = new LinkedList<Layer>();	
-		final Queue<String> read = new LinkedList<String>();
-
-		//debug code///////////////////////////
-		layers.add(new Layer(0d, new ArrayList<String>(){{add("(*************start layer*************)");}}));
-		//////////////////////////////////////
-		String lastM103 = null;
-		double lastZHeight = Double.MIN_VALUE;
-		for(String line : source)
+		finally
 		{
-			GCodeCommand gcode = new GCodeCommand(line);
-			
-			if(gcode.getCodeValue('M') == 103)
-				lastM103 = line;
-			
-			if(gcode.hasCode('Z'))
-			{
-				double newZ = gcode.getCodeValue('Z');
-				
-				// keeps us from creating an initial, empty layer
-				if(lastZHeight == Double.MIN_VALUE)
-				{
-					lastZHeight = newZ;
-				}
-				else if(newZ > lastZHeight)
-				{
-					ArrayList<String> tmpLayer = new ArrayList<String>();
-					
-					// fill the tmpLayer with the accumulated lines, up to the 
-					// most recent "stop extruding" or until the queue is empty (5D)
-					while(read.peek() != null && read.peek() != lastM103)
-						tmpLayer.add(read.poll());
-					
-					// Also grab the M103, if present
-					if(read.peek() == lastM103)
-						tmpLayer.add(read.poll());
-					
-					// put it in a new layer
-					layers.add(new Layer(lastZHeight, tmpLayer));
-
-					// record our next layer height
-					lastZHeight = newZ;
-				}
-			}
-			
-			read.add(line);
+			if(sink != null)
+				sink.close();
+			if(left != null)
+				left.close();
+			if(right != null)
+				right.close();
 		}
-
-		//debug code///////////////////////////
-		layers.add(new Layer(0d, new ArrayList<String>(){{add("(*************end layer*************)");}}));
-		//////////////////////////////////////
-		return layers;
 	}
 	
-	/**
-	 * newOldParseLayers is an improvement on the old parseLayers from Noah, etc. 's dualstrusion,
-	 * but uses the same basic method because skeinforge is what it is.
-	 * look for layer tags, break up the file using those tags.
-	 * @param source
-	 * @return
-	 */
-	private LinkedList<Layer> newOldParseLayers(GCodeSource source)
-	{
-		final LinkedList<Layer> result = new LinkedList<Layer>();
-		String line;
-		
-		for(Iterator<String> it = source.iterator(); it.hasNext();)
-		{
-			line = it.next();
-			if(line.startsWith("(<layer>"))
-			{
-				// Get the layer height (or whatever SF claims it is)
-				float layerHeight = 0;
-				try
-				{
-					layerHeight = Float.parseFloat(line.split(" ")[1]);
-				}
-				catch(NumberFormatException e)
-				{
-					Base.logger.log(Level.SEVERE, "one of your layer heights was unparseable, " +
-							"please check and make sure all of them are in the format (<layer> 0.00)");
-				}
-				
-				//collect every command up to the end of the layer 
-				final List<String> accumulate = new ArrayList<String>();
-//				String next = it.next(); actually, let's keep the initial layer tag
-				String next = line;
-				while(!next.startsWith("(</layer>)"))
-				{
-					accumulate.add(next);
-					next = it.next();
-				}
-				//skip empty layers
-				if(accumulate.size() > 1)
-					result.add(new Layer(layerHeight, accumulate));
-			}
-		}
-
-		return result;
-	}
 	/**
 	 * A toolchange is the code that goes in between commands for one head and commands for the other
 	 * this function creates a toolchange from a tool doing one layer to a tool doing another layer
 	 */
-	private Layer toolchange(final ToolheadAlias fromTool, final Layer fromLayer, final ToolheadAlias toTool, final Layer toLayer)
+	private List<String> toolchange(final ToolheadAlias fromTool, final double fromFeedrate, final ToolheadAlias toTool, final LayerReader.TaggedLayer toLayer)
 	{
 		/*
 		 * How does a toolchange work? Glad you asked:
@@ -348,117 +250,38 @@ public class DualStrusionConstruction
 		result.add("M18 A B");
 		
 		final DecimalFormat nf = (DecimalFormat)Base.getGcodeFormat();
-		final Point5d firstPos = getFirstPosition(toLayer);
-		firstPos.setZ(getLayerZ(toLayer));
-		
-		if(firstPos != null)
+		if(toLayer.hasPosition)
 		{
+			// skeinforge doesn't always start a layer at its final height, so use the last Z
+			final double z = Double.isNaN(toLayer.lastZ) ? toLayer.firstZ : toLayer.lastZ;
 			// The F here is a magic number, you can read about it in the 'wipe()' function
 			// move up fairly quickly
-			result.add("G1 Z" + nf.format(firstPos.z()) +" F3000");
+			result.add("G1 Z" + nf.format(z) +" F3000");
 			// move to the next point
-			result.add("G1 X" + nf.format(firstPos.x()) + " Y" + nf.format(firstPos.y()) + " Z" + nf.format(firstPos.z()) +" F3000");
+			result.add("G1 X" + nf.format(toLayer.firstX) + " Y" + nf.format(toLayer.firstY) + " Z" + nf.format(z) +" F3000");
 		}
-//		else
-//		{
-////			System.err.print(toLayer);
-//		}
 		
-		//TODO: catch possible null pointer exceptions?
 		// set the feedrate with an empty G1
-		String feedrate = getFirstFeedrate(toLayer);
+		String feedrate = formatFeedrate(toLayer.firstFeedrate);
 		if(feedrate.equals(""))
-			feedrate = getLastFeedrate(fromLayer);
+			feedrate = formatFeedrate(fromFeedrate);
 		result.add("G1 " + feedrate);
 
 		
 		//debug code///////////////////////////
 		result.add("(*************end toolchange*************)");
 		//////////////////////////////////////
-		// The 'height' of the toolchange. just the average of the surrounding layers because why not?
-		final double height = (toLayer.getHeight() - fromLayer.getHeight())/2;
-		
-		return new Layer(height, result);
-	}
-	/**
-	 * gets the first G1 from a layer, returns the position of X, Y, Z axes
-	 * @param l
-	 * @return
-	 */
-	private Point5d getFirstPosition(final Layer l)
-	{
-		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
-		for(int i = 0; i < search.size(); i++)
-		{
-			gcode = new GCodeCommand(search.get(i));
-			if(gcode.getCodeValue('G') == 1)
-			{
-				Point5d result = new Point5d();
-				result.setX(gcode.getCodeValue('X'));
-				result.setY(gcode.getCodeValue('Y'));
-				result.setZ(gcode.getCodeValue('Z'));
-				return result;
-			}
-		}
-		return null;
-	}
-	
-	/**
-	 * Apparently skeinforge does not have all the moves in a layer at the same height.
-	 * The first one is frequently lower than the following ones, so this function finds
-	 * the last height listed in a layer
-	 * @param l the layer in which to look
-	 * @return the layer height (maybe)
-	 */
-	private Double getLayerZ(final Layer l)
-	{
-		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
-		for(int i = search.size()-1; i >= 0; i--)
-		{
-			gcode = new GCodeCommand(search.get(i));
-			if(gcode.getCodeValue('G') == 1 && gcode.hasCode('Z'))
-			{
-				return gcode.getCodeValue('Z');
-			}
-		}
-		return null;
+		return result;
 	}
 	
 	/**
-	 * This gets the last feedrate used in a layer 
-	 * @param l
-	 * @return
-	 */
-	private String getLastFeedrate(final Layer l)
-	{
-		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
-		for(int i = search.size()-1; i >= 0; i--)
-		{
-			gcode = new GCodeCommand(search.get(i));
-			if(gcode.getCodeValue('F') != -1)
-				return "F"+Base.getGcodeFormat().format(gcode.getCodeValue('F'));
-		}
-		return "";
-	}
-	/**
-	 * This gets the first feedrate used in a layer 
-	 * @param l
-	 * @return
+	 * Formats a feedrate found in a layer as an F code, or gives "" if there wasn't one
 	 */
-	private String getFirstFeedrate(final Layer l)
+	private String formatFeedrate(final double feedrate)
 	{
-		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
-		for(int i = 0; i < search.size(); i++)
-		{
-			gcode = new GCodeCommand(search.get(i));
-			if(gcode.getCodeValue('F') != -1)
-				return "F"+Base.getGcodeFormat().format(gcode.getCodeValue('F'));
-		}
-		return "";
+		if(feedrate == -1)
+			return "";
+		return "F"+Base.getGcodeFormat().format(feedrate);
 	}
 	
 	/**
@@ -484,6 +307,7 @@ public class DualStrusionConstruction
 		// Ben or Noah may be able to explain it,
 		// Ted might be able to by the time you ask
 		final String feedrate = "F3000";
+
 		// move to purge home
 		result.add("G53");
 
@@ -502,7 +326,8 @@ public class DualStrusionConstruction
 		result.add("M108 "+toolWipe.getReverseRPM());
 		result.add("M102");
 		result.add("G04 "+toolWipe.getReverseDuration());
-		result.add("M103");		
+		result.add("M103");
+		
 		// wait for leak
 		result.add("G04 " + toolWipe.getWait());
 		
@@ -516,12 +341,13 @@ public class DualStrusionConstruction
 	}
 	
 	/**
-	 * This will consume two LinkedLists of Layers and return a combined List of Layers
+	 * This will consume two streams of Layers and write out a combined stream
 	 * representing a dualstrusion print, with all the appropriate toolchanges inserted. 
 	 * @param left
 	 * @param right
+	 * @param out where the merged code goes
 	 */
-	private LinkedList<Layer> doMerge(final LinkedList<Layer> left, final LinkedList<Layer> right)
+	private void doMerge(final LayerReader left, final LayerReader right, final LineFilter out) throws IOException
 	{
 		/*
 		 *   Merging layers should look something like this:
@@ -561,82 +387,93 @@ public class DualStrusionConstruction
 		 *     
 		 *           
 		 */
-		// using a LinkedList means we can getLast()
-		final LinkedList<Layer> result = new LinkedList<Layer>();
-
-		// this is just a handy way to keep track of where our last layer came from
-		Object lastLayer = null;
-		
-		
-		final ToolheadAlias initialTool;
 		// Start by selecting the correct toolhead
 		// This mimics how the selection happens in the loop below
-		if(right.peek().getHeight() < left.peek().getHeight())
-			initialTool = ToolheadAlias.RIGHT;
-		else
-			initialTool = ToolheadAlias.LEFT;
-
+		final ToolheadAlias initialTool = pickNext(left.peek(), right.peek(), null);
+		
 		// Prepend the switch to correct tool to the whole thing
-		result.add(new Layer(0, new ArrayList<String>(){{
-			add(initialTool.getRecallOffsetGcodeCommand());
-			add("M108 "+initialTool.getTcode() + "(Set tool)");
-		}}));
+		out.line(initialTool.getRecallOffsetGcodeCommand());
+		out.line("M108 "+initialTool.getTcode() + "(Set tool)");
+		
+		// this is just a handy way to keep track of where our last layer came from
+		ToolheadAlias lastTool = null;
+		double lastFeedrate = -1;
+		// the tool a merge that takes every layer as it comes would have ended up on
+		ToolheadAlias strictTool = null;
+		int strictToolchanges = 0;
+		toolchanges = 0;
+		toolchangeSeconds = 0;
 		
 		// loop while we still have layers to merge
-		while((!left.isEmpty()) || (!right.isEmpty()))
+		while(left.peek() != null || right.peek() != null)
 		{
-			// if we've used all of our right layers, keep grabbing from left
-			if(right.isEmpty())
-			{
-				// if last layer tool != next layer tool, add a toolchange
-				if(right.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.RIGHT, result.getLast(), ToolheadAlias.LEFT, left.peek()));
-				result.add(left.pop());
-				lastLayer = left;
-			}
-			else if(left.isEmpty()) // used all left layers, keep grabbing from right
-			{
-				// if last layer tool != next layer tool, add a toolchange
-				if(left.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.LEFT, result.getLast(), ToolheadAlias.RIGHT, right.peek()));
-				result.add(right.pop());
-				lastLayer = right;
-			}
-			else if(left.peek().getHeight() < right.peek().getHeight()) // left has a lower layer, grab it
-			{
-				// if last layer tool != next layer tool, add a toolchange
-				if(right.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.RIGHT, result.getLast(), ToolheadAlias.LEFT, left.peek()));
-				result.add(left.pop());
-				lastLayer = left;
-			}
-			else if(right.peek().getHeight() < left.peek().getHeight()) // right has lower layer
+			final ToolheadAlias nextTool = pickNext(left.peek(), right.peek(), lastTool);
+			final LayerReader.TaggedLayer layer =
+				(nextTool == ToolheadAlias.LEFT ? left : right).next();
+			
+			if(strictTool != null && strictTool != nextTool)
+				strictToolchanges++;
+			strictTool = nextTool;
+			
+			// A layer that only moves the head around isn't worth changing tools for
+			if(lastTool != null && lastTool != nextTool && layer.travelOnly)
 			{
-				// if last layer tool != next layer tool, add a toolchange
-				if(left.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.LEFT, result.getLast(), ToolheadAlias.RIGHT, right.peek()));
-				result.add(right.pop());
-				lastLayer = right;
+				if(toolchangeSeconds == 0)
+					toolchangeSeconds = estimateSeconds(toolchange(lastTool, lastFeedrate, nextTool, layer));
+				continue;
 			}
-			else //equal height
+			
+			// if last layer tool != next layer tool, add a toolchange
+			if(lastTool != null && lastTool != nextTool)
 			{
-				if(lastLayer == null)
-				{
-					//arbitrary
-					result.add(left.pop());
-					lastLayer = left;
-				}
-				else
-				{
-					if(lastLayer == left)
-						result.add(left.pop());
-					else// if(lastLayer == right)
-						result.add(right.pop());
-				}
+				final List<String> change = toolchange(lastTool, lastFeedrate, nextTool, layer);
+				if(toolchangeSeconds == 0)
+					toolchangeSeconds = estimateSeconds(change);
+				toolchanges++;
+				for(String line : change)
+					out.line(line);
 			}
+			for(String line : layer.getCommands())
+				out.line(line);
+			lastTool = nextTool;
+			lastFeedrate = layer.lastFeedrate;
 		}
-		
-		return result;
+		toolchangesAvoided = Math.max(0, strictToolchanges - toolchanges);
+	}
+	
+	/**
+	 * Guesses how long some toolchange code takes to run: its dwells, plus the
+	 * travel around them
+	 */
+	private double estimateSeconds(final List<String> code)
+	{
+		double millis = 0;
+		for(String line : code)
+		{
+			if(GCodeCommand.scanCodeValue(line, 'G') == 4)
+				millis += Math.max(0, GCodeCommand.scanCodeValue(line, 'P'));
+		}
+		return millis / 1000 + TOOLCHANGE_TRAVEL_SECONDS;
+	}
+	
+	/**
+	 * Decides which file the next layer comes from: whichever is lower, or if
+	 * they're the same height, whichever tool is already in use.
+	 */
+	private ToolheadAlias pickNext(final Layer left, final Layer right, final ToolheadAlias lastTool)
+	{
+		// if we've used all of one side's layers, keep grabbing from the other
+		if(right == null)
+			return ToolheadAlias.LEFT;
+		if(left == null)
+			return ToolheadAlias.RIGHT;
+		if(left.getHeight() < right.getHeight() - HEIGHT_TOLERANCE)
+			return ToolheadAlias.LEFT;
+		if(right.getHeight() < left.getHeight() - HEIGHT_TOLERANCE)
+			return ToolheadAlias.RIGHT;
+		//equal height, so the tool that's already going does its part first, and
+		//the other tool starts the next height; with no last tool the choice is arbitrary
+		return lastTool == ToolheadAlias.RIGHT ? ToolheadAlias.RIGHT : ToolheadAlias.LEFT;
 	}
 	
 //	// This is a hack, really we should be getting the dual-head start code
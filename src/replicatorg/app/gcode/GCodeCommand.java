@@ -122,6 +122,64 @@ public class GCodeCommand {
 		return -1;	// TODO: What do we return if there is no code?
 	}
 	
+	/**
+	 * Look up one code in a line without building a GCodeCommand.  This gives
+	 * the same answer as new GCodeCommand(line).getCodeValue(code), but doesn't
+	 * compile any patterns or allocate, so it suits passes over whole files.
+	 * @return the code's value, 0 if it has no number, or -1 if it isn't there
+	 */
+	public static double scanCodeValue(String line, char code) {
+		int end = line.indexOf(';');
+		if (end < 0) { end = line.length(); }
+		int first = scanCode(line, code, 0);
+		for (int i = first; i >= 0; i = scanCode(line, code, i + 1)) {
+			int j = i + 1;
+			while (j < end && isNumberChar(line.charAt(j))) { j++; }
+			if (j > i + 1) {
+				try {
+					return Double.parseDouble(line.substring(i + 1, j));
+				} catch (NumberFormatException nfe) {
+					return 0;
+				}
+			}
+		}
+		return first >= 0 ? 0 : -1;
+	}
+
+	/**
+	 * Whether a line has a code, outside its comments.  scanCodeValue() gives
+	 * -1 both for a code that isn't there and for one set to -1; this tells
+	 * them apart.
+	 */
+	public static boolean scanHasCode(String line, char code) {
+		return scanCode(line, code, 0) >= 0;
+	}
+
+	/**
+	 * @return where a code's letter is in a line, from an index on, outside
+	 * the line's comments; or -1 if it isn't there
+	 */
+	private static int scanCode(String line, char code, int from) {
+		int end = line.indexOf(';');
+		if (end < 0) { end = line.length(); }
+		// Like parenPattern, a comment runs from the first ( to the last )
+		int open = line.indexOf('(');
+		int close = open >= 0 ? line.lastIndexOf(')') : -1;
+		if (close < open) { open = -1; }
+		for (int i = from; i < end; i++) {
+			if (open >= 0 && i >= open && i <= close) {
+				i = close;
+				continue;
+			}
+			if (line.charAt(i) == code) { return i; }
+		}
+		return -1;
+	}
+
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-';
+	}
+
 //	public Double removeCode(Character searchCode) {
 //		for (Iterator<gCodeParameter> i = parameters.iterator(); i.hasNext();)
 //		{
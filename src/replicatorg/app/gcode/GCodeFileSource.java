@@ -0,0 +1,128 @@
+package replicatorg.app.gcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceException;
+
+/**
+ * A GCodeSource that reads a gcode file as it is built rather than holding
+ * it in memory, optionally starting partway through the file.  When it starts
+ * partway, a prologue of generated lines comes first to put the machine back
+ * into the state the skipped part of the file would have left it in; see
+ * ResumeState.  If the file can't be read partway through, the iterator
+ * throws GCodeSourceException rather than stopping short.
+ */
+public class GCodeFileSource implements GCodeSource {
+	private final File file;
+	private final long offset;
+	private final int firstLine;
+	private final int fileLines;
+	private final List<String> prologue;
+
+	/**
+	 * A source for the whole of a file.
+	 */
+	public GCodeFileSource(File file, GCodeLayerIndex index) {
+		this(file, 0, 0, index.getLineCount(), Collections.<String>emptyList());
+	}
+
+	/**
+	 * @param file the gcode file
+	 * @param offset the byte offset of the first line to read from the file
+	 * @param firstLine the number of that line, counting from 0
+	 * @param fileLines how many lines will be read from the file
+	 * @param prologue lines to run before those from the file
+	 */
+	public GCodeFileSource(File file, long offset, int firstLine, int fileLines, List<String> prologue) {
+		this.file = file;
+		this.offset = offset;
+		this.firstLine = firstLine;
+		this.fileLines = fileLines;
+		this.prologue = prologue;
+	}
+
+	/** @return the file this source reads from */
+	public File getFile() { return file; }
+
+	/** @return the number of the first line read from the file, counting from 0 */
+	public int getFirstLine() { return firstLine; }
+
+	/** @return how many generated lines come before those from the file */
+	public int getPrologueLineCount() { return prologue.size(); }
+
+	public List<String> getPrologue() { return prologue; }
+
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			private int prologueIndex = 0;
+			private GCodeLineReader reader = null;
+			private boolean done = false;
+			private GCodeSourceException failure = null;
+			private String next = null;
+
+			public boolean hasNext() {
+				if (next != null) { return true; }
+				if (prologueIndex < prologue.size()) {
+					next = prologue.get(prologueIndex++);
+					return true;
+				}
+				if (failure != null) { throw failure; }
+				if (done) { return false; }
+				try {
+					if (reader == null) {
+						reader = new GCodeLineReader(file, offset, firstLine);
+					}
+					next = reader.readLine();
+					if (next == null) { finish(); }
+				} catch (IOException ioe) {
+					// Not the end of the code; whoever is building it has to know
+					failure = new GCodeSourceException("Could not read " + file.getName() + " at line " +
+							(reader == null ? firstLine + 1 : reader.getLineNumber() + 1), ioe);
+					finish();
+					throw failure;
+				}
+				return next != null;
+			}
+
+			public String next() {
+				if (!hasNext()) { throw new NoSuchElementException(); }
+				String line = next;
+				next = null;
+				return line;
+			}
+
+			public void remove() { throw new UnsupportedOperationException(); }
+
+			private void finish() {
+				done = true;
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (IOException ioe) {
+						// Nothing more to read from it anyway
+					}
+					reader = null;
+				}
+			}
+		};
+	}
+
+	public List<String> asList() {
+		List<String> result = new ArrayList<String>(getLineCount());
+		for (Iterator<String> i = iterator(); i.hasNext();) {
+			result.add(i.next());
+		}
+		return result;
+	}
+
+	public int getLineCount() {
+		return prologue.size() + fileLines;
+	}
+}
@@ -0,0 +1,481 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.CacheDirectory;
+import replicatorg.app.util.FileProgress;
+
+/**
+ * Where the layers of a gcode file are, and what is in each of them.  The
+ * index is built in one pass over the file and saved next to it (as
+ * name.gcode.layers), or in the user directory if the file's directory can't
+ * be written to.  A saved index is used again for as long as the file's size
+ * and modification time match.
+ *
+ * Layers are taken from skeinforge's "(&lt;layer&gt; z)" tags where the file has
+ * them.  Otherwise a layer starts with the move to the height of the first
+ * extruding move that isn't at the current layer's height, so that Z hops and
+ * moves in the start code don't count as layers.  Anything before the first
+ * layer is the start code, and belongs to no layer.
+ *
+ * Extrusion is the filament pushed in 5D code; for older code that turns the
+ * extruder on and off with M101/M103 it is the length of the moves made with
+ * the extruder on.  Times are a straight distance over feedrate estimate,
+ * plus dwells, without acceleration.
+ */
+public class GCodeLayerIndex {
+	private static final int MAGIC = 0x52474c49; // RGLI
+	private static final int VERSION = 3;
+	private static final String SUFFIX = ".layers";
+	private static final int BUFFER_SIZE = 64*1024;
+
+	/** One layer of the file. */
+	public static class Entry {
+		/** Where the layer starts, as a byte offset and a line number counting from 0. */
+		public final long offset;
+		public final int line;
+		/** The height of the layer. */
+		public final double z;
+		/** The tool selected when the layer starts, or -1 if none has been. */
+		public final int tool;
+		/** How much the layer extrudes; see the class description. */
+		public final double extrusion;
+		/** Estimated time to run the layer, in seconds. */
+		public final double seconds;
+		/** The area the layer extrudes over; all NaN if it doesn't extrude. */
+		public final double minX, minY, maxX, maxY;
+		/** Where the head is and the feedrate in effect when the layer starts. */
+		public final double startX, startY, startZ, startE, startFeedrate;
+		/**
+		 * Whether moves are relative, whether the extruder's are, and whether an
+		 * M101 extruder is on, when the layer starts.
+		 */
+		public final boolean startRelative, startRelativeE, startExtruderOn;
+
+		Entry(long offset, int line, double z, int tool, double extrusion, double seconds,
+				double minX, double minY, double maxX, double maxY,
+				double startX, double startY, double startZ, double startE, double startFeedrate,
+				boolean startRelative, boolean startRelativeE, boolean startExtruderOn) {
+			this.offset = offset;
+			this.line = line;
+			this.z = z;
+			this.tool = tool;
+			this.extrusion = extrusion;
+			this.seconds = seconds;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.startX = startX;
+			this.startY = startY;
+			this.startZ = startZ;
+			this.startE = startE;
+			this.startFeedrate = startFeedrate;
+			this.startRelative = startRelative;
+			this.startRelativeE = startRelativeE;
+			this.startExtruderOn = startExtruderOn;
+		}
+	}
+
+	private final List<Entry> layers;
+	private final long length;
+	private final long modified;
+	private final int lineCount;
+	private final double totalSeconds;
+
+	private GCodeLayerIndex(List<Entry> layers, long length, long modified,
+			int lineCount, double totalSeconds) {
+		this.layers = layers;
+		this.length = length;
+		this.modified = modified;
+		this.lineCount = lineCount;
+		this.totalSeconds = totalSeconds;
+	}
+
+	/** @return whether this index still describes a file as it is now */
+	public boolean isCurrent(File gcode) {
+		return length == gcode.length() && modified == gcode.lastModified();
+	}
+
+	public int getLayerCount() { return layers.size(); }
+	public Entry getLayer(int i) { return layers.get(i); }
+	/** @return the number of lines in the file */
+	public int getLineCount() { return lineCount; }
+	/** @return the estimated time to run the whole file, start code included, in seconds */
+	public double getTotalSeconds() { return totalSeconds; }
+
+	/** @return the byte offset just past the end of a layer */
+	public long getEndOffset(int i) {
+		return i + 1 < layers.size() ? layers.get(i + 1).offset : length;
+	}
+
+	/** @return the line number just past the end of a layer */
+	public int getEndLine(int i) {
+		return i + 1 < layers.size() ? layers.get(i + 1).line : lineCount;
+	}
+
+	/**
+	 * @return the layer a line belongs to, or -1 if it comes before the first layer
+	 */
+	public int findLayerForLine(int line) {
+		int lo = 0, hi = layers.size() - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (layers.get(mid).line <= line) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the first layer at or above a height, or -1 if every layer is lower
+	 */
+	public int findLayerAtZ(double z) {
+		for (int i = 0; i < layers.size(); i++) {
+			if (layers.get(i).z >= z - 1e-6) { return i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the estimated time to run everything from the start of a layer
+	 * to the end of the file, in seconds
+	 */
+	public double getSecondsFrom(int layer) {
+		double seconds = 0;
+		for (int i = layer; i < layers.size(); i++) { seconds += layers.get(i).seconds; }
+		return seconds;
+	}
+
+	/**
+	 * Get the index for a file, reading a saved one if it is up to date and
+	 * building and saving one if not.
+	 */
+	public static GCodeLayerIndex get(File gcode) throws IOException {
+		return get(gcode, null);
+	}
+
+	/**
+	 * Get the index for a file, as get(File) does, telling progress how far
+	 * building it has got.
+	 */
+	public static GCodeLayerIndex get(File gcode, FileProgress progress) throws IOException {
+		for (File f : new File[] { getIndexFile(gcode), getFallbackIndexFile(gcode) }) {
+			if (f != null && f.isFile()) {
+				GCodeLayerIndex index = load(f, gcode);
+				if (index != null) { return index; }
+			}
+		}
+		GCodeLayerIndex index = build(gcode, progress);
+		if (!index.save(getIndexFile(gcode), gcode)) {
+			File fallback = getFallbackIndexFile(gcode);
+			if (fallback != null) {
+				fallback.getParentFile().mkdirs();
+				index.save(fallback, gcode);
+			}
+		}
+		return index;
+	}
+
+	/** @return where the index for a file is saved next to it */
+	public static File getIndexFile(File gcode) {
+		return new File(gcode.getPath() + SUFFIX);
+	}
+
+	private static File getFallbackIndexFile(File gcode) {
+		try {
+			MessageDigest md = CacheDirectory.newDigest();
+			md.update(gcode.getAbsolutePath().getBytes("UTF-8"));
+			return new File(new File(Base.getUserDirectory(), "layerindex"),
+					CacheDirectory.toHex(md.digest()) + SUFFIX);
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read a saved index.
+	 * @return the index, or null if it doesn't match the file as it is now
+	 */
+	public static GCodeLayerIndex load(File indexFile, File gcode) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(indexFile), BUFFER_SIZE));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) { return null; }
+				long length = in.readLong();
+				long modified = in.readLong();
+				if (length != gcode.length() || modified != gcode.lastModified()) { return null; }
+				int lineCount = in.readInt();
+				double totalSeconds = in.readDouble();
+				int count = in.readInt();
+				List<Entry> layers = new ArrayList<Entry>(count);
+				for (int i = 0; i < count; i++) {
+					layers.add(new Entry(in.readLong(), in.readInt(), in.readDouble(), in.readInt(),
+							in.readDouble(), in.readDouble(),
+							in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+							in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+							in.readDouble(), in.readBoolean(), in.readBoolean(), in.readBoolean()));
+				}
+				return new GCodeLayerIndex(layers, length, modified, lineCount, totalSeconds);
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			Base.logger.log(Level.FINE, "Could not read layer index " + indexFile.getPath(), ioe);
+			return null;
+		}
+	}
+
+	/**
+	 * Save this index for a file.
+	 * @return true if it was written
+	 */
+	public boolean save(File indexFile, File gcode) {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), BUFFER_SIZE));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(length);
+				out.writeLong(modified);
+				out.writeInt(lineCount);
+				out.writeDouble(totalSeconds);
+				out.writeInt(layers.size());
+				for (Entry e : layers) {
+					out.writeLong(e.offset);
+					out.writeInt(e.line);
+					out.writeDouble(e.z);
+					out.writeInt(e.tool);
+					out.writeDouble(e.extrusion);
+					out.writeDouble(e.seconds);
+					out.writeDouble(e.minX);
+					out.writeDouble(e.minY);
+					out.writeDouble(e.maxX);
+					out.writeDouble(e.maxY);
+					out.writeDouble(e.startX);
+					out.writeDouble(e.startY);
+					out.writeDouble(e.startZ);
+					out.writeDouble(e.startE);
+					out.writeDouble(e.startFeedrate);
+					out.writeBoolean(e.startRelative);
+					out.writeBoolean(e.startRelativeE);
+					out.writeBoolean(e.startExtruderOn);
+				}
+			} finally {
+				out.close();
+			}
+			indexFile.delete();
+			if (tmp.renameTo(indexFile)) { return true; }
+		} catch (IOException ioe) {
+			Base.logger.log(Level.FINE, "Could not save layer index " + indexFile.getPath(), ioe);
+		}
+		tmp.delete();
+		return false;
+	}
+
+	/**
+	 * Build the index for a file in one pass over it.
+	 */
+	public static GCodeLayerIndex build(File gcode) throws IOException {
+		return build(gcode, null);
+	}
+
+	/**
+	 * Build the index for a file, telling progress how much of it has been
+	 * read.
+	 */
+	public static GCodeLayerIndex build(File gcode, FileProgress progress) throws IOException {
+		Builder builder = new Builder();
+		long modified = gcode.lastModified();
+		long length = gcode.length();
+		InputStream in = new FileInputStream(gcode);
+		try {
+			byte[] buf = new byte[BUFFER_SIZE];
+			byte[] line = new byte[256];
+			int lineLength = 0;
+			long offset = 0;
+			long lineStart = 0;
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				for (int i = 0; i < n; i++) {
+					byte b = buf[i];
+					if (b == '\n') {
+						int end = lineLength;
+						if (end > 0 && line[end - 1] == '\r') { end--; }
+						builder.line(new String(line, 0, end, "ISO-8859-1"), lineStart);
+						lineLength = 0;
+						lineStart = offset + i + 1;
+					} else {
+						if (lineLength == line.length) {
+							byte[] bigger = new byte[line.length * 2];
+							System.arraycopy(line, 0, bigger, 0, lineLength);
+							line = bigger;
+						}
+						line[lineLength++] = b;
+					}
+				}
+				offset += n;
+				if (progress != null) { progress.progress(offset, length); }
+			}
+			if (lineLength > 0) {
+				int end = lineLength;
+				if (line[end - 1] == '\r') { end--; }
+				builder.line(new String(line, 0, end, "ISO-8859-1"), lineStart);
+			}
+			return builder.finish(offset, modified);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Follows the machine through the file a line at a time, cutting it into layers.
+	 */
+	private static class Builder {
+		final List<Entry> layers = new ArrayList<Entry>();
+		int lineNumber = 0;
+		boolean tagged = false;
+		final MoveTracker head = new MoveTracker();
+		boolean extruderOn = false;
+		int tool = -1;
+		double totalSeconds = 0;
+
+		// The layer being read
+		boolean inLayer = false;
+		long layerOffset;
+		int layerLine, layerTool;
+		double layerZ, extrusion, seconds;
+		double minX, minY, maxX, maxY;
+		double startX, startY, startZ, startE, startFeedrate;
+		boolean startRelative, startRelativeE, startExtruderOn;
+
+		// The last move to a new height, where the next untagged layer would start
+		long heightOffset;
+		int heightLine;
+		double heightX, heightY, heightZ, heightE, heightFeedrate;
+		int heightTool;
+		boolean heightRelative, heightRelativeE, heightExtruderOn;
+
+		void line(String line, long offset) {
+			int number = lineNumber++;
+			if (line.startsWith("(<layer>")) {
+				tagged = true;
+				double tagZ = head.z;
+				try {
+					tagZ = Double.parseDouble(line.substring(8).replace(')', ' ').trim());
+				} catch (NumberFormatException nfe) {
+					// use the current height
+				}
+				startLayer(offset, number, tagZ, head.x, head.y, head.z, head.e, head.feedrate, tool,
+						head.relative, head.relativeE, extruderOn);
+				return;
+			}
+			if (line.length() == 0 || line.charAt(0) == '(' || line.charAt(0) == ';') { return; }
+
+			double g = GCodeCommand.scanCodeValue(line, 'G');
+			double m = GCodeCommand.scanCodeValue(line, 'M');
+			double t = GCodeCommand.scanCodeValue(line, 'T');
+			// As in GCodeParser and ResumeState, a T on any M code selects the tool
+			if (t >= 0 && (m != -1 || g == -1)) {
+				tool = (int)t;
+			}
+			if (m == 101) { extruderOn = true; }
+			else if (m == 102 || m == 103) { extruderOn = false; }
+
+			if (head.follow(line, g, m)) {
+				if (head.z != head.fromZ) {
+					heightOffset = offset;
+					heightLine = number;
+					heightX = head.fromX; heightY = head.fromY; heightZ = head.fromZ; heightE = head.fromE;
+					heightFeedrate = head.feedrate; heightTool = tool;
+					heightRelative = head.relative; heightRelativeE = head.relativeE;
+					heightExtruderOn = extruderOn;
+				}
+				double dx = head.x - head.fromX, dy = head.y - head.fromY, dz = head.z - head.fromZ;
+				double de = head.e - head.fromE;
+				double distance = Math.sqrt(dx*dx + dy*dy + dz*dz);
+				boolean extruding = de > 0 || (extruderOn && distance > 0);
+				if (extruding && !tagged && (!inLayer || Math.abs(head.z - layerZ) > 1e-6)) {
+					startLayer(heightOffset, heightLine, head.z, heightX, heightY, heightZ, heightE,
+							heightFeedrate, heightTool, heightRelative, heightRelativeE, heightExtruderOn);
+				}
+				double moveSeconds = 0;
+				double travel = distance > 0 ? distance : Math.abs(de);
+				if (head.feedrate > 0) { moveSeconds = travel / head.feedrate * 60; }
+				account(moveSeconds);
+				if (inLayer && extruding) {
+					extrusion += de > 0 ? de : distance;
+					include(head.fromX, head.fromY);
+					include(head.x, head.y);
+				}
+			} else if (g == 4) {
+				double p = GCodeCommand.scanCodeValue(line, 'P');
+				double s = GCodeCommand.scanCodeValue(line, 'S');
+				account(p > 0 ? p / 1000 : (s > 0 ? s : 0));
+			}
+		}
+
+		private void account(double moveSeconds) {
+			totalSeconds += moveSeconds;
+			if (inLayer) { seconds += moveSeconds; }
+		}
+
+		private void include(double px, double py) {
+			if (Double.isNaN(minX) || px < minX) { minX = px; }
+			if (Double.isNaN(maxX) || px > maxX) { maxX = px; }
+			if (Double.isNaN(minY) || py < minY) { minY = py; }
+			if (Double.isNaN(maxY) || py > maxY) { maxY = py; }
+		}
+
+		private void startLayer(long offset, int line, double layerHeight,
+				double sx, double sy, double sz, double se, double sf, int st,
+				boolean sr, boolean sre, boolean son) {
+			endLayer();
+			inLayer = true;
+			layerOffset = offset;
+			layerLine = line;
+			layerZ = layerHeight;
+			layerTool = st;
+			extrusion = 0;
+			seconds = 0;
+			minX = minY = maxX = maxY = Double.NaN;
+			startX = sx; startY = sy; startZ = sz; startE = se; startFeedrate = sf;
+			startRelative = sr;
+			startRelativeE = sre;
+			startExtruderOn = son;
+		}
+
+		private void endLayer() {
+			if (!inLayer) { return; }
+			layers.add(new Entry(layerOffset, layerLine, layerZ, layerTool, extrusion, seconds,
+					minX, minY, maxX, maxY, startX, startY, startZ, startE, startFeedrate,
+					startRelative, startRelativeE, startExtruderOn));
+			inLayer = false;
+		}
+
+		GCodeLayerIndex finish(long length, long modified) {
+			endLayer();
+			return new GCodeLayerIndex(layers, length, modified, lineNumber, totalSeconds);
+		}
+	}
+}
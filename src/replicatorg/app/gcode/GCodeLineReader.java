@@ -0,0 +1,109 @@
+package replicatorg.app.gcode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the lines of a gcode file from any byte offset, cutting them where
+ * GCodeLayerIndex does (at '\n', with a '\r' before it dropped) so that the
+ * line numbers and offsets it keeps agree with the index's.
+ *
+ * Lines before a given line number can be skipped without being turned into
+ * strings if they are plain G0/G1 moves, which is most of a file; that is what
+ * lets ResumeState read through the start of a huge file quickly.
+ */
+public class GCodeLineReader {
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private final InputStream in;
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int pos = 0, limit = 0;
+	private byte[] line = new byte[256];
+	private long offset;
+	private int lineNumber;
+	private int skipMovesBefore = -1;
+
+	/**
+	 * @param file the file to read
+	 * @param offset the byte offset of the first line to read
+	 * @param lineNumber the number of that line, counting from 0
+	 */
+	public GCodeLineReader(File file, long offset, int lineNumber) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			fis.getChannel().position(offset);
+		} catch (IOException ioe) {
+			fis.close();
+			throw ioe;
+		}
+		this.in = fis;
+		this.offset = offset;
+		this.lineNumber = lineNumber;
+	}
+
+	/** @return the byte offset of the next line */
+	public long getOffset() { return offset; }
+
+	/** @return the number of the next line */
+	public int getLineNumber() { return lineNumber; }
+
+	/**
+	 * Pass over G0 and G1 lines numbered below the given line instead of
+	 * returning them.
+	 */
+	public void skipMovesBefore(int line) {
+		skipMovesBefore = line;
+	}
+
+	/**
+	 * @return the next line, without its line ending, or null at the end of the file
+	 */
+	public String readLine() throws IOException {
+		while (true) {
+			int length = 0;
+			boolean any = false;
+			while (true) {
+				if (pos == limit) {
+					limit = in.read(buf);
+					pos = 0;
+					if (limit <= 0) {
+						limit = 0;
+						break;
+					}
+				}
+				byte b = buf[pos++];
+				offset++;
+				any = true;
+				if (b == '\n') { break; }
+				if (length == line.length) {
+					byte[] bigger = new byte[line.length * 2];
+					System.arraycopy(line, 0, bigger, 0, length);
+					line = bigger;
+				}
+				line[length++] = b;
+			}
+			if (!any) { return null; }
+			int number = lineNumber++;
+			if (length > 0 && line[length - 1] == '\r') { length--; }
+			if (number < skipMovesBefore && isMove(line, length)) { continue; }
+			return new String(line, 0, length, "ISO-8859-1");
+		}
+	}
+
+	/** @return whether a line is a G0 or G1 */
+	private static boolean isMove(byte[] line, int length) {
+		int i = 0;
+		while (i < length && (line[i] == ' ' || line[i] == '\t')) { i++; }
+		if (i == length || (line[i] != 'G' && line[i] != 'g')) { return false; }
+		i++;
+		while (i < length && line[i] == '0') { i++; }
+		if (i < length && line[i] == '1') { i++; }
+		return i == length || !Character.isDigit(line[i]) && line[i] != '.';
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
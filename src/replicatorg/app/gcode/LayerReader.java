@@ -0,0 +1,244 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+
+/**
+ * Reads a skeinforge gcode file one layer at a time, so that only the layer
+ * being worked on has to be in memory.  A layer is everything from a
+ * "(&lt;layer&gt; height)" tag up to its closing tag; code outside the tags is
+ * dropped, as are skeinforge's other tag comments.
+ *
+ * While it reads a layer, the reader notes the positions and feedrates that
+ * the dualstrusion merge needs, so that nobody has to go back over the
+ * layer's lines to find them.
+ *
+ * With startReadAhead(), the file is read and scanned on a thread of its own
+ * a few layers ahead of whoever is taking them, so that two files being
+ * merged are prepared at the same time.
+ */
+public class LayerReader {
+	private static final int BUFFER_SIZE = 64*1024;
+
+	/**
+	 * A layer, along with what was learned about it while it was read.  Values
+	 * that weren't found are -1, as GCodeCommand.getCodeValue() would give.
+	 */
+	public static class TaggedLayer extends Layer {
+		/** Whether the layer has a G1 at all. */
+		public final boolean hasPosition;
+		/** Position of the first G1 in the layer. */
+		public final double firstX, firstY, firstZ;
+		/** Z of the last G1 in the layer that has one, or NaN if none does. */
+		public final double lastZ;
+		/** The first and last feedrates set in the layer. */
+		public final double firstFeedrate, lastFeedrate;
+		/**
+		 * Whether the layer does nothing but move without extruding, so that
+		 * leaving it out changes nothing about the print.
+		 */
+		public final boolean travelOnly;
+
+		TaggedLayer(double height, List<String> commands, boolean hasPosition,
+				double firstX, double firstY, double firstZ, double lastZ,
+				double firstFeedrate, double lastFeedrate, boolean travelOnly) {
+			super(height, commands);
+			this.hasPosition = hasPosition;
+			this.travelOnly = travelOnly;
+			this.firstX = firstX;
+			this.firstY = firstY;
+			this.firstZ = firstZ;
+			this.lastZ = lastZ;
+			this.firstFeedrate = firstFeedrate;
+			this.lastFeedrate = lastFeedrate;
+		}
+	}
+
+	private final BufferedReader reader;
+	private TaggedLayer peeked = null;
+	/** The furthest the filament has been pushed, for telling extrusion from unretraction in 5D code. */
+	private double maxE = 0;
+
+	/** Marks the end of the file in the read-ahead queue. */
+	private static final TaggedLayer END =
+		new TaggedLayer(0, null, false, -1, -1, -1, Double.NaN, -1, -1, false);
+	private Thread readAhead = null;
+	private BlockingQueue<TaggedLayer> ready = null;
+	/** Whatever stopped the read-ahead thread before the end of the file. */
+	private volatile Throwable readAheadError = null;
+	private boolean finished = false;
+
+	public LayerReader(File file) throws IOException {
+		reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+				Charset.defaultCharset()), BUFFER_SIZE);
+	}
+
+	/**
+	 * Start reading layers in the background, keeping up to the given number
+	 * ready.  Call this before the first peek() or next().
+	 */
+	public void startReadAhead(int layers) {
+		ready = new ArrayBlockingQueue<TaggedLayer>(layers);
+		readAhead = new Thread("Layer reader") {
+			public void run() {
+				boolean closed = false;
+				try {
+					TaggedLayer layer;
+					while ((layer = read()) != null) {
+						ready.put(layer);
+					}
+				} catch (InterruptedException ie) {
+					// Closed before the end of the file
+					closed = true;
+				} catch (Throwable t) {
+					// Anything at all, so that peek() isn't left waiting
+					readAheadError = t;
+				} finally {
+					if (!closed) {
+						try {
+							ready.put(END);
+						} catch (InterruptedException ie) {
+							// Closed; nobody is waiting for the end
+						}
+					}
+				}
+			}
+		};
+		readAhead.setDaemon(true);
+		readAhead.start();
+	}
+
+	/**
+	 * @return the next layer without consuming it, or null at the end of the file
+	 */
+	public TaggedLayer peek() throws IOException {
+		if (peeked == null && !finished) {
+			if (ready == null) {
+				peeked = read();
+			} else {
+				try {
+					peeked = ready.take();
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException("Interrupted while reading layers");
+				}
+				if (peeked == END) {
+					peeked = null;
+					finished = true;
+					Throwable t = readAheadError;
+					if (t instanceof IOException) { throw (IOException)t; }
+					if (t != null) {
+						IOException ioe = new IOException("Could not read layers: " + t);
+						ioe.initCause(t);
+						throw ioe;
+					}
+				}
+			}
+			finished = (peeked == null);
+		}
+		return peeked;
+	}
+
+	/**
+	 * @return the next layer, or null at the end of the file
+	 */
+	public TaggedLayer next() throws IOException {
+		TaggedLayer layer = peek();
+		peeked = null;
+		return layer;
+	}
+
+	public void close() throws IOException {
+		if (readAhead != null) {
+			readAhead.interrupt();
+			try {
+				readAhead.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		reader.close();
+	}
+
+	private TaggedLayer read() throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (!line.startsWith("(<layer>")) { continue; }
+
+			double height = 0;
+			try {
+				height = Float.parseFloat(line.split(" ")[1]);
+			} catch (RuntimeException e) {
+				Base.logger.log(Level.SEVERE, "one of your layer heights was unparseable, " +
+						"please check and make sure all of them are in the format (<layer> 0.00)");
+			}
+
+			List<String> commands = new ArrayList<String>();
+			double firstX = -1, firstY = -1, firstZ = -1, lastZ = Double.NaN;
+			double firstFeedrate = -1, lastFeedrate = -1;
+			boolean sawG1 = false;
+			boolean travelOnly = true;
+			// keep the initial layer tag
+			String next = line;
+			while (next != null && !next.startsWith("(</layer>)")) {
+				if (next.startsWith("(<") && !next.startsWith("(<layer>")) {
+					// A skeinforge tag comment that isn't a layer tag
+					next = reader.readLine();
+					continue;
+				}
+				commands.add(next);
+				if (next.length() > 0 && next.charAt(0) != '(') {
+					double g = GCodeCommand.scanCodeValue(next, 'G');
+					double m = GCodeCommand.scanCodeValue(next, 'M');
+					if (g == 0 || g == 1) {
+						double e = GCodeCommand.scanCodeValue(next, 'E');
+						if (e > maxE) {
+							maxE = e;
+							travelOnly = false;
+						}
+					} else if (m != 103) {
+						// Anything but a move or turning the extruder off might matter
+						travelOnly = false;
+						if (g == 92) {
+							double e = GCodeCommand.scanCodeValue(next, 'E');
+							if (e != -1) { maxE = e; }
+						}
+					}
+					if (g == 1) {
+						double z = GCodeCommand.scanCodeValue(next, 'Z');
+						if (!sawG1) {
+							firstX = GCodeCommand.scanCodeValue(next, 'X');
+							firstY = GCodeCommand.scanCodeValue(next, 'Y');
+							firstZ = z;
+							sawG1 = true;
+						}
+						if (z != -1) { lastZ = z; }
+					}
+					double f = GCodeCommand.scanCodeValue(next, 'F');
+					if (f != -1) {
+						if (firstFeedrate == -1) { firstFeedrate = f; }
+						lastFeedrate = f;
+					}
+				}
+				next = reader.readLine();
+			}
+			// skip empty layers
+			if (commands.size() > 1) {
+				return new TaggedLayer(height, commands, sawG1, firstX, firstY, firstZ,
+						lastZ, firstFeedrate, lastFeedrate, travelOnly);
+			}
+		}
+		return null;
+	}
+}
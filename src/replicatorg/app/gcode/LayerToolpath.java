@@ -0,0 +1,97 @@
+package replicatorg.app.gcode;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The moves of one layer of a gcode file, seen from above, for drawing.  The
+ * layer is read straight from the file, starting where the layer index says
+ * it does and with the head where the index says it is, so drawing any layer
+ * costs one pass over that layer's lines and nothing before it.  Moves are
+ * followed with a MoveTracker, as GCodeLayerIndex follows them; nothing is run.
+ *
+ * The moves are kept as a path of points in flat arrays: the move to point
+ * i starts from point i - 1, and either extrudes or is a travel move.  Moves
+ * that don't change X or Y don't make a point.
+ */
+public class LayerToolpath {
+	private final int layer;
+	private float[] xs = new float[256];
+	private float[] ys = new float[256];
+	private boolean[] extruding = new boolean[256];
+	private int points = 0;
+
+	private LayerToolpath(int layer) {
+		this.layer = layer;
+	}
+
+	/** @return the layer these are the moves of */
+	public int getLayer() { return layer; }
+	/** @return the number of points; there is one move fewer */
+	public int getPointCount() { return points; }
+	public float getX(int i) { return xs[i]; }
+	public float getY(int i) { return ys[i]; }
+	/** @return whether the move to point i extrudes; i counts from 1 */
+	public boolean isExtruding(int i) { return extruding[i]; }
+
+	private void add(double x, double y, boolean extrudes) {
+		if (points == xs.length) {
+			int size = points * 2;
+			float[] bx = new float[size];
+			float[] by = new float[size];
+			boolean[] be = new boolean[size];
+			System.arraycopy(xs, 0, bx, 0, points);
+			System.arraycopy(ys, 0, by, 0, points);
+			System.arraycopy(extruding, 0, be, 0, points);
+			xs = bx;
+			ys = by;
+			extruding = be;
+		}
+		xs[points] = (float)x;
+		ys[points] = (float)y;
+		extruding[points] = extrudes;
+		points++;
+	}
+
+	/**
+	 * Read the moves of a layer.
+	 * @param gcode the file
+	 * @param index an up to date layer index of it
+	 * @param layer the layer, counting from 0
+	 */
+	public static LayerToolpath read(File gcode, GCodeLayerIndex index, int layer) throws IOException {
+		GCodeLayerIndex.Entry entry = index.getLayer(layer);
+		int end = index.getEndLine(layer);
+		LayerToolpath path = new LayerToolpath(layer);
+		MoveTracker head = new MoveTracker(entry);
+		boolean extruderOn = entry.startExtruderOn;
+		path.add(head.x, head.y, false);
+		GCodeLineReader reader = new GCodeLineReader(gcode, entry.offset, entry.line);
+		try {
+			while (reader.getLineNumber() < end) {
+				String line = reader.readLine();
+				if (line == null) { break; }
+				if (line.length() == 0 || line.charAt(0) == '(' || line.charAt(0) == ';') { continue; }
+				double g = GCodeCommand.scanCodeValue(line, 'G');
+				double m = GCodeCommand.scanCodeValue(line, 'M');
+				if (m == 101) { extruderOn = true; }
+				else if (m == 102 || m == 103) { extruderOn = false; }
+
+				double ox = head.x, oy = head.y;
+				if (head.follow(line, g, m)) {
+					if (head.x != ox || head.y != oy) {
+						double dx = head.x - ox, dy = head.y - oy, dz = head.z - head.fromZ;
+						boolean extrudes = head.e > head.fromE || (extruderOn && dx*dx + dy*dy + dz*dz > 0);
+						path.add(head.x, head.y, extrudes);
+					}
+				} else if (head.x != ox || head.y != oy) {
+					// The head hasn't moved, but the file goes on from somewhere new (G92)
+					path.add(head.x, head.y, false);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return path;
+	}
+}
@@ -0,0 +1,207 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import replicatorg.machine.model.ToolheadAlias;
+import replicatorg.model.GCodeSource;
+
+/**
+ * One stage of a streaming gcode transformation.  Stages are chained with
+ * then(); each gets lines one at a time and passes on whatever it wants the
+ * next stage to see, so a whole file can be rewritten in a single pass without
+ * ever holding it in memory.
+ *
+ * The default implementation passes every line through unchanged.
+ */
+public class LineFilter {
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private LineFilter next = null;
+
+	/**
+	 * Append a stage to the end of this chain.
+	 * @return this chain, so that calls can be chained
+	 */
+	public LineFilter then(LineFilter filter) {
+		LineFilter last = this;
+		while (last.next != null) { last = last.next; }
+		last.next = filter;
+		return this;
+	}
+
+	/** Called before the first line. */
+	public void begin() throws IOException {
+		if (next != null) { next.begin(); }
+	}
+
+	/** Called for every line, without its line terminator. */
+	public void line(String line) throws IOException {
+		emit(line);
+	}
+
+	/** Called after the last line. */
+	public void end() throws IOException {
+		if (next != null) { next.end(); }
+	}
+
+	/** Pass a line on to the next stage. */
+	protected void emit(String line) throws IOException {
+		if (next != null) { next.line(line); }
+	}
+
+	/**
+	 * Push every line of a file through the chain.
+	 */
+	public void run(File source) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(in, Charset.defaultCharset()), BUFFER_SIZE);
+			begin();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line(line);
+			}
+			end();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Push every line of a file through the chain and replace the file with the
+	 * result.  The output goes to a temporary file next to the source, which is
+	 * then renamed over it.
+	 */
+	public void rewrite(File file) throws IOException {
+		File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName()+".tmp");
+		FileWriterFilter sink = new FileWriterFilter(tmp);
+		then(sink);
+		try {
+			run(file);
+		} finally {
+			sink.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// Windows won't rename over an existing file
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Could not replace "+file.getPath());
+			}
+		}
+	}
+
+	/**
+	 * The end of a chain: writes lines to a file through a buffered channel.
+	 */
+	public static class FileWriterFilter extends LineFilter {
+		private final FileOutputStream out;
+		private final Writer writer;
+
+		public FileWriterFilter(File f) throws IOException {
+			out = new FileOutputStream(f);
+			FileChannel channel = out.getChannel();
+			writer = new BufferedWriter(Channels.newWriter(channel,
+					Charset.defaultCharset().newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+		}
+
+		@Override
+		public void line(String line) throws IOException {
+			writer.write(line);
+			writer.write('\n');
+		}
+
+		@Override
+		public void end() throws IOException {
+			writer.flush();
+		}
+
+		public void close() throws IOException {
+			writer.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Insert some code before the first line.
+	 */
+	public static LineFilter prepend(final GCodeSource code) {
+		return new LineFilter() {
+			@Override
+			public void begin() throws IOException {
+				super.begin();
+				for (String line : code) { emit(line); }
+			}
+		};
+	}
+
+	/**
+	 * Add some code after the last line.
+	 */
+	public static LineFilter append(final GCodeSource code) {
+		return new LineFilter() {
+			@Override
+			public void end() throws IOException {
+				for (String line : code) { emit(line); }
+				super.end();
+			}
+		};
+	}
+
+	/**
+	 * Switch toolhead-specific codes to the given toolhead.
+	 * @see MutableGCodeSource#changeToolhead(ToolheadAlias)
+	 */
+	public static LineFilter changeToolhead(final ToolheadAlias tool) {
+		return new LineFilter() {
+			@Override
+			public void line(String line) throws IOException {
+				emit(MutableGCodeSource.changeToolhead(line, tool));
+			}
+		};
+	}
+
+	/**
+	 * Insert a progress update at the start of each layer.  Progress is measured
+	 * by how many characters of the expected total have gone by, so the total
+	 * size is all this needs to know in advance.
+	 * @param totalChars the number of characters, counting line terminators,
+	 * that will pass through this stage
+	 * @see MutableGCodeSource#addProgressUpdates()
+	 */
+	public static LineFilter progressUpdates(final long totalChars) {
+		return new LineFilter() {
+			long seen = 0;
+			@Override
+			public void line(String line) throws IOException {
+				if (line.startsWith("(<layer>")) {
+					emit(MutableGCodeSource.progressUpdate((int)(seen*100/Math.max(1, totalChars))));
+				}
+				seen += line.length() + 1;
+				emit(line);
+			}
+		};
+	}
+
+	/**
+	 * Count the characters in some code as progressUpdates() would see them.
+	 */
+	public static long countChars(GCodeSource code) {
+		long count = 0;
+		if (code != null) {
+			for (String line : code) { count += line.length() + 1; }
+		}
+		return count;
+	}
+}
@@ -0,0 +1,85 @@
+package replicatorg.app.gcode;
+
+/**
+ * Follows where the head and the extruder are through gcode, a line at a
+ * time, without running anything.  It knows moves (G0, G1), setting the
+ * position (G92), absolute and relative moves (G90, G91) and absolute and
+ * relative extrusion on its own (M82, M83); everything else is passed over.
+ * Moves are taken to be absolute until the code says otherwise.
+ *
+ * This is what GCodeLayerIndex, ResumeState and LayerToolpath all use to
+ * follow the moves of a file, so that they agree on where the head is.
+ */
+class MoveTracker {
+	/** Where the head and the extruder are. */
+	double x, y, z, e;
+	/** The last feedrate set. */
+	double feedrate;
+	/** Whether moves are relative, and whether the extruder's are. */
+	boolean relative, relativeE;
+	/** Where the last move started from. */
+	double fromX, fromY, fromZ, fromE;
+
+	/** Start from the origin, with absolute moves. */
+	MoveTracker() {
+	}
+
+	/** Start from where the head is at the start of a layer. */
+	MoveTracker(GCodeLayerIndex.Entry layer) {
+		x = layer.startX;
+		y = layer.startY;
+		z = layer.startZ;
+		e = layer.startE;
+		feedrate = layer.startFeedrate;
+		relative = layer.startRelative;
+		relativeE = layer.startRelativeE;
+	}
+
+	/**
+	 * Follow a line of code.
+	 * @param g the line's G code, as GCodeCommand.scanCodeValue() gives it
+	 * @param m the line's M code, likewise
+	 * @return whether the line was a move
+	 */
+	boolean follow(String line, double g, double m) {
+		if (g == 0 || g == 1) {
+			fromX = x; fromY = y; fromZ = z; fromE = e;
+			x = next(x, line, 'X', relative);
+			y = next(y, line, 'Y', relative);
+			z = next(z, line, 'Z', relative);
+			e = next(e, line, 'E', relativeE);
+			double f = GCodeCommand.scanCodeValue(line, 'F');
+			if (f > 0) { feedrate = f; }
+			return true;
+		}
+		if (g == 90) {
+			relative = relativeE = false;
+		} else if (g == 91) {
+			relative = relativeE = true;
+		} else if (g == 92) {
+			boolean any = false;
+			for (char axis : new char[] { 'X', 'Y', 'Z', 'E', 'A', 'B' }) {
+				if (!GCodeCommand.scanHasCode(line, axis)) { continue; }
+				any = true;
+				double v = GCodeCommand.scanCodeValue(line, axis);
+				if (axis == 'X') { x = v; }
+				else if (axis == 'Y') { y = v; }
+				else if (axis == 'Z') { z = v; }
+				else if (axis == 'E') { e = v; }
+			}
+			// With no axes, everything is set to zero
+			if (!any) { x = y = z = e = 0; }
+		} else if (m == 82) {
+			relativeE = false;
+		} else if (m == 83) {
+			relativeE = true;
+		}
+		return false;
+	}
+
+	private static double next(double current, String line, char axis, boolean relative) {
+		if (!GCodeCommand.scanHasCode(line, axis)) { return current; }
+		double value = GCodeCommand.scanCodeValue(line, axis);
+		return relative ? current + value : value;
+	}
+}
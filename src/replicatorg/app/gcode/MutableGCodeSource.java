@@ -141,39 +141,40 @@ public class MutableGCodeSource implements GCodeSource {
 	/// Runs through this gcode file, swapping all references to the the current toolhead 
 	/// to instread reference the specified toolhead.  Alters select G, M and T Codes.
 	public void changeToolhead(ToolheadAlias tool) {
-		GCodeCommand gcode;
-		int value;
-		String line;
 		///FUTURE: create a synchronize block here someday
 		ArrayList<String> newSource = new ArrayList<String>(source.size());
-		for(Iterator<String> it = source.iterator(); it.hasNext(); )
+		for(String line : source)
 		{
-			line = it.next();
-			gcode = new GCodeCommand(line);
+			newSource.add(changeToolhead(line, tool));
+		}
+		
+		source = newSource;
+	}
 
-			if(gcode.hasCode('T'))
-			{
-				value = (int)gcode.getCodeValue('T');
-				if(value != tool.number)
-				{
-					if(value == 0)
-						line = line.replace("T0", "T1");
-					else if(value == 1)
-						line = line.replace("T1", "T0");
-				}
-			}
-			if(gcode.getCodeValue('G') == 54 && !(tool.getRecallOffsetGcodeCommand().equals("G54")))
-			{
-				line = line.replace("G54", tool.getRecallOffsetGcodeCommand());
-			}
-			if(gcode.getCodeValue('G') == 55 && !(tool.getRecallOffsetGcodeCommand().equals("G55")))
+	/// Swaps the references to the current toolhead in a single line to instead
+	/// reference the specified toolhead.
+	public static String changeToolhead(String line, ToolheadAlias tool) {
+		GCodeCommand gcode = new GCodeCommand(line);
+		if(gcode.hasCode('T'))
+		{
+			int value = (int)gcode.getCodeValue('T');
+			if(value != tool.number)
 			{
-				line = line.replace("G55", tool.getRecallOffsetGcodeCommand());
+				if(value == 0)
+					line = line.replace("T0", "T1");
+				else if(value == 1)
+					line = line.replace("T1", "T0");
 			}
-			newSource.add(line);
 		}
-		
-		source = newSource;
+		if(gcode.getCodeValue('G') == 54 && !(tool.getRecallOffsetGcodeCommand().equals("G54")))
+		{
+			line = line.replace("G54", tool.getRecallOffsetGcodeCommand());
+		}
+		if(gcode.getCodeValue('G') == 55 && !(tool.getRecallOffsetGcodeCommand().equals("G55")))
+		{
+			line = line.replace("G55", tool.getRecallOffsetGcodeCommand());
+		}
+		return line;
 	}
 	
 	/**
@@ -235,16 +236,21 @@ public class MutableGCodeSource implements GCodeSource {
 		{
 			if( line.startsWith("(<layer>") )
 			{
-				int percentDone = (int)(index*100)/sourceSize;
-				if(percentDone == 100)	percentDone = 99; 
-				//^^See Footnote 1
-				newSource.add("M73 P"+percentDone+" (display progress)");
+				newSource.add(progressUpdate((int)(index*100)/sourceSize));
 			}
 			newSource.add(line);
 			index++;
 		}
 		source = newSource;
 	}
+
+	/// The progress display command for the given percentage.
+	public static String progressUpdate(int percentDone)
+	{
+		if(percentDone >= 100)	percentDone = 99; 
+		//^^See Footnote 1
+		return "M73 P"+percentDone+" (display progress)";
+	}
 	// Footnote 1: The only 'M37 100' that should happen is part of the end.gcode, since 
 	// 'M73 100' sends an s3g 'BUILD_DONE', and more than 1 'BUILD_DONE' message 
 	// causes problems for the firmware
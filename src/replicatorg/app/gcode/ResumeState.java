@@ -0,0 +1,207 @@
+package replicatorg.app.gcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import replicatorg.app.Base;
+
+/**
+ * The state a gcode file leaves the machine in at a given line, found without
+ * running anything, so that a print that was cut short can be picked up
+ * again from that line.
+ *
+ * Modes and settings (units, absolute or relative moves, fixture offsets,
+ * temperatures, fan, extruder motor and the selected tool) are read from
+ * every line before the one resumed from.  Position, feedrate and extruder
+ * position come from the layer index, which knows them at the start of each
+ * layer, so moves only have to be followed through the lines of the layer
+ * being resumed in; moves before it are passed over unread.  That keeps
+ * finding the state of a line down to a single quick pass over the start of
+ * the file.
+ *
+ * The state is handed to the machine as a prologue of ordinary gcode, run by
+ * the same parser and driver as the rest of the file: set modes and
+ * temperatures, wait for heat, lift clear of the part, move over the resume
+ * point, drop to it and set the extruder position.  The machine must already
+ * know where it is, so one that was switched off has to be homed first.
+ */
+public class ResumeState {
+	/** How far above the resume height to travel, to stay clear of the part. */
+	public static final double CLEARANCE = 5;
+	private static final double TRAVEL_FEEDRATE = 3000;
+	private static final double Z_FEEDRATE = 1000;
+
+	private final File file;
+	private final int line;
+	private final int layer;
+	private long offset;
+
+	// Modal lines, kept as the file wrote them
+	private String units = null;
+	private String fixtureOffset = null;
+	private String platform = null;
+	private String fan = null;
+	private String valve = null;
+	private String extruder = null;
+	private final Map<Integer,String> motorSpeeds = new TreeMap<Integer,String>();
+	/** Temperatures by tool; -1 for those set without naming a tool. */
+	private final Map<Integer,Double> temperatures = new TreeMap<Integer,Double>();
+	private int tool = -1;
+	/** Absolute or relative moves; null until the file says, which GCodeParser takes as relative. */
+	private Boolean absolute = null;
+	/** Where the head is, followed through the layer being resumed in */
+	private MoveTracker head = new MoveTracker();
+
+	private ResumeState(File file, int line, int layer) {
+		this.file = file;
+		this.line = line;
+		this.layer = layer;
+	}
+
+	/**
+	 * Find the state a file leaves the machine in just before the given line.
+	 * @param gcode the file
+	 * @param index an up to date layer index of it
+	 * @param line the line to resume from, counting from 0
+	 */
+	public static ResumeState scan(File gcode, GCodeLayerIndex index, int line) throws IOException {
+		if (line < 0 || line >= index.getLineCount()) {
+			throw new IllegalArgumentException("Line " + (line + 1) + " is not in " + gcode.getName());
+		}
+		int layer = index.findLayerForLine(line);
+		ResumeState state = new ResumeState(gcode, line, layer);
+		int movesFrom = 0;
+		if (layer >= 0) {
+			GCodeLayerIndex.Entry entry = index.getLayer(layer);
+			movesFrom = entry.line;
+			state.head = new MoveTracker(entry);
+		}
+		GCodeLineReader reader = new GCodeLineReader(gcode, 0, 0);
+		try {
+			reader.skipMovesBefore(movesFrom);
+			while (reader.getLineNumber() < line) {
+				String l = reader.readLine();
+				if (l == null) { break; }
+				state.read(l, reader.getLineNumber() - 1 >= movesFrom);
+			}
+			state.offset = reader.getOffset();
+		} finally {
+			reader.close();
+		}
+		return state;
+	}
+
+	/**
+	 * Find the state a file leaves the machine in at the start of a layer.
+	 */
+	public static ResumeState scanLayer(File gcode, GCodeLayerIndex index, int layer) throws IOException {
+		return scan(gcode, index, index.getLayer(layer).line);
+	}
+
+	/** @return the line being resumed from, counting from 0 */
+	public int getLine() { return line; }
+
+	/** @return the layer being resumed in, or -1 if it is in the start code */
+	public int getLayer() { return layer; }
+
+	private void read(String l, boolean followMoves) {
+		if (l.length() == 0 || l.charAt(0) == '(' || l.charAt(0) == ';') { return; }
+		double g = GCodeCommand.scanCodeValue(l, 'G');
+		double m = GCodeCommand.scanCodeValue(l, 'M');
+		double t = GCodeCommand.scanCodeValue(l, 'T');
+		if (t >= 0 && (m != -1 || g == -1)) {
+			tool = (int)t;
+		}
+		// The layer index knows where the head is at the start of the layer
+		if (followMoves) {
+			head.follow(l, g, m);
+		}
+		if (g == 20 || g == 21) {
+			units = l;
+		} else if (g >= 53 && g <= 59) {
+			fixtureOffset = l;
+		} else if (g == 90) {
+			absolute = Boolean.TRUE;
+		} else if (g == 91) {
+			absolute = Boolean.FALSE;
+		} else if (m == 104) {
+			double s = GCodeCommand.scanCodeValue(l, 'S');
+			if (s >= 0) { temperatures.put(t >= 0 ? (int)t : tool, s); }
+		} else if (m == 109 || m == 140) {
+			if (GCodeCommand.scanCodeValue(l, 'S') >= 0) { platform = l; }
+		} else if (m == 106 || m == 107) {
+			fan = l;
+		} else if (m == 126 || m == 127) {
+			valve = l;
+		} else if (m == 101 || m == 102 || m == 103) {
+			extruder = l;
+		} else if (m == 108) {
+			if (GCodeCommand.scanCodeValue(l, 'S') >= 0 || GCodeCommand.scanCodeValue(l, 'R') >= 0) {
+				motorSpeeds.put(tool, l);
+			}
+		}
+	}
+
+	/**
+	 * @return the gcode that puts the machine into this state
+	 */
+	public List<String> getPrologue() {
+		NumberFormat nf = Base.getGcodeFormat();
+		List<String> lines = new ArrayList<String>();
+		lines.add("(Resuming " + file.getName() + " at line " + (line + 1) +
+				(layer >= 0 ? ", layer " + (layer + 1) : "") + ")");
+		if (units != null) { lines.add(units); }
+		if (fixtureOffset != null) { lines.add(fixtureOffset); }
+
+		// Heat up everything that was hot, and wait for it
+		int active = tool < 0 ? 0 : tool;
+		for (Map.Entry<Integer,Double> temperature : temperatures.entrySet()) {
+			int t = temperature.getKey();
+			lines.add("M104 S" + nf.format(temperature.getValue()) + (t < 0 ? "" : " T" + t));
+		}
+		if (platform != null) { lines.add(platform); }
+		for (Map.Entry<Integer,Double> temperature : temperatures.entrySet()) {
+			int t = temperature.getKey() < 0 ? 0 : temperature.getKey();
+			if (t != active && temperature.getValue() > 0) { lines.add("M6 T" + t); }
+		}
+		// The tool in use goes last, so that it is the one left selected
+		Double activeTemperature = temperatures.get(tool);
+		if (activeTemperature != null && activeTemperature > 0) {
+			lines.add("M6 T" + active);
+		} else if (tool >= 0) {
+			// Select the tool without waiting on it
+			lines.add("M108 T" + tool);
+		}
+		lines.addAll(motorSpeeds.values());
+		if (fan != null) { lines.add(fan); }
+		if (valve != null) { lines.add(valve); }
+
+		if (layer >= 0) {
+			// Come down on the resume point from above the part
+			lines.add("G90");
+			lines.add("G1 Z" + nf.format(head.z + CLEARANCE) + " F" + nf.format(Z_FEEDRATE));
+			lines.add("G1 X" + nf.format(head.x) + " Y" + nf.format(head.y) + " F" + nf.format(TRAVEL_FEEDRATE));
+			lines.add("G1 Z" + nf.format(head.z) + " F" + nf.format(Z_FEEDRATE));
+			if (absolute != Boolean.FALSE && !head.relativeE) {
+				// GCodeParser puts E on the A axis, or B for the second tool
+				lines.add("G92 " + (tool == 1 ? "B" : "A") + nf.format(head.e));
+			}
+			if (head.feedrate > 0) { lines.add("G1 F" + nf.format(head.feedrate)); }
+		}
+		if (extruder != null) { lines.add(extruder); }
+		lines.add(absolute == Boolean.TRUE ? "G90" : "G91");
+		return lines;
+	}
+
+	/**
+	 * @return a source that runs the prologue, then the file from the resume line on
+	 */
+	public GCodeFileSource getSource(GCodeLayerIndex index) {
+		return new GCodeFileSource(file, offset, line, index.getLineCount() - line, getPrologue());
+	}
+}
@@ -0,0 +1,282 @@
+package replicatorg.app.syntax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * Searches a document in place.  The document is read a segment at a time
+ * through getText(int,int,Segment), which hands back the document's own
+ * storage where it can, so searching never copies the whole text the way
+ * getText() does; on a large file that copy is most of the cost of a search.
+ *
+ * Every search is a regular expression; plain text is quoted.  Searches of
+ * a document that is being edited must hold its read lock, e.g. by running
+ * through Document.render(); count() is the exception, see there.
+ */
+public class DocumentSearch {
+	private final Document document;
+	private final Pattern pattern;
+	private final boolean regex;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * @param search the text or expression to look for
+	 * @param regex whether the search is a regular expression
+	 * @param ignoreCase whether to ignore case
+	 * @param wholeWord whether matches must not be part of a longer word
+	 * @throws java.util.regex.PatternSyntaxException if the expression is not valid
+	 */
+	public DocumentSearch(Document document, String search, boolean regex, boolean ignoreCase, boolean wholeWord) {
+		this.document = document;
+		this.regex = regex;
+		String expression = regex ? search : Pattern.quote(search);
+		if (wholeWord) {
+			expression = "(?<!\\w)(?:" + expression + ")(?!\\w)";
+		}
+		int flags = Pattern.MULTILINE;
+		if (ignoreCase) {
+			flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+		}
+		pattern = Pattern.compile(expression, flags);
+	}
+
+	/**
+	 * Stop a search running on another thread; it throws a
+	 * CancellationException.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Find the next match that isn't empty.
+	 * @param from the offset to search from
+	 * @param wrap whether to go on from the start of the document if there
+	 * is no match after the offset
+	 * @return the start and end offsets of the match, or null if there is none
+	 */
+	public int[] find(int from, boolean wrap) {
+		Matcher m = pattern.matcher(new DocumentText());
+		int[] match = find(m, from);
+		if (match == null && wrap && from > 0) {
+			match = find(m, 0);
+		}
+		return match;
+	}
+
+	private int[] find(Matcher m, int from) {
+		if (from > m.regionEnd()) { return null; }
+		if (!m.find(from)) { return null; }
+		do {
+			if (m.end() > m.start()) {
+				return new int[] { m.start(), m.end() };
+			}
+		} while (m.find());
+		return null;
+	}
+
+	/**
+	 * Count the matches in the document, stopping at a limit.  This takes
+	 * the document's read lock itself, only while it reads each piece of the
+	 * text, so that a long count doesn't hold up edits.  Since the text may
+	 * change between pieces, whoever runs the count must cancel() it on any
+	 * edit to the document.
+	 * @return the number of matches, or limit + 1 if there are more than limit
+	 */
+	public int count(int limit) {
+		Matcher m = pattern.matcher(new DocumentText(true));
+		int count = 0;
+		while (count <= limit && m.find()) {
+			if (m.end() > m.start()) { count++; }
+		}
+		return count;
+	}
+
+	/**
+	 * Work out what a piece of text that matches the search is to be replaced
+	 * with.  For a regular expression, $n and \ in the replacement work as
+	 * they do in String.replaceAll; otherwise the replacement is taken as it
+	 * is.
+	 */
+	public String getReplacement(String matched, String replacement) {
+		if (!regex) { return replacement; }
+		Matcher m = pattern.matcher(matched);
+		if (!m.matches()) { return replacement; }
+		return expand(m, replacement);
+	}
+
+	/**
+	 * Replace every match in one pass: the matches are found first, then
+	 * replaced from the last to the first, so that the offsets still to be
+	 * replaced don't move.  Callers that want one undo for the lot should
+	 * wrap this in a compound edit.
+	 * @return the number of matches replaced
+	 */
+	public int replaceAll(String replacement) throws BadLocationException {
+		Matcher m = pattern.matcher(new DocumentText());
+		List<int[]> matches = new ArrayList<int[]>();
+		List<String> replacements = new ArrayList<String>();
+		while (m.find()) {
+			matches.add(new int[] { m.start(), m.end() });
+			replacements.add(regex ? expand(m, replacement) : replacement);
+		}
+		for (int i = matches.size() - 1; i >= 0; i--) {
+			int[] match = matches.get(i);
+			if (match[1] > match[0]) {
+				document.remove(match[0], match[1] - match[0]);
+			}
+			String text = replacements.get(i);
+			if (text.length() > 0) {
+				document.insertString(match[0], text, null);
+			}
+		}
+		return matches.size();
+	}
+
+	/**
+	 * Expand $n, ${name} and \ escapes in a replacement, as
+	 * Matcher.appendReplacement does but without copying the text before
+	 * the match.
+	 */
+	private static String expand(Matcher m, String replacement) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < replacement.length(); i++) {
+			char c = replacement.charAt(i);
+			if (c == '\\' && i + 1 < replacement.length()) {
+				result.append(replacement.charAt(++i));
+			} else if (c == '$' && i + 1 < replacement.length()) {
+				char next = replacement.charAt(i + 1);
+				if (next == '{') {
+					int close = replacement.indexOf('}', i);
+					if (close < 0) { throw new IllegalArgumentException("Missing } in replacement"); }
+					String group = m.group(replacement.substring(i + 2, close));
+					if (group != null) { result.append(group); }
+					i = close;
+				} else if (Character.isDigit(next)) {
+					// Take as many digits as still name a group
+					int group = next - '0';
+					i++;
+					while (i + 1 < replacement.length() && Character.isDigit(replacement.charAt(i + 1))) {
+						int longer = group * 10 + replacement.charAt(i + 1) - '0';
+						if (longer > m.groupCount()) { break; }
+						group = longer;
+						i++;
+					}
+					if (group > m.groupCount()) { throw new IndexOutOfBoundsException("No group " + group); }
+					String text = m.group(group);
+					if (text != null) { result.append(text); }
+				} else {
+					throw new IllegalArgumentException("Illegal group reference in replacement");
+				}
+			} else {
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * The text of a document as a CharSequence, read a segment at a time.
+	 */
+	private class DocumentText implements CharSequence {
+		private static final int CHUNK = 64*1024;
+
+		private final int length;
+		private final Segment segment = new Segment();
+		private int segmentStart = 0;
+		private int segmentEnd = 0;
+		/**
+		 * Whether to take the read lock for each segment, and copy it out of
+		 * the document's storage, which can change once the lock is let go.
+		 */
+		private final boolean lockEachSegment;
+		private char[] copy = null;
+
+		DocumentText() {
+			this(false);
+		}
+
+		DocumentText(boolean lockEachSegment) {
+			this.lockEachSegment = lockEachSegment;
+			this.length = document.getLength();
+			segment.setPartialReturn(true);
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			if (index < segmentStart || index >= segmentEnd) {
+				load(index);
+			}
+			return segment.array[segment.offset + index - segmentStart];
+		}
+
+		private void load(final int index) {
+			if (cancelled) { throw new CancellationException(); }
+			if (!lockEachSegment) {
+				read(index);
+				return;
+			}
+			document.render(new Runnable() {
+				public void run() {
+					// An edit cancels the search before it lets go of the lock
+					if (cancelled) { return; }
+					read(index);
+					if (copy == null || copy.length < segment.count) {
+						copy = new char[segment.count];
+					}
+					System.arraycopy(segment.array, segment.offset, copy, 0, segment.count);
+					segment.array = copy;
+					segment.offset = 0;
+				}
+			});
+			if (cancelled) { throw new CancellationException(); }
+		}
+
+		private void read(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			}
+			// A little before the index too, for look-behinds
+			int start = index < segmentStart ? Math.max(0, index - CHUNK / 2) : index;
+			try {
+				document.getText(start, Math.min(CHUNK, length - start), segment);
+			} catch (BadLocationException ble) {
+				throw new IndexOutOfBoundsException(ble.getMessage());
+			}
+			segmentStart = start;
+			segmentEnd = start + segment.count;
+			if (index >= segmentEnd) {
+				// A partial return that stopped short of the index
+				try {
+					document.getText(index, Math.min(CHUNK, length - index), segment);
+				} catch (BadLocationException ble) {
+					throw new IndexOutOfBoundsException(ble.getMessage());
+				}
+				segmentStart = index;
+				segmentEnd = index + segment.count;
+			}
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			try {
+				return document.getText(start, end - start);
+			} catch (BadLocationException ble) {
+				throw new IndexOutOfBoundsException(ble.getMessage());
+			}
+		}
+
+		public String toString() {
+			return subSequence(0, length).toString();
+		}
+	}
+}
@@ -120,6 +120,7 @@ public class JEditTextArea extends JComponent
     // Initialize some misc. stuff
     painter = new TextAreaPainter(this,defaults);
     documentHandler = new DocumentHandler();
+    tokenHandler = new TokenHandler();
     eventListenerList = new EventListenerList();
     caretEvent = new MutableCaretEvent();
     lineSegment = new Segment();
@@ -756,11 +757,14 @@ public class JEditTextArea extends JComponent
   public void setDocument(SyntaxDocument document) {
     if (this.document == document)
       return;
-    if (this.document != null)
+    if (this.document != null) {
       this.document.removeDocumentListener(documentHandler);
+      this.document.removeTokenListener(tokenHandler);
+    }
     this.document = document;
 
     document.addDocumentListener(documentHandler);
+    document.addTokenListener(tokenHandler);
 
     select(0, 0);
     updateScrollBars();
@@ -776,11 +780,14 @@ public class JEditTextArea extends JComponent
                           int start, int stop, int scroll) {
     if (this.document == document)
       return;
-    if (this.document != null)
+    if (this.document != null) {
       this.document.removeDocumentListener(documentHandler);
+      this.document.removeTokenListener(tokenHandler);
+    }
     this.document = document;
 
     document.addDocumentListener(documentHandler);
+    document.addTokenListener(tokenHandler);
 
     select(start, stop);
     updateScrollBars();
@@ -1679,6 +1686,7 @@ public class JEditTextArea extends JComponent
   protected InputHandler inputHandler;
   protected SyntaxDocument document;
   protected DocumentHandler documentHandler;
+  protected TokenHandler tokenHandler;
 
   protected Segment lineSegment;
 
@@ -1953,6 +1961,18 @@ public class JEditTextArea extends JComponent
     }
   }
 
+  class TokenHandler implements SyntaxDocument.TokenListener
+  {
+    public void linesTokenized(int first, int last)
+    {
+      // Only the lines on screen need repainting
+      first = Math.max(first,firstLine);
+      last = Math.min(last,firstLine + visibleLines);
+      if(first <= last)
+        painter.invalidateLineRange(first,last);
+    }
+  }
+
   class DocumentHandler implements DocumentListener
   {
     public void insertUpdate(DocumentEvent evt)
@@ -0,0 +1,203 @@
+package replicatorg.app.syntax;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+
+import replicatorg.app.util.FileProgress;
+
+/**
+ * A document for files too big to read into memory whole.  Opening one only
+ * counts the lines of the file, a page at a time; the text of a page is read
+ * from the file when something (usually painting) asks for it, and only the
+ * most recently used pages are kept.  Lines are found through the pages
+ * rather than through an element per line, so memory doesn't grow with the
+ * length of the file.
+ *
+ * Editing works as it does in any other document.  A page that is edited is
+ * copied into memory and stays there, while the rest of the file is still
+ * read from disk; saving writes the edited pages and copies the others
+ * across as they are, after which the document reads from the saved file.
+ *
+ * The file is read as ISO-8859-1, which covers gcode and keeps every byte as
+ * it was, and "\r\n" line endings are shown as "\n".  Lines aren't tokenized
+ * ahead of time; they are tokenized as they are painted.
+ */
+public class LargeFileDocument extends SyntaxDocument {
+	private final LineMap lineMap;
+
+	public LargeFileDocument(File file) throws IOException {
+		this(file, null);
+	}
+
+	/**
+	 * @param progress told how many bytes of the file have been counted, or null
+	 */
+	public LargeFileDocument(File file, FileProgress progress) throws IOException {
+		super(new PagedContent(file, progress));
+		lineMap = new LineMap();
+	}
+
+	private PagedContent getPages() {
+		return (PagedContent)getContent();
+	}
+
+	/** @return the file the unedited parts of the document are read from */
+	public File getFile() {
+		return getPages().file;
+	}
+
+	/**
+	 * Write the document to a file, through a temporary file that replaces it
+	 * when complete.  From then on the document reads from that file.
+	 * @param progress told how many characters have been written, or null
+	 */
+	public void save(File dest, FileProgress progress) throws IOException {
+		readLock();
+		try {
+			getPages().save(dest, progress);
+		} finally {
+			readUnlock();
+		}
+	}
+
+	public Element getDefaultRootElement() {
+		return lineMap;
+	}
+
+	public Element getParagraphElement(int pos) {
+		return lineMap.getElement(lineMap.getElementIndex(pos));
+	}
+
+	/**
+	 * Does nothing: with no multiline tokens in gcode, lines can be tokenized
+	 * as they are painted, and going through every line of a large file in
+	 * the background would undo the point of it.
+	 */
+	protected void tokenizeLater() {
+	}
+
+	protected void insertUpdate(DefaultDocumentEvent chng, AttributeSet attr) {
+		int added = getPages().lastNewlines;
+		if (added > 0) {
+			int line = lineMap.getElementIndex(chng.getOffset());
+			Element[] removedLines = new Element[] {
+				new LineElement(lineMap.lineStart(line), lineMap.lineEnd(line + added) - chng.getLength())
+			};
+			Element[] addedLines = new Element[added + 1];
+			for (int i = 0; i <= added; i++) {
+				addedLines[i] = lineMap.getElement(line + i);
+			}
+			chng.addEdit(new ElementEdit(lineMap, line, removedLines, addedLines));
+		}
+	}
+
+	protected void removeUpdate(DefaultDocumentEvent chng) {
+		// Called before the text goes, so the lines are still as they were
+		int first = lineMap.getElementIndex(chng.getOffset());
+		int last = lineMap.getElementIndex(chng.getOffset() + chng.getLength());
+		if (first != last) {
+			Element[] removedLines = new Element[last - first + 1];
+			for (int i = first; i <= last; i++) {
+				removedLines[i - first] = lineMap.getElement(i);
+			}
+			Element[] addedLines = new Element[] {
+				new LineElement(lineMap.lineStart(first), lineMap.lineEnd(last) - chng.getLength())
+			};
+			chng.addEdit(new ElementEdit(lineMap, first, removedLines, addedLines));
+		}
+	}
+
+	/**
+	 * The document's lines, worked out from the pages when asked for.
+	 */
+	private class LineMap extends BranchElement {
+		LineMap() {
+			super(null, null);
+		}
+
+		/** Offset just past the given newline, counting newlines from 0. */
+		int afterNewline(int n) {
+			return getPages().afterNewline(n);
+		}
+
+		int lineStart(int line) {
+			return line == 0 ? 0 : afterNewline(line - 1);
+		}
+
+		int lineEnd(int line) {
+			return afterNewline(line);
+		}
+
+		public Element getElement(int index) {
+			if (index < 0 || index >= getElementCount()) { return null; }
+			return new LineElement(lineStart(index), lineEnd(index));
+		}
+
+		public int getElementCount() {
+			return getPages().newlineCount();
+		}
+
+		public int getElementIndex(int offset) {
+			return getPages().lineOfOffset(offset);
+		}
+
+		public Element positionToElement(int pos) {
+			return getElement(getElementIndex(pos));
+		}
+
+		public int getStartOffset() {
+			return 0;
+		}
+
+		public int getEndOffset() {
+			return getPages().length();
+		}
+
+		public boolean isLeaf() {
+			return false;
+		}
+
+		/**
+		 * Does nothing; the lines follow the text, so there is nothing to put
+		 * back when an edit is undone.
+		 */
+		public void replace(int offset, int length, Element[] elems) {
+		}
+
+		public String getName() {
+			return AbstractDocument.SectionElementName;
+		}
+
+		public String toString() {
+			return "LineMap(" + getElementCount() + " lines)";
+		}
+	}
+
+	/**
+	 * A line, as it was when it was asked for.
+	 */
+	private class LineElement implements Element {
+		private final int start, end;
+
+		LineElement(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public javax.swing.text.Document getDocument() { return LargeFileDocument.this; }
+		public Element getParentElement() { return lineMap; }
+		public String getName() { return AbstractDocument.ParagraphElementName; }
+		public AttributeSet getAttributes() { return SimpleAttributeSet.EMPTY; }
+		public int getStartOffset() { return start; }
+		public int getEndOffset() { return end; }
+		public int getElementIndex(int offset) { return -1; }
+		public int getElementCount() { return 0; }
+		public Element getElement(int index) { return null; }
+		public boolean isLeaf() { return true; }
+	}
+}
@@ -0,0 +1,877 @@
+package replicatorg.app.syntax;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.FileProgress;
+import replicatorg.model.GCodeSourceException;
+
+/**
+ * The text of a document, in pages.  As with any document's content, it
+ * ends with a newline that isn't part of the document; that newline has a
+ * page of its own at the end.
+ *
+ * The pages may come from a file (see LargeFileDocument), in which case a
+ * page is only read when something asks for its text, or be built up in
+ * memory as text is inserted.  Either way, an edit only touches the page it
+ * falls in, and a snapshot of the whole text costs a copy of the page list:
+ * the pages' text is shared with the snapshot, and copied by the content
+ * before it next changes it.
+ */
+public class PagedContent implements AbstractDocument.Content {
+	/** The size of the pages a file is read in. */
+	static final int PAGE_SIZE = 64*1024;
+	/**
+	 * The size of pages built up in memory; smaller, as every page that is
+	 * edited has to be gone through to move the marks on it.
+	 */
+	private static final int MEMORY_PAGE_SIZE = 16*1024;
+	private static final int CACHED_PAGES = 64;
+	private static final int READ_SIZE = 1024*1024;
+
+	File file;
+	private long fileLength, fileModified;
+	private boolean reportedChange = false;
+	private final List<Page> pages = new ArrayList<Page>();
+	/** Where each page starts, in characters and in newlines before it; one more entry than pages. */
+	private int[] charStart, newlineStart;
+	/** Clean pages that have their text, least recently used first. */
+	private final Map<Page,Page> loaded = new LinkedHashMap<Page,Page>(CACHED_PAGES, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Page,Page> eldest) {
+			if (size() <= CACHED_PAGES) { return false; }
+			eldest.getKey().text = null;
+			eldest.getKey().newlineAt = null;
+			return true;
+		}
+	};
+	/** How many newlines the last insert added, for the document's line events. */
+	int lastNewlines = 0;
+	private final int pageSize;
+
+	/**
+	 * Empty content, kept in memory.
+	 */
+	public PagedContent() {
+		pageSize = MEMORY_PAGE_SIZE;
+		pages.add(new Page(new char[] { '\n' }, 1));
+		recount();
+	}
+
+	/**
+	 * Content read from a file as it is needed.  Opening it counts the
+	 * lines of the file, a page at a time.
+	 * @param progress told how many bytes have been read, or null
+	 */
+	PagedContent(File file, FileProgress progress) throws IOException {
+		this.file = file;
+		pageSize = PAGE_SIZE;
+		fileLength = file.length();
+		fileModified = file.lastModified();
+		if (fileLength >= Integer.MAX_VALUE) {
+			throw new IOException(file.getName() + " is too large to open");
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[READ_SIZE];
+			long pageStart = 0;
+			int pageBytes = 0, pageChars = 0, pageNewlines = 0;
+			boolean lastCR = false;
+			long read = 0;
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				read += n;
+				if (progress != null) { progress.progress(read, fileLength); }
+				for (int i = 0; i < n; i++) {
+					byte b = buf[i];
+					pageBytes++;
+					pageChars++;
+					if (b == '\n') {
+						if (lastCR) { pageChars--; }
+						pageNewlines++;
+						if (pageBytes >= PAGE_SIZE) {
+							pages.add(new Page(pageStart, pageBytes, pageChars, pageNewlines));
+							pageStart += pageBytes;
+							pageBytes = pageChars = pageNewlines = 0;
+						}
+					}
+					lastCR = (b == '\r');
+				}
+			}
+			if (pageBytes > 0) {
+				pages.add(new Page(pageStart, pageBytes, pageChars, pageNewlines));
+			}
+		} finally {
+			in.close();
+		}
+		pages.add(new Page(new char[] { '\n' }, 1));
+		recount();
+	}
+
+	private void recount() {
+		int n = pages.size();
+		charStart = new int[n + 1];
+		newlineStart = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			Page page = pages.get(i);
+			page.index = i;
+			charStart[i + 1] = charStart[i] + page.length;
+			newlineStart[i + 1] = newlineStart[i] + page.newlines;
+		}
+	}
+
+	public synchronized int length() {
+		return charStart[pages.size()];
+	}
+
+	synchronized int newlineCount() {
+		return newlineStart[pages.size()];
+	}
+
+	/** @return the page an offset is in; the last page for the end of the text */
+	private int pageAt(int offset) {
+		int lo = 0, hi = pages.size() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (charStart[mid] <= offset) { lo = mid; } else { hi = mid - 1; }
+		}
+		return lo;
+	}
+
+	/** @return the page that holds a newline, counting newlines from 0 */
+	private int pageOfNewline(int n) {
+		int lo = 0, hi = pages.size() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (newlineStart[mid] <= n) { lo = mid; } else { hi = mid - 1; }
+		}
+		return lo;
+	}
+
+	synchronized int afterNewline(int n) {
+		int total = newlineCount();
+		if (n >= total) { return length(); }
+		int p = pageOfNewline(n);
+		Page page = load(p);
+		return charStart[p] + page.newlineAt[n - newlineStart[p]] + 1;
+	}
+
+	synchronized int lineOfOffset(int offset) {
+		int total = newlineCount();
+		if (offset >= length()) { return total - 1; }
+		if (offset <= 0) { return 0; }
+		int p = pageAt(offset);
+		Page page = load(p);
+		return Math.min(total - 1, newlineStart[p] + page.newlinesBefore(offset - charStart[p]));
+	}
+
+	/** Make sure a page has its text, reading it from the file if need be. */
+	private Page load(int p) {
+		Page page = pages.get(p);
+		if (page.text != null) {
+			if (!page.dirty) { loaded.get(page); }
+			return page;
+		}
+		char[] text = new char[page.length];
+		try {
+			if (file.length() != fileLength || file.lastModified() != fileModified) {
+				throw new IOException(file.getName() + " has changed on disk");
+			}
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				read(raf.getChannel(), page, text);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			if (!reportedChange) {
+				Base.logger.log(Level.SEVERE, "Could not read " + file.getName() +
+						"; reopen it to see it as it is now", ioe);
+				reportedChange = true;
+			}
+			// Keep the page's lines where they were, blank
+			java.util.Arrays.fill(text, ' ');
+			for (int i = 0; i < page.newlines; i++) { text[text.length - 1 - i] = '\n'; }
+			page.setText(text, page.length);
+			page.unread = true;
+			loaded.put(page, page);
+			return page;
+		}
+		page.setText(text, page.length);
+		page.unread = false;
+		loaded.put(page, page);
+		return page;
+	}
+
+	/**
+	 * Read the text of a clean page from its file, as ISO-8859-1 with
+	 * "\r\n" turned into "\n".
+	 */
+	private static void read(FileChannel channel, Page page, char[] text) throws IOException {
+		byte[] bytes = new byte[page.fileLength];
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, page.fileOffset + buf.position()) < 0) {
+				throw new IOException("The file is shorter than expected");
+			}
+		}
+		int length = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == '\r' && i + 1 < bytes.length && bytes[i + 1] == '\n') { continue; }
+			if (length == text.length) { throw new IOException("The file has changed on disk"); }
+			text[length++] = (char)(bytes[i] & 0xff);
+		}
+		if (length != page.length) { throw new IOException("The file has changed on disk"); }
+	}
+
+	/**
+	 * Copy a page into memory for good, so that it can be changed, and
+	 * make its text its own if a snapshot shares it.
+	 */
+	private Page makeDirty(int p) {
+		Page page = load(p);
+		if (!page.dirty) {
+			loaded.remove(page);
+			page.dirty = true;
+		}
+		if (page.shared) {
+			page.text = page.text.clone();
+			page.shared = false;
+		}
+		return page;
+	}
+
+	public synchronized Position createPosition(int offset) throws BadLocationException {
+		Mark mark = new Mark();
+		place(mark, offset);
+		return mark;
+	}
+
+	/**
+	 * Put a mark on the page an offset is in.  A mark is only ever at the
+	 * very end of a page if that is the last page.
+	 */
+	private void place(Mark mark, int offset) {
+		int p = pageAt(offset);
+		Page page = pages.get(p);
+		mark.page = page;
+		mark.rel = offset - charStart[p];
+		if (page.marks == null) { page.marks = new ArrayList<WeakReference<Mark>>(); }
+		page.marks.add(new WeakReference<Mark>(mark));
+	}
+
+	/**
+	 * Take the marks off some pages, noting the offsets they are at now.
+	 * @param from the first page
+	 * @param to one past the last page
+	 */
+	private List<Mark> unplace(int from, int to) {
+		List<Mark> taken = new ArrayList<Mark>();
+		for (int p = from; p < to; p++) {
+			Page page = pages.get(p);
+			if (page.marks == null) { continue; }
+			for (WeakReference<Mark> ref : page.marks) {
+				Mark mark = ref.get();
+				if (mark != null) {
+					mark.offset = charStart[p] + mark.rel;
+					taken.add(mark);
+				}
+			}
+			page.marks = null;
+		}
+		return taken;
+	}
+
+	/**
+	 * Move the marks on a page that come after an insert.  As in GapContent,
+	 * text inserted at a mark goes before it, except at the start of the text.
+	 */
+	private void shiftMarks(Page page, int rel, int n, boolean atRel) {
+		if (page.marks == null) { return; }
+		for (Iterator<WeakReference<Mark>> i = page.marks.iterator(); i.hasNext();) {
+			Mark mark = i.next().get();
+			if (mark == null) {
+				i.remove();
+			} else if (mark.rel > rel || mark.rel == rel && atRel) {
+				mark.rel += n;
+			}
+		}
+	}
+
+	public synchronized UndoableEdit insertString(int where, String str) throws BadLocationException {
+		if (where < 0 || where >= length()) {
+			throw new BadLocationException("Invalid insert", where);
+		}
+		insert(where, str);
+		return new ContentEdit(where, str, true);
+	}
+
+	public synchronized UndoableEdit remove(int where, int nitems) throws BadLocationException {
+		if (where < 0 || nitems < 0 || where + nitems >= length()) {
+			throw new BadLocationException("Invalid remove", where + nitems);
+		}
+		String removed = getString(where, nitems);
+		delete(where, nitems);
+		return new ContentEdit(where, removed, false);
+	}
+
+	private void insert(int where, String str) {
+		int p = pageAt(where);
+		Page page = makeDirty(p);
+		int rel = where - charStart[p];
+		int n = str.length();
+		char[] text = page.text;
+		if (page.length + n > text.length) {
+			char[] bigger = new char[Math.max(page.length + n, text.length * 3 / 2)];
+			System.arraycopy(text, 0, bigger, 0, page.length);
+			text = bigger;
+		}
+		System.arraycopy(text, rel, text, rel + n, page.length - rel);
+		str.getChars(0, n, text, rel);
+		page.text = text;
+		int before = page.newlines;
+		page.inserted(rel, n);
+		lastNewlines = page.newlines - before;
+		shiftMarks(page, rel, n, where > 0);
+		if (page.length > 4 * pageSize) {
+			split(p);
+		} else {
+			recount();
+		}
+	}
+
+	/** Cut an overgrown page (from a big paste, say) into pages of the usual size. */
+	private void split(int p) {
+		recount();
+		List<Mark> marks = unplace(p, p + 1);
+		Page page = pages.remove(p);
+		for (int start = 0; start < page.length; start += pageSize) {
+			int len = Math.min(pageSize, page.length - start);
+			char[] text = new char[len];
+			System.arraycopy(page.text, start, text, 0, len);
+			pages.add(p++, new Page(text, len));
+		}
+		recount();
+		for (Mark mark : marks) { place(mark, mark.offset); }
+	}
+
+	private void delete(int where, int nitems) {
+		int p = pageAt(where);
+		int rel = where - charStart[p];
+		int last = pageAt(where + nitems);
+		if (p == last) {
+			// Within a page, which keeps some text after the delete
+			Page page = makeDirty(p);
+			System.arraycopy(page.text, rel + nitems, page.text, rel, page.length - rel - nitems);
+			page.deleted(rel, nitems);
+			if (page.marks != null) {
+				for (Iterator<WeakReference<Mark>> i = page.marks.iterator(); i.hasNext();) {
+					Mark mark = i.next().get();
+					if (mark == null) {
+						i.remove();
+					} else if (mark.rel > rel) {
+						mark.rel = Math.max(rel, mark.rel - nitems);
+					}
+				}
+			}
+			recount();
+			return;
+		}
+		// Marks in the pages it touches are put back afterwards
+		List<Mark> marks = unplace(p, last + 1);
+		for (Mark mark : marks) {
+			if (mark.offset > where) { mark.offset = Math.max(where, mark.offset - nitems); }
+		}
+		int left = nitems;
+		while (left > 0) {
+			Page page = pages.get(p);
+			int n = Math.min(left, page.length - rel);
+			if (rel == 0 && n == page.length) {
+				// The whole page goes, without reading it
+				pages.remove(p);
+				loaded.remove(page);
+			} else {
+				page = makeDirty(p);
+				System.arraycopy(page.text, rel + n, page.text, rel, page.length - rel - n);
+				page.deleted(rel, n);
+				p++;
+			}
+			left -= n;
+			rel = 0;
+		}
+		recount();
+		for (Mark mark : marks) { place(mark, mark.offset); }
+	}
+
+	public synchronized String getString(int where, int len) throws BadLocationException {
+		Segment s = new Segment();
+		getChars(where, len, s);
+		return new String(s.array, s.offset, s.count);
+	}
+
+	public synchronized void getChars(int where, int len, Segment txt) throws BadLocationException {
+		if (where < 0 || len < 0 || where + len > length()) {
+			throw new BadLocationException("Invalid location", where + len);
+		}
+		int p = pageAt(where);
+		int rel = where - charStart[p];
+		Page page = load(p);
+		if (rel + len <= page.length) {
+			txt.array = page.text;
+			txt.offset = rel;
+			txt.count = len;
+			return;
+		}
+		char[] chars = new char[len];
+		int done = 0;
+		while (done < len) {
+			page = load(p);
+			int n = Math.min(len - done, page.length - rel);
+			System.arraycopy(page.text, rel, chars, done, n);
+			done += n;
+			rel = 0;
+			p++;
+		}
+		txt.array = chars;
+		txt.offset = 0;
+		txt.count = len;
+	}
+
+	/**
+	 * Write the text (less the content's closing newline) to a file, and
+	 * read from that file from now on.  Unedited pages are copied from the
+	 * old file byte for byte; edited ones are written with "\n" line endings.
+	 * The file is written in full and forced to disk before it replaces dest,
+	 * so a save that fails or is cancelled leaves dest as it was.  It fails
+	 * if the file has changed on disk since it was opened, or if any of it
+	 * couldn't be read, rather than save the wrong text.
+	 * @param progress told how many characters have been written, or null
+	 */
+	synchronized void save(File dest, FileProgress progress) throws IOException {
+		boolean fromFile = false;
+		for (Page page : pages) {
+			if (page.unread) {
+				throw new IOException("Part of " + file.getName() + " could not be read; reopen it before saving");
+			}
+			if (!page.dirty) { fromFile = true; }
+		}
+		if (fromFile && (file.length() != fileLength || file.lastModified() != fileModified)) {
+			throw new IOException(file.getName() + " has changed on disk since it was opened; reopen it before saving");
+		}
+		File tmp = new File(dest.getPath() + ".tmp");
+		List<Long> offsets = new ArrayList<Long>(pages.size());
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			RandomAccessFile raf = file != null && file.isFile() ? new RandomAccessFile(file, "r") : null;
+			try {
+				long written = 0;
+				byte[] bytes = new byte[READ_SIZE];
+				for (int p = 0; p < pages.size(); p++) {
+					Page page = pages.get(p);
+					offsets.add(written);
+					if (!page.dirty) {
+						if (raf == null) { throw new IOException("The file being saved over is gone"); }
+						raf.seek(page.fileOffset);
+						int left = page.fileLength;
+						while (left > 0) {
+							int n = raf.read(bytes, 0, Math.min(left, bytes.length));
+							if (n < 0) { throw new IOException(file.getName() + " is shorter than expected"); }
+							out.write(bytes, 0, n);
+							left -= n;
+						}
+						written += page.fileLength;
+					} else {
+						int length = (p == pages.size() - 1) ? page.length - 1 : page.length;
+						for (int start = 0; start < length; start += bytes.length) {
+							int n = Math.min(bytes.length, length - start);
+							for (int i = 0; i < n; i++) {
+								char c = page.text[start + i];
+								bytes[i] = (byte)(c < 256 ? c : '?');
+							}
+							out.write(bytes, 0, n);
+						}
+						written += length;
+					}
+					if (progress != null) { progress.progress(charStart[p + 1], length()); }
+				}
+			} finally {
+				if (raf != null) { raf.close(); }
+			}
+			out.getChannel().force(true);
+		} catch (IOException ioe) {
+			out.close();
+			tmp.delete();
+			throw ioe;
+		}
+		out.close();
+		Base.replaceFile(tmp, dest);
+
+		// Every page but the closing newline is now in the new file
+		int last = pages.size() - 1;
+		for (int p = 0; p < last; p++) {
+			Page page = pages.get(p);
+			if (page.dirty) {
+				page.fileLength = page.length;
+				page.dirty = false;
+				loaded.put(page, page);
+			}
+			page.fileOffset = offsets.get(p);
+		}
+		Page end = pages.get(last);
+		if (end.length > 1) {
+			List<Mark> marks = unplace(last, last + 1);
+			char[] text = new char[end.length - 1];
+			System.arraycopy(end.text, 0, text, 0, text.length);
+			Page saved = new Page(text, text.length);
+			saved.fileOffset = offsets.get(last);
+			saved.fileLength = text.length;
+			saved.dirty = false;
+			pages.add(last, saved);
+			loaded.put(saved, saved);
+			end.setText(new char[] { '\n' }, 1);
+			recount();
+			for (Mark mark : marks) { place(mark, mark.offset); }
+		}
+		file = dest;
+		fileLength = dest.length();
+		fileModified = dest.lastModified();
+		reportedChange = false;
+	}
+
+	/**
+	 * Take a snapshot of the text.  This only copies the list of pages; the
+	 * text of each page is shared until the content next changes that page.
+	 */
+	public synchronized Snapshot snapshot() {
+		Page[] copies = new Page[pages.size()];
+		for (int p = 0; p < copies.length; p++) {
+			Page page = pages.get(p);
+			if (page.text != null) { page.shared = true; }
+			copies[p] = new Page(page);
+		}
+		return new Snapshot(copies, newlineCount(), file, fileLength, fileModified);
+	}
+
+	/**
+	 * The text of a content as it was when the snapshot was taken, which
+	 * can be read from any thread while the content goes on being edited.
+	 */
+	public static class Snapshot {
+		private final Page[] pages;
+		private final int lineCount;
+		private final File file;
+		private final long fileLength, fileModified;
+		/** Open from when the snapshot is taken, so a save over the file can't pull it away. */
+		private RandomAccessFile raf = null;
+
+		private Snapshot(Page[] pages, int lineCount, File file, long fileLength, long fileModified) {
+			this.pages = pages;
+			this.lineCount = lineCount;
+			this.file = file;
+			this.fileLength = fileLength;
+			this.fileModified = fileModified;
+			for (Page page : pages) {
+				if (page.text == null) {
+					try {
+						open();
+					} catch (IOException ioe) {
+						// Reported when the page is read
+					}
+					break;
+				}
+			}
+		}
+
+		private synchronized FileChannel open() throws IOException {
+			if (raf == null) {
+				if (file.length() != fileLength || file.lastModified() != fileModified) {
+					throw new IOException(file.getName() + " has changed on disk");
+				}
+				raf = new RandomAccessFile(file, "r");
+			}
+			return raf.getChannel();
+		}
+
+		/**
+		 * Let go of the file.  Reading to the end of the lines does this; a
+		 * reader that stops before then should call it.  The snapshot can
+		 * still be read afterwards, as long as the file hasn't changed.
+		 */
+		public synchronized void close() {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ioe) {
+					// Only read from
+				}
+				raf = null;
+			}
+		}
+
+		/** @return the number of lines, counting the last even if it is empty */
+		public int getLineCount() {
+			return lineCount;
+		}
+
+		/** @return the text of a page, reading it from the file if need be */
+		private char[] getText(Page page) throws IOException {
+			if (page.unread) {
+				throw new IOException("Part of " + file.getName() + " could not be read");
+			}
+			if (page.text != null) { return page.text; }
+			char[] text = new char[page.length];
+			read(open(), page, text);
+			return text;
+		}
+
+		/**
+		 * @return the lines of the text, without their newlines; there are
+		 * getLineCount() of them.  If the file can't be read, the iterator
+		 * throws GCodeSourceException rather than stopping short.
+		 */
+		public Iterator<String> lines() {
+			return new Iterator<String>() {
+				private GCodeSourceException failure = null;
+				private int linesRead = 0;
+				private int p = 0;
+				private char[] text = null;
+				private int pos = 0, length = 0;
+				private String next = null;
+
+				public boolean hasNext() {
+					if (next != null) { return true; }
+					if (failure != null) { throw failure; }
+					if (linesRead >= lineCount) { return false; }
+					try {
+						next = readLine();
+						linesRead++;
+					} catch (IOException ioe) {
+						close();
+						failure = new GCodeSourceException("Could not read line " + (linesRead + 1) +
+								(file == null ? "" : " of " + file.getName()), ioe);
+						throw failure;
+					}
+					if (linesRead >= lineCount) { close(); }
+					return next != null;
+				}
+
+				public String next() {
+					if (!hasNext()) { throw new NoSuchElementException(); }
+					String line = next;
+					next = null;
+					return line;
+				}
+
+				public void remove() { throw new UnsupportedOperationException(); }
+
+				private String readLine() throws IOException {
+					StringBuilder spanning = null;
+					while (true) {
+						if (text == null || pos == length) {
+							Page page = pages[p++];
+							text = getText(page);
+							length = page.length;
+							pos = 0;
+							continue;
+						}
+						int start = pos;
+						while (pos < length && text[pos] != '\n') { pos++; }
+						if (pos < length) {
+							pos++;
+							if (spanning == null) { return new String(text, start, pos - 1 - start); }
+							return spanning.append(text, start, pos - 1 - start).toString();
+						}
+						// The line goes on into the next page
+						if (spanning == null) { spanning = new StringBuilder(); }
+						spanning.append(text, start, pos - start);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Inserts and removals, for undo.
+	 */
+	class ContentEdit extends AbstractUndoableEdit {
+		private final int where;
+		private final String text;
+		private final boolean inserted;
+
+		ContentEdit(int where, String text, boolean inserted) {
+			this.where = where;
+			this.text = text;
+			this.inserted = inserted;
+		}
+
+		public void undo() throws CannotUndoException {
+			super.undo();
+			synchronized (PagedContent.this) {
+				if (inserted) { delete(where, text.length()); } else { insert(where, text); }
+			}
+		}
+
+		public void redo() throws CannotRedoException {
+			super.redo();
+			synchronized (PagedContent.this) {
+				if (inserted) { insert(where, text); } else { delete(where, text.length()); }
+			}
+		}
+	}
+
+	/**
+	 * A piece of the document.  A clean page is a copy of part of the file,
+	 * and its text can be dropped and read again; a dirty one has been edited
+	 * (or was never in the file) and lives in memory.
+	 */
+	static class Page {
+		long fileOffset;
+		int fileLength;
+		int length;
+		int newlines;
+		boolean dirty;
+		/** Whether a snapshot shares the text, so that it mustn't be changed in place. */
+		boolean shared;
+		/** Whether the text is blanks, as the page couldn't be read from the file. */
+		boolean unread;
+		char[] text;
+		/** Where the newlines are in the text; kept and dropped with it. */
+		int[] newlineAt;
+		/** Where the page is in the content, as of the last count. */
+		int index;
+		/** The content's marks on the page, or null if there are none. */
+		List<WeakReference<Mark>> marks;
+
+		Page(long fileOffset, int fileLength, int length, int newlines) {
+			this.fileOffset = fileOffset;
+			this.fileLength = fileLength;
+			this.length = length;
+			this.newlines = newlines;
+		}
+
+		/** A copy for a snapshot, sharing the text. */
+		Page(Page page) {
+			this.fileOffset = page.fileOffset;
+			this.fileLength = page.fileLength;
+			this.length = page.length;
+			this.newlines = page.newlines;
+			this.dirty = page.dirty;
+			this.text = page.text;
+			this.unread = page.unread;
+		}
+
+		Page(char[] text, int length) {
+			this.fileOffset = -1;
+			this.dirty = true;
+			setText(text, length);
+		}
+
+		void setText(char[] text, int length) {
+			this.text = text;
+			this.length = length;
+			int count = 0;
+			for (int i = 0; i < length; i++) {
+				if (text[i] == '\n') { count++; }
+			}
+			newlineAt = new int[count];
+			count = 0;
+			for (int i = 0; i < length; i++) {
+				if (text[i] == '\n') { newlineAt[count++] = i; }
+			}
+			newlines = count;
+		}
+
+		/** @return how many newlines come before a place in the text */
+		int newlinesBefore(int rel) {
+			int lo = 0, hi = newlines;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (newlineAt[mid] < rel) { lo = mid + 1; } else { hi = mid; }
+			}
+			return lo;
+		}
+
+		/**
+		 * Note that the text has had n characters put in at rel, without
+		 * going through the rest of the page again.
+		 */
+		void inserted(int rel, int n) {
+			int at = newlinesBefore(rel);
+			int added = 0;
+			for (int i = rel; i < rel + n; i++) {
+				if (text[i] == '\n') { added++; }
+			}
+			if (added == 0) {
+				for (int j = at; j < newlines; j++) { newlineAt[j] += n; }
+			} else {
+				int[] now = new int[newlines + added];
+				System.arraycopy(newlineAt, 0, now, 0, at);
+				int k = at;
+				for (int i = rel; i < rel + n; i++) {
+					if (text[i] == '\n') { now[k++] = i; }
+				}
+				for (int j = at; j < newlines; j++) { now[k++] = newlineAt[j] + n; }
+				newlineAt = now;
+				newlines += added;
+			}
+			length += n;
+		}
+
+		/**
+		 * Note that the text has had n characters taken out at rel.
+		 */
+		void deleted(int rel, int n) {
+			int from = newlinesBefore(rel);
+			int to = newlinesBefore(rel + n);
+			if (from == to) {
+				for (int j = from; j < newlines; j++) { newlineAt[j] -= n; }
+			} else {
+				int[] now = new int[newlines - (to - from)];
+				System.arraycopy(newlineAt, 0, now, 0, from);
+				int k = from;
+				for (int j = to; j < newlines; j++) { now[k++] = newlineAt[j] - n; }
+				newlineAt = now;
+				newlines = now.length;
+			}
+			length -= n;
+		}
+	}
+
+	/**
+	 * A position in the text, kept as an offset into a page so that an edit
+	 * only has to move the marks on the pages it changes.
+	 */
+	private class Mark implements Position {
+		Page page;
+		int rel;
+		/** Where the mark is while it is being moved between pages. */
+		int offset;
+
+		public int getOffset() {
+			return charStart[page.index] + rel;
+		}
+	}
+}
@@ -9,6 +9,11 @@
 
 package replicatorg.app.syntax;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.EventListener;
+
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Element;
@@ -18,13 +23,55 @@ import javax.swing.undo.UndoableEdit;
 
 /**
  * A document implementation that can be tokenized by the syntax highlighting
- * system.
+ * system.<p>
+ *
+ * Lines are tokenized as they are painted, and the rest of the document is
+ * brought up to date a little at a time while the Swing thread is idle, so
+ * that loading a program or pasting a lot of text never waits on all of it
+ * being tokenized. Any edit restarts that pass from the first line it
+ * touched.
  *
  * @author Slava Pestov
  * @version $Id: SyntaxDocument.java 85 2006-01-12 23:24:12Z mellis $
  */
 public class SyntaxDocument extends PlainDocument
 {
+        /**
+         * Creates a document that keeps its text in pages, so that
+         * snapshots of it can be taken cheaply.
+         */
+        public SyntaxDocument()
+        {
+                this(new PagedContent());
+        }
+
+        /**
+         * Creates a document that keeps its text in the given content.
+         * @param c The content
+         */
+        protected SyntaxDocument(PagedContent c)
+        {
+                super(c);
+        }
+
+        /**
+         * Returns a snapshot of the text, which stays as it is while the
+         * document is edited and can be read from any thread. Taking it
+         * doesn't copy the text; see <code>PagedContent</code>.
+         */
+        public PagedContent.Snapshot getSnapshot()
+        {
+                readLock();
+                try
+                {
+                        return ((PagedContent)getContent()).snapshot();
+                }
+                finally
+                {
+                        readUnlock();
+                }
+        }
+
         /**
          * Returns the token marker that is to be used to split lines
          * of this document up into tokens. May return null if this
@@ -54,11 +101,15 @@ public class SyntaxDocument extends PlainDocument
         /**
          * Reparses the document, by passing all lines to the token
          * marker. This should be called after the document is first
-         * loaded.
+         * loaded. The lines are tokenized in the background; see
+         * <code>tokenizeLater()</code>.
          */
         public void tokenizeLines()
         {
-                tokenizeLines(0,getDefaultRootElement().getElementCount());
+                if(tokenMarker == null)
+                        return;
+                tokenMarker.linesChanged(0,tokenMarker.getLineCount());
+                tokenizeLater();
         }
 
         /**
@@ -86,7 +137,7 @@ public class SyntaxDocument extends PlainDocument
                                 int lineStart = lineElement.getStartOffset();
                                 getText(lineStart,lineElement.getEndOffset()
                                         - lineStart - 1,lineSegment);
-                                tokenMarker.markTokens(lineSegment,i);
+                                tokenMarker.updateLine(lineSegment,i);
                         }
                 }
                 catch(BadLocationException bl)
@@ -95,6 +146,89 @@ public class SyntaxDocument extends PlainDocument
                 }
         }
 
+        /**
+         * Starts, or restarts after a short delay, tokenizing the lines
+         * of the document that are out of date, a slice at a time on the
+         * Swing thread. Listeners are told of the lines whose tokens
+         * changed so that they can be repainted.
+         */
+        protected void tokenizeLater()
+        {
+                if(tokenMarker == null || !tokenMarker.supportsMultilineTokens())
+                        return;
+                if(tokenizer == null)
+                {
+                        tokenizer = new Timer(TOKENIZE_INTERVAL,new ActionListener() {
+                                public void actionPerformed(ActionEvent e) {
+                                        tokenizeSlice();
+                                }
+                        });
+                        tokenizer.setInitialDelay(TOKENIZE_DELAY);
+                }
+                tokenizer.restart();
+        }
+
+        private void tokenizeSlice()
+        {
+                if(tokenMarker == null)
+                {
+                        tokenizer.stop();
+                        return;
+                }
+                int first = -1, last = -1;
+                readLock();
+                try
+                {
+                        long end = System.nanoTime() + TOKENIZE_SLICE_NS;
+                        int count = tokenMarker.getLineCount();
+                        int line = tokenMarker.getFirstInvalidLine();
+                        first = line;
+                        while(line < count && System.nanoTime() < end)
+                        {
+                                tokenizeLines(line,1);
+                                last = line;
+                                line = tokenMarker.getFirstInvalidLine();
+                        }
+                        if(line >= count)
+                                tokenizer.stop();
+                }
+                finally
+                {
+                        readUnlock();
+                }
+                if(last >= first)
+                        fireLinesTokenized(first,last);
+        }
+
+        /**
+         * Listens for lines being tokenized in the background.
+         */
+        public interface TokenListener extends EventListener
+        {
+                /**
+                 * Called when lines may have new tokens.
+                 * @param first The first line
+                 * @param last The last line
+                 */
+                void linesTokenized(int first, int last);
+        }
+
+        public void addTokenListener(TokenListener l)
+        {
+                listenerList.add(TokenListener.class,l);
+        }
+
+        public void removeTokenListener(TokenListener l)
+        {
+                listenerList.remove(TokenListener.class,l);
+        }
+
+        protected void fireLinesTokenized(int first, int last)
+        {
+                for(TokenListener l : listenerList.getListeners(TokenListener.class))
+                        l.linesTokenized(first,last);
+        }
+
         /**
          * Starts a compound edit that can be undone in one operation.
          * Subclasses that implement undo should override this method;
@@ -123,6 +257,12 @@ public class SyntaxDocument extends PlainDocument
         // protected members
         protected TokenMarker tokenMarker;
 
+        // private members
+        private static final int TOKENIZE_DELAY = 200;
+        private static final int TOKENIZE_INTERVAL = 10;
+        private static final long TOKENIZE_SLICE_NS = 20L * 1000 * 1000;
+        private Timer tokenizer;
+
         /**
          * We overwrite this method to update the token marker
          * state immediately so that any event listeners get a
@@ -140,6 +280,7 @@ public class SyntaxDocument extends PlainDocument
                                         ch.getChildrenAdded().length -
                                         ch.getChildrenRemoved().length);
                         }
+                        linesChanged(evt);
                 }
 
                 super.fireInsertUpdate(evt);
@@ -162,8 +303,24 @@ public class SyntaxDocument extends PlainDocument
                                         ch.getChildrenRemoved().length -
                                         ch.getChildrenAdded().length);
                         }
+                        linesChanged(evt);
                 }
 
                 super.fireRemoveUpdate(evt);
         }
+
+        /**
+         * Marks the lines an edit touched as needing to be tokenized
+         * again, and restarts tokenizing from there.
+         */
+        private void linesChanged(DocumentEvent evt)
+        {
+                Element map = getDefaultRootElement();
+                int first = map.getElementIndex(evt.getOffset());
+                int last = evt.getType() == DocumentEvent.EventType.INSERT
+                        ? map.getElementIndex(evt.getOffset() + evt.getLength())
+                        : first;
+                tokenMarker.linesChanged(first,last - first + 1);
+                tokenizeLater();
+        }
 }
@@ -9,6 +9,9 @@
 
 package replicatorg.app.syntax;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import javax.swing.text.Segment;
 
 /**
@@ -19,7 +22,13 @@ import javax.swing.text.Segment;
  * For performance reasons, the linked list of tokens is reused after each
  * line is tokenized. Therefore, the return value of <code>markTokens</code>
  * should only be used for immediate painting. Notably, it cannot be
- * cached.
+ * cached by the caller; the token marker keeps its own copies for the
+ * lines painted most recently, and hands them back while the line and the
+ * token it starts with are unchanged.<p>
+ *
+ * Lines whose text changes are marked damaged, and the first line that may
+ * be out of date is remembered, so that a pass over the document (see
+ * <code>SyntaxDocument</code>) only has to tokenize the lines that need it.
  *
  * @author Slava Pestov
  * @version $Id: TokenMarker.java 85 2006-01-12 23:24:12Z mellis $
@@ -35,6 +44,23 @@ public abstract class TokenMarker
          * @param lineIndex The line number
          */
         public Token markTokens(Segment line, int lineIndex)
+        {
+                return markTokens(line,lineIndex,true);
+        }
+
+        /**
+         * Tokenizes a line to bring its line info up to date, without
+         * keeping a copy of the tokens. Used when tokenizing lines that
+         * aren't being painted.
+         * @param line The line
+         * @param lineIndex The line number
+         */
+        public void updateLine(Segment line, int lineIndex)
+        {
+                markTokens(line,lineIndex,false);
+        }
+
+        private Token markTokens(Segment line, int lineIndex, boolean cache)
         {
                 if(lineIndex >= length)
                 {
@@ -44,18 +70,36 @@ public abstract class TokenMarker
 
                 lastToken = null;
 
+                // Line info is created as lines are first tokenized, so
+                // that large documents don't need an object per line
                 LineInfo info = lineInfo[lineIndex];
-                LineInfo prev;
-                if(lineIndex == 0)
-                        prev = null;
-                else
-                        prev = lineInfo[lineIndex - 1];
+                if(info == null)
+                        info = lineInfo[lineIndex] = new LineInfo();
+                byte prevToken = getStartToken(lineIndex);
 
                 byte oldToken = info.token;
-                byte token = markTokensImpl(prev == null ?
-                        Token.NULL : prev.token,line,lineIndex);
-
-                info.token = token;
+                Token cached = cachedTokens.get(info);
+                boolean upToDate = !info.damaged && info.startToken == prevToken;
+                Token tokens;
+                if(upToDate && cached != null)
+                {
+                        tokens = cached;
+                }
+                else
+                {
+                        byte token = markTokensImpl(prevToken,line,lineIndex);
+                        info.token = token;
+                        info.startToken = prevToken;
+                        info.damaged = false;
+                        addToken(0,Token.END);
+                        tokens = firstToken;
+                        if(cache)
+                                cachedTokens.put(info,copyTokens(firstToken));
+                        else if(cached != null)
+                                cachedTokens.remove(info);
+                }
+                if(lineIndex == firstInvalid)
+                        firstInvalid++;
 
                 /*
                  * This is a foul hack. It stops nextLineRequested
@@ -96,13 +140,11 @@ public abstract class TokenMarker
                  * duplicate it.
                  */
                  if(!(lastLine == lineIndex && nextLineRequested))
-                        nextLineRequested = (oldToken != token);
+                        nextLineRequested = (oldToken != info.token);
 
                 lastLine = lineIndex;
 
-                addToken(0,Token.END);
-
-                return firstToken;
+                return tokens;
         }
 
         /**
@@ -142,7 +184,7 @@ public abstract class TokenMarker
         /**
          * Informs the token marker that lines have been inserted into
          * the document. This inserts a gap in the <code>lineInfo</code>
-         * array.
+         * array, to be filled in as the lines are tokenized.
          * @param index The first line number
          * @param lines The number of lines
          */
@@ -158,8 +200,10 @@ public abstract class TokenMarker
 
                 for(int i = index + lines - 1; i >= index; i--)
                 {
-                        lineInfo[i] = new LineInfo();
+                        lineInfo[i] = null;
                 }
+                if(firstInvalid > index)
+                        firstInvalid = index;
         }
 
         /**
@@ -177,6 +221,50 @@ public abstract class TokenMarker
                 length -= lines;
                 System.arraycopy(lineInfo,len,lineInfo,
                         index,lineInfo.length - len);
+                if(firstInvalid > index)
+                        firstInvalid = index;
+        }
+
+        /**
+         * Informs the token marker that the text of some lines has
+         * changed. Their tokens are thrown away, and they will be
+         * tokenized again when next painted or passed over.
+         * @param index The first line number
+         * @param lines The number of lines
+         */
+        public void linesChanged(int index, int lines)
+        {
+                int len = Math.min(index + lines,length);
+                for(int i = index; i < len; i++)
+                {
+                        LineInfo info = lineInfo[i];
+                        if(info != null)
+                        {
+                                info.damaged = true;
+                                cachedTokens.remove(info);
+                        }
+                }
+                if(firstInvalid > index)
+                        firstInvalid = index;
+        }
+
+        /**
+         * Returns the first line that has to be tokenized to bring the
+         * line info up to date, or the line count if none do. Lines
+         * that are up to date already are passed over without being
+         * tokenized again.
+         */
+        public int getFirstInvalidLine()
+        {
+                while(firstInvalid < length)
+                {
+                        LineInfo info = lineInfo[firstInvalid];
+                        if(info == null || info.damaged
+                                || info.startToken != getStartToken(firstInvalid))
+                                break;
+                        firstInvalid++;
+                }
+                return firstInvalid;
         }
 
         /**
@@ -234,6 +322,54 @@ public abstract class TokenMarker
          */
         protected boolean nextLineRequested;
 
+        /**
+         * Lines before this one are known to be tokenized and up to date.
+         */
+        protected int firstInvalid;
+
+        /**
+         * Copies of the tokens of the lines painted most recently.
+         */
+        private final Map<LineInfo,Token> cachedTokens =
+                new LinkedHashMap<LineInfo,Token>(16,0.75f,true) {
+                        protected boolean removeEldestEntry(Map.Entry<LineInfo,Token> eldest) {
+                                return size() > CACHED_LINES;
+                        }
+                };
+
+        /**
+         * How many lines' tokens to keep; a few screens' worth.
+         */
+        private static final int CACHED_LINES = 500;
+
+        /**
+         * Returns the token a line starts with: the one the line before
+         * it ended with.
+         */
+        private byte getStartToken(int lineIndex)
+        {
+                if(lineIndex == 0)
+                        return Token.NULL;
+                LineInfo prev = lineInfo[lineIndex - 1];
+                return prev == null ? Token.NULL : prev.token;
+        }
+
+        /**
+         * Copies a token list, up to and including its END token.
+         */
+        private static Token copyTokens(Token tokens)
+        {
+                Token first = new Token(tokens.length,tokens.id);
+                Token last = first;
+                while(tokens.id != Token.END && tokens.next != null)
+                {
+                        tokens = tokens.next;
+                        last.next = new Token(tokens.length,tokens.id);
+                        last = last.next;
+                }
+                return first;
+        }
+
         /**
          * Creates a new <code>TokenMarker</code>. This DOES NOT create
          * a lineInfo array; an initial call to <code>insertLines()</code>
@@ -341,6 +477,18 @@ public abstract class TokenMarker
                  */
                 public byte token;
 
+                /**
+                 * The id of the token the line started with when it was
+                 * last tokenized.
+                 */
+                public byte startToken;
+
+                /**
+                 * True if the text of the line has changed since it was
+                 * last tokenized.
+                 */
+                public boolean damaged;
+
                 /**
                  * This is for use by the token marker implementations
                  * themselves. It can be used to store anything that
@@ -532,8 +532,20 @@ public class DualStrusionWindow extends JFrame{
 		}
 		
 		DualStrusionConstruction dsConstruction = new DualStrusionConstruction(leftGcode, rightGcode, startSource, endSource, type, uWipe);
-		dsConstruction.combine();
-		dsConstruction.getCombinedFile().writeToFile(dest);
+		try {
+			dsConstruction.combine(dest);
+		} catch (IOException ioe) {
+			Base.logger.log(Level.SEVERE, "Could not write combined gcode", ioe);
+			abort("Could not write the combined gcode to " + dest.getPath() + ": " + ioe.getMessage());
+			return;
+		}
+		Base.logger.info("Combined gcode uses " + dsConstruction.getToolchangeCount() + " toolchanges");
+		if(dsConstruction.getToolchangesAvoided() > 0)
+		{
+			Base.logger.info("Skipped " + dsConstruction.getToolchangesAvoided() +
+					" toolchanges for layers with nothing to print, saving about " +
+					Math.round(dsConstruction.getEstimatedSecondsSaved()) + " seconds");
+		}
 		
 		//we want to have the mainwindow load the new code, now.
 		// that should happen here.
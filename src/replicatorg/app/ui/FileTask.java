@@ -0,0 +1,110 @@
+package replicatorg.app.ui;
+
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+import replicatorg.app.util.FileProgress;
+
+/**
+ * Reads or writes a file on a background thread, so that the window goes on
+ * painting and responding while it happens.  A progress monitor comes up if
+ * the work looks like taking more than a moment.  Cancelling from the
+ * monitor makes the next progress report throw an InterruptedIOException,
+ * so the work stops at a point where it can leave things as they were.
+ */
+abstract class FileTask extends SwingWorker<Void,Void> implements FileProgress {
+	private final Component parent;
+	private final String message;
+	private ProgressMonitor monitor;
+	private Timer poll;
+	private volatile boolean cancelled = false;
+
+	FileTask(Component parent, String message) {
+		this.parent = parent;
+		this.message = message;
+		addPropertyChangeListener(new PropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent evt) {
+				if ("progress".equals(evt.getPropertyName())) {
+					monitor.setProgress((Integer)evt.getNewValue());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Do the reading or writing.  This runs on a background thread, and
+	 * should pass this task to whatever it calls as its FileProgress.
+	 */
+	protected abstract void work() throws IOException;
+
+	/** Called on the event thread once the work is done. */
+	protected abstract void succeeded();
+
+	/**
+	 * Called on the event thread if the work failed.  A cancelled task fails
+	 * with an InterruptedIOException.
+	 */
+	protected abstract void failed(IOException ioe);
+
+	/**
+	 * Start the work.  This can be called from any thread; the task starts
+	 * from the event thread.
+	 */
+	public void start() {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() { start(); }
+			});
+			return;
+		}
+		monitor = new ProgressMonitor(parent, message, null, 0, 100);
+		monitor.setMillisToDecideToPopup(200);
+		monitor.setMillisToPopup(500);
+		poll = new Timer(100, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				if (monitor.isCanceled()) { cancelled = true; }
+			}
+		});
+		poll.start();
+		execute();
+	}
+
+	public void progress(long done, long total) throws InterruptedIOException {
+		if (cancelled) { throw new InterruptedIOException(message + " was cancelled"); }
+		if (total > 0) {
+			setProgress((int)Math.min(100, done * 100 / total));
+		}
+	}
+
+	protected Void doInBackground() throws IOException {
+		work();
+		return null;
+	}
+
+	protected void done() {
+		poll.stop();
+		monitor.close();
+		try {
+			get();
+		} catch (InterruptedException ie) {
+			failed(new InterruptedIOException(message + " was interrupted"));
+			return;
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			failed(cause instanceof IOException ? (IOException)cause : new IOException(cause));
+			return;
+		}
+		succeeded();
+	}
+}
@@ -34,6 +34,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.concurrent.CancellationException;
+import java.util.regex.PatternSyntaxException;
 
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
@@ -41,9 +43,15 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 
 import replicatorg.app.Base;
+import replicatorg.app.syntax.DocumentSearch;
 
 /**
  * Find & Replace window for the Processing editor. <p/> One major annoyance in
@@ -57,6 +65,11 @@ import replicatorg.app.Base;
  * doesn't seem to be quite so beligerent). Filed as <A
  * HREF="http://dev.processing.org/bugs/show_bug.cgi?id=244"> Bug 244</A>
  * should anyone have clues about how to fix.
+ * <p/>
+ * Searches run over the document in place (see DocumentSearch) rather than
+ * over a copy of its text, so they stay cheap on large files.  While the
+ * window is open the number of matches is counted in the background, up to
+ * the editor.find.countlimit preference.
  */
 public class FindReplace extends JFrame implements ActionListener {
 
@@ -84,8 +97,34 @@ public class FindReplace extends JFrame implements ActionListener {
 
 	JCheckBox ignoreCaseBox;
 
+	JCheckBox wholeWordBox;
+
+	JCheckBox regexBox;
+
+	JLabel countLabel;
+
 	static boolean ignoreCase = true;
 
+	static boolean wholeWord = false;
+
+	static boolean regex = false;
+
+	/** The count running in the background, if any */
+	DocumentSearch counting;
+
+	/** The document that counts are run on, which recount tells of edits */
+	Document countedDocument;
+
+	/**
+	 * Starts the count over on any edit to the text being counted; the count
+	 * doesn't hold the document's lock throughout (see DocumentSearch.count()).
+	 */
+	final DocumentListener recount = new DocumentListener() {
+		public void insertUpdate(DocumentEvent e) { textChanged(); }
+		public void removeUpdate(DocumentEvent e) { textChanged(); }
+		public void changedUpdate(DocumentEvent e) { textChanged(); }
+	};
+
 	// / true when there's something selected in the editor
 	boolean found;
 
@@ -129,10 +168,42 @@ public class FindReplace extends JFrame implements ActionListener {
 		ignoreCaseBox.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				ignoreCase = ignoreCaseBox.isSelected();
+				updateCount();
 			}
 		});
 		ignoreCaseBox.setSelected(ignoreCase);
-		pain.add(ignoreCaseBox);
+
+		wholeWordBox = new JCheckBox("Whole Word");
+		wholeWordBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				wholeWord = wholeWordBox.isSelected();
+				updateCount();
+			}
+		});
+		wholeWordBox.setSelected(wholeWord);
+
+		regexBox = new JCheckBox("Regular Expression");
+		regexBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				regex = regexBox.isSelected();
+				updateCount();
+			}
+		});
+		regexBox.setSelected(regex);
+
+		JPanel options = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+		options.add(ignoreCaseBox);
+		options.add(wholeWordBox);
+		options.add(regexBox);
+		pain.add(options);
+
+		countLabel = new JLabel(" ");
+		pain.add(countLabel);
+		findField.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) { updateCount(); }
+			public void removeUpdate(DocumentEvent e) { updateCount(); }
+			public void changedUpdate(DocumentEvent e) { }
+		});
 
 		//
 
@@ -162,7 +233,7 @@ public class FindReplace extends JFrame implements ActionListener {
 
 		Dimension d3 = buttons.getPreferredSize();
 		// buttons.setBounds(BIG, BIG + d2.height*2 + SMALL + BIG,
-		buttons.setBounds(BIG, BIG + d2.height * 3 + SMALL * 2 + BIG, d3.width,
+		buttons.setBounds(BIG, BIG + d2.height * 4 + SMALL * 3 + BIG, d3.width,
 				d3.height);
 
 		//
@@ -172,8 +243,11 @@ public class FindReplace extends JFrame implements ActionListener {
 		replaceField.setBounds(BIG + d1.width + SMALL, BIG + d2.height + SMALL,
 				d3.width - (d1.width + SMALL), d2.height);
 
-		ignoreCaseBox.setBounds(BIG + d1.width + SMALL, BIG + d2.height * 2
-				+ SMALL * 2, d3.width, d2.height);
+		Dimension d4 = options.getPreferredSize();
+		options.setBounds(BIG + d1.width + SMALL, BIG + d2.height * 2
+				+ SMALL * 2, Math.max(d3.width - (d1.width + SMALL), d4.width), d2.height);
+		countLabel.setBounds(BIG + d1.width + SMALL, BIG + d2.height * 3
+				+ SMALL * 3, d3.width - (d1.width + SMALL), d2.height);
 
 		//
 
@@ -194,7 +268,7 @@ public class FindReplace extends JFrame implements ActionListener {
 
 		Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
 
-		int wide = d3.width + BIG * 2;
+		int wide = Math.max(d3.width, d1.width + SMALL + d4.width) + BIG * 2;
 		Rectangle butt = buttons.getBounds(); // how big is your butt?
 		int high = butt.y + butt.height + BIG * 2 + SMALL;
 
@@ -219,6 +293,8 @@ public class FindReplace extends JFrame implements ActionListener {
 			public void windowActivated(WindowEvent e) {
 				findField.requestFocusInWindow();
 				findField.selectAll();
+				// the text may have changed since the last count
+				updateCount();
 			}
 		});
 	}
@@ -227,6 +303,7 @@ public class FindReplace extends JFrame implements ActionListener {
 		// System.out.println("handling close now");
 		findString = findField.getText();
 		replaceString = replaceField.getText();
+		cancelCount();
 
 		// this object should eventually become dereferenced
 		setVisible(false);
@@ -256,6 +333,87 @@ public class FindReplace extends JFrame implements ActionListener {
 		}
 	}
 
+	/**
+	 * @return a search for what's in the find field, or null if it's empty or
+	 * not a valid expression
+	 */
+	DocumentSearch getSearch(Document document) {
+		String search = findField.getText();
+		if (search.length() == 0)
+			return null;
+		try {
+			return new DocumentSearch(document, search, regex, ignoreCase, wholeWord);
+		} catch (PatternSyntaxException pse) {
+			countLabel.setText("Invalid expression: " + pse.getDescription());
+			return null;
+		}
+	}
+
+	/**
+	 * Start counting the matches in the background, after stopping any count
+	 * that's already running.
+	 */
+	void updateCount() {
+		cancelCount();
+		final Document document = editor.textarea.getDocument();
+		final DocumentSearch search = getSearch(document);
+		if (search == null) {
+			if (findField.getText().length() == 0)
+				countLabel.setText(" ");
+			return;
+		}
+		final int limit = Base.preferences.getInt("editor.find.countlimit", 1000);
+		if (document != countedDocument) {
+			if (countedDocument != null)
+				countedDocument.removeDocumentListener(recount);
+			document.addDocumentListener(recount);
+			countedDocument = document;
+		}
+		counting = search;
+		countLabel.setText("Counting...");
+		Thread counter = new Thread(new Runnable() {
+			public void run() {
+				final int[] count = new int[] { -1 };
+				try {
+					count[0] = search.count(limit);
+				} catch (CancellationException ce) {
+					return;
+				}
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (counting != search)
+							return;
+						counting = null;
+						if (count[0] == 0)
+							countLabel.setText("Not found");
+						else if (count[0] > limit)
+							countLabel.setText("More than " + limit + " matches");
+						else
+							countLabel.setText(count[0] + (count[0] == 1 ? " match" : " matches"));
+					}
+				});
+			}
+		}, "Find counter");
+		counter.setDaemon(true);
+		counter.start();
+	}
+
+	void cancelCount() {
+		if (counting != null) {
+			counting.cancel();
+			counting = null;
+		}
+	}
+
+	/**
+	 * The text was edited: a count that's running has seen the text change
+	 * under it, so start it again.
+	 */
+	void textChanged() {
+		if (counting != null)
+			updateCount();
+	}
+
 	// look for the next instance of the find string
 	// to be found later than the current caret selection
 
@@ -266,41 +424,26 @@ public class FindReplace extends JFrame implements ActionListener {
 		// otherwise replace all will go into an infinite loop
 		found = false;
 
-		String search = findField.getText();
-		// System.out.println("finding for " + search + " " + findString);
 		// this will catch "find next" being called when no search yet
-		if (search.length() == 0)
+		DocumentSearch search = getSearch(editor.textarea.getDocument());
+		if (search == null)
 			return;
 
-		String text = editor.textarea.getText();
-
-		if (ignoreCase) {
-			search = search.toLowerCase();
-			text = text.toLowerCase();
-		}
-
 		// int selectionStart = editor.textarea.getSelectionStart();
 		int selectionEnd = editor.textarea.getSelectionEnd();
 
-		int nextIndex = text.indexOf(search, selectionEnd);
-		if (nextIndex == -1) {
-			if (wrap) {
-				// if wrapping, a second chance is ok, start from beginning
-				nextIndex = text.indexOf(search, 0);
-			}
-
-			if (nextIndex == -1) {
-				found = false;
-				replaceButton.setEnabled(false);
-				replaceFindButton.setEnabled(false);
-				// Toolkit.getDefaultToolkit().beep();
-				return;
-			}
+		int[] next = search.find(selectionEnd, wrap);
+		if (next == null) {
+			found = false;
+			replaceButton.setEnabled(false);
+			replaceFindButton.setEnabled(false);
+			// Toolkit.getDefaultToolkit().beep();
+			return;
 		}
 		found = true;
 		replaceButton.setEnabled(true);
 		replaceFindButton.setEnabled(true);
-		editor.textarea.select(nextIndex, nextIndex + search.length());
+		editor.textarea.select(next[0], next[1]);
 	}
 
 	/**
@@ -311,17 +454,29 @@ public class FindReplace extends JFrame implements ActionListener {
 		if (!found)
 			return; // don't replace if nothing found
 
+		DocumentSearch search = getSearch(editor.textarea.getDocument());
+		if (search == null)
+			return;
+
 		// check to see if the document has wrapped around
 		// otherwise this will cause an infinite loop
 		String sel = editor.textarea.getSelectedText();
-		if (sel.equals(replaceField.getText())) {
+		String replacement;
+		try {
+			replacement = search.getReplacement(sel, replaceField.getText());
+		} catch (RuntimeException re) {
+			// a bad group reference in the replacement
+			countLabel.setText("Invalid replacement: " + re.getMessage());
+			return;
+		}
+		if (sel.equals(replacement)) {
 			found = false;
 			replaceButton.setEnabled(false);
 			replaceFindButton.setEnabled(false);
 			return;
 		}
 
-		editor.textarea.setSelectedText(replaceField.getText());
+		editor.textarea.setSelectedText(replacement);
 		// editor.setSketchModified(true);
 		// editor.sketch.setCurrentModified(true);
 		editor.build.getCode().setModified(true);
@@ -332,16 +487,36 @@ public class FindReplace extends JFrame implements ActionListener {
 	}
 
 	/**
-	 * Replace everything that matches by doing find and replace alternately
-	 * until nothing more found.
+	 * Replace everything that matches in a single pass over the document,
+	 * undone as one edit.
 	 */
 	public void replaceAll() {
+		DocumentSearch search = getSearch(editor.textarea.getDocument());
+		if (search == null)
+			return;
+		cancelCount();
+
+		int replaced = 0;
+		editor.beginCompoundEdit();
+		try {
+			replaced = search.replaceAll(replaceField.getText());
+		} catch (BadLocationException ble) {
+			Base.logger.severe("Could not replace all: " + ble.getMessage());
+		} catch (RuntimeException re) {
+			// a bad group reference in the replacement
+			countLabel.setText("Invalid replacement: " + re.getMessage());
+		} finally {
+			editor.endCompoundEdit();
+		}
+		if (replaced > 0) {
+			editor.build.getCode().setModified(true);
+			countLabel.setText("Replaced " + replaced + (replaced == 1 ? " match" : " matches"));
+		}
+
 		// move to the beginning
 		editor.textarea.select(0, 0);
-
-		do {
-			find(false);
-			replace();
-		} while (found);
+		found = false;
+		replaceButton.setEnabled(false);
+		replaceFindButton.setEnabled(false);
 	}
 }
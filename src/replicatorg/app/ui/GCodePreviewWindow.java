@@ -0,0 +1,379 @@
+package replicatorg.app.ui;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.text.NumberFormat;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+import javax.swing.JCheckBox;
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import net.miginfocom.swing.MigLayout;
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeLayerIndex;
+import replicatorg.app.gcode.LayerToolpath;
+
+/**
+ * Shows the layers of a gcode file from above, a layer or a few at a time,
+ * picked with a slider.  Nothing is simulated: each layer is read from the
+ * file where the layer index says it starts (see LayerToolpath), so any layer
+ * of even a very long build comes up at once.
+ *
+ * Each layer is drawn once into an image the size of the view, on a
+ * background thread, and the images of the most recently shown layers are
+ * kept (up to the preview.cachedlayers preference), so moving the slider back
+ * and forth only copies images.  Moves shorter than a pixel at the current
+ * zoom are merged into the next move rather than drawn.  Zooming, panning or
+ * resizing the window redraws the layers shown.
+ */
+public class GCodePreviewWindow extends JFrame {
+	private static final Color EXTRUDE_COLOR = new Color(0x1f, 0x4e, 0x9c);
+	private static final Color TRAVEL_COLOR = new Color(0xc0, 0x40, 0x40);
+	private static final Color BOUNDS_COLOR = new Color(0xe0, 0xe0, 0xe0);
+	/** How much of the layers below the top one show through */
+	private static final float BELOW_ALPHA = 0.25f;
+
+	private final File gcode;
+	private final GCodeLayerIndex index;
+	private final int cachedLayers;
+	private final JSlider slider;
+	private final JSpinner shownSpinner;
+	private final JCheckBox travelBox;
+	private final JLabel layerLabel = new JLabel();
+	private final LayerView view;
+
+	public GCodePreviewWindow(File gcode, GCodeLayerIndex index) {
+		super("Preview: " + gcode.getName());
+		this.gcode = gcode;
+		this.index = index;
+		cachedLayers = Math.max(1, Base.preferences.getInt("preview.cachedlayers", 32));
+		int layers = Math.max(1, index.getLayerCount());
+
+		view = new LayerView();
+		slider = new JSlider(JSlider.VERTICAL, 1, layers, layers);
+		slider.setEnabled(index.getLayerCount() > 0);
+		shownSpinner = new JSpinner(new SpinnerNumberModel(1, 1, cachedLayers, 1));
+		travelBox = new JCheckBox("Show travel moves");
+
+		ChangeListener shown = new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				updateLabel();
+				view.repaint();
+			}
+		};
+		slider.addChangeListener(shown);
+		shownSpinner.addChangeListener(shown);
+		travelBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				view.invalidateImages();
+			}
+		});
+
+		JPanel panel = new JPanel(new MigLayout("fill"));
+		panel.add(view, "grow, push");
+		panel.add(slider, "growy, wrap");
+		panel.add(layerLabel, "split 4");
+		panel.add(new JLabel("Layers shown:"), "gapleft push");
+		panel.add(shownSpinner);
+		panel.add(travelBox, "wrap");
+		add(panel);
+		updateLabel();
+
+		setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+		addWindowListener(new WindowAdapter() {
+			public void windowClosed(WindowEvent e) {
+				view.renderer.shutdownNow();
+			}
+		});
+		setSize(640, 640);
+		setLocationRelativeTo(null);
+	}
+
+	/** @return the top layer shown, counting from 0, or -1 if there are no layers */
+	private int getTopLayer() {
+		return index.getLayerCount() > 0 ? slider.getValue() - 1 : -1;
+	}
+
+	/** @return the bottom layer shown */
+	private int getBottomLayer() {
+		int shown = ((Number)shownSpinner.getValue()).intValue();
+		return Math.max(0, getTopLayer() - shown + 1);
+	}
+
+	private void updateLabel() {
+		int top = getTopLayer();
+		if (top < 0) {
+			layerLabel.setText("No layers found in " + gcode.getName());
+			return;
+		}
+		NumberFormat nf = Base.getGcodeFormat();
+		GCodeLayerIndex.Entry entry = index.getLayer(top);
+		layerLabel.setText("Layer " + (top + 1) + " of " + index.getLayerCount() +
+				", Z " + nf.format(entry.z) + " mm, line " + (entry.line + 1));
+	}
+
+	/**
+	 * Draws the layers picked by the slider, from images it has drawn before
+	 * where it can.
+	 */
+	private class LayerView extends JComponent {
+		/** Pixels per mm, and the point in mm at the middle of the view; 0 scale until fitted */
+		private double scale = 0;
+		private double centerX, centerY;
+		/** Bumped whenever the images drawn so far go out of date */
+		private volatile int generation = 0;
+		/** The layers being shown, for the renderer to pass over ones that no longer are */
+		private volatile int wantedFrom = 0, wantedTo = -1;
+		/** How far the view has been dragged, in pixels, since the images were drawn */
+		private int dragX = 0, dragY = 0;
+
+		/** Drawn layers, least recently used first; only touched on the event thread */
+		private final Map<Integer,BufferedImage> images =
+			new LinkedHashMap<Integer,BufferedImage>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<Integer,BufferedImage> eldest) {
+					return size() > cachedLayers;
+				}
+			};
+		/** Layers waiting to be drawn; only touched on the event thread */
+		private final Set<Integer> pending = new HashSet<Integer>();
+		/** Layers read from the file; only touched by the renderer */
+		private final Map<Integer,LayerToolpath> toolpaths =
+			new LinkedHashMap<Integer,LayerToolpath>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<Integer,LayerToolpath> eldest) {
+					return size() > cachedLayers * 2;
+				}
+			};
+
+		final ExecutorService renderer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Preview renderer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		LayerView() {
+			setOpaque(true);
+			setBackground(Color.white);
+			MouseAdapter mouse = new MouseAdapter() {
+				private int pressX, pressY;
+				public void mousePressed(MouseEvent e) {
+					pressX = e.getX() - dragX;
+					pressY = e.getY() - dragY;
+				}
+				public void mouseDragged(MouseEvent e) {
+					dragX = e.getX() - pressX;
+					dragY = e.getY() - pressY;
+					repaint();
+				}
+				public void mouseReleased(MouseEvent e) {
+					if (scale > 0 && (dragX != 0 || dragY != 0)) {
+						centerX -= dragX / scale;
+						centerY += dragY / scale;
+						invalidateImages();
+					}
+				}
+				public void mouseWheelMoved(MouseWheelEvent e) {
+					if (scale == 0) { return; }
+					// Zoom about the point under the mouse
+					double factor = Math.pow(1.25, -e.getWheelRotation());
+					double mx = centerX + (e.getX() - getWidth() / 2) / scale;
+					double my = centerY - (e.getY() - getHeight() / 2) / scale;
+					scale *= factor;
+					centerX = mx - (mx - centerX) / factor;
+					centerY = my - (my - centerY) / factor;
+					invalidateImages();
+				}
+			};
+			addMouseListener(mouse);
+			addMouseMotionListener(mouse);
+			addMouseWheelListener(mouse);
+			addComponentListener(new ComponentAdapter() {
+				public void componentResized(ComponentEvent e) {
+					invalidateImages();
+				}
+			});
+		}
+
+		/** Throw away the drawn layers and draw the ones shown again. */
+		void invalidateImages() {
+			generation++;
+			images.clear();
+			dragX = dragY = 0;
+			repaint();
+		}
+
+		/** Fit the area the file extrudes over to the view. */
+		private void fit() {
+			double minX = Double.NaN, minY = Double.NaN, maxX = Double.NaN, maxY = Double.NaN;
+			for (int i = 0; i < index.getLayerCount(); i++) {
+				GCodeLayerIndex.Entry entry = index.getLayer(i);
+				if (Double.isNaN(entry.minX)) { continue; }
+				if (!(entry.minX >= minX)) { minX = entry.minX; }
+				if (!(entry.minY >= minY)) { minY = entry.minY; }
+				if (!(entry.maxX <= maxX)) { maxX = entry.maxX; }
+				if (!(entry.maxY <= maxY)) { maxY = entry.maxY; }
+			}
+			if (Double.isNaN(minX)) {
+				minX = minY = -50;
+				maxX = maxY = 50;
+			}
+			double width = Math.max(maxX - minX, 1), height = Math.max(maxY - minY, 1);
+			scale = 0.9 * Math.min(getWidth() / width, getHeight() / height);
+			centerX = (minX + maxX) / 2;
+			centerY = (minY + maxY) / 2;
+		}
+
+		protected void paintComponent(Graphics g) {
+			g.setColor(getBackground());
+			g.fillRect(0, 0, getWidth(), getHeight());
+			int top = getTopLayer();
+			if (top < 0 || getWidth() <= 0 || getHeight() <= 0) { return; }
+			if (scale == 0) { fit(); }
+
+			Graphics2D g2 = (Graphics2D)g;
+			int bottom = getBottomLayer();
+			wantedFrom = bottom;
+			wantedTo = top;
+			GCodeLayerIndex.Entry entry = index.getLayer(top);
+			if (!Double.isNaN(entry.minX)) {
+				// Where the top layer is, while its image is being drawn
+				g2.setColor(BOUNDS_COLOR);
+				int x0 = toX(entry.minX, getWidth(), scale, centerX) + dragX;
+				int y0 = toY(entry.maxY, getHeight(), scale, centerY) + dragY;
+				int x1 = toX(entry.maxX, getWidth(), scale, centerX) + dragX;
+				int y1 = toY(entry.minY, getHeight(), scale, centerY) + dragY;
+				g2.drawRect(x0, y0, x1 - x0, y1 - y0);
+			}
+			Composite opaque = g2.getComposite();
+			Composite below = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, BELOW_ALPHA);
+			for (int layer = bottom; layer <= top; layer++) {
+				BufferedImage image = images.get(layer);
+				if (image == null) {
+					request(layer);
+					continue;
+				}
+				g2.setComposite(layer < top ? below : opaque);
+				g2.drawImage(image, dragX, dragY, null);
+			}
+			g2.setComposite(opaque);
+		}
+
+		/** Draw a layer on the renderer, unless it is already waiting to be. */
+		private void request(final int layer) {
+			if (!pending.add(layer)) { return; }
+			final int drawnFor = generation;
+			final int width = getWidth(), height = getHeight();
+			final double s = scale, cx = centerX, cy = centerY;
+			final boolean travel = travelBox.isSelected();
+			renderer.execute(new Runnable() {
+				public void run() {
+					BufferedImage image = null;
+					boolean failed = false;
+					// Layers scrolled past while waiting aren't drawn
+					if (drawnFor == generation && layer >= wantedFrom && layer <= wantedTo) {
+						try {
+							image = render(layer, width, height, s, cx, cy, travel);
+						} catch (IOException ioe) {
+							Base.logger.log(Level.WARNING, "Could not read layer " + (layer + 1) +
+									" of " + gcode.getName(), ioe);
+							failed = true;
+						}
+					}
+					final BufferedImage drawn = image;
+					final boolean retry = !failed;
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							pending.remove(layer);
+							if (drawn != null && drawnFor == generation) {
+								images.put(layer, drawn);
+								repaint();
+							} else if (retry) {
+								// Asked for again if it is wanted as things are now
+								repaint();
+							}
+						}
+					});
+				}
+			});
+		}
+
+		/** Draw a layer into an image the size of the view; runs on the renderer. */
+		private BufferedImage render(int layer, int width, int height, double s,
+				double cx, double cy, boolean travel) throws IOException {
+			LayerToolpath path = toolpaths.get(layer);
+			if (path == null) {
+				path = LayerToolpath.read(gcode, index, layer);
+				toolpaths.put(layer, path);
+			}
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = image.createGraphics();
+			try {
+				g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+				int lastX = toX(path.getX(0), width, s, cx);
+				int lastY = toY(path.getY(0), height, s, cy);
+				boolean extruding = false;
+				g.setColor(TRAVEL_COLOR);
+				for (int i = 1; i < path.getPointCount(); i++) {
+					int x = toX(path.getX(i), width, s, cx);
+					int y = toY(path.getY(i), height, s, cy);
+					// Moves within a pixel go into the next one
+					if (x == lastX && y == lastY) { continue; }
+					if (path.isExtruding(i) != extruding) {
+						extruding = path.isExtruding(i);
+						g.setColor(extruding ? EXTRUDE_COLOR : TRAVEL_COLOR);
+					}
+					if (extruding || travel) {
+						g.drawLine(lastX, lastY, x, y);
+					}
+					lastX = x;
+					lastY = y;
+				}
+			} finally {
+				g.dispose();
+			}
+			return image;
+		}
+	}
+
+	private static int toX(double x, int width, double scale, double centerX) {
+		return (int)Math.round(width / 2 + (x - centerX) * scale);
+	}
+
+	private static int toY(double y, int height, double scale, double centerY) {
+		return (int)Math.round(height / 2 - (y - centerY) * scale);
+	}
+}
@@ -0,0 +1,303 @@
+package replicatorg.app.ui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.WindowConstants;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.table.AbstractTableModel;
+
+import net.miginfocom.swing.MigLayout;
+import replicatorg.app.Base;
+import replicatorg.app.util.serial.Name;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.machine.FarmJob;
+import replicatorg.machine.FarmMachine;
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.MachineFarm;
+import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineState;
+
+/**
+ * A compact view of all the machines of the print farm and its job queue,
+ * one row per machine and one per job.  The tables are redrawn from a timer
+ * twice a second rather than on every event, so a farm of busy machines costs
+ * the event thread the same as an idle one.
+ */
+public class MachineFarmWindow extends JFrame implements MachineFarm.Listener {
+	private static final int REFRESH_MS = 500;
+
+	private final MachineFarm farm;
+	private final MachineTableModel machineModel = new MachineTableModel();
+	private final JobTableModel jobModel = new JobTableModel();
+	private final JTable machineTable = new JTable(machineModel);
+	private final JTable jobTable = new JTable(jobModel);
+	private final Timer refresh;
+	private volatile boolean changed = true;
+
+	public MachineFarmWindow(MachineFarm farm) {
+		super("Print Farm");
+		this.farm = farm;
+
+		JPanel panel = new JPanel(new MigLayout("fill"));
+		panel.add(new JLabel("Machines"), "wrap");
+		panel.add(new JScrollPane(machineTable), "grow, push, wrap");
+		panel.add(newButton("Add Machine...", new ActionListener() {
+			public void actionPerformed(ActionEvent e) { handleAddMachine(); }
+		}), "split 5");
+		panel.add(newButton("Remove", new ActionListener() {
+			public void actionPerformed(ActionEvent e) { handleRemoveMachines(); }
+		}));
+		panel.add(newButton("Connect", new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				for (FarmMachine m : getSelectedMachines()) { m.connect(); }
+			}
+		}), "gapleft 20");
+		panel.add(newButton("Disconnect", new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				for (FarmMachine m : getSelectedMachines()) {
+					if (m.getJob() == null) { m.disconnect(); }
+				}
+			}
+		}));
+		panel.add(newButton("Stop", new ActionListener() {
+			public void actionPerformed(ActionEvent e) { handleStop(); }
+		}), "gapleft 20, wrap");
+
+		panel.add(new JLabel("Jobs"), "gaptop 10, wrap");
+		panel.add(new JScrollPane(jobTable), "grow, push, wrap");
+		panel.add(newButton("Add Jobs...", new ActionListener() {
+			public void actionPerformed(ActionEvent e) { handleAddJobs(); }
+		}), "split 3");
+		panel.add(newButton("Remove", new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				for (int row : jobTable.getSelectedRows()) {
+					MachineFarmWindow.this.farm.removeJob(jobModel.jobs.get(row));
+				}
+			}
+		}));
+		panel.add(newButton("Clear Finished", new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				MachineFarmWindow.this.farm.clearFinished();
+			}
+		}));
+		add(panel);
+
+		refresh = new Timer(REFRESH_MS, new ActionListener() {
+			public void actionPerformed(ActionEvent e) { refresh(); }
+		});
+		farm.addListener(this);
+		refresh();
+		refresh.start();
+
+		setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+		addWindowListener(new WindowAdapter() {
+			public void windowClosed(WindowEvent e) {
+				refresh.stop();
+				MachineFarmWindow.this.farm.removeListener(MachineFarmWindow.this);
+			}
+		});
+		setSize(760, 560);
+		setLocationRelativeTo(null);
+	}
+
+	private static JButton newButton(String text, ActionListener l) {
+		JButton b = new JButton(text);
+		b.addActionListener(l);
+		return b;
+	}
+
+	public void farmChanged() {
+		changed = true;
+	}
+
+	/**
+	 * Redraw the tables.  If machines or jobs came or went, take a new list of
+	 * them, keeping the selection.
+	 */
+	private void refresh() {
+		if (changed) {
+			changed = false;
+			List<FarmMachine> selectedMachines = getSelectedMachines();
+			List<FarmJob> selectedJobs = new ArrayList<FarmJob>();
+			for (int row : jobTable.getSelectedRows()) { selectedJobs.add(jobModel.jobs.get(row)); }
+
+			machineModel.machines = new ArrayList<FarmMachine>(farm.getMachines());
+			jobModel.jobs = new ArrayList<FarmJob>(farm.getJobs());
+			machineModel.fireTableDataChanged();
+			jobModel.fireTableDataChanged();
+
+			for (FarmMachine m : selectedMachines) {
+				int row = machineModel.machines.indexOf(m);
+				if (row >= 0) { machineTable.addRowSelectionInterval(row, row); }
+			}
+			for (FarmJob job : selectedJobs) {
+				int row = jobModel.jobs.indexOf(job);
+				if (row >= 0) { jobTable.addRowSelectionInterval(row, row); }
+			}
+		} else {
+			if (machineModel.getRowCount() > 0) {
+				machineModel.fireTableRowsUpdated(0, machineModel.getRowCount() - 1);
+			}
+			if (jobModel.getRowCount() > 0) {
+				jobModel.fireTableRowsUpdated(0, jobModel.getRowCount() - 1);
+			}
+		}
+	}
+
+	private List<FarmMachine> getSelectedMachines() {
+		List<FarmMachine> selected = new ArrayList<FarmMachine>();
+		for (int row : machineTable.getSelectedRows()) {
+			selected.add(machineModel.machines.get(row));
+		}
+		return selected;
+	}
+
+	private void handleAddMachine() {
+		Vector<String> types = MachineFactory.getMachineNames();
+		JComboBox typeBox = new JComboBox(types);
+		typeBox.setSelectedItem(Base.preferences.get("machine.name", null));
+		Vector<String> ports = new Vector<String>();
+		for (Name name : Serial.scanSerialNames()) {
+			boolean used = false;
+			for (FarmMachine m : farm.getMachines()) {
+				if (m.getPort().equals(name.getName())) { used = true; }
+			}
+			if (!used) { ports.add(name.getName()); }
+		}
+		JComboBox portBox = new JComboBox(ports);
+		portBox.setEditable(true);
+
+		JPanel panel = new JPanel(new MigLayout());
+		panel.add(new JLabel("Machine type:"));
+		panel.add(typeBox, "growx, wrap");
+		panel.add(new JLabel("Serial port:"));
+		panel.add(portBox, "growx, wrap");
+		int result = JOptionPane.showConfirmDialog(this, panel, "Add Machine",
+				JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		Object type = typeBox.getSelectedItem();
+		Object port = portBox.getSelectedItem();
+		if (result != JOptionPane.OK_OPTION || type == null || port == null || port.toString().trim().length() == 0) {
+			return;
+		}
+		if (farm.addMachine(type.toString(), port.toString().trim()) == null) {
+			JOptionPane.showMessageDialog(this, "Could not load the machine type " + type + ".",
+					"Add Machine", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
+	private void handleRemoveMachines() {
+		List<FarmMachine> selected = getSelectedMachines();
+		if (selected.isEmpty()) { return; }
+		for (FarmMachine m : selected) {
+			if (m.getJob() != null) {
+				int result = JOptionPane.showConfirmDialog(this,
+						"Some of these machines are building. Stop them and remove them?",
+						"Remove Machines", JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE);
+				if (result != JOptionPane.OK_OPTION) { return; }
+				break;
+			}
+		}
+		for (FarmMachine m : selected) {
+			farm.removeMachine(m);
+		}
+	}
+
+	private void handleStop() {
+		List<FarmMachine> selected = getSelectedMachines();
+		if (selected.isEmpty()) { return; }
+		int result = JOptionPane.showConfirmDialog(this,
+				"Stop the builds on the selected machines?",
+				"Stop", JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE);
+		if (result != JOptionPane.OK_OPTION) { return; }
+		for (FarmMachine m : selected) {
+			m.stop();
+		}
+	}
+
+	private void handleAddJobs() {
+		JFileChooser chooser = new JFileChooser(Base.preferences.get("farm.lastDirectory", null));
+		chooser.setMultiSelectionEnabled(true);
+		chooser.setFileFilter(new FileNameExtensionFilter("GCode files", "gcode", "ngc"));
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) { return; }
+		File[] files = chooser.getSelectedFiles();
+		if (files.length > 0 && files[0].getParentFile() != null) {
+			Base.preferences.put("farm.lastDirectory", files[0].getParentFile().getPath());
+		}
+		for (File f : files) {
+			farm.addJob(f);
+		}
+	}
+
+	private static class MachineTableModel extends AbstractTableModel {
+		private final String[] columns = { "Machine", "Port", "State", "Job", "Progress", "Time left" };
+		List<FarmMachine> machines = new ArrayList<FarmMachine>();
+
+		public int getRowCount() { return machines.size(); }
+		public int getColumnCount() { return columns.length; }
+		public String getColumnName(int column) { return columns[column]; }
+
+		public Object getValueAt(int row, int column) {
+			FarmMachine m = machines.get(row);
+			FarmJob job = m.getJob();
+			MachineProgressEvent progress = m.getProgress();
+			switch (column) {
+			case 0: return m.getName();
+			case 1: return m.getPort();
+			case 2:
+				// Say why a machine is in error or couldn't connect
+				MachineState.State state = m.getState().getState();
+				String message = m.getMessage();
+				boolean why = state == MachineState.State.ERROR || state == MachineState.State.NOT_ATTACHED;
+				return why && message != null ? state + ": " + message : state.toString();
+			case 3: return job != null ? job.getFile().getName() : "";
+			case 4:
+				if (progress == null || progress.getTotalLines() == 0) { return ""; }
+				return String.format("%3.1f%%", 100.0 * progress.getLines() / progress.getTotalLines());
+			case 5:
+				// No estimate until it's been worked out
+				if (progress == null || progress.getTotalLines() == 0 || progress.getEstimated() <= 0) { return ""; }
+				double proportion = (double)progress.getLines() / progress.getTotalLines();
+				return EstimationDriver.getBuildTimeString(progress.getEstimated() * (1.0 - proportion), true);
+			}
+			return null;
+		}
+	}
+
+	private static class JobTableModel extends AbstractTableModel {
+		private final String[] columns = { "File", "Status", "Machine" };
+		List<FarmJob> jobs = new ArrayList<FarmJob>();
+
+		public int getRowCount() { return jobs.size(); }
+		public int getColumnCount() { return columns.length; }
+		public String getColumnName(int column) { return columns[column]; }
+
+		public Object getValueAt(int row, int column) {
+			FarmJob job = jobs.get(row);
+			switch (column) {
+			case 0: return job.getFile().getName();
+			case 1:
+				return job.getMessage() != null ? job.getStatus() + ": " + job.getMessage() : job.getStatus();
+			case 2: return job.getMachineName() != null ? job.getMachineName() : "";
+			}
+			return null;
+		}
+	}
+}
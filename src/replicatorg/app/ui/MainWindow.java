@@ -58,6 +58,7 @@ import java.awt.print.PageFormat;
 import java.awt.print.PrinterJob;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.text.AttributedCharacterIterator;
 import java.text.AttributedString;
@@ -68,6 +69,8 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.prefs.BackingStoreException;
 import java.util.regex.Matcher;
@@ -87,18 +90,22 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
+import javax.swing.JRadioButton;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
+import javax.swing.JSpinner;
 import javax.swing.JSplitPane;
 import javax.swing.KeyStroke;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import javax.swing.event.UndoableEditEvent;
 import javax.swing.event.UndoableEditListener;
 import javax.swing.filechooser.FileFilter;
-import javax.swing.text.BadLocationException;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import javax.swing.undo.CompoundEdit;
@@ -109,12 +116,15 @@ import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
 import replicatorg.app.Base.InitialOpenBehavior;
 import replicatorg.app.MRUList;
+import replicatorg.app.Startup;
 import replicatorg.app.gcode.GCodeEnumeration;
+import replicatorg.app.gcode.GCodeFileSource;
+import replicatorg.app.gcode.GCodeLayerIndex;
 import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.app.gcode.ResumeState;
 import replicatorg.app.syntax.JEditTextArea;
 import replicatorg.app.syntax.PdeKeywords;
 import replicatorg.app.syntax.PdeTextAreaDefaults;
-import replicatorg.app.syntax.SyntaxDocument;
 import replicatorg.app.syntax.TextAreaPainter;
 import replicatorg.app.ui.controlpanel.ControlPanelWindow;
 import replicatorg.app.ui.modeling.EditingModel;
@@ -138,13 +148,16 @@ import replicatorg.machine.MachineProgressEvent;
 import replicatorg.machine.MachineState;
 import replicatorg.machine.MachineStateChangeEvent;
 import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.machine.builder.BuildCheckpoint;
 import replicatorg.machine.model.BuildVolume;
+import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.Build;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildElement;
 import replicatorg.model.BuildModel;
+import replicatorg.model.GCodeSource;
 import replicatorg.model.JEditTextAreaSource;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorEvent;
@@ -233,6 +246,7 @@ ToolpathGenerator.GeneratorListener
 	JMenuItem pauseItem;
 	JMenuItem controlPanelItem;
 	JMenuItem buildMenuItem;
+	JMenuItem resumeMenuItem;
 	JMenuItem profilesMenuItem;
 	JMenuItem dualstrusionItem;
 	JMenuItem combineItem;
@@ -255,6 +269,7 @@ ToolpathGenerator.GeneratorListener
 	private boolean preheatMachine = false;
 	
 	PreferencesWindow preferences;
+	MachineFarmWindow farmWindow;
 
 	// undo fellers
 	JMenuItem undoItem, redoItem;
@@ -660,6 +675,13 @@ ToolpathGenerator.GeneratorListener
 	private JMenu serialMenu = null;
 
 	private void reloadSerialMenu() {
+		if (serialMenu == null) 
+			return;
+
+		reloadSerialMenu(Serial.scanSerialNames());
+	}
+
+	private void reloadSerialMenu(Vector<Name> names) {
 		
 		if (serialMenu == null) 
 			return;
@@ -672,7 +694,6 @@ ToolpathGenerator.GeneratorListener
 
 		currentName = Base.preferences.get("serial.last_selected", null);
 
-		Vector<Name> names = Serial.scanSerialNames();
 		Collections.sort(names);
 
 		// Filter /dev/cu. devices on OS X, since they work the same as .tty for our purposes.
@@ -1037,6 +1058,14 @@ ToolpathGenerator.GeneratorListener
 		item.setEnabled(false);
 		menu.add(item);
 
+		item = newJMenuItem("Preview Layers...", 'L', true);
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handlePreview();
+			}
+		});
+		menu.add(item);
+
 		generateItem = newJMenuItem("Generate", 'G', true);
 		generateItem.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -1053,6 +1082,14 @@ ToolpathGenerator.GeneratorListener
 		});
 		menu.add(buildMenuItem);
 
+		resumeMenuItem = new JMenuItem("Resume Build...");
+		resumeMenuItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handleResume();
+			}
+		});
+		menu.add(resumeMenuItem);
+
 		pauseItem = newJMenuItem("Pause", 'E');
 		pauseItem.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -1114,14 +1151,8 @@ ToolpathGenerator.GeneratorListener
 				code.changeToolhead(ToolheadAlias.LEFT);
 				code.writeToFile(build.getCode().file);
 				
-				//TODO: is this redundant?
+				// Reopening reads the changed file
 				handleOpenFile(build.getCode().file);
-				try {
-					build.getCode().load();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
 			}	
 		});
 		JMenuItem right = new JMenuItem("to use T0 (aka Right/B)");
@@ -1135,14 +1166,8 @@ ToolpathGenerator.GeneratorListener
 				code.changeToolhead(ToolheadAlias.RIGHT);
 				code.writeToFile(build.getCode().file);
 				
-				//TODO: is this redundant?
+				// Reopening reads the changed file
 				handleOpenFile(build.getCode().file);
-				try {
-					build.getCode().load();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
 
 			}	
 		});
@@ -1159,6 +1184,20 @@ ToolpathGenerator.GeneratorListener
 		});
 		menu.add(dualstrusionItem);
 		setDualStrusionGUI(building);
+		item = new JMenuItem("Add Model to Plate...");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handleAddToPlate();
+			}
+		});
+		menu.add(item);
+		item = new JMenuItem("Arrange Plate");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handleArrangePlate();
+			}
+		});
+		menu.add(item);
 /*
 		combineItem = new JMenuItem("Row Combine (experimental)");
 		combineItem.addActionListener(new ActionListener(){
@@ -1222,14 +1261,45 @@ ToolpathGenerator.GeneratorListener
 		JMenuItem item;
 		JMenu menu = new JMenu("Machine");
 
+		// The machine types and serial ports are filled in the first time the
+		// menu opens, so that startup doesn't wait for them.  The ports are
+		// scanned alongside the rest of startup (see Startup).
 		machineMenu = new JMenu("Machine Type (Driver)");
-		populateMachineMenu();
 		menu.add(machineMenu);
 
 		serialMenu = new JMenu("Connection (Serial Port)");
-		reloadSerialMenu();
 		menu.add(serialMenu);
 
+		final Future<Vector<Name>> startupPorts = Startup.background("serial port scan",
+				new Callable<Vector<Name>>() {
+			public Vector<Name> call() {
+				return Serial.scanSerialNames();
+			}
+		});
+		menu.addMenuListener(new MenuListener() {
+			public void menuSelected(MenuEvent e) {
+				boolean filled = false;
+				if (machineMenuListener == null) {
+					populateMachineMenu();
+					filled = true;
+				}
+				if (serialMenuListener == null) {
+					Vector<Name> names = Startup.get(startupPorts);
+					if (names != null) {
+						reloadSerialMenu(names);
+					} else {
+						reloadSerialMenu();
+					}
+					filled = true;
+				}
+				if (filled) {
+					setMachineMenusEnabled(!machineLoader.isConnected());
+				}
+			}
+			public void menuDeselected(MenuEvent e) {}
+			public void menuCanceled(MenuEvent e) {}
+		});
+
 		controlPanelItem = newJMenuItem("Control Panel", 'J');
 //		controlPanelItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_J,ActionEvent.CTRL_MASK));
 		controlPanelItem.addActionListener(new ActionListener() {
@@ -1283,6 +1353,14 @@ ToolpathGenerator.GeneratorListener
 
 		infoPanelItem.setVisible(true);
 		menu.add(infoPanelItem);
+
+		item = new JMenuItem("Print Farm...");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				handleFarm();
+			}
+		});
+		menu.add(item);
 		
 		preheatItem = new JMenuItem("preheat Not Set");
 		preheatItem.addActionListener(new ActionListener(){
@@ -1499,6 +1577,24 @@ ToolpathGenerator.GeneratorListener
 		}
 	}
 	
+	/** Enable or disable the choices in the machine type and serial port menus. */
+	private void setMachineMenusEnabled(boolean enabled) {
+		for (int itemIndex = 0; itemIndex < serialMenu.getItemCount(); itemIndex++) { 
+			JMenuItem item = serialMenu.getItem(itemIndex);
+			// The ignore case is a little hacky, and is based on code in reloadSerialMenu()
+			if  (item != null && !("No serial ports detected".equals(item.getText()))) {
+				item.setEnabled(enabled);
+			}
+		}
+
+		for (int itemIndex = 0; itemIndex < machineMenu.getItemCount(); itemIndex++) { 
+			JMenuItem item = machineMenu.getItem(itemIndex);
+			if  (item!= null) {
+				item.setEnabled(enabled);
+			}
+		}
+	}
+
 	/** Function to generate a list of
 	 * supported machines to be displayed in the Driver menu item.
 	 */
@@ -1938,18 +2034,18 @@ ToolpathGenerator.GeneratorListener
 	 */
 	public void setCode(BuildCode code) {
 		if (code == null) return;
-		if (code.document == null) { // this document not yet inited
-			code.document = new SyntaxDocument();
-
-			// turn on syntax highlighting
-			code.document.setTokenMarker(new PdeKeywords());
-
-			// insert the program text into the document object
+		if (!code.isLoaded()) {
+			// ordinarily loaded in the background by loadCode() first
 			try {
-				code.document.insertString(0, code.program, null);
-			} catch (BadLocationException bl) {
-				bl.printStackTrace();
+				code.load();
+			} catch (IOException ioe) {
+				Base.logger.log(Level.SEVERE, "Could not open " + code.file.getName(), ioe);
+				return;
 			}
+		}
+		if (code.document.getTokenMarker() == null) { // this document not yet inited
+			// turn on syntax highlighting
+			code.document.setTokenMarker(new PdeKeywords());
 
 			final UndoManager undo = code.getUndoManager();
 			// connect the undo listener to the editor
@@ -1973,6 +2069,36 @@ ToolpathGenerator.GeneratorListener
 		textarea.requestFocus(); // get the caret blinking
 	}
 
+	/**
+	 * Read the code of a build into its document on a background thread,
+	 * then carry on on the event thread.  Code that is already loaded
+	 * carries on at once.
+	 * @param then what to do once the code is loaded
+	 * @param otherwise what to do if it couldn't be, or the user cancelled
+	 */
+	private void loadCode(final BuildCode code, final Runnable then, final Runnable otherwise) {
+		if (code == null || code.isLoaded()) {
+			then.run();
+			return;
+		}
+		new FileTask(this, "Opening " + code.file.getName()) {
+			protected void work() throws IOException {
+				code.load(this);
+			}
+			protected void succeeded() {
+				then.run();
+			}
+			protected void failed(IOException ioe) {
+				if (ioe instanceof InterruptedIOException) {
+					Base.logger.info(ioe.getMessage());
+				} else {
+					Base.logger.log(Level.SEVERE, "Could not open " + code.file.getName(), ioe);
+				}
+				if (otherwise != null) { otherwise.run(); }
+			}
+		}.start();
+	}
+
 	public void setModel(BuildModel model) {
 		if (model != null) {
 			getPreviewPanel().setModel(model);
@@ -2025,6 +2151,49 @@ ToolpathGenerator.GeneratorListener
 		simulationThread.start();
 	}
 
+	/**
+	 * Show the layers of the saved gcode in a preview window.  Building the
+	 * layer index, if there isn't one yet, is the only pass over the file.
+	 */
+	public void handlePreview() {
+		final BuildCode code = build.getCode();
+		if (code == null || code.file == null || code.isModified()) {
+			JOptionPane.showMessageDialog(this, "Please save the gcode before previewing it.",
+					"Preview Layers", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		message("Finding the layers of " + code.file.getName() + "...");
+		Thread indexer = new Thread("Preview index") {
+			public void run() {
+				try {
+					final GCodeLayerIndex index = code.getLayerIndex();
+					if (index == null) { return; }
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							new GCodePreviewWindow(code.file, index).setVisible(true);
+						}
+					});
+				} catch (IOException ioe) {
+					Base.logger.log(Level.SEVERE, "Could not read " + code.file.getName(), ioe);
+				}
+			}
+		};
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+
+	/**
+	 * Show the print farm, which drives machines of its own alongside the
+	 * editor's machine.
+	 */
+	public void handleFarm() {
+		if (farmWindow == null || !farmWindow.isDisplayable()) {
+			farmWindow = new MachineFarmWindow(Base.getMachineFarm());
+		}
+		farmWindow.setVisible(true);
+		farmWindow.toFront();
+	}
+
 	public void simulationOver() {
 		message("Done simulating.");
 		simulating = false;
@@ -2104,7 +2273,152 @@ ToolpathGenerator.GeneratorListener
 		}
 	}
 	
+	/** Whether the layers of the code are being found, before a build of it starts */
+	private boolean indexingForBuild = false;
+
+	/**
+	 * Build the code: read straight from its file if that is saved and up to
+	 * date, so that a build that's cut short can be resumed, or from the
+	 * editor otherwise.  Reading it from its file needs its layer index, and
+	 * the first time that takes a pass over the file, so the index is found
+	 * in the background and the build starts once it's there.
+	 */
 	public void doBuild()
+	{
+		final BuildCode code = build.getCode();
+		if (code == null || code.file == null || code.isModified()) {
+			doBuild(new JEditTextAreaSource(textarea));
+			return;
+		}
+		if (indexingForBuild)
+			return;
+		indexingForBuild = true;
+		new FileTask(this, "Finding the layers of " + code.file.getName()) {
+			GCodeLayerIndex index;
+			protected void work() throws IOException {
+				index = code.getLayerIndex(this);
+			}
+			protected void succeeded() {
+				indexingForBuild = false;
+				if (building || simulating)
+					return;
+				if (index != null && code == build.getCode() && !code.isModified()) {
+					doBuild(new GCodeFileSource(code.file, index));
+				} else {
+					doBuild(new JEditTextAreaSource(textarea));
+				}
+			}
+			protected void failed(IOException ioe) {
+				indexingForBuild = false;
+				if (ioe instanceof InterruptedIOException) {
+					// Cancelled from the progress monitor; so is the build
+					Base.logger.info(ioe.getMessage());
+					return;
+				}
+				Base.logger.log(Level.FINE, "Could not index " + code.file.getName(), ioe);
+				if (!building && !simulating)
+					doBuild(new JEditTextAreaSource(textarea));
+			}
+		}.start();
+	}
+
+	/**
+	 * Resume a build of the current gcode from a layer or line that the user
+	 * picks, by default the layer an unfinished build of it last reached.
+	 */
+	public void handleResume() {
+		if (building || simulating)
+			return;
+		if (!machineLoader.isLoaded() || !machineLoader.isConnected()) {
+			Base.logger.severe("Cannot resume a build, not connected to a machine!");
+			return;
+		}
+		final BuildCode code = build.getCode();
+		if (code == null || code.file == null || code.isModified()) {
+			JOptionPane.showMessageDialog(this, "Please save the gcode before resuming a build of it.",
+					"Resume Build", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		new FileTask(this, "Finding the layers of " + code.file.getName()) {
+			GCodeLayerIndex index;
+			protected void work() throws IOException {
+				index = code.getLayerIndex(this);
+			}
+			protected void succeeded() {
+				if (index != null && index.getLineCount() > 0 && !building && !simulating)
+					showResumeDialog(code, index);
+			}
+			protected void failed(IOException ioe) {
+				if (ioe instanceof InterruptedIOException) {
+					Base.logger.info(ioe.getMessage());
+				} else {
+					Base.logger.log(Level.SEVERE, "Could not read " + code.file.getName(), ioe);
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Ask which layer or line to resume a build from, and start it there.
+	 */
+	private void showResumeDialog(final BuildCode code, final GCodeLayerIndex index) {
+		int lastLine = BuildCheckpoint.getLastLine(code.file);
+		int layers = index.getLayerCount();
+		int suggestedLayer = lastLine >= 0 ? Math.max(0, index.findLayerForLine(lastLine)) : 0;
+		JRadioButton byLayer = new JRadioButton("Start of layer", layers > 0);
+		JRadioButton byLine = new JRadioButton("Line", layers == 0);
+		ButtonGroup group = new ButtonGroup();
+		group.add(byLayer);
+		group.add(byLine);
+		byLayer.setEnabled(layers > 0);
+		JSpinner layerSpinner = new JSpinner(new SpinnerNumberModel(suggestedLayer + 1, 1, Math.max(1, layers), 1));
+		layerSpinner.setEnabled(layers > 0);
+		int suggestedLine = layers > 0 ? index.getLayer(suggestedLayer).line : Math.max(0, lastLine);
+		JSpinner lineSpinner = new JSpinner(new SpinnerNumberModel(suggestedLine + 1, 1, index.getLineCount(), 1));
+
+		JPanel panel = new JPanel(new MigLayout());
+		if (lastLine >= 0) {
+			panel.add(new JLabel("The last build of " + code.file.getName() + " stopped at about line " +
+					(lastLine + 1) + (layers > 0 ? ", layer " + (suggestedLayer + 1) + " of " + layers : "") + "."),
+					"span, wrap");
+		}
+		panel.add(byLayer);
+		panel.add(layerSpinner, "growx, wrap");
+		panel.add(byLine);
+		panel.add(lineSpinner, "growx, wrap");
+		panel.add(new JLabel("<html>The machine must still know where it is. If it has been switched off<br>" +
+				"or reset, home it the way the start of the gcode does before resuming.</html>"),
+				"span, gaptop 10");
+		int result = JOptionPane.showConfirmDialog(this, panel, "Resume Build",
+				JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		if (result != JOptionPane.OK_OPTION)
+			return;
+
+		final int line = byLayer.isSelected() ?
+				index.getLayer(((Number)layerSpinner.getValue()).intValue() - 1).line :
+				((Number)lineSpinner.getValue()).intValue() - 1;
+		message("Finding where to resume...");
+		Thread scan = new Thread("Resume scan") {
+			public void run() {
+				try {
+					final GCodeSource source = ResumeState.scan(code.file, index, line).getSource(index);
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							if (!building && !simulating) {
+								doBuild(source);
+							}
+						}
+					});
+				} catch (IOException ioe) {
+					Base.logger.log(Level.SEVERE, "Could not read " + code.file.getName(), ioe);
+				}
+			}
+		};
+		scan.setDaemon(true);
+		scan.start();
+	}
+
+	private void doBuild(GCodeSource source)
 	{
 		if (!machineLoader.isLoaded()) {
 			Base.logger.severe("Not ready to build yet.");
@@ -2126,7 +2440,7 @@ ToolpathGenerator.GeneratorListener
 			message("Building...");
 			buildStart = new Date();
 			
-			machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea));
+			machineLoader.getMachineInterface().buildDirect(source);
 			//doing this check allows us to recover from pre-build stuff
 //			if(machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea)) == false)
 //			{
@@ -2300,7 +2614,8 @@ ToolpathGenerator.GeneratorListener
 		}
 
 		if (building) {
-			if (evt.getState().canPrint()) {
+			// A build that fails partway (see MachineThread) ends in an error
+			if (evt.getState().canPrint() || evt.getState().getState() == MachineState.State.ERROR) {
 				final MachineState endState = evt.getState();
 				building = false;
 				SwingUtilities.invokeLater(new Runnable() {
@@ -2350,20 +2665,7 @@ ToolpathGenerator.GeneratorListener
 		}
 
 		// Enable the machine select and serial select menus only when the machine is not connected
-		for (int itemIndex = 0; itemIndex < serialMenu.getItemCount(); itemIndex++) { 
-			JMenuItem item = serialMenu.getItem(itemIndex);
-			// The ignore case is a little hacky, and is based on code in reloadSerialMenu()
-			if  (item != null && !("No serial ports detected".equals(item.getText()))) {
-				item.setEnabled(!evt.getState().isConnected());
-			}
-		}
-
-		for (int itemIndex = 0; itemIndex < machineMenu.getItemCount(); itemIndex++) { 
-			JMenuItem item = machineMenu.getItem(itemIndex);
-			if  (item!= null) {
-				item.setEnabled(!evt.getState().isConnected());
-			}
-		}
+		setMachineMenusEnabled(!evt.getState().isConnected());
 
 		boolean hasGcode = getBuild().getCode() != null;
 		boolean hasModel = getBuild().getModel() != null;
@@ -2376,6 +2678,7 @@ ToolpathGenerator.GeneratorListener
 
 		// enable the build menu item when the machine is ready and there is gcode in the editor
 		buildMenuItem.setEnabled(hasGcode && evt.getState().isConfigurable());
+		resumeMenuItem.setEnabled(hasGcode && evt.getState().isConfigurable());
 		onboardParamsItem.setVisible(showParams);
 		onboardParamsItem.setEnabled(showParams);
 		preheatItem.setEnabled(evt.getState().isConnected() && !building);
@@ -2592,6 +2895,67 @@ ToolpathGenerator.GeneratorListener
 
 	}
 	
+	/**
+	 * Load another model onto the build plate.  The models on the plate are
+	 * shown together and sliced together, into the toolpath of the model
+	 * that was opened.
+	 */
+	public void handleAddToPlate() {
+		if (build == null || build.getModel() == null) {
+			JOptionPane.showMessageDialog(this, "Open a model first; other models are added to its plate.",
+					"No model open", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		File directory = null;
+		String loadDir = Base.preferences.get("ui.open_dir", null);
+		if (loadDir != null) { directory = new File(loadDir); }
+		JFileChooser fc = new JFileChooser(directory);
+		FileFilter defaultFilter;
+		String[] extensions = {".stl",".obj",".dae"};
+		fc.addChoosableFileFilter(defaultFilter = new ExtensionFilter(extensions,"Model files"));
+		fc.setAcceptAllFileFilterUsed(true);
+		fc.setFileFilter(defaultFilter);
+		fc.setDialogTitle("Add a model to the plate...");
+		fc.setDialogType(JFileChooser.OPEN_DIALOG);
+		if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) { return; }
+		Base.preferences.put("ui.open_dir",fc.getCurrentDirectory().getAbsolutePath());
+
+		BuildModel model = build.getPlate().addModel(fc.getSelectedFile());
+		if (model.getShape() == null) {
+			build.getPlate().remove(model);
+			JOptionPane.showMessageDialog(this, "Could not load " + fc.getSelectedFile().getName() + ".",
+					"Could not add model", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		getPreviewPanel().setPlate(build.getPlate());
+		handleArrangePlate();
+	}
+
+	/**
+	 * Lay the models on the plate out on the machine's platform.
+	 */
+	public void handleArrangePlate() {
+		if (build == null || build.getModel() == null) { return; }
+		MachineInterface mi = machineLoader.getMachineInterface();
+		if (mi == null) {
+			JOptionPane.showMessageDialog(this, "Choose a machine type first; the plate is arranged to fit its platform.",
+					"No machine", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		MachineModel mm = mi.getModel();
+		List<BuildModel> unplaced = build.getPlate().arrange(mm.getBuildVolume(), mm.getExclusionZones(),
+				Base.preferences.getDouble("replicatorg.plate.spacing", 5.0),
+				Base.preferences.getInt("replicatorg.plate.rotations", 4));
+		if (!unplaced.isEmpty()) {
+			StringBuilder names = new StringBuilder();
+			for (BuildModel model : unplaced) {
+				names.append("<br>").append(new File(model.getPath()).getName());
+			}
+			JOptionPane.showMessageDialog(this, "<html>These models don't fit on the platform and were left where they were:" +
+					names + "</html>", "Plate is full", JOptionPane.WARNING_MESSAGE);
+		}
+	}
+
 	public void estimationOver() {
 		// stopItem.setEnabled(false);
 		// pauseItem.setEnabled(false);
@@ -2882,14 +3246,15 @@ ToolpathGenerator.GeneratorListener
 	 * Open a sketch from a particular path, but don't check to save changes.
 	 * Used by Sketch.saveAs() to re-open a sketch after the "Save As"
 	 */
-	public void handleOpenUnchecked(String path, int codeIndex, int selStart,
-			int selStop, int scrollPos) {
-		handleOpen2(path);
-
-		setCode(build.getCode());
-		textarea.select(selStart, selStop);
-		// textarea.updateScrollBars();
-		textarea.setScrollPosition(scrollPos);
+	public void handleOpenUnchecked(String path, int codeIndex, final int selStart,
+			final int selStop, final int scrollPos) {
+		handleOpen2(path, new Runnable() {
+			public void run() {
+				textarea.select(selStart, selStop);
+				// textarea.updateScrollBars();
+				textarea.setScrollPosition(scrollPos);
+			}
+		});
 	}
 
 	/**
@@ -2897,6 +3262,15 @@ ToolpathGenerator.GeneratorListener
 	 * modifications (if any) to the previous sketch need to be saved.
 	 */
 	protected void handleOpen2(String path) {
+		handleOpen2(path, null);
+	}
+
+	/**
+	 * The gcode is read in the background; the build is shown once it has
+	 * been, and then the given work is done.  If the user cancels the read,
+	 * an untitled build is opened instead.
+	 */
+	protected void handleOpen2(final String path, final Runnable then) {
 		if (path != null && !new File(path).exists()) {
 			JOptionPane.showMessageDialog(this, "The file "+path+" could not be found.", "File not found", JOptionPane.ERROR_MESSAGE);
 			return;
@@ -2917,39 +3291,70 @@ ToolpathGenerator.GeneratorListener
 				return;
 			}
 		}
+		final Build opened;
 		try {
-			setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-			// loading may take a few moments for large files
-
-			build = new Build(this, path);
-			setCode(build.getCode());
-			setModel(build.getModel());
-			updateBuild();
-			buttons.updateFromMachine(machineLoader.getMachineInterface());
-			generateItem.setEnabled(build.getModel() != null);
-			if (null != path) {
-				handleOpenPath = path;
-				mruList.update(path);
-				reloadMruMenu();
-			}
-			if (Base.preferences.getBoolean("console.auto_clear",false)) {
-				console.clear();
-			}
+			opened = new Build(this, path);
 		} catch (Exception e) {
 			error(e);
-		} finally {
-			this.setCursor(Cursor.getDefaultCursor());
+			return;
 		}
+		build = opened;
+		setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+		// loading may take a few moments for large files
+		loadCode(opened.getCode(), new Runnable() {
+			public void run() {
+				setCursor(Cursor.getDefaultCursor());
+				// Another build may have been opened in the meantime
+				if (build != opened) { return; }
+				try {
+					setCode(build.getCode());
+					setModel(build.getModel());
+					updateBuild();
+					buttons.updateFromMachine(machineLoader.getMachineInterface());
+					generateItem.setEnabled(build.getModel() != null);
+					if (null != path) {
+						handleOpenPath = path;
+						mruList.update(path);
+						reloadMruMenu();
+					}
+					if (Base.preferences.getBoolean("console.auto_clear",false)) {
+						console.clear();
+					}
+					if (then != null) { then.run(); }
+				} catch (Exception e) {
+					error(e);
+				}
+			}
+		}, new Runnable() {
+			public void run() {
+				setCursor(Cursor.getDefaultCursor());
+				if (build == opened) { handleOpen2(null); }
+			}
+		});
 	}
 
 	/**
-	 * Actually handle the save command. If 'force' is set to false, this will
-	 * happen in another thread so that the message area will update and the
-	 * save button will stay highlighted while the save is happening. If 'force'
+	 * Actually handle the save command. If 'force' is set to false, the build
+	 * is written on a background thread, with a progress monitor, so that the
+	 * window stays responsive while the save is happening. If 'force'
 	 * is true, then it will happen immediately. This is used during a quit,
 	 * because invokeLater() won't run properly while a quit is happening.
 	 */
 	public void handleSave(boolean force) {
+		if (!force) {
+			if (!build.needsSaveAs()) {
+				saveInBackground(null);
+				return;
+			}
+			if (build.isReadOnly()) {
+				Base.showMessage(
+						"File is read-only",
+						"This file is marked \"read-only\", so you'll\n"
+						+ "need to re-save this file to another location.");
+			}
+			handleSaveAs();
+			return;
+		}
 		Runnable saveWork = new Runnable() {
 			public void run() {
 				Base.logger.info("Saving...");
@@ -2976,14 +3381,10 @@ ToolpathGenerator.GeneratorListener
 	public void handleSaveAs() {
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
-				// TODO: lock sketch?
-				Base.logger.info("Saving...");
 				try {
-					if (build.saveAs()) {
-						updateBuild();
-						Base.logger.info("Save operation complete.");
-						mruList.update(build.getMainFilePath());
-						// TODO: Add to MRU?
+					File mainFile = build.askSaveAsFile();
+					if (mainFile != null) {
+						saveInBackground(mainFile);
 					} else {
 						Base.logger.info("Save operation aborted.");
 					}
@@ -2995,6 +3396,46 @@ ToolpathGenerator.GeneratorListener
 		});
 	}
 
+	/**
+	 * Write the build out on a background thread.  The text can't be edited
+	 * until the save is done, so that what is saved is what is shown as
+	 * saved.
+	 * @param saveAs the new main file for a "Save As", or null to save the
+	 * build where it is
+	 */
+	private void saveInBackground(final File saveAs) {
+		Base.logger.info("Saving...");
+		final Build saving = build;
+		final boolean editable = textarea.isEditable();
+		textarea.setEditable(false);
+		new FileTask(this, "Saving " + saving.getName()) {
+			protected void work() throws IOException {
+				if (saveAs == null) {
+					saving.save(this);
+				} else {
+					saving.saveAs(saveAs, this);
+				}
+			}
+			protected void succeeded() {
+				textarea.setEditable(editable);
+				if (saveAs != null) {
+					updateBuild();
+					mruList.update(saving.getMainFilePath());
+				}
+				Base.logger.info("Save operation complete.");
+			}
+			protected void failed(IOException ioe) {
+				textarea.setEditable(editable);
+				if (ioe instanceof InterruptedIOException) {
+					Base.logger.info("Save operation aborted.");
+				} else {
+					// show the error as a message in the window
+					error(ioe);
+				}
+			}
+		}.start();
+	}
+
 	/**
 	 * Quit, but first ask user if it's ok. Also store preferences to disk just
 	 * in case they want to quit. Final exit() happens in MainWindow since it has
@@ -3002,6 +3443,12 @@ ToolpathGenerator.GeneratorListener
 	 */
 	public void handleQuitInternal() {
 		if (!confirmBuildAbort()) return;
+		if (Base.hasMachineFarm() && Base.getMachineFarm().isBuilding()) {
+			int result = JOptionPane.showConfirmDialog(this,
+					"Machines of the print farm are building. Stop them and quit?",
+					"Quit", JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE);
+			if (result != JOptionPane.OK_OPTION) return;
+		}
 		try {
 			if (simulationThread != null) {
 				simulationThread.interrupt();
@@ -3022,6 +3469,9 @@ ToolpathGenerator.GeneratorListener
 
 		// cleanup our machine/driver.
 		machineLoader.unload();
+		if (Base.hasMachineFarm()) {
+			Base.getMachineFarm().dispose();
+		}
 
 		checkModified(HANDLE_QUIT);
 	}
@@ -3354,21 +3804,27 @@ ToolpathGenerator.GeneratorListener
 		if (evt.getCompletion() == Completion.SUCCESS) {
 			
 			
-			if (build.getCode() != null) {
+			final boolean buildNow = buildOnComplete;
+			Runnable reloaded = new Runnable() {
+				public void run() {
+					if (build.getCode() != null) {
+						setCode(build.getCode());
+					}
 
-				
+					buttons.updateFromMachine(machineLoader.getMachineInterface());
+
+					updateBuild();
+
+					if(buildNow)
+					{
+						doBuild();
+					}
+				}
+			};
+			if (build.getCode() != null) {
 				build.reloadCode();
-				setCode(build.getCode());
-			}
-			
-			buttons.updateFromMachine(machineLoader.getMachineInterface());
-			
-			updateBuild();
-			
-			if(buildOnComplete)
-			{
-				doBuild();
 			}
+			loadCode(build.getCode(), reloaded, null);
 		}
 		
 		if(buildOnComplete) // for safety, always reset this
@@ -198,6 +198,9 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 		addCheckboxForPref(content,"Show starfield in model preview window","ui.show_starfield",false);
 		addCheckboxForPref(content,"Notifications in System tray","ui.preferSystemTrayNotifications",false);
 		addCheckboxForPref(content,"Automatically regenerate gcode when building from model view.","build.autoGenerateGcode",true);
+		addCheckboxForPref(content,"Check and repair models before generating gcode","replicatorg.skeinforge.repairMesh",true);
+		addCheckboxForPref(content,"Cache loaded models to speed up reopening them","replicatorg.meshcache.enabled",true);
+		addCheckboxForPref(content,"Reuse gcode when a model is sliced again with the same settings","replicatorg.toolpathcache.enabled",true);
 		addCheckboxForPref(content,"Use native avrdude for uploading code","uploader.useNative",false);
 
 		JPanel advanced = new JPanel();
@@ -280,6 +283,65 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 			});
 		}
 		
+		{
+			JLabel frameTimeLabel = new JLabel("Preview frame time target (ms): ");
+			content.add(frameTimeLabel,"split, gap unrelated");
+			int value = Base.preferences.getInt("ui.preview.targetFrameMs", 33);
+			JFormattedTextField frameTimeField = new JFormattedTextField(Base.getLocalFormat());
+			frameTimeField.setValue(new Integer(value));
+			content.add(frameTimeField,"wrap 10px, growx");
+			String frameTimeHelp = "<html><small><em>" +
+				"While you drag or zoom in the model view, large models are drawn with a simplified<br>" +
+				"mesh so that each frame takes about this long.  Full detail returns when you stop." +
+				"</em></small></html>";
+			frameTimeField.setToolTipText(frameTimeHelp);
+			frameTimeLabel.setToolTipText(frameTimeHelp);
+			frameTimeField.setColumns(10);
+			frameTimeField.addPropertyChangeListener(new PropertyChangeListener() {
+				public void propertyChange(PropertyChangeEvent evt) {
+					if (evt.getPropertyName() == "value") {
+						try {
+							Number v = (Number)evt.getNewValue();
+							if (v == null) return;
+							Base.preferences.putInt("ui.preview.targetFrameMs", v.intValue());
+						} catch (ClassCastException cce) {
+							Base.logger.warning("Unexpected value type: "+evt.getNewValue().getClass().toString());
+						}
+					}
+				}
+			});
+		}
+		
+		{
+			JLabel slicingJobsLabel = new JLabel("Models sliced at once (0 = automatic): ");
+			content.add(slicingJobsLabel,"split, gap unrelated");
+			int value = Base.preferences.getInt("replicatorg.slicing.maxJobs", 0);
+			JFormattedTextField slicingJobsField = new JFormattedTextField(Base.getLocalFormat());
+			slicingJobsField.setValue(new Integer(value));
+			content.add(slicingJobsField,"wrap 10px, growx");
+			String slicingJobsHelp = "<html><small><em>" +
+				"The most Skeinforge processes to run at the same time, for example for the two halves<br>" +
+				"of a dualstrusion print.  Automatic uses one per core, as far as memory allows.<br>" +
+				"Takes effect after restarting ReplicatorG." +
+				"</em></small></html>";
+			slicingJobsField.setToolTipText(slicingJobsHelp);
+			slicingJobsLabel.setToolTipText(slicingJobsHelp);
+			slicingJobsField.setColumns(10);
+			slicingJobsField.addPropertyChangeListener(new PropertyChangeListener() {
+				public void propertyChange(PropertyChangeEvent evt) {
+					if (evt.getPropertyName() == "value") {
+						try {
+							Number v = (Number)evt.getNewValue();
+							if (v == null) return;
+							Base.preferences.putInt("replicatorg.slicing.maxJobs", v.intValue());
+						} catch (ClassCastException cce) {
+							Base.logger.warning("Unexpected value type: "+evt.getNewValue().getClass().toString());
+						}
+					}
+				}
+			});
+		}
+		
 		{
 			JLabel sfTimeoutLabel = new JLabel("Skeinforge timeout: ");
 			content.add(sfTimeoutLabel,"split, gap unrelated");
@@ -1,18 +1,18 @@
 package replicatorg.app.ui.modeling;
 
 import java.awt.Color;
-import java.util.Enumeration;
 import java.lang.Double;
+import java.util.ArrayList;
+import java.util.List;
 import javax.media.j3d.Appearance;
 import javax.media.j3d.BoundingBox;
 import javax.media.j3d.BranchGroup;
-import javax.media.j3d.Geometry;
 import javax.media.j3d.GeometryArray;
 import javax.media.j3d.Group;
 import javax.media.j3d.Material;
-import javax.media.j3d.Node;
 import javax.media.j3d.PolygonAttributes;
 import javax.media.j3d.Shape3D;
+import javax.media.j3d.Switch;
 import javax.media.j3d.Transform3D;
 import javax.media.j3d.TransformGroup;
 import javax.vecmath.AxisAngle4d;
@@ -24,6 +24,9 @@ import replicatorg.app.Base;
 import replicatorg.app.ui.MainWindow;
 import replicatorg.machine.model.BuildVolume;
 import replicatorg.model.BuildModel;
+import replicatorg.model.j3d.ConvexHull;
+import replicatorg.model.j3d.IndexedMesh;
+import replicatorg.model.j3d.MeshSimplifier;
 
 /**
  * A wrapper for displaying and editing an underlying model object.
@@ -119,12 +122,110 @@ public class EditingModel {
 
 		wrapper.addChild(shapeTransform);
 
-		shapeTransform.addChild(solidShape);
+		detailSwitch = new Switch(0);
+		detailSwitch.setCapability(Switch.ALLOW_SWITCH_READ);
+		detailSwitch.setCapability(Switch.ALLOW_SWITCH_WRITE);
+		detailSwitch.setCapability(Group.ALLOW_CHILDREN_EXTEND);
+		detailSwitch.addChild(solidShape);
+		shapeTransform.addChild(detailSwitch);
 		wrapper.setCapability(BranchGroup.ALLOW_DETACH);
 		wrapper.compile();
+		startDetailBuilder(solid);
 		return wrapper;
 	}
 
+	/**
+	 * Models with fewer triangles than this are always drawn at full detail.
+	 */
+	private static final int MIN_DETAIL_TRIANGLES = 50000;
+	/**
+	 * Simplified levels are never reduced below this many triangles.
+	 */
+	private static final int MIN_LEVEL_TRIANGLES = 5000;
+	private static final int MAX_DETAIL_LEVELS = 3;
+
+	/**
+	 * Switch between the full resolution shape (child 0) and progressively coarser
+	 * simplified versions of it, which are added as they are computed.
+	 */
+	private Switch detailSwitch = null;
+
+	/**
+	 * Triangle count of each level of detail, finest first.  Guarded by itself.
+	 */
+	private final List<Integer> detailTriangles = new ArrayList<Integer>();
+
+	/**
+	 * Compute the simplified levels of detail in the background.  Each level is
+	 * simplified from the previous one, so later levels are cheap.
+	 */
+	private void startDetailBuilder(final Appearance appearance) {
+		final int triangles = originalShape.getGeometry() instanceof GeometryArray ?
+				((GeometryArray)originalShape.getGeometry()).getVertexCount()/3 : 0;
+		synchronized(detailTriangles) {
+			detailTriangles.clear();
+			detailTriangles.add(triangles);
+		}
+		if (triangles < MIN_DETAIL_TRIANGLES) { return; }
+		final Switch target = detailSwitch;
+		Thread t = new Thread("Preview detail levels") {
+			public void run() {
+				long start = System.currentTimeMillis();
+				IndexedMesh mesh = IndexedMesh.fromShape(originalShape);
+				for (int level = 1; level <= MAX_DETAIL_LEVELS; level++) {
+					int goal = mesh.getTriangleCount()/4;
+					if (goal < MIN_LEVEL_TRIANGLES) { break; }
+					mesh = MeshSimplifier.simplify(mesh, goal);
+					Shape3D shape = new Shape3D(mesh.toTriangleArray(), appearance);
+					BranchGroup bg = new BranchGroup();
+					bg.addChild(shape);
+					bg.compile();
+					synchronized(detailTriangles) {
+						if (target != detailSwitch) { return; } // model was reloaded
+						target.addChild(bg);
+						detailTriangles.add(mesh.getTriangleCount());
+					}
+					Base.logger.fine("Preview detail level "+level+": "+mesh.getTriangleCount()+
+							" triangles after "+(System.currentTimeMillis()-start)+" ms");
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/**
+	 * Get the triangle counts of the available levels of detail, finest (full
+	 * resolution) first.  More levels may become available later.
+	 */
+	public int[] getDetailLevels() {
+		synchronized(detailTriangles) {
+			int[] levels = new int[detailTriangles.size()];
+			for (int i = 0; i < levels.length; i++) { levels[i] = detailTriangles.get(i); }
+			return levels;
+		}
+	}
+
+	/**
+	 * Display the given level of detail; 0 is full resolution.
+	 */
+	public void setDetailLevel(int level) {
+		synchronized(detailTriangles) {
+			if (detailSwitch == null) { return; }
+			level = Math.max(0, Math.min(level, detailTriangles.size()-1));
+			if (detailSwitch.getWhichChild() != level) {
+				detailSwitch.setWhichChild(level);
+			}
+		}
+	}
+
+	public int getDetailLevel() {
+		synchronized(detailTriangles) {
+			return detailSwitch == null ? 0 : detailSwitch.getWhichChild();
+		}
+	}
+
 	public BuildModel getBuildModel() { return model; }
 	
 	public void updateModelColor() {
@@ -279,29 +380,6 @@ public class EditingModel {
 		return upper.z - lower.z;
 	}
 	
-	private BoundingBox getBoundingBox(Group group) {
-		return getBoundingBox(group, new Transform3D());
-	}
-	
-	private BoundingBox getBoundingBox(Shape3D shape, Transform3D transformation) {
-		BoundingBox bb = null;
-		Enumeration<?> geometries = shape.getAllGeometries();
-		while (geometries.hasMoreElements()) {
-			Geometry g = (Geometry)geometries.nextElement();
-			if (g instanceof GeometryArray) {
-				GeometryArray ga = (GeometryArray)g;
-				Point3d p = new Point3d();
-				for (int i = 0; i < ga.getVertexCount(); i++) {
-					ga.getCoordinate(i,p);
-					transformation.transform(p);
-					if (bb == null) { bb = new BoundingBox(p,p); }
-					bb.combine(p);
-				}
-			}
-		}
-		return bb;
-	}
-
 	/**
 	 * Flip the object tree around the Z axis.  This is particularly useful when
 	 * breaking a print into two parts.
@@ -386,28 +464,42 @@ public class EditingModel {
 		return newScale;
 	}
 
-	private BoundingBox getBoundingBox(Group group, Transform3D transformation) {
-		BoundingBox bb = new BoundingBox(new Point3d(Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE),
-				new Point3d(Double.MIN_VALUE,Double.MIN_VALUE,Double.MIN_VALUE));
-		transformation = new Transform3D(transformation);
-		if (group instanceof TransformGroup) {
-			Transform3D nextTransform = new Transform3D();
-			((TransformGroup)group).getTransform(nextTransform);
-			transformation.mul(nextTransform);
-		}
-		for (int i = 0; i < group.numChildren(); i++) {
-			Node n = group.getChild(i);
-			if (n instanceof Shape3D) {
-				bb.combine(getBoundingBox((Shape3D)n, transformation));
-			} else if (n instanceof Group) {
-				bb.combine(getBoundingBox((Group)n,transformation));
+	/**
+	 * Convex hull of the original shape, built on first use.  All bounds queries are
+	 * answered from the hull vertices rather than by walking the whole mesh.
+	 */
+	private ConvexHull hull = null;
+
+	private ConvexHull getHull() {
+		if (hull == null) {
+			Shape3D shape = model.getShape();
+			if (shape == null || shape.getGeometry() == null) {
+				hull = new ConvexHull(new double[0], 0);
+			} else {
+				long start = System.currentTimeMillis();
+				hull = ConvexHull.fromShape(shape);
+				Base.logger.fine("Built convex hull ("+hull.getVertexCount()+" vertices, "+
+						hull.getFaceCount()+" faces) in "+(System.currentTimeMillis()-start)+" ms");
 			}
 		}
-		return bb;
+		return hull;
 	}
 
+	/** The transform the cached bounding box was computed for. */
+	private Transform3D boundsTransform = null;
+	private BoundingBox bounds = null;
+
 	public BoundingBox getBoundingBox() {
-		return getBoundingBox(shapeTransform);
+		Transform3D t = new Transform3D();
+		shapeTransform.getTransform(t);
+		if (bounds == null || !t.equals(boundsTransform)) {
+			bounds = getHull().getBounds(t);
+			if (bounds == null) {
+				bounds = new BoundingBox(new Point3d(), new Point3d());
+			}
+			boundsTransform = t;
+		}
+		return (BoundingBox)bounds.clone();
 	}
 	
 	
@@ -446,7 +538,7 @@ public class EditingModel {
 	 * Center the object tree and raise its lowest point to Z=0.
 	 */
 	public void center() {
-		BoundingBox bb = getBoundingBox(shapeTransform);
+		BoundingBox bb = getBoundingBox();
 		Point3d lower = new Point3d();
 		Point3d upper = new Point3d();
 		bb.getLower(lower);
@@ -461,7 +553,7 @@ public class EditingModel {
 	 * Raise the object's lowest point to Z=0.
 	 */
 	public void putOnPlatform() {
-		BoundingBox bb = getBoundingBox(shapeTransform);
+		BoundingBox bb = getBoundingBox();
 		Point3d lower = new Point3d();
 		bb.getLower(lower);
 		double zoff = -lower.z;
@@ -470,63 +562,29 @@ public class EditingModel {
 
 	/**
 	 * Lay the object flat with the Z object.  It computes this by finding the bottommost
-	 * point, and then rotating the object to make the surface with the lowest angle to
-	 * the Z plane parallel to it.
-	 * 
-	 * In the future, we will want to add a convex hull pass to this.
-	 * 
+	 * point of the convex hull, and then rotating the object to make the hull face
+	 * touching that point with the lowest angle to the Z plane parallel to it.
 	 */
 	public void layFlat() {
 		// Compute transformation
 		Transform3D t = new Transform3D();
 		shapeTransform.getTransform(t);
-		Enumeration<?> geometries = originalShape.getAllGeometries();
-		while (geometries.hasMoreElements()) {
-			Geometry g = (Geometry)geometries.nextElement();
-			double lowest = Double.MAX_VALUE;
-			Vector3d flattest = new Vector3d(1d,0d,0d);
-			if (g instanceof GeometryArray) {
-				GeometryArray ga = (GeometryArray)g;
-				Point3d p1 = new Point3d();
-				Point3d p2 = new Point3d();
-				Point3d p3 = new Point3d();
-				for (int i = 0; i < ga.getVertexCount();) {
-					ga.getCoordinate(i++,p1);
-					ga.getCoordinate(i++,p2);
-					ga.getCoordinate(i++,p3);
-					t.transform(p1);
-					t.transform(p2);
-					t.transform(p3);
-					double triLowest = Math.min(p1.z, Math.min(p2.z, p3.z));
-					if (triLowest < lowest) {
-						// Clear any prior triangles
-						flattest = new Vector3d(1d,0d,0d);
-						lowest = triLowest;
-					}
-					if (triLowest == lowest) {
-						// This triangle is a candidate!
-						Vector3d v1 = new Vector3d(p2);
-						v1.sub(p1);
-						Vector3d v2 = new Vector3d(p3);
-						v2.sub(p2);
-						Vector3d v = new Vector3d();
-						v.cross(v1,v2);
-						v.normalize();
-						if (v.z < flattest.z) { flattest = v; }
-					}
-				}
-			}
-			Transform3D flattenTransform = new Transform3D();
-			Vector3d downZ = new Vector3d(0d,0d,-1d);
-			double angle = Math.acos(flattest.dot(downZ));
-			Vector3d cross = new Vector3d();
-			cross.cross(flattest, downZ);
-			flattenTransform.setRotation(new AxisAngle4d(cross,angle));
-			flattenTransform = transformOnCentroid(flattenTransform);
-			shapeTransform.setTransform(flattenTransform);
-			model.setTransform(flattenTransform,"Lay flat", isNewOp());
-			invalidateBounds(); 
+		Vector3d flattest = getHull().getLowestFaceNormal(t);
+		if (flattest == null) { return; }
+		Vector3d downZ = new Vector3d(0d,0d,-1d);
+		double angle = Math.acos(Math.max(-1d, Math.min(1d, flattest.dot(downZ))));
+		Vector3d cross = new Vector3d();
+		cross.cross(flattest, downZ);
+		if (cross.lengthSquared() == 0) {
+			// Already flat, or upside down; any horizontal axis will do.
+			cross.set(1d,0d,0d);
 		}
+		Transform3D flattenTransform = new Transform3D();
+		flattenTransform.setRotation(new AxisAngle4d(cross,angle));
+		flattenTransform = transformOnCentroid(flattenTransform);
+		shapeTransform.setTransform(flattenTransform);
+		model.setTransform(flattenTransform,"Lay flat", isNewOp());
+		invalidateBounds(); 
 	}
 	
 	boolean inDrag = false;
@@ -7,11 +7,15 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.GraphicsConfiguration;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelListener;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.logging.Level;
 
@@ -42,6 +46,7 @@ import javax.media.j3d.TransformGroup;
 import javax.media.j3d.TransparencyAttributes;
 import javax.media.j3d.View;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3d;
 import javax.vecmath.Point3f;
@@ -56,6 +61,7 @@ import replicatorg.machine.MachineInterface;
 import replicatorg.machine.model.BuildVolume;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.model.BuildModel;
+import replicatorg.model.BuildPlate;
 
 import com.sun.j3d.utils.universe.SimpleUniverse;
 
@@ -76,6 +82,7 @@ public class PreviewPanel extends JPanel {
 	
 	public void setModel(BuildModel buildModel) {
 		if (model == null || buildModel != model.getBuildModel()) {
+			setPlate(null);
 			if (buildModel != null) {
 				model = new EditingModel(buildModel, mainWindow);
 				setScene(model);
@@ -93,6 +100,27 @@ public class PreviewPanel extends JPanel {
 		objectBranch = model.getGroup();
 		sceneGroup.addChild(objectBranch);
 	}
+
+	/** The other models on the plate, shown alongside the one being edited. */
+	private final List<EditingModel> plateModels = new ArrayList<EditingModel>();
+
+	/**
+	 * Show the models on a plate alongside the model being edited.  Pass null
+	 * to show only that model.
+	 */
+	public void setPlate(BuildPlate plate) {
+		for (EditingModel m : plateModels) {
+			sceneGroup.removeChild(m.getGroup());
+		}
+		plateModels.clear();
+		if (plate == null) { return; }
+		for (BuildModel buildModel : plate.getModels()) {
+			if (model != null && buildModel == model.getBuildModel()) { continue; }
+			EditingModel m = new EditingModel(buildModel, mainWindow);
+			plateModels.add(m);
+			sceneGroup.addChild(m.getGroup());
+		}
+	}
 	
 	/*
 	 * This is to ensure we can switch between machines with different dimensions
@@ -102,11 +130,18 @@ public class PreviewPanel extends JPanel {
 		if (objectBranch != null) {
 			sceneGroup.removeChild(objectBranch);
 		}
+		for (EditingModel m : plateModels) {
+			sceneGroup.removeChild(m.getGroup());
+		}
 		scene.detach();
 		scene = createSTLScene();
 		objectBranch = model.getGroup();
 		model.updateModelColor();
 		sceneGroup.addChild(objectBranch);
+		for (EditingModel m : plateModels) {
+			m.updateModelColor();
+			sceneGroup.addChild(m.getGroup());
+		}
 		univ.addBranchGraph(scene);
 	}
 	
@@ -187,6 +222,55 @@ public class PreviewPanel extends JPanel {
 		cameraTranslation.z += deltaZoom;
 		updateVP();
 	}
+
+	/**
+	 * How long to wait after the last interaction before going back to full detail.
+	 */
+	final static int DETAIL_RESTORE_DELAY_MS = 300;
+
+	/**
+	 * The last measured frame time at full detail, or 0 if we haven't measured one yet.
+	 */
+	private long fullDetailFrameMs = 0;
+
+	private final Timer detailRestoreTimer = new Timer(DETAIL_RESTORE_DELAY_MS, new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+			if (model != null) { model.setDetailLevel(0); }
+		}
+	});
+	{
+		detailRestoreTimer.setRepeats(false);
+	}
+
+	/**
+	 * Called when the user starts dragging or zooming.  Switches the model to the
+	 * finest level of detail that should render within the target frame time, based
+	 * on the last full detail frame and assuming render time scales with triangle count.
+	 */
+	void startInteraction() {
+		detailRestoreTimer.stop();
+		if (model == null) { return; }
+		if (model.getDetailLevel() == 0) {
+			fullDetailFrameMs = univ.getViewer().getView().getLastFrameDuration();
+		}
+		int[] levels = model.getDetailLevels();
+		if (fullDetailFrameMs <= 0 || levels.length < 2) { return; }
+		long targetMs = Base.preferences.getInt("ui.preview.targetFrameMs", 33);
+		int level = 0;
+		while (level < levels.length-1 &&
+				fullDetailFrameMs * levels[level] / levels[0] > targetMs) {
+			level++;
+		}
+		model.setDetailLevel(level);
+	}
+
+	/**
+	 * Called when the user stops dragging or zooming.  Full detail is restored once
+	 * the view has been idle for a moment.
+	 */
+	void endInteraction() {
+		detailRestoreTimer.restart();
+	}
 	
 	public PreviewPanel(final MainWindow mainWindow) {
 		
@@ -135,6 +135,7 @@ public class ScalingTool extends Tool {
 		isOnPlatform = parent.getModel().isOnPlatform();
 	}
 	public void mouseReleased(MouseEvent e) {
+		parent.preview.endInteraction();
 	}
 
 	public void mouseDragged(MouseEvent e) {
@@ -114,17 +114,21 @@ public abstract class Tool implements MouseMotionListener, MouseListener, MouseW
 	public void mouseExited(MouseEvent e) {
 	}
 	public void mousePressed(MouseEvent e) {
+		parent.preview.startInteraction();
 		parent.getModel().startDrag();
 		startPoint = e.getPoint();
 		button = e.getButton();
 	}
 	public void mouseReleased(MouseEvent e) {
 		parent.getModel().endDrag();
+		parent.preview.endInteraction();
 		startPoint = null;
 	}
 	public void mouseWheelMoved(MouseWheelEvent e) {
 		int notches = e.getWheelRotation();
+		parent.preview.startInteraction();
 		parent.preview.adjustZoom(10d * notches);
+		parent.preview.endInteraction();
 	}
 
 }
@@ -0,0 +1,95 @@
+package replicatorg.app.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import replicatorg.app.Base;
+
+/**
+ * Helpers for the content-addressed caches kept under the user directory.
+ * Entries are files named by a hash of what they were made from; each entry's
+ * modification time records when it was last used, so that the least recently
+ * used entries can be dropped when the directory grows too big.
+ */
+public class CacheDirectory {
+	private CacheDirectory() {}
+
+	public static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException("SHA-1 not available");
+		}
+	}
+
+	/**
+	 * Feed the contents of a file to a digest.
+	 */
+	public static void update(MessageDigest md, File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buf = ByteBuffer.allocateDirect(64*1024);
+			while (channel.read(buf) != -1) {
+				buf.flip();
+				md.update(buf);
+				buf.clear();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public static String toHex(byte[] digest) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Mark a cache entry as just used.
+	 */
+	public static void touch(File entry) {
+		entry.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Delete the least recently used entries until the directory holds no more
+	 * than the given number of bytes.
+	 */
+	public static synchronized void trim(File dir, long maxBytes) {
+		File[] entries = dir.listFiles();
+		if (entries == null) { return; }
+		long total = 0;
+		for (File f : entries) { total += f.length(); }
+		if (total <= maxBytes) { return; }
+		final long[] lastUsed = new long[entries.length];
+		Integer[] order = new Integer[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			lastUsed[i] = entries[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return lastUsed[a] < lastUsed[b] ? -1 : (lastUsed[a] > lastUsed[b] ? 1 : 0);
+			}
+		});
+		for (int i = 0; i < order.length && total > maxBytes; i++) {
+			File f = entries[order[i]];
+			long length = f.length();
+			if (f.delete()) {
+				total -= length;
+				Base.logger.fine("Evicted "+f.getName()+" from "+dir.getName());
+			}
+		}
+	}
+}
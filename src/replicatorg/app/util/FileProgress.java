@@ -0,0 +1,17 @@
+package replicatorg.app.util;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Told how far a long read or write of a file has got.  It is also how the
+ * work is cancelled: progress() throws, and whatever was being read or
+ * written is left as it was before.
+ */
+public interface FileProgress {
+	/**
+	 * @param done how much has been read or written so far
+	 * @param total how much there is in all, in the same units
+	 * @throws InterruptedIOException to stop the work
+	 */
+	public void progress(long done, long total) throws InterruptedIOException;
+}
@@ -4,6 +4,8 @@ import java.awt.Frame;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
@@ -81,6 +83,12 @@ public class PythonUtils {
 	
 	static String pythonPath = null;
 	static Version pythonVersion = null;
+	/**
+	 * Versions of every python binary probed this session, keyed by path; null
+	 * values mark paths that aren't a working python.  Starting python just to
+	 * ask its version takes long enough to notice, so each path is only asked once.
+	 */
+	private static final Map<String,Version> versionCache = new HashMap<String,Version>();
 	
 	/**
 	 * Calculate the expected path to the Python installation.  The result is cached.
@@ -159,11 +167,6 @@ public class PythonUtils {
 			}
 		}
 		
-		for (String c : candidates) {
-			@SuppressWarnings("unused")
-			Version v = checkVersion(c,minVersion,maxVersion);
-		}
-		
 		// Filter candidates by version
 		Vector<String> viableCandidates = new Vector<String>();
 		for (String candidate : candidates) {
@@ -213,6 +216,7 @@ public class PythonUtils {
 	 */
 	public static Version checkVersion() {
 		if (getPythonPath() == null) { return null; }
+		if (pythonVersion != null) { return pythonVersion; }
 		return checkVersion(getPythonPath());
 	}
 	
@@ -221,6 +225,22 @@ public class PythonUtils {
 	 * @return null if python is not installed, or the version of python found. 
 	 */
 	public static Version checkVersion(String path) {
+		synchronized (versionCache) {
+			if (versionCache.containsKey(path)) {
+				return versionCache.get(path);
+			}
+		}
+		Version v = probeVersion(path);
+		synchronized (versionCache) {
+			versionCache.put(path, v);
+		}
+		return v;
+	}
+
+	/**
+	 * Run the python binary at the given path to find its version.
+	 */
+	private static Version probeVersion(String path) {
 		ProcessBuilder pb = new ProcessBuilder(path,"-V");
 		pb.redirectErrorStream(true);
 		try {
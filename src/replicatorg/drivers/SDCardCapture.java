@@ -1,5 +1,6 @@
 package replicatorg.drivers;
 
+import java.awt.GraphicsEnvironment;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.List;
@@ -53,11 +54,13 @@ public interface SDCardCapture {
 			if (code == SDCardCapture.ResponseCode.SUCCESS) return true;
 			String message = code.message;
 			Base.logger.log(Level.WARNING, message);
-			JOptionPane.showMessageDialog(
-					null,
-					message,
-					"SD card error",
-					JOptionPane.ERROR_MESSAGE);
+			if (!GraphicsEnvironment.isHeadless()) {
+				JOptionPane.showMessageDialog(
+						null,
+						message,
+						"SD card error",
+						JOptionPane.ERROR_MESSAGE);
+			}
 			return false;
 		}
 	}
@@ -47,6 +47,11 @@ public class StopException extends Exception {
 		return output.toString();
 	}
 	
+	/** @return the message without the formatting for dialogs */
+	public String getPlainMessage() {
+		return message;
+	}
+	
 	public String getMessage() {
 		return getFormattedMessage(message);
 	}
@@ -47,6 +47,7 @@ import replicatorg.drivers.SDCardCapture;
 import replicatorg.drivers.SerialDriver;
 import replicatorg.drivers.Version;
 import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+import replicatorg.machine.MachineInterface;
 import replicatorg.machine.model.AxisId;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.uploader.FirmwareUploader;
@@ -434,7 +435,14 @@ public class Sanguino3GDriver extends SerialDriver implements
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
 				throw new RetryException();
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.CANCEL){
-				Base.getEditor().handleStop(); ///  horrible horrible 
+				MachineInterface editorMachine = Base.getMachineLoader().getMachineInterface();
+				if (Base.getEditor() != null && editorMachine != null
+						&& editorMachine.getDriverQueryInterface() == this) {
+					Base.getEditor().handleStop(); ///  horrible horrible 
+				} else {
+					// Not the editor's machine (see MachineFarm, HeadlessBuild); stop just this one.
+					setError(new DriverError("Build Canceled by Printer", false));
+				}
 				Base.logger.severe("Build Canceled by Printer");
 			} else {
 				// Other random error
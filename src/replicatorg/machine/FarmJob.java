@@ -0,0 +1,58 @@
+package replicatorg.machine;
+
+import java.io.File;
+
+import replicatorg.app.gcode.GCodeLayerIndex;
+
+/**
+ * A gcode file waiting in, or run from, the job queue of a MachineFarm.
+ */
+public class FarmJob {
+	public enum Status {
+		/** The file is being indexed, and can't be built yet. */
+		READING,
+		/** Waiting for a machine. */
+		QUEUED,
+		/** Given to a machine, which hasn't started building it yet. */
+		STARTING,
+		PRINTING,
+		DONE,
+		/** Stopped from the farm before it was done. */
+		STOPPED,
+		/** Couldn't be read or built, or the machine stopped building it. */
+		FAILED,
+	};
+
+	private final File file;
+	private volatile Status status = Status.READING;
+	private volatile GCodeLayerIndex index = null;
+	private volatile String machineName = null;
+	private volatile String message = null;
+
+	FarmJob(File file) {
+		this.file = file;
+	}
+
+	public File getFile() { return file; }
+	public Status getStatus() { return status; }
+	/** @return the index of the file, or null if it hasn't been read yet */
+	public GCodeLayerIndex getIndex() { return index; }
+	/** @return the name of the machine the job was given to, or null */
+	public String getMachineName() { return machineName; }
+	/** @return why the job failed, or null */
+	public String getMessage() { return message; }
+
+	/** @return true if the job is over, one way or another */
+	public boolean isFinished() {
+		return status == Status.DONE || status == Status.STOPPED || status == Status.FAILED;
+	}
+
+	void setStatus(Status status) { this.status = status; }
+	void setIndex(GCodeLayerIndex index) { this.index = index; }
+	void setMachineName(String machineName) { this.machineName = machineName; }
+
+	void fail(String message) {
+		this.message = message;
+		status = Status.FAILED;
+	}
+}
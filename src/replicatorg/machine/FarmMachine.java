@@ -0,0 +1,200 @@
+package replicatorg.machine;
+
+import java.io.IOException;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeFileSource;
+import replicatorg.app.gcode.GCodeLayerIndex;
+
+/**
+ * One machine of a MachineFarm.  Each has its own Machine, and so its own
+ * machine thread, driver and serial port, and its own callback handler, so
+ * that a slow or stuck machine holds up nothing but itself.
+ */
+public class FarmMachine implements MachineListener {
+	private final MachineFarm farm;
+	private final String type;
+	private final String port;
+	private final MachineCallbackHandler callbackHandler;
+	private final Machine machine;
+
+	private volatile MachineState state = new MachineState(MachineState.State.NOT_ATTACHED);
+	private volatile String message = null;
+	private volatile MachineProgressEvent progress = null;
+	private volatile FarmJob job = null;
+	private volatile boolean stopping = false;
+
+	private FarmMachine(MachineFarm farm, String type, String port,
+			MachineCallbackHandler callbackHandler, Machine machine) {
+		this.farm = farm;
+		this.type = type;
+		this.port = port;
+		this.callbackHandler = callbackHandler;
+		this.machine = machine;
+		machine.setCheckpointing(false);
+		callbackHandler.addMachineListener(this);
+		callbackHandler.start();
+	}
+
+	/**
+	 * @return the machine, or null if there is no machine type of that name
+	 */
+	static FarmMachine load(MachineFarm farm, String type, String port) {
+		MachineCallbackHandler callbackHandler = new MachineCallbackHandler();
+		callbackHandler.setName("Machine Callback Handler: " + port);
+		Machine machine = MachineFactory.load(type, callbackHandler);
+		if (machine == null) {
+			return null;
+		}
+		return new FarmMachine(farm, type, port, callbackHandler, machine);
+	}
+
+	/** @return the name of the machine type, as in the machine descriptors */
+	public String getType() { return type; }
+	public String getPort() { return port; }
+	/** @return the machine's own name if it has one, or its type's name */
+	public String getName() { return machine.getMachineName(); }
+	public MachineInterface getMachineInterface() { return machine; }
+	Machine getMachine() { return machine; }
+
+	public MachineState getState() { return state; }
+	/** @return the message that came with the last change of state, or null */
+	public String getMessage() { return message; }
+	/** @return how far the current job has got, or null if there isn't one */
+	public MachineProgressEvent getProgress() { return job != null ? progress : null; }
+	/** @return the job the machine is building, or null */
+	public FarmJob getJob() { return job; }
+
+	/** @return true if the machine is ready for a job */
+	boolean isIdle() {
+		return job == null && state.canPrint();
+	}
+
+	public void connect() {
+		machine.connect(port);
+	}
+
+	public void disconnect() {
+		machine.disconnect();
+	}
+
+	/** Stop the current job, if there is one. */
+	public void stop() {
+		FarmJob current = job;
+		if (current != null) {
+			stopping = true;
+			if (current.getStatus() == FarmJob.Status.STARTING) {
+				// Not begun yet, so there will be no change of state to end it
+				finish(current, null);
+			}
+		}
+		machine.stopAll();
+	}
+
+	/**
+	 * Give a queued job to the machine.  The file is checked on the farm's
+	 * worker thread, and the build is started from there.  If the job hasn't
+	 * been estimated for this type of machine yet, the estimate is filled in
+	 * once it's been worked out.
+	 */
+	void start(final FarmJob job) {
+		this.job = job;
+		progress = null;
+		stopping = false;
+		job.setMachineName(getName());
+		job.setStatus(FarmJob.Status.STARTING);
+		farm.execute(new Runnable() {
+			public void run() {
+				if (FarmMachine.this.job != job) { return; }
+				try {
+					if (!job.getIndex().isCurrent(job.getFile())) {
+						job.setIndex(GCodeLayerIndex.get(job.getFile()));
+					}
+				} catch (IOException ioe) {
+					Base.logger.log(Level.WARNING, "Could not read " + job.getFile().getName(), ioe);
+					finish(job, "Could not read the file");
+					return;
+				}
+				Double estimate = farm.getKnownEstimate(job, FarmMachine.this);
+				if (FarmMachine.this.job != job) { return; }
+				machine.startBuild(new GCodeFileSource(job.getFile(), job.getIndex()),
+						estimate != null ? estimate : 0);
+				if (estimate == null) {
+					farm.estimate(job, FarmMachine.this, new Runnable() {
+						public void run() {
+							Double known = farm.getKnownEstimate(job, FarmMachine.this);
+							if (known != null && FarmMachine.this.job == job) {
+								machine.setEstimatedBuildTime(known);
+							}
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/** Put an unfinished job down, with a reason if it failed. */
+	private void finish(FarmJob job, String failure) {
+		synchronized (farm) {
+			if (job.isFinished()) { return; }
+			if (failure != null) {
+				job.fail(failure);
+			} else {
+				job.setStatus(stopping ? FarmJob.Status.STOPPED : FarmJob.Status.DONE);
+			}
+			if (this.job == job) {
+				this.job = null;
+			}
+			stopping = false;
+		}
+		farm.changed();
+		farm.dispatch();
+	}
+
+	void dispose() {
+		FarmJob current = job;
+		if (current != null) {
+			finish(current, "The machine was removed");
+		}
+		machine.dispose();
+		callbackHandler.interrupt();
+	}
+
+	public void machineStateChanged(MachineStateChangeEvent evt) {
+		state = evt.getState();
+		message = evt.getMessage();
+		FarmJob ended = null;
+		synchronized (farm) {
+			FarmJob current = job;
+			if (current != null) {
+				FarmJob.Status status = current.getStatus();
+				if (state.isBuilding()) {
+					if (status == FarmJob.Status.STARTING) {
+						current.setStatus(FarmJob.Status.PRINTING);
+					}
+				} else if (status == FarmJob.Status.PRINTING) {
+					ended = current;
+				} else if (status == FarmJob.Status.STARTING && !state.canPrint()) {
+					// It went away before the build began; someone else can have it
+					job = null;
+					current.setStatus(FarmJob.Status.QUEUED);
+				}
+			}
+		}
+		if (ended != null) {
+			finish(ended, state.canPrint() ? null :
+				(message != null ? message : "The machine stopped building"));
+			return;
+		}
+		farm.changed();
+		farm.dispatch();
+	}
+
+	public void machineProgress(MachineProgressEvent event) {
+		progress = event;
+	}
+
+	public void toolStatusChanged(MachineToolStatusEvent event) {
+	}
+}
@@ -45,8 +45,6 @@ import javax.swing.JTextArea;
 
 import net.miginfocom.swing.MigLayout;
 
-import org.w3c.dom.Node;
-
 import replicatorg.app.Base;
 import replicatorg.app.gcode.GCodeCommand;
 import replicatorg.app.gcode.GCodeEnumeration;
@@ -59,6 +57,7 @@ import replicatorg.drivers.SimulationDriver;
 import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.MachineState.State;
+import replicatorg.machine.builder.HaltHandler;
 import replicatorg.machine.model.AxisId;
 import replicatorg.machine.model.Endstops;
 import replicatorg.machine.model.MachineModel;
@@ -152,9 +151,8 @@ public class Machine implements MachineInterface {
 	MachineThread machineThread;
 	final MachineCallbackHandler callbackHandler;
 	
-	// TODO: WTF is this here for.
-	// this is the xml config for this machine.
-	protected Node machineNode;
+	// The type of machine this is, to make a new machine thread from
+	protected MachineDescriptor descriptor;
 
 
 	public String getMachineName() {
@@ -164,11 +162,11 @@ public class Machine implements MachineInterface {
 	/**
 	 * Creates the machine object.
 	 */
-	public Machine(Node mNode, MachineCallbackHandler callbackHandler) {
+	public Machine(MachineDescriptor descriptor, MachineCallbackHandler callbackHandler) {
 		this.callbackHandler = callbackHandler; 
 		
-		machineNode = mNode;
-		machineThread = new MachineThread(this, mNode);
+		this.descriptor = descriptor;
+		machineThread = new MachineThread(this, descriptor);
 		machineThread.start();
 
 		/// set initial state to propigate new machine info via callbacks
@@ -314,6 +312,8 @@ public class Machine implements MachineInterface {
 					Base.logger.info("Beginning build.");
 	
 					machineThread.scheduleRequest(new MachineCommand(RequestType.BUILD_DIRECT, source, null));
+				} else {
+					MachineThread.closeSource(source);
 				}
 			}
 			
@@ -467,15 +467,80 @@ public class Machine implements MachineInterface {
 		return true;
 	}
 	
+	/**
+	 * Start a build with no checks and no dialogs, for builds that nobody is
+	 * watching over (see MachineFarm, HeadlessBuild).
+	 * @param estimatedBuildTime the estimate to report progress against, as
+	 * from estimateBuildTime()
+	 */
+	public void startBuild(GCodeSource source, double estimatedBuildTime) {
+		machineThread.setEstimatedBuildTime(estimatedBuildTime);
+		machineThread.scheduleRequest(new MachineCommand(RequestType.BUILD_DIRECT, source, null));
+	}
+
+	/**
+	 * Change the estimate that progress is reported against, for a build
+	 * that was started before its estimate was known.
+	 */
+	public void setEstimatedBuildTime(double estimatedBuildTime) {
+		machineThread.setEstimatedBuildTime(estimatedBuildTime);
+	}
+
+	/**
+	 * Decide what happens at halts in the gcode of later builds, rather than
+	 * asking the user.
+	 */
+	public void setHaltHandler(HaltHandler haltHandler) {
+		machineThread.setHaltHandler(haltHandler);
+	}
+
+	/**
+	 * Read temperatures while building, whatever the build.monitor_temp
+	 * preference says.
+	 */
+	public void setAlwaysMonitorTemperature(boolean monitor) {
+		machineThread.setAlwaysMonitorTemp(monitor);
+	}
+
+	/**
+	 * Keep a checkpoint of how far direct builds of files get, so that they
+	 * can be resumed.  There is only one checkpoint, so only one machine
+	 * should keep it.
+	 */
+	public void setCheckpointing(boolean checkpointing) {
+		machineThread.setCheckpointing(checkpointing);
+	}
+
 	// TODO: Spawn a new thread to handle this for us?
 	public void estimate(GCodeSource source) {
 		if (source == null) {
 			return;
 		}
 
+		double buildTime = estimateBuildTime(source);
+		machineThread.setEstimatedBuildTime(buildTime);
+		Base.logger.info("Estimated build time is: " + 
+					EstimationDriver.getBuildTimeString(buildTime));
+	}
+
+	/**
+	 * Estimate how long a job will take on this machine, without touching the
+	 * machine.
+	 */
+	public double estimateBuildTime(GCodeSource source) {
+		return estimateBuildTime(source, machineThread.getModel());
+	}
+
+	/**
+	 * Estimate how long a job will take on a model of a machine.  The
+	 * estimate moves the model as the job would, so a machine that may be
+	 * building should be estimated on a model of its own (see
+	 * MachineDescriptor.loadModel()).
+	 */
+	public static double estimateBuildTime(GCodeSource source, MachineModel model) {
 		EstimationDriver estimator = new EstimationDriver();
 		// TODO: Is this correct?
-		estimator.setMachine(machineThread.getModel());
+		estimator.setMachine(model);
 		
 		Queue<DriverCommand> estimatorQueue = new LinkedList<DriverCommand>();
 
@@ -508,9 +573,7 @@ public class Machine implements MachineInterface {
 		// ((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
 		// }
 
-		machineThread.setEstimatedBuildTime(estimator.getBuildTime());
-		Base.logger.info("Estimated build time is: " + 
-					EstimationDriver.getBuildTimeString(estimator.getBuildTime()));
+		return estimator.getBuildTime();
 	}
 
 	public DriverQueryInterface getDriverQueryInterface() {
@@ -585,7 +648,7 @@ public class Machine implements MachineInterface {
 		// recreate thread if stopped
 		// TODO: Evaluate this!
 		if (!machineThread.isAlive()) {
-			machineThread = new MachineThread(this, machineNode);
+			machineThread = new MachineThread(this, descriptor);
 			machineThread.start();
 		}
 		
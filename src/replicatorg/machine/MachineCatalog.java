@@ -0,0 +1,327 @@
+package replicatorg.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.CacheDirectory;
+
+/**
+ * Which machine types there are, and which XML file each one is in.
+ * Machine descriptors are looked for in:
+ * <ol>
+ *  <li>The "machines" directory under the ReplicatorG install directory</li>
+ *  <li>The "~/.replicatorg/machines" directory</li>
+ * </ol>
+ * Any files with an .xml extension in these directories hold machine
+ * descriptors.  Files are taken in alphabetical order within each directory.
+ * If two machine descriptors have the same name, the one found last wins.
+ *
+ * The catalog is saved in the user directory (machines.catalog), so that
+ * listing the machine types doesn't mean parsing every file.  A file is
+ * parsed again only when it has changed: its size and modification time are
+ * checked, and if those differ its contents are hashed and checked against
+ * the hash saved with it, since an update of ReplicatorG touches every file
+ * without changing most of them.  A machine's own file is parsed only when
+ * the machine is first asked for (see getElement()).
+ */
+class MachineCatalog {
+	private static final int MAGIC = 0x52474d43; // RGMC
+	private static final int VERSION = 1;
+	private static final String CATALOG_FILE = "machines.catalog";
+
+	/** What is known about one XML file. */
+	private static class FileEntry {
+		final File file;
+		long length;
+		long modified;
+		final String hash;
+		/** The machines in the file, and whether each is experimental. */
+		final Map<String,Boolean> machines;
+
+		FileEntry(File file, long length, long modified, String hash, Map<String,Boolean> machines) {
+			this.file = file;
+			this.length = length;
+			this.modified = modified;
+			this.hash = hash;
+			this.machines = machines;
+		}
+	}
+
+	private final List<FileEntry> entries;
+	/** Each machine type, and the file it comes from. */
+	private final Map<String,FileEntry> machines = new HashMap<String,FileEntry>();
+	/** Descriptors that have been parsed but not asked for yet. */
+	private final Map<String,Element> parsed;
+
+	private MachineCatalog(List<FileEntry> entries, Map<FileEntry,Map<String,Element>> parsedFiles) {
+		this.entries = entries;
+		for (FileEntry e : entries) {
+			for (String name : e.machines.keySet()) {
+				machines.put(name, e);
+			}
+		}
+		parsed = new HashMap<String,Element>();
+		for (Map.Entry<FileEntry,Map<String,Element>> f : parsedFiles.entrySet()) {
+			keepParsed(f.getKey(), f.getValue());
+		}
+	}
+
+	/** Keep the descriptors parsed from a file, other than those that a later file overrides. */
+	private void keepParsed(FileEntry e, Map<String,Element> inFile) {
+		for (Map.Entry<String,Element> p : inFile.entrySet()) {
+			if (machines.get(p.getKey()) == e) {
+				parsed.put(p.getKey(), p.getValue());
+			}
+		}
+	}
+
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(machines.keySet());
+	}
+
+	public boolean isExperimental(String name) {
+		FileEntry e = machines.get(name);
+		return e != null && e.machines.get(name);
+	}
+
+	/**
+	 * Parse a machine's descriptor from its file.  The other machines in
+	 * the file are kept for when they are asked for.
+	 * @return the descriptor, or null if there is no such machine or its
+	 * file has changed so that it is no longer there
+	 */
+	public Element getElement(String name) {
+		Element element = parsed.remove(name);
+		if (element != null) { return element; }
+		FileEntry e = machines.get(name);
+		if (e == null) { return null; }
+		try {
+			keepParsed(e, parse(e.file, newDocumentBuilder()));
+		} catch (IOException ioe) {
+			Base.logger.log(Level.WARNING, "Could not read the machine descriptors in " + e.file.getPath(), ioe);
+		}
+		element = parsed.remove(name);
+		if (element == null) {
+			Base.logger.warning("The machine '" + name + "' is no longer in " + e.file.getPath());
+		}
+		return element;
+	}
+
+	private static File getCatalogFile() {
+		return new File(Base.getUserDirectory(), CATALOG_FILE);
+	}
+
+	/**
+	 * Read the saved catalog, and bring it up to date with the machine
+	 * directories.
+	 */
+	public static MachineCatalog load() {
+		Map<String,FileEntry> saved = read(getCatalogFile());
+		List<FileEntry> entries = new ArrayList<FileEntry>();
+		Map<FileEntry,Map<String,Element>> parsedFiles = new HashMap<FileEntry,Map<String,Element>>();
+		boolean changed = false;
+		DocumentBuilder db = null;
+
+		File[] dirs = { Base.getApplicationFile("machines"), Base.getUserFile("machines", false) };
+		for (File dir : dirs) {
+			String[] list = dir != null ? dir.list() : null;
+			if (list == null) { continue; }
+			List<String> filenames = Arrays.asList(list);
+			Collections.sort(filenames); // Files addressed in alphabetical order.
+			for (String filename : filenames) {
+				if (!filename.endsWith(".xml") && !filename.endsWith(".XML")) {
+					continue; // Skip anything with an improper extension
+				}
+				File f = new File(dir, filename).getAbsoluteFile();
+				if (!f.isFile()) { continue; }
+				long length = f.length();
+				long modified = f.lastModified();
+				FileEntry entry = saved.remove(f.getPath());
+				if (entry != null && entry.length == length && entry.modified == modified) {
+					entries.add(entry);
+					continue;
+				}
+				String hash = hash(f);
+				changed = true;
+				if (entry != null && hash != null && hash.equals(entry.hash)) {
+					entry.length = length;
+					entry.modified = modified;
+					entries.add(entry);
+					continue;
+				}
+				Base.logger.log(Level.FINE, "Scanning file " + filename);
+				Map<String,Boolean> machines = new LinkedHashMap<String,Boolean>();
+				Map<String,Element> inFile = Collections.emptyMap();
+				try {
+					if (db == null) { db = newDocumentBuilder(); }
+					inFile = parse(f, db);
+					for (Map.Entry<String,Element> p : inFile.entrySet()) {
+						String exp = p.getValue().getAttribute("experimental");
+						machines.put(p.getKey(), exp.length() != 0 && !exp.equals("0"));
+					}
+				} catch (IOException ioe) {
+					Base.logger.log(Level.WARNING, "Could not read the machine descriptors in " + f.getPath(), ioe);
+				}
+				entry = new FileEntry(f, length, modified, hash != null ? hash : "", machines);
+				entries.add(entry);
+				parsedFiles.put(entry, inFile);
+			}
+		}
+		if (!saved.isEmpty()) { changed = true; } // Files that have gone
+
+		MachineCatalog catalog = new MachineCatalog(entries, parsedFiles);
+		if (changed) {
+			// The saved catalog only saves time; the machines are all here without it
+			try {
+				catalog.save(getCatalogFile());
+			} catch (Throwable t) {
+				Base.logger.log(Level.WARNING, "Could not save the machine catalog", t);
+			}
+		}
+		return catalog;
+	}
+
+	private static String hash(File f) {
+		try {
+			MessageDigest md = CacheDirectory.newDigest();
+			CacheDirectory.update(md, f);
+			return CacheDirectory.toHex(md.digest());
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
+
+	static DocumentBuilder newDocumentBuilder() throws IOException {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		try {
+			// Build the whole tree now, rather than as it's read, since a
+			// descriptor may be read from more than one thread.
+			dbf.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+		} catch (ParserConfigurationException e) {
+			// Not xerces; it will build the tree as it likes.
+		}
+		try {
+			return dbf.newDocumentBuilder();
+		} catch (ParserConfigurationException e) {
+			throw new IOException("Could not create document builder: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Parse the machine descriptors in a file.
+	 * @return the descriptors by name, in the order they are in the file
+	 */
+	private static Map<String,Element> parse(File f, DocumentBuilder db) throws IOException {
+		Document dom;
+		try {
+			dom = db.parse(f);
+		} catch (SAXException e) {
+			throw new IOException(e.getMessage());
+		}
+		Map<String,Element> map = new LinkedHashMap<String,Element>();
+		NodeList nl = dom.getElementsByTagName("machine");
+		for (int i = 0; i < nl.getLength(); i++) {
+			Element e = (Element)nl.item(i);
+			NodeList names = e.getElementsByTagName("name");
+			if (names != null && names.getLength() > 0) {
+				String mname = names.item(0).getTextContent().trim();
+				Base.logger.log(Level.FINE,"Adding machine "+mname+" for node "+e.toString());
+				map.put(mname,e);
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Read a saved catalog.
+	 * @return its files by path; empty if there is none or it can't be read
+	 */
+	private static Map<String,FileEntry> read(File catalogFile) {
+		Map<String,FileEntry> saved = new HashMap<String,FileEntry>();
+		if (!catalogFile.isFile()) { return saved; }
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(catalogFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) { return saved; }
+				int fileCount = in.readInt();
+				for (int i = 0; i < fileCount; i++) {
+					File file = new File(in.readUTF());
+					long length = in.readLong();
+					long modified = in.readLong();
+					String hash = in.readUTF();
+					int count = in.readInt();
+					Map<String,Boolean> machines = new LinkedHashMap<String,Boolean>();
+					for (int j = 0; j < count; j++) {
+						String name = in.readUTF();
+						machines.put(name, in.readBoolean());
+					}
+					saved.put(file.getPath(), new FileEntry(file, length, modified, hash, machines));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			Base.logger.log(Level.FINE, "Could not read the machine catalog", ioe);
+			saved.clear();
+		}
+		return saved;
+	}
+
+	private void save(File catalogFile) {
+		File tmp = new File(catalogFile.getPath() + ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(entries.size());
+				for (FileEntry e : entries) {
+					out.writeUTF(e.file.getPath());
+					out.writeLong(e.length);
+					out.writeLong(e.modified);
+					out.writeUTF(e.hash);
+					out.writeInt(e.machines.size());
+					for (Map.Entry<String,Boolean> m : e.machines.entrySet()) {
+						out.writeUTF(m.getKey());
+						out.writeBoolean(m.getValue());
+					}
+				}
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				out.close();
+			}
+			Base.replaceFile(tmp, catalogFile);
+		} catch (IOException ioe) {
+			Base.logger.log(Level.FINE, "Could not save the machine catalog", ioe);
+			tmp.delete();
+		}
+	}
+}
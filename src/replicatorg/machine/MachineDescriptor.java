@@ -0,0 +1,92 @@
+package replicatorg.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import replicatorg.app.tools.XML;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverFactory;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * A machine type, as described in the machine XML files.  There is one of
+ * these for each type, made the first time the type is asked for (see
+ * MachineFactory.getDescriptor()) and kept, so switching between machine
+ * types doesn't read the XML again.
+ *
+ * What every machine thread needs (the name, the warmup and cooldown code,
+ * which section configures the driver) is read out of the XML when the
+ * descriptor is made.  The model and the driver are still set up from their
+ * sections of the XML, by loadModel() and newDriver(); those are
+ * synchronized, since a DOM can't be read from two threads at once and
+ * several machines of a type can be set up together (see MachineFarm).
+ */
+public class MachineDescriptor {
+	private final String name;
+	private final boolean experimental;
+	private final Element xml;
+	private final Node driverXml;
+	private final List<String> warmupCommands;
+	private final List<String> cooldownCommands;
+
+	MachineDescriptor(String name, boolean experimental, Element xml) {
+		this.name = name;
+		this.experimental = experimental;
+		this.xml = xml;
+
+		// The last driver section, if there is more than one
+		Node driver = null;
+		NodeList kids = xml.getChildNodes();
+		for (int j = 0; j < kids.getLength(); j++) {
+			Node kid = kids.item(j);
+			if (kid.getNodeName().equals("driver")) {
+				driver = kid;
+			}
+		}
+		driverXml = driver;
+		warmupCommands = readCommands(xml, "warmup");
+		cooldownCommands = readCommands(xml, "cooldown");
+	}
+
+	private static List<String> readCommands(Node xml, String section) {
+		List<String> commands = new ArrayList<String>();
+		Node node = XML.getChildNodeByName(xml, section);
+		if (node != null && node.getFirstChild() != null) {
+			for (String command : node.getFirstChild().getNodeValue().trim().split("\n")) {
+				commands.add(command.trim());
+			}
+		}
+		return Collections.unmodifiableList(commands);
+	}
+
+	public String getName() { return name; }
+
+	public boolean isExperimental() { return experimental; }
+
+	public List<String> getWarmupCommands() { return warmupCommands; }
+
+	public List<String> getCooldownCommands() { return cooldownCommands; }
+
+	/**
+	 * @return the machine's XML, for display.  Don't read it while machines
+	 * may be being set up from it.
+	 */
+	public Node getXML() { return xml; }
+
+	/** @return a new model of the machine, as the XML describes it */
+	public synchronized MachineModel loadModel() {
+		MachineModel model = new MachineModel();
+		model.loadXML(xml);
+		return model;
+	}
+
+	/** @return a new driver for the machine, configured from the XML */
+	public synchronized Driver newDriver() {
+		return DriverFactory.factory(driverXml);
+	}
+}
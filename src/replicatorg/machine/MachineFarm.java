@@ -0,0 +1,281 @@
+package replicatorg.machine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeFileSource;
+import replicatorg.app.gcode.GCodeLayerIndex;
+import replicatorg.drivers.EstimationDriver;
+
+/**
+ * Drives a number of machines at once from a single queue of gcode files, so
+ * that a rack of machines can be run from one ReplicatorG.  Whenever a
+ * machine is ready and a job is waiting, the first job in the queue goes to
+ * it.  The editor's machine (see MachineLoader) is not one of them.
+ *
+ * Each machine has its own machine thread, driver and serial port (see
+ * FarmMachine).  What can be shared is: every job's file is indexed once (see
+ * GCodeLayerIndex), on a single worker thread, and each file is estimated
+ * once per type of machine, however many machines build it.  Estimates are
+ * made on a thread of their own, as a machine's build starts, so that a long
+ * one holds up neither the build nor the jobs behind it.
+ *
+ * The machines are kept in the farm.machines preference, and come back the
+ * next time the farm is opened; the queue is not kept.
+ */
+public class MachineFarm {
+	private static final String MACHINES_PREF = "farm.machines";
+
+	/** Told about machines and jobs coming, going and changing state. */
+	public interface Listener {
+		/** Called from any thread. */
+		public void farmChanged();
+	}
+
+	private final List<FarmMachine> machines = new CopyOnWriteArrayList<FarmMachine>();
+	private final List<FarmJob> jobs = new CopyOnWriteArrayList<FarmJob>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final Map<String,Double> estimates = new ConcurrentHashMap<String,Double>();
+	private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Machine Farm worker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private final ExecutorService estimator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Machine Farm estimator");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Create a farm of the machines it had last time.  They are not
+	 * connected.
+	 */
+	public MachineFarm() {
+		String saved = Base.preferences.get(MACHINES_PREF, "");
+		for (String line : saved.split("\n")) {
+			String[] parts = line.split("\t");
+			if (parts.length == 2) {
+				FarmMachine m = FarmMachine.load(this, parts[0], parts[1]);
+				if (m != null) {
+					machines.add(m);
+				} else {
+					Base.logger.warning("No machine type '" + parts[0] + "' for the farm machine on " + parts[1]);
+				}
+			}
+		}
+	}
+
+	public List<FarmMachine> getMachines() { return machines; }
+
+	/** @return the jobs, waiting and finished, in the order they were added */
+	public List<FarmJob> getJobs() { return jobs; }
+
+	public void addListener(Listener l) { listeners.add(l); }
+	public void removeListener(Listener l) { listeners.remove(l); }
+
+	void changed() {
+		for (Listener l : listeners) {
+			l.farmChanged();
+		}
+	}
+
+	void execute(Runnable r) {
+		worker.execute(r);
+	}
+
+	/**
+	 * Add a machine to the farm.
+	 * @param type the name of the machine type, as in the machine descriptors
+	 * @param port the serial port it's on
+	 * @return the machine, or null if there is no such machine type
+	 */
+	public FarmMachine addMachine(String type, String port) {
+		FarmMachine m = FarmMachine.load(this, type, port);
+		if (m != null) {
+			machines.add(m);
+			saveMachines();
+			changed();
+		}
+		return m;
+	}
+
+	/**
+	 * Take a machine out of the farm, stopping it if it's building.  The
+	 * machine is shut down on a thread of its own, since that can take a
+	 * few seconds.
+	 */
+	public void removeMachine(final FarmMachine m) {
+		if (!machines.remove(m)) { return; }
+		saveMachines();
+		changed();
+		Thread t = new Thread("Machine Farm removal: " + m.getPort()) {
+			public void run() {
+				m.stop();
+				m.dispose();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void saveMachines() {
+		StringBuilder sb = new StringBuilder();
+		for (FarmMachine m : machines) {
+			sb.append(m.getType()).append('\t').append(m.getPort()).append('\n');
+		}
+		Base.preferences.put(MACHINES_PREF, sb.toString());
+	}
+
+	/**
+	 * Add a gcode file to the end of the queue.  It's indexed on the worker
+	 * thread, and goes to a machine once that's done and one is ready.
+	 */
+	public FarmJob addJob(File file) {
+		final FarmJob job = new FarmJob(file);
+		jobs.add(job);
+		changed();
+		worker.execute(new Runnable() {
+			public void run() {
+				try {
+					job.setIndex(GCodeLayerIndex.get(job.getFile()));
+					synchronized (MachineFarm.this) {
+						if (job.getStatus() == FarmJob.Status.READING) {
+							job.setStatus(FarmJob.Status.QUEUED);
+						}
+					}
+				} catch (IOException ioe) {
+					Base.logger.log(Level.WARNING, "Could not read " + job.getFile().getName(), ioe);
+					job.fail("Could not read the file");
+				}
+				changed();
+				dispatch();
+			}
+		});
+		return job;
+	}
+
+	/**
+	 * Take a job out of the queue.  Jobs that a machine has started can't be
+	 * removed; stop the machine instead.
+	 * @return true if the job was removed
+	 */
+	public synchronized boolean removeJob(FarmJob job) {
+		FarmJob.Status status = job.getStatus();
+		if (status == FarmJob.Status.STARTING || status == FarmJob.Status.PRINTING) {
+			return false;
+		}
+		if (!job.isFinished()) {
+			job.setStatus(FarmJob.Status.STOPPED);
+		}
+		jobs.remove(job);
+		changed();
+		return true;
+	}
+
+	/** Take the jobs that are over out of the list. */
+	public void clearFinished() {
+		for (FarmJob job : jobs) {
+			if (job.isFinished()) {
+				jobs.remove(job);
+			}
+		}
+		changed();
+	}
+
+	/** @return true if any machine has a job */
+	public boolean isBuilding() {
+		for (FarmMachine m : machines) {
+			if (m.getJob() != null) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Give waiting jobs to ready machines, in queue order.
+	 */
+	synchronized void dispatch() {
+		boolean started = false;
+		for (FarmMachine m : machines) {
+			if (!m.isIdle()) { continue; }
+			FarmJob next = null;
+			for (FarmJob job : jobs) {
+				if (job.getStatus() == FarmJob.Status.QUEUED) {
+					next = job;
+					break;
+				}
+			}
+			if (next == null) { break; }
+			Base.logger.info("Farm: building " + next.getFile().getName() + " on " + m.getName() + " (" + m.getPort() + ")");
+			m.start(next);
+			started = true;
+		}
+		if (started) {
+			changed();
+		}
+	}
+
+	private static String getEstimateKey(FarmJob job, FarmMachine m) {
+		File f = job.getFile();
+		return f.getAbsolutePath() + "\t" + f.length() + "\t" + f.lastModified() + "\t" + m.getType();
+	}
+
+	/**
+	 * @return the estimated time to build a job on a machine, in the units
+	 * EstimationDriver uses, or null if it hasn't been worked out yet
+	 */
+	Double getKnownEstimate(FarmJob job, FarmMachine m) {
+		return estimates.get(getEstimateKey(job, m));
+	}
+
+	/**
+	 * Work out the estimate for a job on a machine, on the estimating thread,
+	 * and then run done.  It's worked out once for each file and type of
+	 * machine, on a model of the machine type of its own, since the machine
+	 * itself will be building by then.
+	 */
+	void estimate(final FarmJob job, final FarmMachine m, final Runnable done) {
+		estimator.execute(new Runnable() {
+			public void run() {
+				String key = getEstimateKey(job, m);
+				if (!estimates.containsKey(key)) {
+					MachineDescriptor descriptor = MachineFactory.getDescriptor(m.getType());
+					if (descriptor == null) { return; }
+					File f = job.getFile();
+					double estimate = Machine.estimateBuildTime(new GCodeFileSource(f, job.getIndex()),
+							descriptor.loadModel());
+					estimates.put(key, estimate);
+					Base.logger.info("Farm: estimated " + f.getName() + " at " +
+							EstimationDriver.getBuildTimeString(estimate) + " on a " + m.getType());
+				}
+				done.run();
+			}
+		});
+	}
+
+	/**
+	 * Stop every machine and let them go.
+	 */
+	public void dispose() {
+		worker.shutdownNow();
+		estimator.shutdownNow();
+		for (FarmMachine m : machines) {
+			m.stop();
+			m.dispose();
+		}
+		listeners.clear();
+	}
+}
@@ -1,16 +1,15 @@
 package replicatorg.machine;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
-
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.logging.Level;
 
 import replicatorg.app.Base;
-import replicatorg.app.tools.XML;
+import replicatorg.app.gcode.GCodeFileSource;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverError;
-import replicatorg.drivers.DriverFactory;
 import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SDCardCapture;
@@ -21,7 +20,9 @@ import replicatorg.drivers.commands.AssessState;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.machine.Machine.RequestType;
+import replicatorg.machine.builder.BuildCheckpoint;
 import replicatorg.machine.builder.Direct;
+import replicatorg.machine.builder.HaltHandler;
 import replicatorg.machine.builder.MachineBuilder;
 import replicatorg.machine.builder.ToLocalFile;
 import replicatorg.machine.builder.ToRemoteFile;
@@ -30,6 +31,7 @@ import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.model.GCodeSource;
 import replicatorg.model.GCodeSourceCollection;
+import replicatorg.model.GCodeSourceException;
 import replicatorg.model.StringListSource;
 
 /**
@@ -105,8 +107,8 @@ class MachineThread extends Thread {
 	// Link of machine commands to run
 	ConcurrentLinkedQueue<MachineCommand> pendingQueue;
 		
-	// this is the xml config for this machine.
-	private Node machineNode;
+	// the type of machine this is
+	private MachineDescriptor descriptor;
 	
 	private Machine controller;
 	
@@ -119,7 +121,7 @@ class MachineThread extends Thread {
 	
 	// Things that belong to a job
 		// estimated build time in millis
-		private double estimatedBuildTime = 0;
+		private volatile double estimatedBuildTime = 0;
 	
 		// Build statistics
 		private double startTimeMillis = -1;
@@ -137,7 +139,22 @@ class MachineThread extends Thread {
 	
 	private MachineBuilder machineBuilder;
 	
-	public MachineThread(Machine controller, Node machineNode) {
+	// The code being built, to be closed when the build is over
+	private GCodeSource buildSource = null;
+	
+	// Whether to keep a checkpoint of direct builds of files
+	private volatile boolean checkpointing = true;
+	
+	// Whether to poll temperatures while building. This is read from the
+	// preferences when a build starts rather than on every poll, so that
+	// machine threads don't all queue up on the preferences.
+	private boolean monitorTemp = false;
+	private volatile boolean alwaysMonitorTemp = false;
+	
+	// What to do at halts in the gcode; null to ask the user
+	private volatile HaltHandler haltHandler = null;
+	
+	public MachineThread(Machine controller, MachineDescriptor descriptor) {
 		super("Machine Thread");
 		
 		pollingTimer = new MachineTimer();
@@ -145,14 +162,15 @@ class MachineThread extends Thread {
 		
 		pendingQueue = new ConcurrentLinkedQueue<MachineCommand>();
 		
-		// save our XML
-		this.machineNode = machineNode;
+		// save our machine type
+		this.descriptor = descriptor;
 		this.controller = controller;
 		
 		// load our various objects
 		loadDriver();
 		loadExtraPrefs();
 		parseName();
+		setName("Machine Thread: " + name);
 		
 		statusThread = new AssessStatusThread(this);
 		statusThread.start();
@@ -161,35 +179,11 @@ class MachineThread extends Thread {
 	}
 
 	/**
-	 * Loads create warmup and cooldown commands from xml file
+	 * Loads the warmup and cooldown commands of the machine type
 	 */
 	private void loadExtraPrefs() {
-		String[] commands = null;
-		String command = null;
-
-		warmupCommands = new Vector<String>();
-		if (XML.hasChildNode(machineNode, "warmup")) {
-			String warmup = XML.getChildNodeValue(machineNode, "warmup");
-			commands = warmup.split("\n");
-
-			for (int i = 0; i < commands.length; i++) {
-				command = commands[i].trim();
-				warmupCommands.add(new String(command));
-				// System.out.println("Added warmup: " + command);
-			}
-		}
-
-		cooldownCommands = new Vector<String>();
-		if (XML.hasChildNode(machineNode, "cooldown")) {
-			String cooldown = XML.getChildNodeValue(machineNode, "cooldown");
-			commands = cooldown.split("\n");
-
-			for (int i = 0; i < commands.length; i++) {
-				command = commands[i].trim();
-				cooldownCommands.add(new String(command));
-				// System.out.println("Added cooldown: " + command);
-			}
-		}
+		warmupCommands = new Vector<String>(descriptor.getWarmupCommands());
+		cooldownCommands = new Vector<String>(descriptor.getCooldownCommands());
 	}
 
 	/**
@@ -219,6 +213,7 @@ class MachineThread extends Thread {
 	
 	// Respond to a command from the machine controller
 	void runCommand(MachineCommand command) {		
+		boolean wasBuilding = state.isBuilding();
 		switch(command.type) {
 		case CONNECT:
 			if (state.getState() == MachineState.State.NOT_ATTACHED) {
@@ -311,7 +306,16 @@ class MachineThread extends Thread {
 				// Pad the job with start and end code
 				GCodeSource combinedSource = buildGCodeJob(command.source);
 				
-				machineBuilder = new Direct(driver, simulator, combinedSource);
+				Direct direct = new Direct(driver, simulator, combinedSource);
+				if (checkpointing && command.source instanceof GCodeFileSource) {
+					GCodeFileSource fileSource = (GCodeFileSource)command.source;
+					direct.setCheckpoint(new BuildCheckpoint(fileSource.getFile(), fileSource.getFirstLine(),
+							warmupCommands.size() + fileSource.getPrologueLineCount()));
+				}
+				if (haltHandler != null) {
+					direct.setHaltHandler(haltHandler);
+				}
+				machineBuilder = direct;
 				
 				// TODO: This shouldn't be done here?
 				driver.invalidatePosition();
@@ -352,6 +356,9 @@ class MachineThread extends Thread {
 					break;
 				}
 				
+				if (haltHandler != null) {
+					trf.setHaltHandler(haltHandler);
+				}
 				machineBuilder = trf;
 
 				// TODO: This shouldn't be done here?
@@ -391,6 +398,9 @@ class MachineThread extends Thread {
 					break;
 				}
 				
+				if (haltHandler != null) {
+					lf.setHaltHandler(haltHandler);
+				}
 				machineBuilder = lf;
 				
 				if (state.canPrint()) {
@@ -493,6 +503,29 @@ class MachineThread extends Thread {
 		default:
 			Base.logger.severe("Ignored command: " + command.type.toString());
 		}
+		
+		// A build that didn't start is done with its code now
+		if (command.source != null) {
+			if (state.isBuilding() && !wasBuilding) {
+				buildSource = command.source;
+			} else {
+				closeSource(command.source);
+			}
+		}
+	}
+	
+	/**
+	 * Let go of anything a source holds open (such as the file behind the
+	 * editor's text), whether or not it was read to the end.
+	 */
+	static void closeSource(GCodeSource source) {
+		if (source instanceof Closeable) {
+			try {
+				((Closeable)source).close();
+			} catch (IOException ioe) {
+				Base.logger.log(Level.FINE, "Could not close the build's code", ioe);
+			}
+		}
 	}
 	
 	/**
@@ -531,7 +564,7 @@ class MachineThread extends Thread {
 				if ( pollingTimer.elapsed() ) {
 					/// if we're not building, request temp update
 					/// if we are, check preferences for whether we want to check temp
-					if (( !state.isBuilding() ) || Base.preferences.getBoolean("build.monitor_temp",false)) {
+					if (( !state.isBuilding() ) || monitorTemp) {
 						MachineCommand pollCmd = new MachineCommand( RequestType.RUN_COMMAND, new replicatorg.drivers.commands.ReadTemperature() );
 						this.scheduleRequest( pollCmd );
 						Vector<ToolModel> tools = controller.getModel().getTools();
@@ -545,7 +578,16 @@ class MachineThread extends Thread {
 			// If we are building
 			if ( state.isBuilding() && !state.isPaused() ) {
 				//run another instruction on the machine.
-				machineBuilder.runNext();
+				try {
+					machineBuilder.runNext();
+				} catch (GCodeSourceException e) {
+					// The rest of the code can't be read.  Stop as the stop
+					// button would, without the cooldown and without marking
+					// the checkpoint finished, so the build can be resumed.
+					Base.logger.log(Level.SEVERE, e.getMessage() + "; stopping the build", e.getCause());
+					driver.stop(true);
+					setState(new MachineState(MachineState.State.ERROR), e.getMessage());
+				}
 				
 				// Send out a progress event
 				// TODO: Should these be rate limited?
@@ -644,6 +686,13 @@ class MachineThread extends Thread {
 	private void setState(MachineState state, String message) {
 		MachineState oldState = this.state;
 		this.state = state;
+		if (state.isBuilding() && !oldState.isBuilding()) {
+			monitorTemp = alwaysMonitorTemp || Base.preferences.getBoolean("build.monitor_temp",false);
+		}
+		if (!state.isBuilding() && oldState.isBuilding() && buildSource != null) {
+			closeSource(buildSource);
+			buildSource = null;
+		}
 		if (!oldState.equals(state)) {
 			controller.emitStateChange(state, message);
 		}
@@ -668,17 +717,8 @@ class MachineThread extends Thread {
 			simulator = new SimulationDriver();
 			simulator.setMachine(loadModel());
 		}
-		Node driverXml = null; 
 		// load our actual driver
-		NodeList kids = machineNode.getChildNodes();
-		for (int j = 0; j < kids.getLength(); j++) {
-			Node kid = kids.item(j);
-			if (kid.getNodeName().equals("driver")) {
-				driverXml = kid;
-				
-			}
-		}
-		driver = DriverFactory.factory(driverXml);
+		driver = descriptor.newDriver();
 		driver.setMachine(getModel());
 		// Initialization is now handled by the machine thread when it
 		// is placed in a connecting state.
@@ -717,24 +757,11 @@ class MachineThread extends Thread {
 	}
 	
 	private void parseName() {
-		NodeList kids = machineNode.getChildNodes();
-
-		for (int j = 0; j < kids.getLength(); j++) {
-			Node kid = kids.item(j);
-
-			if (kid.getNodeName().equals("name")) {
-				name = kid.getFirstChild().getNodeValue().trim();
-				return;
-			}
-		}
-
-		name = "Unknown";
+		name = descriptor.getName();
 	}
 	
 	private MachineModel loadModel() {
-		MachineModel model = new MachineModel();
-		model.loadXML(machineNode);
-		return model;
+		return descriptor.loadModel();
 	}
 	
 	public MachineModel getModel() {
@@ -742,6 +769,18 @@ class MachineThread extends Thread {
 		return cachedModel;
 	}
 	
+	public void setHaltHandler(HaltHandler haltHandler) {
+		this.haltHandler = haltHandler;
+	}
+	
+	public void setAlwaysMonitorTemp(boolean alwaysMonitorTemp) {
+		this.alwaysMonitorTemp = alwaysMonitorTemp;
+	}
+	
+	public void setCheckpointing(boolean checkpointing) {
+		this.checkpointing = checkpointing;
+	}
+	
 	// TODO: Make this a command.
 	public void setEstimatedBuildTime(double estimatedBuildTime) {
 		this.estimatedBuildTime = estimatedBuildTime;
@@ -0,0 +1,122 @@
+package replicatorg.machine.builder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+
+/**
+ * Remembers how far a build of a gcode file got, so that if the build is cut
+ * short (the USB cable comes out, the computer crashes) it can be resumed
+ * from about where it stopped.  The line last sent to the machine is written
+ * to a small file in the user directory every few seconds while building, and
+ * the file is removed when the build runs to its end.
+ *
+ * The machine is usually some way behind the line last sent to it, by however
+ * much its command buffer holds, so a resume should start no later than the
+ * start of the layer that line is in.
+ */
+public class BuildCheckpoint {
+	private static final String FILE_NAME = "checkpoint.properties";
+	private static final long SAVE_INTERVAL_MS = 5000;
+
+	private final File gcode;
+	private final int firstLine;
+	private final int skipped;
+	private int line = -1;
+	private long lastSave = 0;
+
+	/**
+	 * @param gcode the file being built
+	 * @param firstLine the line of the file the build started from, counting from 0
+	 * @param skipped the number of lines the build runs before that one
+	 * (warmup code, a resume prologue)
+	 */
+	public BuildCheckpoint(File gcode, int firstLine, int skipped) {
+		this.gcode = gcode;
+		this.firstLine = firstLine;
+		this.skipped = skipped;
+	}
+
+	private static File getCheckpointFile() {
+		return new File(Base.getUserDirectory(), FILE_NAME);
+	}
+
+	/**
+	 * Note that the build has sent the given number of lines.
+	 */
+	public void reached(int linesProcessed) {
+		int reached = linesProcessed - 1 - skipped;
+		if (reached < 0) { return; }
+		line = firstLine + reached;
+		long now = System.currentTimeMillis();
+		if (now - lastSave >= SAVE_INTERVAL_MS) {
+			lastSave = now;
+			save();
+		}
+	}
+
+	/**
+	 * Note that the build ran to its end, so there is nothing to resume.
+	 */
+	public void finished() {
+		getCheckpointFile().delete();
+	}
+
+	private void save() {
+		Properties p = new Properties();
+		p.setProperty("file", gcode.getAbsolutePath());
+		p.setProperty("length", Long.toString(gcode.length()));
+		p.setProperty("modified", Long.toString(gcode.lastModified()));
+		p.setProperty("line", Integer.toString(line));
+		File file = getCheckpointFile();
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				p.store(out, "ReplicatorG build checkpoint");
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!tmp.renameTo(file)) { tmp.delete(); }
+		} catch (IOException ioe) {
+			Base.logger.log(Level.FINE, "Could not save build checkpoint", ioe);
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * @return the last line of a file that an unfinished build of it is known
+	 * to have sent, counting from 0, or -1 if there was no such build or the
+	 * file has changed since
+	 */
+	public static int getLastLine(File gcode) {
+		File file = getCheckpointFile();
+		if (gcode == null || !file.isFile()) { return -1; }
+		Properties p = new Properties();
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+			if (!gcode.getAbsolutePath().equals(p.getProperty("file")) ||
+					gcode.length() != Long.parseLong(p.getProperty("length")) ||
+					gcode.lastModified() != Long.parseLong(p.getProperty("modified"))) {
+				return -1;
+			}
+			return Integer.parseInt(p.getProperty("line"));
+		} catch (IOException ioe) {
+			return -1;
+		} catch (RuntimeException re) {
+			// Missing or garbled values
+			return -1;
+		}
+	}
+}
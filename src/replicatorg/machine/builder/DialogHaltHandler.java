@@ -0,0 +1,32 @@
+package replicatorg.machine.builder;
+
+import javax.swing.JOptionPane;
+
+import replicatorg.drivers.StopException;
+
+/**
+ * Tells the user about a halt, and asks whether to go on from an optional one.
+ */
+public class DialogHaltHandler implements HaltHandler {
+	public boolean halted(StopException e) {
+		switch (e.getType()) {
+		case UNCONDITIONAL_HALT:
+			JOptionPane.showMessageDialog(null, e.getMessage(),
+					"Unconditional halt: build ended", JOptionPane.INFORMATION_MESSAGE);
+			return false;
+		case PROGRAM_END:
+			JOptionPane.showMessageDialog(null, e.getMessage(),
+					"Program end: Build ended", JOptionPane.INFORMATION_MESSAGE);
+			return false;
+		case OPTIONAL_HALT:
+			int result = JOptionPane.showConfirmDialog(null, e.getMessage(),
+					"Optional halt: Continue build?", JOptionPane.YES_NO_OPTION);
+			return result == JOptionPane.YES_OPTION;
+		case PROGRAM_REWIND:
+			JOptionPane.showMessageDialog(null, e.getMessage(),
+					"Program rewind: Build ended", JOptionPane.INFORMATION_MESSAGE);
+			return false;
+		}
+		return false;
+	}
+}
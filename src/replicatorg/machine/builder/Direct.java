@@ -5,8 +5,6 @@ import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Level;
 
-import javax.swing.JOptionPane;
-
 import replicatorg.app.Base;
 import replicatorg.app.gcode.GCodeParser;
 import replicatorg.drivers.Driver;
@@ -52,6 +50,10 @@ public class Direct implements MachineBuilder{
 	
 	State state;
 	
+	BuildCheckpoint checkpoint = null;
+	
+	HaltHandler haltHandler = new DialogHaltHandler();
+	
 	public Direct(Driver driver, SimulationDriver simulator, GCodeSource source) {
 		this.driver = driver;
 		this.source = source;
@@ -95,6 +97,20 @@ public class Direct implements MachineBuilder{
 		state = State.RUNNING_GCODE;
 	}
 	
+	/**
+	 * Keep track of how far the build gets, so that it can be resumed if it is cut short.
+	 */
+	public void setCheckpoint(BuildCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+	
+	
+	/**
+	 * Decide what happens at halts in the gcode, rather than asking the user.
+	 */
+	public void setHaltHandler(HaltHandler haltHandler) {
+		this.haltHandler = haltHandler;
+	}
 	
 	@Override
 	public boolean finished() {
@@ -108,6 +124,9 @@ public class Direct implements MachineBuilder{
 			// TODO: This is clunky.
 			if (driver.isFinished()) {
 				state = State.FINISHED;
+				if (checkpoint != null) {
+					checkpoint.finished();
+				}
 			} else {
 				state = State.WAITING_FOR_MACHINE_FINISH;
 			}
@@ -161,6 +180,9 @@ public class Direct implements MachineBuilder{
 			}
 			
 			retry = false;
+			if (checkpoint != null) {
+				checkpoint.reached(linesProcessed);
+			}
 		} catch (RetryException r) {
 			// Indicate that we should retry the current line, rather
 			// than proceeding to the next, on the next go-round.
@@ -168,33 +190,10 @@ public class Direct implements MachineBuilder{
 			retry = true;
 		} catch (StopException e) {
 			// TODO: Just returning here seems dangerous, better to notify the state machine.
-			
-			switch (e.getType()) {
-			case UNCONDITIONAL_HALT:
-				JOptionPane.showMessageDialog(null, e.getMessage(), 
-						"Unconditional halt: build ended", JOptionPane.INFORMATION_MESSAGE);
-				state = State.FINISHED;
-				break;
-			case PROGRAM_END:
-				JOptionPane.showMessageDialog(null, e.getMessage(),
-						"Program end: Build ended", JOptionPane.INFORMATION_MESSAGE);
-				state = State.FINISHED;
-				break;
-			case OPTIONAL_HALT:
-				int result = JOptionPane.showConfirmDialog(null, e.getMessage(),
-						"Optional halt: Continue build?", JOptionPane.YES_NO_OPTION);
-				
-				if (result == JOptionPane.YES_OPTION) {
-					driverQueue.remove();
-				} else {
-					state = State.FINISHED;
-				}
-				break;
-			case PROGRAM_REWIND:
-				JOptionPane.showMessageDialog(null, e.getMessage(),
-						"Program rewind: Build ended", JOptionPane.INFORMATION_MESSAGE);
+			if (haltHandler.halted(e)) {
+				driverQueue.remove();
+			} else {
 				state = State.FINISHED;
-				break;
 			}
 		}
 	}
@@ -0,0 +1,16 @@
+package replicatorg.machine.builder;
+
+import replicatorg.drivers.StopException;
+
+/**
+ * Decides what a build does when the gcode halts it (M0, M1, M2, M30).
+ * By default the user is asked (see DialogHaltHandler); a build with nobody
+ * watching it can set a handler of its own on the machine.
+ */
+public interface HaltHandler {
+	/**
+	 * Called on the machine thread when a halt is reached.
+	 * @return true to skip the halt and go on building, false to end the build
+	 */
+	public boolean halted(StopException e);
+}
@@ -46,6 +46,11 @@ public class ToLocalFile implements MachineBuilder {
 		}
 	}
 	
+	public void setHaltHandler(HaltHandler haltHandler) {
+		if (directBuilder != null)
+			directBuilder.setHaltHandler(haltHandler);
+	}
+	
 	@Override
 	public boolean finished() {
 		if(setupFailed)
@@ -32,6 +32,11 @@ public class ToRemoteFile implements MachineBuilder {
 		}
 	}
 	
+	public void setHaltHandler(HaltHandler haltHandler) {
+		if (directBuilder != null)
+			directBuilder.setHaltHandler(haltHandler);
+	}
+	
 	@Override
 	public boolean finished() {
 		// if we got an error response, we don't have any work to do, so just return
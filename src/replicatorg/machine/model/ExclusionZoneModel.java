@@ -9,6 +9,7 @@ public class ExclusionZoneModel {
 	private float[] topleft = new float[3];
 	private float[] bottomright = new float[3];
 	private String reason;
+	private boolean valid = false;
 	Node xml;
 	public ExclusionZoneModel(Node n)
 	{
@@ -21,7 +22,8 @@ public class ExclusionZoneModel {
 		try
 		{
 			//topleft
-			String n = XML.getAttributeValue(xml, "topleft");
+			String n = XML.getAttributeValue(xml, "topleftback");
+			if (n == null) { n = XML.getAttributeValue(xml, "topleft"); }
 			if (n != null)
 			{
 				String[] nsplit = n.split(",");
@@ -30,7 +32,8 @@ public class ExclusionZoneModel {
 					topleft[i] = Float.parseFloat(nsplit[i]);
 				}
 			}
-			n = XML.getAttributeValue(xml, "bottomright");
+			n = XML.getAttributeValue(xml, "bottomrightfront");
+			if (n == null) { n = XML.getAttributeValue(xml, "bottomright"); }
 			if (n != null)
 			{
 				String[] nsplit = n.split(",");
@@ -44,7 +47,7 @@ public class ExclusionZoneModel {
 			{
 			reason = n;	
 			}
-
+			valid = true;
 
 		}
 		catch(NumberFormatException e)
@@ -55,4 +58,16 @@ public class ExclusionZoneModel {
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * @return false if the zone's corners couldn't be read
+	 */
+	public boolean isValid() { return valid; }
+
+	public String getReason() { return reason; }
+
+	public double getMinX() { return Math.min(topleft[0], bottomright[0]); }
+	public double getMaxX() { return Math.max(topleft[0], bottomright[0]); }
+	public double getMinY() { return Math.min(topleft[1], bottomright[1]); }
+	public double getMaxY() { return Math.max(topleft[1], bottomright[1]); }
 }
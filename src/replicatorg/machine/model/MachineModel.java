@@ -81,6 +81,7 @@ public class MachineModel
 
 	//our wipe models @Noah
 	protected  Vector<WipeModel> wipes = new Vector<WipeModel>();
+	protected  Vector<ExclusionZoneModel> exclusionZones = new Vector<ExclusionZoneModel>();
 	
 	// our machine-specific start & end gcode
 	protected File dualstartBookendCode = null;
@@ -157,16 +158,18 @@ public class MachineModel
 	{
 		if(XML.hasChildNode(xml, "exclusion"))
 		{
-			Node exclusionNode = XML.getChildNodeByName(xml, "wipes");
+			Node exclusionNode = XML.getChildNodeByName(xml, "exclusion");
 			NodeList exclusionKids = exclusionNode.getChildNodes();
 			for (int i=0; i<exclusionKids.getLength(); i++)
 			{
 				Node exclusionZoneNode = exclusionKids.item(i);
 				
-				if (exclusionZoneNode.getNodeName().equals("wipe"))
+				if (exclusionZoneNode.getNodeName().equals("exclusion_zone"))
 				{
-					WipeModel wipe = new WipeModel(exclusionZoneNode);
-					wipes.add(wipe);
+					ExclusionZoneModel zone = new ExclusionZoneModel(exclusionZoneNode);
+					if (zone.isValid()) {
+						exclusionZones.add(zone);
+					}
 				}
 			}
 		}
@@ -630,6 +633,13 @@ public class MachineModel
 	/*************************************
 	*  Wipe functions
 	*************************************/
+	/**
+	 * Get the areas of the platform that models must not be placed on.
+	 */
+	public Vector<ExclusionZoneModel> getExclusionZones() {
+		return exclusionZones;
+	}
+
 	public Vector<WipeModel> getWipes() {
 		return wipes;
 	}
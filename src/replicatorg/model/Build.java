@@ -40,6 +40,7 @@ import javax.swing.JOptionPane;
 
 import replicatorg.app.Base;
 import replicatorg.app.ui.MainWindow;
+import replicatorg.app.util.FileProgress;
 
 /**
  * Stores information about files in the current build
@@ -226,6 +227,23 @@ public class Build {
 	 * Save all code in the current sketch.
 	 */
 	public boolean save() throws IOException {
+		return save(null);
+	}
+
+	/**
+	 * @return whether save() would have to ask for a new place to save the
+	 * build, because it has never been saved or can't be written where it is
+	 */
+	public boolean needsSaveAs() {
+		return mainFilename == null || isReadOnly();
+	}
+
+	/**
+	 * Save all code in the current sketch, asking for a new place to save it
+	 * if need be.
+	 * @param progress told how far the gcode has been written, or null
+	 */
+	public boolean save(FileProgress progress) throws IOException {
 		if (mainFilename == null) {
 			return saveAs();
 		}
@@ -247,8 +265,7 @@ public class Build {
 			if(hasMainWindow )
 			{
 				if (code.isModified()) { 
-					code.program = editor.getText();
-					code.save();
+					code.save(progress);
 				}
 			}
 		}
@@ -273,6 +290,19 @@ public class Build {
 	 * can cause trouble.
 	 */
 	public boolean saveAs() throws IOException {
+		File mainFile = askSaveAsFile();
+		// user cancelled selection
+		if (mainFile == null)
+			return false;
+		saveAs(mainFile, null);
+		return true;
+	}
+
+	/**
+	 * Ask the user where to save the build.
+	 * @return the main file chosen, or null if the user cancelled
+	 */
+	public File askSaveAsFile() throws IOException {
 		// get new name for folder
 		FileDialog fd = new FileDialog(new Frame(), "Save file as...",
 				FileDialog.SAVE);
@@ -285,9 +315,19 @@ public class Build {
 		String newName = fd.getFile();
 		// user cancelled selection
 		if (newName == null)
-			return false;
+			return null;
+		return new File(parentDir, newName);
+	}
 
-		File folder = new File(parentDir);
+	/**
+	 * Save the build under a new name, without asking.
+	 * @param mainFile the new main file; the other elements of the build are
+	 * saved beside it under the same name
+	 * @param progress told how far the gcode has been written, or null
+	 */
+	public void saveAs(File mainFile, FileProgress progress) throws IOException {
+		File folder = mainFile.getParentFile();
+		String newName = mainFile.getName();
 
 		// Find base name
 		if (newName.toLowerCase().endsWith(".gcode")) newName = newName.substring(0, newName.length()-6);
@@ -299,16 +339,8 @@ public class Build {
 
 		BuildCode code = getCode();
 		if (code != null) {
-			// grab the contents of the current tab before saving
-			// first get the contents of the editor text area
-			if(hasMainWindow)
-			{
-				if (code.isModified()) {
-					code.program = editor.getText();
-				}
-			}
 			File newFile = new File(folder, newName+".gcode");
-			code.saveAs(newFile);
+			code.saveAs(newFile, progress);
 		}
 
 		BuildModel model = getModel();
@@ -318,9 +350,8 @@ public class Build {
 		}
 
 		this.name = newName;
-		this.mainFilename = fd.getFile();
+		this.mainFilename = mainFile.getName();
 		this.folder = folder;
-		return true;
 	}
 
 	/**
@@ -343,24 +374,28 @@ public class Build {
 		return null;
 	}
 
+	private BuildPlate plate = null;
+
+	/**
+	 * Return the plate of models to be built together.  The plate starts out
+	 * holding this build's own model, if it has one.
+	 */
+	public BuildPlate getPlate() {
+		if (plate == null) {
+			plate = new BuildPlate(this);
+			BuildModel model = getModel();
+			if (model != null) { plate.add(model); }
+		}
+		return plate;
+	}
+
     /**
      * The line count.
      * @return the number of lines in the gcode.
      */
     public int getLines() {
-        int ret;
-
         BuildCode code = getCode();
-        if (null != code)
-            ret = countLines(code.program);
-        else
-            ret = 0;
-
-        return (ret);
-	}
-
-	protected int countLines(String what) {
-		return what.split("\n").length - 1;
+        return (null != code) ? code.getLineCount() : 0;
 	}
 
 	static public String scrubComments(String what) {
@@ -26,23 +26,41 @@
 package replicatorg.model;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+
+import javax.swing.text.BadLocationException;
 
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeLayerIndex;
+import replicatorg.app.syntax.LargeFileDocument;
+import replicatorg.app.syntax.PagedContent;
 import replicatorg.app.syntax.SyntaxDocument;
+import replicatorg.app.util.FileProgress;
 
 public class BuildCode extends BuildElement implements Comparable<BuildCode> {
+	/** How much of a file is read or written at a time */
+	private static final int CHUNK = 256*1024;
+
 	/** Pretty name (no extension), not the full file name */
 	public String name;
 
 	/** File object for where this code is located */
 	public File file;
 
-	/** Text of the program text for this tab */
-	public String program;
-
-	/** Document object for this tab; includes undo information, etc. */
+	/**
+	 * Document object for this tab; includes undo information, etc.  It is
+	 * null until the code is loaded.
+	 */
 	public SyntaxDocument document;
 
 	// saved positions from last time this tab was used
@@ -52,38 +70,136 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 
 	public int scrollPosition;
 
+	/** Where the layers of the saved file are; built when first asked for */
+	private GCodeLayerIndex layerIndex = null;
+
+	/**
+	 * Code with no file starts out empty; code with a file isn't read until
+	 * load() is called, which the editor does in the background.
+	 */
 	public BuildCode(String name, File file) {
 		this.name = name;
 		this.file = file;
-		try {
-			load();
-		} catch (IOException e) {
-			Base.logger.severe("error while loading code " + name);
+		if (file == null) {
+			document = new SyntaxDocument();
+			setModified(true);
 		}
 	}
 
+	/** @return whether the code has been read into its document */
+	public boolean isLoaded() {
+		return document != null;
+	}
+
+	public void load() throws IOException {
+		load(null);
+	}
+
 	/**
-	 * Load this piece of code from a file.
+	 * Read this piece of code from its file into a new document.  A file
+	 * bigger than the "editor.largefile.kb" preference isn't read here at
+	 * all; it is shown through a LargeFileDocument, which reads it as it is
+	 * looked at.  The lines are counted as the file is read, so the count is
+	 * ready as soon as the load is done.
+	 * @param progress told how many bytes have been read, or null
 	 */
-	public void load() throws IOException {
+	public void load(FileProgress progress) throws IOException {
 		if (file == null) {
-			program = "";
+			document = new SyntaxDocument();
 			setModified(true);
+		} else if (file.length() > Base.preferences.getInt("editor.largefile.kb", 4096) * 1024L) {
+			document = new LargeFileDocument(file, progress);
+			setModified(false);
 		} else {
-			program = Base.loadFile(file);
+			document = read(file, progress);
 			setModified(false);
 		}
 	}
 
+	/**
+	 * Read a file into a new document, a chunk at a time.  Line endings are
+	 * made "\n" and the text ends with one, as Base.loadFile() leaves it.
+	 */
+	private static SyntaxDocument read(File file, FileProgress progress) throws IOException {
+		Base.logger.info("Load file : "+file.getAbsolutePath());
+		SyntaxDocument doc = new SyntaxDocument();
+		long total = file.length();
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			Reader reader = Channels.newReader(channel, Charset.defaultCharset().newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE), CHUNK);
+			char[] in = new char[CHUNK];
+			char[] out = new char[CHUNK];
+			boolean lastCR = false;
+			char last = '\n';
+			int n;
+			while ((n = reader.read(in)) > 0) {
+				int m = 0;
+				for (int i = 0; i < n; i++) {
+					char c = in[i];
+					if (c == '\n' && lastCR) {
+						lastCR = false;
+						continue;
+					}
+					lastCR = (c == '\r');
+					out[m++] = lastCR ? '\n' : c;
+				}
+				if (m > 0) {
+					// The document adds the new lines to its line elements
+					doc.insertString(doc.getLength(), new String(out, 0, m), null);
+					last = out[m - 1];
+				}
+				if (progress != null) { progress.progress(channel.position(), total); }
+			}
+			if (last != '\n') {
+				doc.insertString(doc.getLength(), "\n", null);
+			}
+		} catch (BadLocationException ble) {
+			// Only ever inserting at the end
+			throw new IOException(ble.getMessage());
+		} finally {
+			channel.close();
+		}
+		return doc;
+	}
+
+	/**
+	 * @return whether the code is too big to hold in memory, so that it
+	 * lives in a LargeFileDocument that reads it from the file
+	 */
+	public boolean isLarge() {
+		return document instanceof LargeFileDocument;
+	}
+
+	/**
+	 * @return the number of lines in the code; 0 if it hasn't been loaded
+	 */
+	public int getLineCount() {
+		if (document == null) { return 0; }
+		// The document keeps one more line element than there are lines
+		return document.getDefaultRootElement().getElementCount() - 1;
+	}
+
 	/**
 	 * Save this piece of code, regardless of whether the modified flag is set
 	 * or not.
 	 */
 	public void save() throws IOException {
+		save(null);
+	}
+
+	/**
+	 * Save this piece of code, regardless of whether the modified flag is set
+	 * or not.  The document can't be edited until this returns, or the saved
+	 * file would lag behind it while it is shown as unmodified.
+	 * @param progress told how far the save has got, or null
+	 */
+	public void save(FileProgress progress) throws IOException {
 		// TODO re-enable history
 		// history.record(s, SketchHistory.SAVE);
 
-		Base.saveFile(program, file);
+		write(file, progress);
 		setModified(false);
 	}
 
@@ -91,7 +207,11 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 	 * Save this file to another location, used by Sketch.saveAs()
 	 */
 	public void saveAs(File newFile) throws IOException {
-		Base.saveFile(program, newFile);
+		saveAs(newFile, null);
+	}
+
+	public void saveAs(File newFile, FileProgress progress) throws IOException {
+		write(newFile, progress);
 		file = newFile;
 		name = file.getName();
 		// we're still truncating the suffix, for now.
@@ -102,6 +222,80 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 		setModified(false);
 	}
 
+	/**
+	 * Write the code to a file.  It is written in full to a temporary file
+	 * and forced to disk, which then replaces the file in one step, so a
+	 * write that fails or is cancelled leaves the file as it was.  Lines are
+	 * written from a snapshot of the document, with the platform's line
+	 * endings.
+	 */
+	private void write(File dest, FileProgress progress) throws IOException {
+		if (document == null) { load(progress); }
+		Base.logger.info("Saving as "+dest.getCanonicalPath());
+		if (document instanceof LargeFileDocument) {
+			((LargeFileDocument)document).save(dest, progress);
+			return;
+		}
+		PagedContent.Snapshot snapshot = document.getSnapshot();
+		File tmp = new File(dest.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			Writer writer = Channels.newWriter(out.getChannel(), Charset.defaultCharset().newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE), CHUNK);
+			String eol = System.getProperty("line.separator");
+			int count = snapshot.getLineCount();
+			Iterator<String> lines = snapshot.lines();
+			for (int i = 0; i < count && lines.hasNext(); i++) {
+				String line = lines.next();
+				// Every line gets an ending, but an empty last line isn't a line
+				if (i < count - 1 || line.length() > 0) {
+					writer.write(line);
+					writer.write(eol);
+				}
+				if (progress != null && i % 4096 == 0) { progress.progress(i, count); }
+			}
+			writer.flush();
+			out.getChannel().force(true);
+		} catch (IOException ioe) {
+			out.close();
+			tmp.delete();
+			throw ioe;
+		} catch (GCodeSourceException gse) {
+			out.close();
+			tmp.delete();
+			IOException ioe = new IOException(gse.getMessage());
+			ioe.initCause(gse.getCause());
+			throw ioe;
+		} finally {
+			snapshot.close();
+		}
+		out.close();
+		Base.replaceFile(tmp, dest);
+	}
+
+	/**
+	 * Get the layer index for the saved copy of this code, building it if
+	 * there isn't an up to date one.
+	 * @return the index, or null if the code hasn't been saved to a file
+	 */
+	public GCodeLayerIndex getLayerIndex() throws IOException {
+		return getLayerIndex(null);
+	}
+
+	/**
+	 * Get the layer index, as getLayerIndex() does, telling progress how far
+	 * building it has got.  Building the index is a pass over the whole
+	 * file, so this shouldn't be called on the event thread.
+	 */
+	public synchronized GCodeLayerIndex getLayerIndex(FileProgress progress) throws IOException {
+		if (file == null || !file.isFile()) { return null; }
+		if (layerIndex == null || !layerIndex.isCurrent(file)) {
+			layerIndex = GCodeLayerIndex.get(file, progress);
+		}
+		return layerIndex;
+	}
+
 	public int compareTo(BuildCode other) {
 		if (name == null) { return (other.name == null)?0:-1; }
 		return name.compareTo(other.name);
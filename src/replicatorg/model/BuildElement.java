@@ -4,6 +4,7 @@ import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.List;
 
+import javax.swing.SwingUtilities;
 import javax.swing.undo.UndoManager;
 
 public abstract class BuildElement {
@@ -38,9 +39,17 @@ public abstract class BuildElement {
 	}
 	
 	/**
-	 * Tell all our listeners that we've been updated.
+	 * Tell all our listeners that we've been updated.  Listeners are told on
+	 * the event thread, as an element can be saved in the background.
 	 */
 	protected void emitUpdate() {
+		if (listeners.isEmpty()) { return; }
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() { emitUpdate(); }
+			});
+			return;
+		}
 		for (Listener l : listeners) {
 			l.buildElementUpdate(this);
 		}
@@ -22,6 +22,8 @@ import org.j3d.renderer.java3d.loaders.STLLoader;
 
 import replicatorg.app.Base;
 import replicatorg.app.ui.modeling.EditingModel;
+import replicatorg.model.j3d.IndexedMesh;
+import replicatorg.model.j3d.MeshCache;
 import replicatorg.model.j3d.StlAsciiWriter;
 
 import com.sun.j3d.loaders.Loader;
@@ -85,6 +87,15 @@ public class BuildModel extends BuildElement {
 	}
 	
 	private void loadShape() {
+		MeshCache cache = MeshCache.getCache();
+		if (cache != null) {
+			IndexedMesh mesh = cache.get(file);
+			if (mesh != null) {
+				Base.logger.fine("Loaded "+file.getName()+" from the mesh cache");
+				shape = new Shape3D(mesh.toTriangleArray());
+				return;
+			}
+		}
 		String suffix = null;
 		String name = file.getName();
 		int idx = name.lastIndexOf('.');
@@ -106,7 +117,17 @@ public class BuildModel extends BuildElement {
 				if (candidate != null) { break; }
 			}
 		}
-		if (candidate != null) { shape = candidate; }
+		if (candidate != null) {
+			shape = candidate;
+			if (cache != null) {
+				// Only triangle arrays make it into the mesh; don't cache a
+				// model that would come back empty.
+				IndexedMesh mesh = IndexedMesh.fromShape(shape);
+				if (mesh.getTriangleCount() > 0) {
+					cache.put(file, mesh);
+				}
+			}
+		}
 	}
 
 	public Transform3D getTransform() { return transform; }
@@ -182,7 +203,9 @@ public class BuildModel extends BuildElement {
 	public void doEdit(Transform3D edit) {
 		transform.set(edit);
 		setModified(undo.canUndo());
-		editListener.modelTransformChanged();
+		if (editListener != null) {
+			editListener.modelTransformChanged();
+		}
 	}
 	
 	private String getFileExtension(File file) {
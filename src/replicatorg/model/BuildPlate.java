@@ -0,0 +1,149 @@
+package replicatorg.model;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.j3d.Shape3D;
+import javax.media.j3d.Transform3D;
+import javax.vecmath.Vector3d;
+
+import replicatorg.app.Base;
+import replicatorg.machine.model.BuildVolume;
+import replicatorg.machine.model.ExclusionZoneModel;
+import replicatorg.model.j3d.ConvexHull;
+import replicatorg.model.j3d.Footprint;
+import replicatorg.model.j3d.StlBinaryWriter;
+
+/**
+ * A set of models laid out together on the build platform.  Each model keeps
+ * its own file and transform; the plate can arrange them automatically and
+ * write them out as one combined mesh for the slicer.
+ */
+public class BuildPlate {
+	private final Build build;
+	private final List<BuildModel> models = new ArrayList<BuildModel>();
+	/** Convex hulls are only rebuilt when a model is added. */
+	private final Map<BuildModel,ConvexHull> hulls = new HashMap<BuildModel,ConvexHull>();
+
+	public BuildPlate(Build build) {
+		this.build = build;
+	}
+
+	public List<BuildModel> getModels() {
+		return Collections.unmodifiableList(models);
+	}
+
+	/**
+	 * Load a model file and add it to the plate.
+	 */
+	public BuildModel addModel(File file) {
+		BuildModel model = new BuildModel(build, file);
+		add(model);
+		return model;
+	}
+
+	public void add(BuildModel model) {
+		if (!models.contains(model)) {
+			models.add(model);
+		}
+	}
+
+	public void remove(BuildModel model) {
+		models.remove(model);
+		hulls.remove(model);
+	}
+
+	private ConvexHull getHull(BuildModel model) {
+		ConvexHull hull = hulls.get(model);
+		if (hull == null) {
+			hull = ConvexHull.fromShape(model.getShape());
+			hulls.put(model, hull);
+		}
+		return hull;
+	}
+
+	/**
+	 * Get the outline of a model on the platform under its current transform.
+	 */
+	public Footprint getFootprint(BuildModel model) {
+		return Footprint.fromHull(getHull(model), model.getTransform());
+	}
+
+	/**
+	 * Lay out all the models on the platform, largest first, inside the build
+	 * volume and clear of the exclusion zones.  Models that don't fit are left
+	 * where they are.
+	 * @param spacing the minimum gap between parts, in mm
+	 * @param rotations the number of evenly spaced rotations about Z to try
+	 * @return the models that couldn't be placed
+	 */
+	public List<BuildModel> arrange(BuildVolume volume, List<ExclusionZoneModel> zones,
+			double spacing, int rotations) {
+		long start = System.currentTimeMillis();
+		PlateArranger arranger = new PlateArranger(volume, spacing, rotations);
+		if (zones != null) {
+			for (ExclusionZoneModel zone : zones) { arranger.exclude(zone); }
+		}
+		final Map<BuildModel,Footprint> footprints = new HashMap<BuildModel,Footprint>();
+		List<BuildModel> order = new ArrayList<BuildModel>();
+		for (BuildModel model : models) {
+			if (model.getShape() == null) { continue; }
+			footprints.put(model, getFootprint(model));
+			order.add(model);
+		}
+		Collections.sort(order, new Comparator<BuildModel>() {
+			public int compare(BuildModel a, BuildModel b) {
+				return Double.compare(footprints.get(b).getArea(), footprints.get(a).getArea());
+			}
+		});
+		List<BuildModel> unplaced = new ArrayList<BuildModel>();
+		for (BuildModel model : order) {
+			PlateArranger.Placement p = arranger.place(footprints.get(model));
+			if (p == null) {
+				unplaced.add(model);
+				continue;
+			}
+			Transform3D rotate = new Transform3D();
+			rotate.rotZ(p.angle);
+			Transform3D t = new Transform3D();
+			t.setTranslation(new Vector3d(p.dx, p.dy, 0));
+			t.mul(rotate);
+			t.mul(model.getTransform());
+			model.setTransform(t, "Arrange plate", true);
+		}
+		Base.logger.fine("Arranged "+(order.size()-unplaced.size())+" of "+models.size()+
+				" models in "+(System.currentTimeMillis()-start)+" ms");
+		return unplaced;
+	}
+
+	/**
+	 * Write every model on the plate, under its own transform, into a single
+	 * binary STL.
+	 */
+	public void writeCombined(File f) throws IOException {
+		List<Shape3D> shapes = new ArrayList<Shape3D>();
+		List<Transform3D> transforms = new ArrayList<Transform3D>();
+		for (BuildModel model : models) {
+			if (model.getShape() == null) { continue; }
+			shapes.add(model.getShape());
+			transforms.add(model.getTransform());
+		}
+		OutputStream ostream = new BufferedOutputStream(new FileOutputStream(f));
+		StlBinaryWriter writer = new StlBinaryWriter(ostream);
+		try {
+			writer.writeShapes(shapes.toArray(new Shape3D[shapes.size()]),
+					transforms.toArray(new Transform3D[transforms.size()]));
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package replicatorg.model;
+
+/**
+ * Thrown by a GCodeSource's iterator when the rest of its code can't be
+ * read.  Iterators can't throw IOException, and ending the iteration early
+ * would make a build that was cut short look finished.
+ */
+public class GCodeSourceException extends RuntimeException {
+	public GCodeSourceException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
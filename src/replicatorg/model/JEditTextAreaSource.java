@@ -1,49 +1,56 @@
 /**
- * 
+ *
  */
 package replicatorg.model;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
 import replicatorg.app.syntax.JEditTextArea;
+import replicatorg.app.syntax.PagedContent;
 
 /**
+ * The gcode in a text area, as it was when the source was made.  The source
+ * reads a snapshot of the document rather than the text area itself, so the
+ * machine thread never touches Swing and the user can go on editing while
+ * the build runs.  Making one doesn't copy the text, but it may hold the
+ * document's file open until the lines have been read to the end or the
+ * source is closed.
+ *
  * @author phooky
  *
  */
-public class JEditTextAreaSource implements GCodeSource {
-	
-	private JEditTextArea textarea;
-	
+public class JEditTextAreaSource implements GCodeSource, Closeable {
+
+	private PagedContent.Snapshot snapshot;
+
 	public JEditTextAreaSource(JEditTextArea textarea) {
-		this.textarea = textarea;
+		this.snapshot = textarea.getDocument().getSnapshot();
 	}
 
 	@Override
 	public Iterator<String> iterator() {
-		final JEditTextArea ta = this.textarea;
-		return new Iterator<String>() {
-			int idx = 0;
-			public boolean hasNext() { return idx < ta.getLineCount(); }
-			public String next() { String s = ta.getLineText(idx); idx = idx + 1; return s; }
-			public void remove() { throw new UnsupportedOperationException(); }
-		};
+		return snapshot.lines();
 	}
-	
+
 	@Override
 	public int getLineCount() {
-		return textarea.getLineCount();
+		return snapshot.getLineCount();
 	}
 
 	@Override
 	public List<String> asList() {
-		List<String> result = new ArrayList<String>();
+		List<String> result = new ArrayList<String>(getLineCount());
 		for(Iterator<String> i = iterator(); i.hasNext();)
 			result.add(i.next());
 		return result;
 	}
 
-	
+	public void close() {
+		snapshot.close();
+	}
+
+
 }
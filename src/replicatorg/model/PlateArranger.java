@@ -0,0 +1,187 @@
+package replicatorg.model;
+
+import java.util.Arrays;
+
+import replicatorg.machine.model.BuildVolume;
+import replicatorg.machine.model.ExclusionZoneModel;
+import replicatorg.model.j3d.Footprint;
+
+/**
+ * Packs model footprints onto the build platform, bottom-left first.
+ *
+ * The platform is rasterized into square cells.  For every cell we keep the
+ * number of free cells running to its right, so a candidate position for a
+ * part can be rejected with one lookup per row of the part, and the search can
+ * jump straight past whatever blocked it.  Since footprints are convex, each
+ * row of a part is a single run of cells.
+ */
+public class PlateArranger {
+	/** The coarsest the grid will get, in cells along the longer platform side. */
+	private static final int MAX_CELLS = 400;
+	/** The finest the grid will get, in mm. */
+	private static final double MIN_CELL = 0.5;
+
+	/** Where to put a part: rotate about Z by angle, then move by dx, dy. */
+	public static class Placement {
+		public final double angle;
+		public final double dx;
+		public final double dy;
+
+		Placement(double angle, double dx, double dy) {
+			this.angle = angle;
+			this.dx = dx;
+			this.dy = dy;
+		}
+	}
+
+	private final double minX, minY;
+	private final double cell;
+	private final double margin;
+	private final int rotations;
+	private final int cols, rows;
+	private final boolean[] blocked;
+	/** Length of the free run starting at each cell. */
+	private final int[] free;
+
+	/**
+	 * @param volume the machine's build volume, centered on the origin
+	 * @param spacing the minimum gap to leave between parts, in mm
+	 * @param rotations the number of evenly spaced rotations to try for each part
+	 */
+	public PlateArranger(BuildVolume volume, double spacing, int rotations) {
+		minX = -volume.getX()/2d;
+		minY = -volume.getY()/2d;
+		cell = Math.max(MIN_CELL, Math.max(volume.getX(), volume.getY())/(double)MAX_CELLS);
+		margin = spacing/2d;
+		this.rotations = Math.max(1, rotations);
+		cols = (int)Math.floor(volume.getX()/cell);
+		rows = (int)Math.floor(volume.getY()/cell);
+		blocked = new boolean[cols*rows];
+		free = new int[cols*rows];
+		for (int r = 0; r < rows; r++) { updateRow(r); }
+	}
+
+	/**
+	 * Keep parts off an exclusion zone.
+	 */
+	public void exclude(ExclusionZoneModel zone) {
+		int c0 = Math.max(0, (int)Math.floor((zone.getMinX() - margin - minX)/cell));
+		int c1 = Math.min(cols-1, (int)Math.ceil((zone.getMaxX() + margin - minX)/cell) - 1);
+		int r0 = Math.max(0, (int)Math.floor((zone.getMinY() - margin - minY)/cell));
+		int r1 = Math.min(rows-1, (int)Math.ceil((zone.getMaxY() + margin - minY)/cell) - 1);
+		for (int r = r0; r <= r1; r++) {
+			if (c0 <= c1) {
+				Arrays.fill(blocked, r*cols + c0, r*cols + c1 + 1, true);
+			}
+			updateRow(r);
+		}
+	}
+
+	/**
+	 * Find the lowest, then leftmost, free spot for a footprint over all the
+	 * rotations, and mark it as taken.
+	 * @return the placement, or null if the part doesn't fit anywhere
+	 */
+	public Placement place(Footprint footprint) {
+		Placement best = null;
+		int[] bestMask = null;
+		int bestTop = Integer.MAX_VALUE, bestRight = Integer.MAX_VALUE;
+		int bestCol = 0, bestRow = 0;
+		for (int i = 0; i < rotations; i++) {
+			double angle = 2*Math.PI*i/rotations;
+			Footprint f = footprint.rotate(angle);
+			double[] b = f.getBounds();
+			double ox = b[0] - margin, oy = b[1] - margin;
+			int[] mask = rasterize(f, ox, oy, b[3] - b[1] + 2*margin);
+			int width = maskWidth(mask);
+			int height = mask.length/2;
+			if (width > cols || height > rows) { continue; }
+			for (int row = 0; row + height <= rows && row + height <= bestTop; row++) {
+				int col = findColumn(mask, width, row);
+				if (col < 0) { continue; }
+				int top = row + height, right = col + width;
+				if (top < bestTop || (top == bestTop && right < bestRight)) {
+					bestTop = top;
+					bestRight = right;
+					bestCol = col;
+					bestRow = row;
+					bestMask = mask;
+					best = new Placement(angle, minX + col*cell - ox, minY + row*cell - oy);
+				}
+				break;
+			}
+		}
+		if (best != null) { occupy(bestMask, bestCol, bestRow); }
+		return best;
+	}
+
+	/**
+	 * Rasterize a footprint grown by the margin, in cells relative to (ox, oy).
+	 * @return the first and last cell of each row, or -1, -2 for an empty row
+	 */
+	private int[] rasterize(Footprint f, double ox, double oy, double extent) {
+		int height = Math.max(1, (int)Math.ceil(extent/cell));
+		int[] mask = new int[height*2];
+		double[] span = new double[2];
+		for (int r = 0; r < height; r++) {
+			double lo = oy + r*cell, hi = lo + cell;
+			if (f.getSpan(lo - margin, hi + margin, span)) {
+				mask[r*2] = Math.max(0, (int)Math.floor((span[0] - margin - ox)/cell));
+				mask[r*2+1] = (int)Math.ceil((span[1] + margin - ox)/cell) - 1;
+			} else {
+				mask[r*2] = -1;
+				mask[r*2+1] = -2;
+			}
+		}
+		return mask;
+	}
+
+	private int maskWidth(int[] mask) {
+		int width = 0;
+		for (int r = 0; r < mask.length/2; r++) {
+			width = Math.max(width, mask[r*2+1] + 1);
+		}
+		return width;
+	}
+
+	/**
+	 * Find the leftmost column at which the mask fits with its bottom at the given row.
+	 * @return the column, or -1 if it doesn't fit anywhere in the row
+	 */
+	private int findColumn(int[] mask, int width, int row) {
+		int col = 0;
+		search:
+		while (col + width <= cols) {
+			for (int r = 0; r < mask.length/2; r++) {
+				int lo = mask[r*2], hi = mask[r*2+1];
+				if (lo > hi) { continue; }
+				int run = free[(row + r)*cols + col + lo];
+				if (run < hi - lo + 1) {
+					// Skip past the blocked cell
+					col += run + 1;
+					continue search;
+				}
+			}
+			return col;
+		}
+		return -1;
+	}
+
+	private void occupy(int[] mask, int col, int row) {
+		for (int r = 0; r < mask.length/2; r++) {
+			int lo = mask[r*2], hi = mask[r*2+1];
+			if (lo > hi) { continue; }
+			int base = (row + r)*cols + col;
+			Arrays.fill(blocked, base + lo, base + hi + 1, true);
+			updateRow(row + r);
+		}
+	}
+
+	private void updateRow(int r) {
+		int run = 0;
+		for (int c = cols-1; c >= 0; c--) {
+			run = blocked[r*cols + c] ? 0 : run + 1;
+			free[r*cols + c] = run;
+		}
+	}
+}
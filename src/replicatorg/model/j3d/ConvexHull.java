@@ -0,0 +1,503 @@
+package replicatorg.model.j3d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.j3d.BoundingBox;
+import javax.media.j3d.Geometry;
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.Shape3D;
+import javax.media.j3d.Transform3D;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+/**
+ * The convex hull of a mesh, computed once with the quickhull algorithm.  Any
+ * query that only depends on the extreme points of a model (bounding box under
+ * an arbitrary transform, lowest point, lowest face) can be answered from the
+ * hull vertices alone, which are usually a small fraction of the mesh vertices.
+ *
+ * Hull faces are triangles wound counter-clockwise when seen from outside the hull.
+ * If the mesh is flat (all points coplanar), the hull has two faces lying in the
+ * plane of the mesh, one facing each way.  If the mesh is collinear or empty, the
+ * hull has no faces.
+ */
+public class ConvexHull {
+	/** Packed x,y,z coordinates of the hull vertices. */
+	private final double[] points;
+	/** Three vertex indices per face. */
+	private final int[] faces;
+	/** For each vertex, the indices of the faces that use it. */
+	private final int[][] vertexFaces;
+
+	/**
+	 * Build the hull of all the geometry in the given shape.  The shape must allow
+	 * its geometry and coordinates to be read if it is live or compiled.
+	 */
+	public static ConvexHull fromShape(Shape3D shape) {
+		int count = 0;
+		Enumeration<?> geometries = shape.getAllGeometries();
+		while (geometries.hasMoreElements()) {
+			Geometry g = (Geometry)geometries.nextElement();
+			if (g instanceof GeometryArray) {
+				count += ((GeometryArray)g).getVertexCount();
+			}
+		}
+		double[] coords = new double[count*3];
+		int offset = 0;
+		geometries = shape.getAllGeometries();
+		while (geometries.hasMoreElements()) {
+			Geometry g = (Geometry)geometries.nextElement();
+			if (g instanceof GeometryArray) {
+				GeometryArray ga = (GeometryArray)g;
+				int n = ga.getVertexCount();
+				if (n == 0) { continue; }
+				double[] c = new double[n*3];
+				ga.getCoordinates(0, c);
+				System.arraycopy(c, 0, coords, offset, c.length);
+				offset += c.length;
+			}
+		}
+		return new ConvexHull(coords, count);
+	}
+
+	/**
+	 * Build the hull of the given points.
+	 * @param coords packed x,y,z coordinates
+	 * @param count the number of points in coords
+	 */
+	public ConvexHull(double[] coords, int count) {
+		Builder b = new Builder(coords, count);
+		int[] rawFaces = b.build();
+		// Compact the vertex set down to the points actually used by the hull.
+		Map<Integer,Integer> remap = new HashMap<Integer,Integer>();
+		int[] used = b.extraPoints;
+		for (int i = 0; i < rawFaces.length; i++) {
+			Integer old = rawFaces[i];
+			if (!remap.containsKey(old)) { remap.put(old, remap.size()); }
+		}
+		for (int i = 0; i < used.length; i++) {
+			Integer old = used[i];
+			if (!remap.containsKey(old)) { remap.put(old, remap.size()); }
+		}
+		points = new double[remap.size()*3];
+		for (Map.Entry<Integer,Integer> e : remap.entrySet()) {
+			System.arraycopy(coords, e.getKey()*3, points, e.getValue()*3, 3);
+		}
+		faces = new int[rawFaces.length];
+		int[] degree = new int[remap.size()];
+		for (int i = 0; i < rawFaces.length; i++) {
+			faces[i] = remap.get(rawFaces[i]);
+			degree[faces[i]]++;
+		}
+		vertexFaces = new int[remap.size()][];
+		for (int i = 0; i < degree.length; i++) {
+			vertexFaces[i] = new int[degree[i]];
+			degree[i] = 0;
+		}
+		for (int i = 0; i < faces.length; i++) {
+			int v = faces[i];
+			vertexFaces[v][degree[v]++] = i/3;
+		}
+	}
+
+	public int getVertexCount() { return points.length/3; }
+
+	public int getFaceCount() { return faces.length/3; }
+
+	public void getVertex(int idx, Point3d p) {
+		p.set(points[idx*3], points[idx*3+1], points[idx*3+2]);
+	}
+
+	/**
+	 * Get the axis-aligned bounding box of the hull after applying the given transform.
+	 * Since the transform is affine, this is also the bounding box of the original mesh.
+	 * Returns null if the hull is empty.
+	 */
+	public BoundingBox getBounds(Transform3D transform) {
+		int n = getVertexCount();
+		if (n == 0) { return null; }
+		Point3d p = new Point3d();
+		Point3d lower = new Point3d(Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE);
+		Point3d upper = new Point3d(-Double.MAX_VALUE,-Double.MAX_VALUE,-Double.MAX_VALUE);
+		for (int i = 0; i < n; i++) {
+			getVertex(i, p);
+			transform.transform(p);
+			if (p.x < lower.x) { lower.x = p.x; }
+			if (p.y < lower.y) { lower.y = p.y; }
+			if (p.z < lower.z) { lower.z = p.z; }
+			if (p.x > upper.x) { upper.x = p.x; }
+			if (p.y > upper.y) { upper.y = p.y; }
+			if (p.z > upper.z) { upper.z = p.z; }
+		}
+		return new BoundingBox(lower, upper);
+	}
+
+	/**
+	 * Find the outward normal of the hull face that the object would rest on if its
+	 * lowest point (after applying the given transform) were put on the platform: of
+	 * the faces touching the lowest vertex, the one that points most directly down.
+	 * Only the faces around a single vertex are examined.
+	 * @return the normal in transformed coordinates, or null if the hull has no faces.
+	 */
+	public Vector3d getLowestFaceNormal(Transform3D transform) {
+		int n = getVertexCount();
+		if (n == 0 || faces.length == 0) { return null; }
+		Point3d p = new Point3d();
+		int lowest = -1;
+		double lowestZ = Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			getVertex(i, p);
+			transform.transform(p);
+			if (p.z < lowestZ && vertexFaces[i].length > 0) {
+				lowestZ = p.z;
+				lowest = i;
+			}
+		}
+		if (lowest == -1) { return null; }
+		// A mirroring transform reverses the winding of every face.
+		boolean flip = transform.determinant() < 0;
+		Point3d p1 = new Point3d();
+		Point3d p2 = new Point3d();
+		Point3d p3 = new Point3d();
+		Vector3d v1 = new Vector3d();
+		Vector3d v2 = new Vector3d();
+		Vector3d best = null;
+		for (int f : vertexFaces[lowest]) {
+			getVertex(faces[f*3], p1);
+			getVertex(faces[f*3+1], p2);
+			getVertex(faces[f*3+2], p3);
+			transform.transform(p1);
+			transform.transform(p2);
+			transform.transform(p3);
+			v1.sub(p2, p1);
+			v2.sub(p3, p2);
+			Vector3d v = new Vector3d();
+			v.cross(v1, v2);
+			if (v.lengthSquared() == 0) { continue; }
+			v.normalize();
+			if (flip) { v.negate(); }
+			if (best == null || v.z < best.z) { best = v; }
+		}
+		return best;
+	}
+
+	/**
+	 * The quickhull construction.  Faces are kept in a simple triangle structure with
+	 * per-edge neighbour links; edge i of a face runs from v[i] to v[(i+1)%3].
+	 */
+	private static class Builder {
+		private static class Face {
+			final int[] v = new int[3];
+			final Face[] adj = new Face[3];
+			double nx, ny, nz, d;
+			int[] outside = new int[4];
+			int outsideCount = 0;
+			int furthest = -1;
+			double furthestDist = 0;
+			boolean visible = false;
+			boolean deleted = false;
+
+			void addOutside(int p, double dist) {
+				if (outsideCount == outside.length) {
+					outside = Arrays.copyOf(outside, outside.length*2);
+				}
+				outside[outsideCount++] = p;
+				if (dist > furthestDist) {
+					furthest = p;
+					furthestDist = dist;
+				}
+			}
+
+			int edgeTo(Face f) {
+				for (int i = 0; i < 3; i++) {
+					if (adj[i] == f) { return i; }
+				}
+				return -1;
+			}
+		}
+
+		private final double[] c;
+		private final int count;
+		private final double eps;
+		private final List<Face> faces = new ArrayList<Face>();
+		/** Extreme points of degenerate (collinear) inputs, which have no faces. */
+		int[] extraPoints = new int[0];
+
+		Builder(double[] coords, int count) {
+			this.c = coords;
+			this.count = count;
+			double maxX = 0, maxY = 0, maxZ = 0;
+			for (int i = 0; i < count; i++) {
+				maxX = Math.max(maxX, Math.abs(c[i*3]));
+				maxY = Math.max(maxY, Math.abs(c[i*3+1]));
+				maxZ = Math.max(maxZ, Math.abs(c[i*3+2]));
+			}
+			// Models are loaded from single precision files, so be generous.
+			eps = 4e-7 * (maxX + maxY + maxZ);
+		}
+
+		private double dist(Face f, int p) {
+			return f.nx*c[p*3] + f.ny*c[p*3+1] + f.nz*c[p*3+2] - f.d;
+		}
+
+		private Face makeFace(int a, int b, int p) {
+			Face f = new Face();
+			f.v[0] = a; f.v[1] = b; f.v[2] = p;
+			double ux = c[b*3]-c[a*3], uy = c[b*3+1]-c[a*3+1], uz = c[b*3+2]-c[a*3+2];
+			double wx = c[p*3]-c[a*3], wy = c[p*3+1]-c[a*3+1], wz = c[p*3+2]-c[a*3+2];
+			double nx = uy*wz - uz*wy, ny = uz*wx - ux*wz, nz = ux*wy - uy*wx;
+			double len = Math.sqrt(nx*nx + ny*ny + nz*nz);
+			if (len > 0) { nx /= len; ny /= len; nz /= len; }
+			f.nx = nx; f.ny = ny; f.nz = nz;
+			f.d = nx*c[a*3] + ny*c[a*3+1] + nz*c[a*3+2];
+			faces.add(f);
+			return f;
+		}
+
+		private double distSq(int a, int b) {
+			double dx = c[a*3]-c[b*3], dy = c[a*3+1]-c[b*3+1], dz = c[a*3+2]-c[b*3+2];
+			return dx*dx + dy*dy + dz*dz;
+		}
+
+		/** Squared distance from p to the line through a and b. */
+		private double lineDistSq(int a, int b, int p) {
+			double ux = c[b*3]-c[a*3], uy = c[b*3+1]-c[a*3+1], uz = c[b*3+2]-c[a*3+2];
+			double wx = c[p*3]-c[a*3], wy = c[p*3+1]-c[a*3+1], wz = c[p*3+2]-c[a*3+2];
+			double cx = uy*wz - uz*wy, cy = uz*wx - ux*wz, cz = ux*wy - uy*wx;
+			double ul = ux*ux + uy*uy + uz*uz;
+			return ul == 0 ? 0 : (cx*cx + cy*cy + cz*cz) / ul;
+		}
+
+		private static void link(Face f, int edge, Face g, int gEdge) {
+			f.adj[edge] = g;
+			g.adj[gEdge] = f;
+		}
+
+		/**
+		 * Compute the hull.
+		 * @return three point indices per face
+		 */
+		int[] build() {
+			if (count == 0) { return new int[0]; }
+			// Pick the most distant pair of axis extremes.
+			int[] ext = new int[6];
+			for (int i = 0; i < count; i++) {
+				for (int axis = 0; axis < 3; axis++) {
+					if (c[i*3+axis] < c[ext[axis*2]*3+axis]) { ext[axis*2] = i; }
+					if (c[i*3+axis] > c[ext[axis*2+1]*3+axis]) { ext[axis*2+1] = i; }
+				}
+			}
+			int p0 = ext[0], p1 = ext[1];
+			double best = distSq(p0, p1);
+			for (int axis = 1; axis < 3; axis++) {
+				double d = distSq(ext[axis*2], ext[axis*2+1]);
+				if (d > best) { best = d; p0 = ext[axis*2]; p1 = ext[axis*2+1]; }
+			}
+			if (best <= eps*eps) {
+				extraPoints = new int[] { p0 };
+				return new int[0];
+			}
+			// Third point: furthest from the line p0-p1.
+			int p2 = -1;
+			best = eps*eps;
+			for (int i = 0; i < count; i++) {
+				double d = lineDistSq(p0, p1, i);
+				if (d > best) { best = d; p2 = i; }
+			}
+			if (p2 == -1) {
+				extraPoints = new int[] { p0, p1 };
+				return new int[0];
+			}
+			// Fourth point: furthest from the plane p0-p1-p2.
+			Face base = makeFace(p0, p1, p2);
+			int p3 = -1;
+			best = eps;
+			for (int i = 0; i < count; i++) {
+				double d = Math.abs(dist(base, i));
+				if (d > best) { best = d; p3 = i; }
+			}
+			faces.clear();
+			if (p3 == -1) {
+				return buildPlanar(p0, p1, p2);
+			}
+			if (dist(base, p3) > 0) {
+				// Make sure the base faces away from the apex.
+				int t = p1; p1 = p2; p2 = t;
+			}
+			Face f0 = makeFace(p0, p1, p2);
+			Face f1 = makeFace(p1, p0, p3);
+			Face f2 = makeFace(p2, p1, p3);
+			Face f3 = makeFace(p0, p2, p3);
+			link(f0, 0, f1, 0);
+			link(f0, 1, f2, 0);
+			link(f0, 2, f3, 0);
+			link(f1, 1, f3, 2);
+			link(f2, 1, f1, 2);
+			link(f3, 1, f2, 2);
+
+			List<Face> pending = new ArrayList<Face>();
+			for (int i = 0; i < count; i++) {
+				assign(i, faces, 0);
+			}
+			pending.addAll(faces);
+			try {
+				while (!pending.isEmpty()) {
+					Face f = pending.remove(pending.size()-1);
+					if (f.deleted || f.outsideCount == 0) { continue; }
+					List<Face> created = addPoint(f, f.furthest);
+					pending.addAll(created);
+				}
+			} catch (IllegalStateException ise) {
+				// Numerical trouble; keep every point so that bounds are still exact.
+				extraPoints = new int[count];
+				for (int i = 0; i < count; i++) { extraPoints[i] = i; }
+				return new int[0];
+			}
+			List<Integer> out = new ArrayList<Integer>();
+			for (Face f : faces) {
+				if (f.deleted) { continue; }
+				out.add(f.v[0]); out.add(f.v[1]); out.add(f.v[2]);
+			}
+			int[] result = new int[out.size()];
+			for (int i = 0; i < result.length; i++) { result[i] = out.get(i); }
+			return result;
+		}
+
+		/**
+		 * Hull of a flat point set: the 2D hull in the plane, fanned into triangles
+		 * on both sides.
+		 */
+		private int[] buildPlanar(int p0, int p1, int p2) {
+			Face plane = makeFace(p0, p1, p2);
+			faces.clear();
+			// Project onto the plane and run a monotone chain hull.
+			double ux = c[p1*3]-c[p0*3], uy = c[p1*3+1]-c[p0*3+1], uz = c[p1*3+2]-c[p0*3+2];
+			double ul = Math.sqrt(ux*ux + uy*uy + uz*uz);
+			ux /= ul; uy /= ul; uz /= ul;
+			double wx = plane.ny*uz - plane.nz*uy;
+			double wy = plane.nz*ux - plane.nx*uz;
+			double wz = plane.nx*uy - plane.ny*ux;
+			final double[] s = new double[count];
+			final double[] t = new double[count];
+			Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++) {
+				double x = c[i*3]-c[p0*3], y = c[i*3+1]-c[p0*3+1], z = c[i*3+2]-c[p0*3+2];
+				s[i] = x*ux + y*uy + z*uz;
+				t[i] = x*wx + y*wy + z*wz;
+				order[i] = i;
+			}
+			Arrays.sort(order, new java.util.Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					if (s[a] != s[b]) { return s[a] < s[b] ? -1 : 1; }
+					if (t[a] != t[b]) { return t[a] < t[b] ? -1 : 1; }
+					return 0;
+				}
+			});
+			int[] hull = new int[count*2];
+			int k = 0;
+			for (int pass = 0; pass < 2; pass++) {
+				int start = k;
+				for (int j = 0; j < count; j++) {
+					int i = order[pass == 0 ? j : count-1-j];
+					while (k >= start+2) {
+						int a = hull[k-2], b = hull[k-1];
+						double cross = (s[b]-s[a])*(t[i]-t[a]) - (t[b]-t[a])*(s[i]-s[a]);
+						if (cross > eps*eps) { break; }
+						k--;
+					}
+					hull[k++] = i;
+				}
+				k--; // the last point is the first of the next chain
+			}
+			int[] result = new int[Math.max(0, k-2)*6];
+			int r = 0;
+			for (int i = 1; i+1 < k; i++) {
+				// Counter-clockwise in the plane faces along the plane normal...
+				result[r++] = hull[0]; result[r++] = hull[i]; result[r++] = hull[i+1];
+				// ...and the reverse winding faces the other way.
+				result[r++] = hull[0]; result[r++] = hull[i+1]; result[r++] = hull[i];
+			}
+			return result;
+		}
+
+		/** Attach a point to the first face in the list that it lies outside of. */
+		private void assign(int p, List<Face> candidates, int from) {
+			for (int i = from; i < candidates.size(); i++) {
+				Face f = candidates.get(i);
+				double d = dist(f, p);
+				if (d > eps) {
+					f.addOutside(p, d);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Collect the horizon of the region visible from the eye point, as a list of
+		 * (face, edge) pairs on visible faces whose neighbour is not visible.
+		 */
+		private void findHorizon(int eye, Face f, int entry, List<Face> visible,
+				List<Face> hFaces, List<Integer> hEdges) {
+			f.visible = true;
+			visible.add(f);
+			int start = (entry == -1) ? 0 : entry+1;
+			int edges = (entry == -1) ? 3 : 2;
+			for (int k = 0; k < edges; k++) {
+				int e = (start + k) % 3;
+				Face n = f.adj[e];
+				if (n.visible) { continue; }
+				// Any face the eye is strictly above must go, so that the visible
+				// region stays a disc with a simple boundary.
+				if (dist(n, eye) > 0) {
+					findHorizon(eye, n, n.edgeTo(f), visible, hFaces, hEdges);
+				} else {
+					hFaces.add(f);
+					hEdges.add(e);
+				}
+			}
+		}
+
+		private List<Face> addPoint(Face start, int eye) {
+			List<Face> visible = new ArrayList<Face>();
+			List<Face> hFaces = new ArrayList<Face>();
+			List<Integer> hEdges = new ArrayList<Integer>();
+			findHorizon(eye, start, -1, visible, hFaces, hEdges);
+
+			List<Face> created = new ArrayList<Face>(hFaces.size());
+			Map<Integer,Face> byStart = new HashMap<Integer,Face>();
+			for (int i = 0; i < hFaces.size(); i++) {
+				Face f = hFaces.get(i);
+				int e = hEdges.get(i);
+				Face outer = f.adj[e];
+				Face nf = makeFace(f.v[e], f.v[(e+1)%3], eye);
+				link(nf, 0, outer, outer.edgeTo(f));
+				created.add(nf);
+				if (byStart.put(nf.v[0], nf) != null) {
+					throw new IllegalStateException("Horizon is not a simple loop");
+				}
+			}
+			// Each new face's edge b->eye meets the next face's edge eye->b.
+			for (Face nf : created) {
+				Face next = byStart.get(nf.v[1]);
+				if (next == null) { throw new IllegalStateException("Open horizon"); }
+				link(nf, 1, next, 2);
+			}
+			for (Face f : visible) {
+				f.deleted = true;
+			}
+			for (Face f : visible) {
+				for (int i = 0; i < f.outsideCount; i++) {
+					int p = f.outside[i];
+					if (p != eye) { assign(p, created, 0); }
+				}
+				f.outside = null;
+			}
+			return created;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package replicatorg.model.j3d;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.media.j3d.Transform3D;
+import javax.vecmath.Point3d;
+
+/**
+ * The outline of a model on the build platform: the 2D convex hull of the model
+ * projected onto the XY plane.  Vertices are kept counterclockwise.
+ */
+public class Footprint {
+	/** Packed x,y coordinates of the hull, counterclockwise. */
+	private final double[] points;
+
+	private Footprint(double[] points) {
+		this.points = points;
+	}
+
+	/**
+	 * Project a convex hull onto the platform under the given transform.  The 2D
+	 * hull of the projected 3D hull vertices is the footprint of the whole mesh.
+	 */
+	public static Footprint fromHull(ConvexHull hull, Transform3D transform) {
+		int n = hull.getVertexCount();
+		double[] xy = new double[n*2];
+		Point3d p = new Point3d();
+		for (int i = 0; i < n; i++) {
+			hull.getVertex(i, p);
+			transform.transform(p);
+			xy[i*2] = p.x;
+			xy[i*2+1] = p.y;
+		}
+		return new Footprint(hull2d(xy, n));
+	}
+
+	public int getPointCount() { return points.length/2; }
+
+	public double getX(int i) { return points[i*2]; }
+
+	public double getY(int i) { return points[i*2+1]; }
+
+	public double getArea() {
+		double a = 0;
+		int n = getPointCount();
+		for (int i = 0; i < n; i++) {
+			int j = (i+1) % n;
+			a += points[i*2]*points[j*2+1] - points[j*2]*points[i*2+1];
+		}
+		return a/2;
+	}
+
+	/** Get the bounding rectangle as {minX, minY, maxX, maxY}. */
+	public double[] getBounds() {
+		double[] b = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+		for (int i = 0; i < points.length; i += 2) {
+			b[0] = Math.min(b[0], points[i]);
+			b[1] = Math.min(b[1], points[i+1]);
+			b[2] = Math.max(b[2], points[i]);
+			b[3] = Math.max(b[3], points[i+1]);
+		}
+		return b;
+	}
+
+	/**
+	 * Get this footprint rotated about the origin by the given angle, in radians.
+	 */
+	public Footprint rotate(double angle) {
+		double c = Math.cos(angle), s = Math.sin(angle);
+		double[] r = new double[points.length];
+		for (int i = 0; i < points.length; i += 2) {
+			r[i] = c*points[i] - s*points[i+1];
+			r[i+1] = s*points[i] + c*points[i+1];
+		}
+		return new Footprint(r);
+	}
+
+	/**
+	 * Find the horizontal extent of the footprint within the band lo <= y <= hi.
+	 * @param out receives {minX, maxX}
+	 * @return false if the footprint doesn't reach into the band
+	 */
+	public boolean getSpan(double lo, double hi, double[] out) {
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		int n = getPointCount();
+		for (int i = 0; i < n; i++) {
+			int j = (i+1) % n;
+			double x1 = points[i*2], y1 = points[i*2+1];
+			double x2 = points[j*2], y2 = points[j*2+1];
+			if (y1 >= lo && y1 <= hi) {
+				min = Math.min(min, x1);
+				max = Math.max(max, x1);
+			}
+			// Edge crossings of the band boundaries
+			for (int k = 0; k < 2; k++) {
+				double y = k == 0 ? lo : hi;
+				if ((y1 < y && y2 > y) || (y1 > y && y2 < y)) {
+					double x = x1 + (x2-x1)*(y-y1)/(y2-y1);
+					min = Math.min(min, x);
+					max = Math.max(max, x);
+				}
+			}
+		}
+		if (min > max) { return false; }
+		out[0] = min;
+		out[1] = max;
+		return true;
+	}
+
+	/**
+	 * Andrew's monotone chain over packed x,y points.
+	 */
+	private static double[] hull2d(final double[] xy, int n) {
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) { order[i] = i; }
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Double.compare(xy[a*2], xy[b*2]);
+				return c != 0 ? c : Double.compare(xy[a*2+1], xy[b*2+1]);
+			}
+		});
+		if (n < 3) {
+			double[] out = new double[n*2];
+			for (int i = 0; i < n; i++) {
+				out[i*2] = xy[order[i]*2];
+				out[i*2+1] = xy[order[i]*2+1];
+			}
+			return out;
+		}
+		int[] h = new int[2*n];
+		int k = 0;
+		// Lower hull, then upper hull
+		for (int idx = 0; idx < n; idx++) {
+			int i = order[idx];
+			while (k >= 2 && cross(xy, h[k-2], h[k-1], i) <= 0) { k--; }
+			h[k++] = i;
+		}
+		for (int idx = n-2, floor = k+1; idx >= 0; idx--) {
+			int i = order[idx];
+			while (k >= floor && cross(xy, h[k-2], h[k-1], i) <= 0) { k--; }
+			h[k++] = i;
+		}
+		// The last point repeats the first.
+		k--;
+		double[] out = new double[Math.max(0, k)*2];
+		for (int i = 0; i < k; i++) {
+			out[i*2] = xy[h[i]*2];
+			out[i*2+1] = xy[h[i]*2+1];
+		}
+		return out;
+	}
+
+	private static double cross(double[] xy, int o, int a, int b) {
+		return (xy[a*2]-xy[o*2])*(xy[b*2+1]-xy[o*2+1]) - (xy[a*2+1]-xy[o*2+1])*(xy[b*2]-xy[o*2]);
+	}
+}
@@ -0,0 +1,193 @@
+package replicatorg.model.j3d;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+
+import javax.media.j3d.Geometry;
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.Shape3D;
+import javax.media.j3d.TriangleArray;
+
+/**
+ * A triangle mesh with shared (welded) vertices.  Java3D loaders hand us
+ * unindexed triangle soups where every vertex is repeated for each face that
+ * uses it; most mesh processing needs to know which faces share a vertex, so
+ * this class welds exactly coincident vertices together.
+ *
+ * The arrays returned by the accessors are the internal storage and must not
+ * be modified.
+ */
+public class IndexedMesh {
+	/** Packed x,y,z coordinates. */
+	private final double[] vertices;
+	/** Three vertex indices per triangle. */
+	private final int[] triangles;
+	/** Packed x,y,z normals, one per triangle, as the model file gave them; or null. */
+	private final float[] normals;
+
+	public IndexedMesh(double[] vertices, int[] triangles) {
+		this(vertices, triangles, null);
+	}
+
+	/**
+	 * @param normals one normal per triangle, or null to compute them from
+	 * the winding
+	 */
+	public IndexedMesh(double[] vertices, int[] triangles, float[] normals) {
+		this.vertices = vertices;
+		this.triangles = triangles;
+		this.normals = normals;
+	}
+
+	public int getVertexCount() { return vertices.length/3; }
+
+	public int getTriangleCount() { return triangles.length/3; }
+
+	public double[] getVertices() { return vertices; }
+
+	public int[] getTriangles() { return triangles; }
+
+	/** @return the triangles' normals from the model file, or null if there are none */
+	public float[] getNormals() { return normals; }
+
+	/**
+	 * Build a mesh from all the triangle geometry in the given shapes, welding
+	 * vertices with identical coordinates.  Geometry other than triangle arrays
+	 * is ignored.  If all the geometry has normals, the normal of each
+	 * triangle's first vertex is kept as the triangle's normal.
+	 */
+	public static IndexedMesh fromShape(Shape3D... shapes) {
+		int count = 0;
+		boolean hasNormals = true;
+		for (Shape3D shape : shapes) {
+			Enumeration<?> geometries = shape.getAllGeometries();
+			while (geometries.hasMoreElements()) {
+				Geometry g = (Geometry)geometries.nextElement();
+				if (g instanceof TriangleArray) {
+					GeometryArray ga = (GeometryArray)g;
+					count += ga.getVertexCount();
+					if ((ga.getVertexFormat() & GeometryArray.NORMALS) == 0) { hasNormals = false; }
+				}
+			}
+		}
+		double[] soup = new double[count*3];
+		float[] normals = hasNormals ? new float[count/3*3] : null;
+		int offset = 0;
+		for (Shape3D shape : shapes) {
+			Enumeration<?> geometries = shape.getAllGeometries();
+			while (geometries.hasMoreElements()) {
+				Geometry g = (Geometry)geometries.nextElement();
+				if (g instanceof TriangleArray) {
+					TriangleArray ta = (TriangleArray)g;
+					int n = ta.getVertexCount();
+					if (n == 0) { continue; }
+					double[] c = new double[n*3];
+					ta.getCoordinates(0, c);
+					System.arraycopy(c, 0, soup, offset, c.length);
+					if (normals != null) {
+						float[] vn = new float[n*3];
+						ta.getNormals(0, vn);
+						for (int t = 0; t < n/3; t++) {
+							System.arraycopy(vn, t*9, normals, offset/3 + t*3, 3);
+						}
+					}
+					offset += c.length;
+				}
+			}
+		}
+		IndexedMesh mesh = weld(soup, count);
+		return normals == null ? mesh : new IndexedMesh(mesh.vertices, mesh.triangles, normals);
+	}
+
+	/**
+	 * Build a mesh from a triangle soup, welding vertices with identical coordinates.
+	 * @param soup packed x,y,z coordinates, three vertices per triangle
+	 * @param count the number of vertices in the soup
+	 */
+	public static IndexedMesh weld(double[] soup, int count) {
+		int[] triangles = new int[count - count%3];
+		// Open addressing table of vertex indices, sized to a power of two.
+		int size = Integer.highestOneBit(Math.max(16, count*2)) << 1;
+		int[] table = new int[size];
+		Arrays.fill(table, -1);
+		double[] vertices = new double[triangles.length*3];
+		int vertexCount = 0;
+		for (int i = 0; i < triangles.length; i++) {
+			double x = soup[i*3], y = soup[i*3+1], z = soup[i*3+2];
+			int slot = hash(x, y, z) & (size-1);
+			while (true) {
+				int v = table[slot];
+				if (v == -1) {
+					v = vertexCount++;
+					vertices[v*3] = x; vertices[v*3+1] = y; vertices[v*3+2] = z;
+					table[slot] = v;
+					triangles[i] = v;
+					break;
+				}
+				if (vertices[v*3] == x && vertices[v*3+1] == y && vertices[v*3+2] == z) {
+					triangles[i] = v;
+					break;
+				}
+				slot = (slot+1) & (size-1);
+			}
+		}
+		return new IndexedMesh(Arrays.copyOf(vertices, vertexCount*3), triangles);
+	}
+
+	private static int hash(double x, double y, double z) {
+		// Fold -0.0 into 0.0 so that they weld together.
+		long h = Double.doubleToLongBits(x + 0.0d);
+		h = h*31 + Double.doubleToLongBits(y + 0.0d);
+		h = h*31 + Double.doubleToLongBits(z + 0.0d);
+		h ^= (h >>> 29);
+		h *= 0xbf58476d1ce4e5b9L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/**
+	 * Compute the unit normal of a triangle from its winding.  Degenerate triangles
+	 * get a zero normal.
+	 */
+	public void getNormal(int triangle, double[] n) {
+		int a = triangles[triangle*3]*3, b = triangles[triangle*3+1]*3, c = triangles[triangle*3+2]*3;
+		double ux = vertices[b]-vertices[a], uy = vertices[b+1]-vertices[a+1], uz = vertices[b+2]-vertices[a+2];
+		double vx = vertices[c]-vertices[a], vy = vertices[c+1]-vertices[a+1], vz = vertices[c+2]-vertices[a+2];
+		double nx = uy*vz - uz*vy, ny = uz*vx - ux*vz, nz = ux*vy - uy*vx;
+		double len = Math.sqrt(nx*nx + ny*ny + nz*nz);
+		if (len > 0) { nx /= len; ny /= len; nz /= len; }
+		n[0] = nx; n[1] = ny; n[2] = nz;
+	}
+
+	/**
+	 * Expand the mesh back into a flat-shaded triangle array suitable for display
+	 * or for the model writers.  The model file's normals are used where there
+	 * are any; otherwise normals are computed from the triangle winding.
+	 */
+	public TriangleArray toTriangleArray() {
+		int tris = getTriangleCount();
+		TriangleArray ta = new TriangleArray(Math.max(3, tris*3),
+				GeometryArray.NORMALS | GeometryArray.COORDINATES);
+		double[] coords = new double[tris*9];
+		float[] normals = new float[tris*9];
+		double[] n = new double[3];
+		for (int t = 0; t < tris; t++) {
+			if (normals != null && (normals[t*3] != 0 || normals[t*3+1] != 0 || normals[t*3+2] != 0)) {
+				n[0] = normals[t*3]; n[1] = normals[t*3+1]; n[2] = normals[t*3+2];
+			} else {
+				getNormal(t, n);
+			}
+			for (int k = 0; k < 3; k++) {
+				int v = triangles[t*3+k];
+				System.arraycopy(vertices, v*3, coords, t*9 + k*3, 3);
+				normals[t*9 + k*3] = (float)n[0];
+				normals[t*9 + k*3 + 1] = (float)n[1];
+				normals[t*9 + k*3 + 2] = (float)n[2];
+			}
+		}
+		if (tris > 0) {
+			ta.setCoordinates(0, coords);
+			ta.setNormals(0, normals);
+		}
+		return ta;
+	}
+}
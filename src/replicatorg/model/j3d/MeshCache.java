@@ -0,0 +1,214 @@
+package replicatorg.model.j3d;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.CacheDirectory;
+
+/**
+ * An on-disk cache of welded meshes, keyed by the SHA-1 of the model file's
+ * contents.  Parsing an ASCII STL is slow; reading back a cached mesh is a
+ * memory map, a header check and a few bulk copies.
+ *
+ * Entries are evicted least recently used first once the cache grows past
+ * its size limit; see CacheDirectory.
+ *
+ * Entry layout, little-endian:
+ * <pre>
+ *   int    magic
+ *   int    version
+ *   byte[20] SHA-1 of the source file
+ *   long   source file length
+ *   int    vertex count
+ *   int    triangle count
+ *   int    normal count (the triangle count, or 0 if the file had none)
+ *   float[vertices*3] coordinates
+ *   int[triangles*3]  vertex indices
+ *   float[normals*3]  triangle normals
+ * </pre>
+ */
+public class MeshCache {
+	private static final int MAGIC = 0x52474d43; // "RGMC"
+	private static final int VERSION = 2;
+	private static final int HASH_SIZE = 20;
+	private static final int HEADER_SIZE = 4 + 4 + HASH_SIZE + 8 + 4 + 4 + 4;
+	private static final String SUFFIX = ".mesh";
+
+	private static MeshCache instance = null;
+
+	/**
+	 * Get the cache in the user directory, or null if it has been turned off.
+	 */
+	public static synchronized MeshCache getCache() {
+		if (!Base.preferences.getBoolean("replicatorg.meshcache.enabled", true)) {
+			return null;
+		}
+		if (instance == null) {
+			instance = new MeshCache(new File(Base.getUserDirectory(), "meshcache"));
+		}
+		return instance;
+	}
+
+	private final File dir;
+	/** Digests of files already hashed this session, keyed by path, length and mtime. */
+	private final Map<String,byte[]> digests = new HashMap<String,byte[]>();
+
+	public MeshCache(File dir) {
+		this.dir = dir;
+	}
+
+	private long getMaxBytes() {
+		return Base.preferences.getInt("replicatorg.meshcache.maxMB", 256) * 1024L * 1024L;
+	}
+
+	/**
+	 * Look up the mesh for a model file.
+	 * @return the cached mesh, or null on a miss
+	 */
+	public IndexedMesh get(File source) {
+		try {
+			byte[] digest = digest(source);
+			File entry = getEntry(digest);
+			if (!entry.exists()) { return null; }
+			IndexedMesh mesh = read(entry, digest, source.length());
+			if (mesh == null) {
+				Base.logger.fine("Discarding stale mesh cache entry "+entry.getName());
+				entry.delete();
+				return null;
+			}
+			CacheDirectory.touch(entry);
+			return mesh;
+		} catch (IOException ioe) {
+			Base.logger.log(Level.FINE, "Mesh cache lookup failed for "+source.getPath(), ioe);
+			return null;
+		}
+	}
+
+	/**
+	 * Store the mesh for a model file, evicting old entries if the cache is full.
+	 */
+	public void put(File source, IndexedMesh mesh) {
+		File tmp = null;
+		try {
+			byte[] digest = digest(source);
+			if (!dir.exists() && !dir.mkdirs()) { return; }
+			File entry = getEntry(digest);
+			tmp = new File(dir, entry.getName()+".tmp");
+			write(tmp, digest, source.length(), mesh);
+			entry.delete();
+			if (!tmp.renameTo(entry)) {
+				tmp.delete();
+				return;
+			}
+			CacheDirectory.trim(dir, getMaxBytes());
+		} catch (IOException ioe) {
+			Base.logger.log(Level.FINE, "Could not cache mesh for "+source.getPath(), ioe);
+			if (tmp != null) { tmp.delete(); }
+		}
+	}
+
+	private File getEntry(byte[] digest) {
+		return new File(dir, CacheDirectory.toHex(digest) + SUFFIX);
+	}
+
+	private synchronized byte[] digest(File source) throws IOException {
+		String key = source.getCanonicalPath()+"|"+source.length()+"|"+source.lastModified();
+		byte[] digest = digests.get(key);
+		if (digest != null) { return digest; }
+		MessageDigest md = CacheDirectory.newDigest();
+		CacheDirectory.update(md, source);
+		digest = md.digest();
+		digests.put(key, digest);
+		return digest;
+	}
+
+	private IndexedMesh read(File entry, byte[] digest, long sourceLength) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(entry, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size < HEADER_SIZE) { return null; }
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			if (map.getInt() != MAGIC || map.getInt() != VERSION) { return null; }
+			byte[] stored = new byte[HASH_SIZE];
+			map.get(stored);
+			if (!Arrays.equals(stored, digest) || map.getLong() != sourceLength) { return null; }
+			int vertexCount = map.getInt();
+			int triangleCount = map.getInt();
+			int normalCount = map.getInt();
+			if (vertexCount < 0 || triangleCount < 0 ||
+					(normalCount != 0 && normalCount != triangleCount) ||
+					size != HEADER_SIZE + vertexCount*12L + triangleCount*12L + normalCount*12L) {
+				return null;
+			}
+			float[] coords = new float[vertexCount*3];
+			map.asFloatBuffer().get(coords);
+			map.position(map.position() + coords.length*4);
+			int[] triangles = new int[triangleCount*3];
+			map.asIntBuffer().get(triangles);
+			map.position(map.position() + triangles.length*4);
+			float[] normals = null;
+			if (normalCount > 0) {
+				normals = new float[normalCount*3];
+				map.asFloatBuffer().get(normals);
+			}
+			double[] vertices = new double[coords.length];
+			for (int i = 0; i < coords.length; i++) { vertices[i] = coords[i]; }
+			for (int i = 0; i < triangles.length; i++) {
+				if (triangles[i] < 0 || triangles[i] >= vertexCount) { return null; }
+			}
+			return new IndexedMesh(vertices, triangles, normals);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void write(File f, byte[] digest, long sourceLength, IndexedMesh mesh) throws IOException {
+		double[] vertices = mesh.getVertices();
+		int[] triangles = mesh.getTriangles();
+		float[] normals = mesh.getNormals();
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(64*1024);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC).putInt(VERSION).put(digest).putLong(sourceLength);
+			buf.putInt(vertices.length/3).putInt(triangles.length/3);
+			buf.putInt(normals != null ? normals.length/3 : 0);
+			for (int i = 0; i < vertices.length; i++) {
+				if (buf.remaining() < 4) { flush(channel, buf); }
+				buf.putFloat((float)vertices[i]);
+			}
+			for (int i = 0; i < triangles.length; i++) {
+				if (buf.remaining() < 4) { flush(channel, buf); }
+				buf.putInt(triangles[i]);
+			}
+			for (int i = 0; normals != null && i < normals.length; i++) {
+				if (buf.remaining() < 4) { flush(channel, buf); }
+				buf.putFloat(normals[i]);
+			}
+			flush(channel, buf);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) { channel.write(buf); }
+		buf.clear();
+	}
+}
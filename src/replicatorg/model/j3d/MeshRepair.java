@@ -0,0 +1,213 @@
+package replicatorg.model.j3d;
+
+import java.util.Arrays;
+
+/**
+ * A quick sanity pass over a mesh before it is handed to the slicer.  It drops
+ * degenerate triangles, finds open and non-manifold edges, and orients every
+ * connected piece of the mesh consistently with its normals pointing outward.
+ * Holes are reported but not filled.
+ *
+ * Everything works on the welded vertex indices of an IndexedMesh, with a single
+ * hash table of undirected edges; there is no per-triangle object allocation.
+ */
+public class MeshRepair {
+	/**
+	 * What the repair pass found and did.
+	 */
+	public static class Report {
+		public int trianglesIn;
+		public int trianglesOut;
+		public int degenerate;
+		public int openEdges;
+		public int nonManifoldEdges;
+		public int flipped;
+		public int components;
+		public long millis;
+
+		/** True if the repair changed the mesh at all. */
+		public boolean isModified() {
+			return degenerate > 0 || flipped > 0;
+		}
+
+		/** True if the mesh is a closed, manifold surface. */
+		public boolean isWatertight() {
+			return openEdges == 0 && nonManifoldEdges == 0;
+		}
+
+		public String toString() {
+			return trianglesIn+" triangles checked in "+millis+" ms: "+
+				degenerate+" degenerate removed, "+flipped+" flipped, "+
+				openEdges+" open edges, "+nonManifoldEdges+" non-manifold edges, "+
+				components+" parts";
+		}
+	}
+
+	private final IndexedMesh mesh;
+	private final Report report = new Report();
+	private IndexedMesh result;
+
+	public MeshRepair(IndexedMesh mesh) {
+		this.mesh = mesh;
+	}
+
+	public Report getReport() { return report; }
+
+	/**
+	 * Get the repaired mesh.  If nothing needed repair, this is the original mesh.
+	 */
+	public IndexedMesh getResult() { return result; }
+
+	/**
+	 * Run the checks and repairs.
+	 */
+	public MeshRepair run() {
+		long start = System.currentTimeMillis();
+		report.trianglesIn = mesh.getTriangleCount();
+		int[] tris = dropDegenerate();
+		int count = tris.length/3;
+
+		// Build the edge table.  Every half-edge h = t*3+k runs from tris[h] to
+		// tris[t*3+(k+1)%3]; half-edges on the same undirected edge are chained
+		// through next[].
+		int size = Integer.highestOneBit(Math.max(16, count*3)) << 1;
+		long[] keys = new long[size];
+		int[] first = new int[size];
+		int[] uses = new int[size];
+		Arrays.fill(first, -1);
+		int[] next = new int[count*3];
+		for (int h = 0; h < count*3; h++) {
+			int a = tris[h], b = tris[(h/3)*3 + (h%3+1)%3];
+			long key = a < b ? ((long)a << 32) | b : ((long)b << 32) | a;
+			int slot = hash(key) & (size-1);
+			while (first[slot] != -1 && keys[slot] != key) {
+				slot = (slot+1) & (size-1);
+			}
+			if (first[slot] == -1) {
+				keys[slot] = key;
+				next[h] = -1;
+			} else {
+				next[h] = first[slot];
+			}
+			first[slot] = h;
+			uses[slot]++;
+		}
+		// Map every half-edge to its partner on a manifold edge, or -1.
+		int[] partner = new int[count*3];
+		Arrays.fill(partner, -1);
+		for (int slot = 0; slot < size; slot++) {
+			if (first[slot] == -1) { continue; }
+			if (uses[slot] == 1) {
+				report.openEdges++;
+			} else if (uses[slot] > 2) {
+				report.nonManifoldEdges++;
+			} else {
+				int h1 = first[slot];
+				int h2 = next[h1];
+				partner[h1] = h2;
+				partner[h2] = h1;
+			}
+		}
+
+		// Flood fill each component across manifold edges, flipping neighbours
+		// that traverse the shared edge in the same direction.
+		boolean[] flip = new boolean[count];
+		int[] component = new int[count];
+		Arrays.fill(component, -1);
+		int[] stack = new int[count];
+		double[] volume = new double[Math.max(1, count)];
+		for (int seed = 0; seed < count; seed++) {
+			if (component[seed] != -1) { continue; }
+			int c = report.components++;
+			int sp = 0;
+			stack[sp++] = seed;
+			component[seed] = c;
+			while (sp > 0) {
+				int t = stack[--sp];
+				volume[c] += signedVolume(tris, t, flip[t]);
+				for (int k = 0; k < 3; k++) {
+					int h = t*3+k;
+					int o = partner[h];
+					if (o == -1) { continue; }
+					int u = o/3;
+					if (component[u] != -1) { continue; }
+					// Effective start vertex of h in t, given t's flip.
+					int hStart = flip[t] ? tris[t*3+(k+1)%3] : tris[h];
+					// u is consistent if it runs the edge the other way.
+					flip[u] = (tris[o] == hStart);
+					component[u] = c;
+					stack[sp++] = u;
+				}
+			}
+		}
+		// Turn inside-out components the right way round.
+		for (int t = 0; t < count; t++) {
+			if (volume[component[t]] < 0) { flip[t] = !flip[t]; }
+			if (flip[t]) {
+				report.flipped++;
+				int tmp = tris[t*3+1];
+				tris[t*3+1] = tris[t*3+2];
+				tris[t*3+2] = tmp;
+			}
+		}
+		report.trianglesOut = count;
+		result = report.isModified() ? new IndexedMesh(mesh.getVertices(), tris) : mesh;
+		report.millis = System.currentTimeMillis() - start;
+		return this;
+	}
+
+	/**
+	 * Copy the triangle list, leaving out triangles that repeat a vertex or that
+	 * have (next to) no area.
+	 */
+	private int[] dropDegenerate() {
+		double[] v = mesh.getVertices();
+		int[] in = mesh.getTriangles();
+		double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		double minZ = Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+		for (int i = 0; i < v.length; i += 3) {
+			minX = Math.min(minX, v[i]); maxX = Math.max(maxX, v[i]);
+			minY = Math.min(minY, v[i+1]); maxY = Math.max(maxY, v[i+1]);
+			minZ = Math.min(minZ, v[i+2]); maxZ = Math.max(maxZ, v[i+2]);
+		}
+		double diag2 = (maxX-minX)*(maxX-minX) + (maxY-minY)*(maxY-minY) + (maxZ-minZ)*(maxZ-minZ);
+		// Twice the area, squared, relative to the model size
+		double minArea2 = 1e-20 * diag2 * diag2;
+		int[] out = new int[in.length];
+		int n = 0;
+		for (int t = 0; t < in.length/3; t++) {
+			int a = in[t*3], b = in[t*3+1], c = in[t*3+2];
+			if (a == b || b == c || a == c) {
+				report.degenerate++;
+				continue;
+			}
+			double ux = v[b*3]-v[a*3], uy = v[b*3+1]-v[a*3+1], uz = v[b*3+2]-v[a*3+2];
+			double wx = v[c*3]-v[a*3], wy = v[c*3+1]-v[a*3+1], wz = v[c*3+2]-v[a*3+2];
+			double nx = uy*wz - uz*wy, ny = uz*wx - ux*wz, nz = ux*wy - uy*wx;
+			if (nx*nx + ny*ny + nz*nz <= minArea2) {
+				report.degenerate++;
+				continue;
+			}
+			out[n++] = a; out[n++] = b; out[n++] = c;
+		}
+		return n == out.length ? out : Arrays.copyOf(out, n);
+	}
+
+	/** Signed volume of the tetrahedron from the origin to triangle t. */
+	private double signedVolume(int[] tris, int t, boolean flipped) {
+		double[] v = mesh.getVertices();
+		int a = tris[t*3]*3;
+		int b = tris[t*3 + (flipped ? 2 : 1)]*3;
+		int c = tris[t*3 + (flipped ? 1 : 2)]*3;
+		return (v[a]*(v[b+1]*v[c+2] - v[b+2]*v[c+1])
+			- v[a+1]*(v[b]*v[c+2] - v[b+2]*v[c])
+			+ v[a+2]*(v[b]*v[c+1] - v[b+1]*v[c])) / 6d;
+	}
+
+	private static int hash(long key) {
+		key ^= (key >>> 31);
+		key *= 0x9e3779b97f4a7c15L;
+		return (int)(key ^ (key >>> 32));
+	}
+}
@@ -0,0 +1,338 @@
+package replicatorg.model.j3d;
+
+import java.util.Arrays;
+
+/**
+ * Reduce the triangle count of a mesh by quadric error edge collapse (Garland and
+ * Heckbert).  Rather than keeping a priority queue of every edge, this uses the
+ * threshold sweep popularized by Sven Forstmann's "fast quadric mesh simplification":
+ * each pass collapses any edge whose error is below a slowly rising threshold, which
+ * is much cheaper and gives results that are more than good enough for display.
+ *
+ * The result is only intended for previews; it is not guaranteed to be manifold
+ * and should never be sent to the slicer.
+ */
+public class MeshSimplifier {
+	private static final int MAX_ITERATIONS = 100;
+	private static final double AGGRESSIVENESS = 7d;
+
+	// Triangles
+	private int[] tv;
+	private double[] terr;
+	private double[] tn;
+	private boolean[] tdeleted;
+	private boolean[] tdirty;
+	private int triCount;
+
+	// Vertices
+	private double[] vp;
+	private double[] vq;
+	private int[] vtstart;
+	private int[] vtcount;
+	private boolean[] vborder;
+	private int vertCount;
+
+	// References from vertices to the triangles that use them
+	private int[] rtid = new int[0];
+	private int[] rtvertex = new int[0];
+	private int refCount;
+
+	private MeshSimplifier(IndexedMesh mesh) {
+		triCount = mesh.getTriangleCount();
+		vertCount = mesh.getVertexCount();
+		tv = Arrays.copyOf(mesh.getTriangles(), triCount*3);
+		terr = new double[triCount*4];
+		tn = new double[triCount*3];
+		tdeleted = new boolean[triCount];
+		tdirty = new boolean[triCount];
+		vp = Arrays.copyOf(mesh.getVertices(), vertCount*3);
+		vq = new double[vertCount*10];
+		vtstart = new int[vertCount];
+		vtcount = new int[vertCount];
+		vborder = new boolean[vertCount];
+	}
+
+	/**
+	 * Simplify a mesh down to (about) the given number of triangles.  The input is
+	 * not modified.
+	 */
+	public static IndexedMesh simplify(IndexedMesh mesh, int targetTriangles) {
+		if (mesh.getTriangleCount() <= targetTriangles) { return mesh; }
+		MeshSimplifier s = new MeshSimplifier(mesh);
+		s.run(targetTriangles);
+		return s.compact();
+	}
+
+	private void run(int target) {
+		int deletedTriangles = 0;
+		int[] deleted0 = new int[16];
+		int[] deleted1 = new int[16];
+		double[] p = new double[3];
+		int startCount = triCount;
+		for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+			if (startCount - deletedTriangles <= target) { break; }
+			if (iteration % 5 == 0) {
+				updateMesh(iteration);
+				startCount = triCount;
+				deletedTriangles = 0;
+			}
+			Arrays.fill(tdirty, 0, triCount, false);
+			double threshold = 1e-9 * Math.pow(iteration + 3, AGGRESSIVENESS);
+			for (int t = 0; t < triCount; t++) {
+				if (terr[t*4+3] > threshold || tdeleted[t] || tdirty[t]) { continue; }
+				for (int j = 0; j < 3; j++) {
+					if (terr[t*4+j] >= threshold) { continue; }
+					int i0 = tv[t*3+j];
+					int i1 = tv[t*3+(j+1)%3];
+					if (vborder[i0] != vborder[i1]) { continue; }
+					calculateError(i0, i1, p);
+					if (deleted0.length < vtcount[i0]) { deleted0 = new int[vtcount[i0]*2]; }
+					if (deleted1.length < vtcount[i1]) { deleted1 = new int[vtcount[i1]*2]; }
+					if (flipped(p, i0, i1, deleted0)) { continue; }
+					if (flipped(p, i1, i0, deleted1)) { continue; }
+					vp[i0*3] = p[0]; vp[i0*3+1] = p[1]; vp[i0*3+2] = p[2];
+					for (int k = 0; k < 10; k++) { vq[i0*10+k] += vq[i1*10+k]; }
+					int tstart = refCount;
+					deletedTriangles += updateTriangles(i0, i0, deleted0);
+					deletedTriangles += updateTriangles(i0, i1, deleted1);
+					int tcount = refCount - tstart;
+					if (tcount <= vtcount[i0]) {
+						// Reuse the old reference slots to save memory
+						System.arraycopy(rtid, tstart, rtid, vtstart[i0], tcount);
+						System.arraycopy(rtvertex, tstart, rtvertex, vtstart[i0], tcount);
+					} else {
+						vtstart[i0] = tstart;
+					}
+					vtcount[i0] = tcount;
+					break;
+				}
+				if (startCount - deletedTriangles <= target) { break; }
+			}
+		}
+		// Drop the deleted triangles
+		int live = 0;
+		for (int t = 0; t < triCount; t++) {
+			if (!tdeleted[t]) {
+				System.arraycopy(tv, t*3, tv, live*3, 3);
+				live++;
+			}
+		}
+		triCount = live;
+	}
+
+	/**
+	 * Check whether moving vertex i0 to p would flip any of its triangles (other
+	 * than the ones shared with i1, which are marked in deleted).
+	 */
+	private boolean flipped(double[] p, int i0, int i1, int[] deleted) {
+		for (int k = 0; k < vtcount[i0]; k++) {
+			int t = rtid[vtstart[i0]+k];
+			if (tdeleted[t]) { continue; }
+			int s = rtvertex[vtstart[i0]+k];
+			int id1 = tv[t*3+(s+1)%3];
+			int id2 = tv[t*3+(s+2)%3];
+			if (id1 == i1 || id2 == i1) {
+				deleted[k] = 1;
+				continue;
+			}
+			double d1x = vp[id1*3]-p[0], d1y = vp[id1*3+1]-p[1], d1z = vp[id1*3+2]-p[2];
+			double d2x = vp[id2*3]-p[0], d2y = vp[id2*3+1]-p[1], d2z = vp[id2*3+2]-p[2];
+			double l1 = Math.sqrt(d1x*d1x + d1y*d1y + d1z*d1z);
+			double l2 = Math.sqrt(d2x*d2x + d2y*d2y + d2z*d2z);
+			if (l1 == 0 || l2 == 0) { return true; }
+			d1x /= l1; d1y /= l1; d1z /= l1;
+			d2x /= l2; d2y /= l2; d2z /= l2;
+			if (Math.abs(d1x*d2x + d1y*d2y + d1z*d2z) > 0.999d) { return true; }
+			double nx = d1y*d2z - d1z*d2y, ny = d1z*d2x - d1x*d2z, nz = d1x*d2y - d1y*d2x;
+			double ln = Math.sqrt(nx*nx + ny*ny + nz*nz);
+			deleted[k] = 0;
+			if ((nx*tn[t*3] + ny*tn[t*3+1] + nz*tn[t*3+2]) < 0.2d*ln) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Point the triangles of vertex v at i0, deleting the ones that collapse.
+	 * @return the number of triangles deleted
+	 */
+	private int updateTriangles(int i0, int v, int[] deleted) {
+		int count = 0;
+		for (int k = 0; k < vtcount[v]; k++) {
+			int t = rtid[vtstart[v]+k];
+			int s = rtvertex[vtstart[v]+k];
+			if (tdeleted[t]) { continue; }
+			if (deleted[k] == 1) {
+				tdeleted[t] = true;
+				count++;
+				continue;
+			}
+			tv[t*3+s] = i0;
+			tdirty[t] = true;
+			terr[t*4] = calculateError(tv[t*3], tv[t*3+1], scratch);
+			terr[t*4+1] = calculateError(tv[t*3+1], tv[t*3+2], scratch);
+			terr[t*4+2] = calculateError(tv[t*3+2], tv[t*3], scratch);
+			terr[t*4+3] = Math.min(terr[t*4], Math.min(terr[t*4+1], terr[t*4+2]));
+			addRef(t, s);
+		}
+		return count;
+	}
+
+	private void addRef(int t, int s) {
+		if (refCount == rtid.length) {
+			int size = Math.max(16, rtid.length*2);
+			rtid = Arrays.copyOf(rtid, size);
+			rtvertex = Arrays.copyOf(rtvertex, size);
+		}
+		rtid[refCount] = t;
+		rtvertex[refCount] = s;
+		refCount++;
+	}
+
+	/** Compact the triangle list and rebuild the vertex references. */
+	private void updateMesh(int iteration) {
+		if (iteration > 0) {
+			int dst = 0;
+			for (int t = 0; t < triCount; t++) {
+				if (tdeleted[t]) { continue; }
+				System.arraycopy(tv, t*3, tv, dst*3, 3);
+				System.arraycopy(terr, t*4, terr, dst*4, 4);
+				System.arraycopy(tn, t*3, tn, dst*3, 3);
+				tdeleted[dst] = false;
+				dst++;
+			}
+			triCount = dst;
+		}
+		Arrays.fill(vtcount, 0);
+		for (int i = 0; i < triCount*3; i++) { vtcount[tv[i]]++; }
+		int tstart = 0;
+		for (int v = 0; v < vertCount; v++) {
+			vtstart[v] = tstart;
+			tstart += vtcount[v];
+			vtcount[v] = 0;
+		}
+		refCount = 0;
+		rtid = new int[triCount*3];
+		rtvertex = new int[triCount*3];
+		for (int t = 0; t < triCount; t++) {
+			for (int j = 0; j < 3; j++) {
+				int v = tv[t*3+j];
+				rtid[vtstart[v]+vtcount[v]] = t;
+				rtvertex[vtstart[v]+vtcount[v]] = j;
+				vtcount[v]++;
+			}
+		}
+		refCount = triCount*3;
+		if (iteration != 0) { return; }
+
+		// Find border vertices: a vertex is on the border if some neighbour is
+		// connected to it by only one triangle.
+		int[] seen = new int[vertCount];
+		int[] seenCount = new int[vertCount];
+		Arrays.fill(seen, -1);
+		int[] neighbours = new int[64];
+		for (int v = 0; v < vertCount; v++) {
+			int n = 0;
+			for (int k = 0; k < vtcount[v]; k++) {
+				int t = rtid[vtstart[v]+k];
+				for (int j = 0; j < 3; j++) {
+					int id = tv[t*3+j];
+					if (seen[id] != v) {
+						seen[id] = v;
+						seenCount[id] = 0;
+						if (n == neighbours.length) { neighbours = Arrays.copyOf(neighbours, n*2); }
+						neighbours[n++] = id;
+					}
+					seenCount[id]++;
+				}
+			}
+			for (int k = 0; k < n; k++) {
+				if (seenCount[neighbours[k]] == 1) {
+					vborder[neighbours[k]] = true;
+				}
+			}
+		}
+
+		// Initialize the quadrics from the triangle planes
+		for (int t = 0; t < triCount; t++) {
+			int a = tv[t*3]*3, b = tv[t*3+1]*3, c = tv[t*3+2]*3;
+			double ux = vp[b]-vp[a], uy = vp[b+1]-vp[a+1], uz = vp[b+2]-vp[a+2];
+			double wx = vp[c]-vp[a], wy = vp[c+1]-vp[a+1], wz = vp[c+2]-vp[a+2];
+			double nx = uy*wz - uz*wy, ny = uz*wx - ux*wz, nz = ux*wy - uy*wx;
+			double len = Math.sqrt(nx*nx + ny*ny + nz*nz);
+			if (len > 0) { nx /= len; ny /= len; nz /= len; }
+			tn[t*3] = nx; tn[t*3+1] = ny; tn[t*3+2] = nz;
+			double d = -(nx*vp[a] + ny*vp[a+1] + nz*vp[a+2]);
+			for (int j = 0; j < 3; j++) {
+				int q = tv[t*3+j]*10;
+				vq[q]   += nx*nx; vq[q+1] += nx*ny; vq[q+2] += nx*nz; vq[q+3] += nx*d;
+				vq[q+4] += ny*ny; vq[q+5] += ny*nz; vq[q+6] += ny*d;
+				vq[q+7] += nz*nz; vq[q+8] += nz*d;
+				vq[q+9] += d*d;
+			}
+		}
+		for (int t = 0; t < triCount; t++) {
+			for (int j = 0; j < 3; j++) {
+				terr[t*4+j] = calculateError(tv[t*3+j], tv[t*3+(j+1)%3], scratch);
+			}
+			terr[t*4+3] = Math.min(terr[t*4], Math.min(terr[t*4+1], terr[t*4+2]));
+		}
+	}
+
+	private static double det(double[] m, int a11, int a12, int a13,
+			int a21, int a22, int a23, int a31, int a32, int a33) {
+		return m[a11]*m[a22]*m[a33] + m[a13]*m[a21]*m[a32] + m[a12]*m[a23]*m[a31]
+			- m[a13]*m[a22]*m[a31] - m[a11]*m[a23]*m[a32] - m[a12]*m[a21]*m[a33];
+	}
+
+	private static double vertexError(double[] q, double x, double y, double z) {
+		return q[0]*x*x + 2*q[1]*x*y + 2*q[2]*x*z + 2*q[3]*x + q[4]*y*y
+			+ 2*q[5]*y*z + 2*q[6]*y + q[7]*z*z + 2*q[8]*z + q[9];
+	}
+
+	private final double[] qsum = new double[10];
+	private final double[] scratch = new double[3];
+
+	/**
+	 * Compute the error of collapsing the edge i0-i1, storing the optimal new
+	 * vertex position in p.
+	 */
+	private double calculateError(int i0, int i1, double[] p) {
+		for (int k = 0; k < 10; k++) { qsum[k] = vq[i0*10+k] + vq[i1*10+k]; }
+		boolean border = vborder[i0] && vborder[i1];
+		double det = det(qsum, 0, 1, 2, 1, 4, 5, 2, 5, 7);
+		if (det != 0 && !border) {
+			p[0] = -1/det * det(qsum, 1, 2, 3, 4, 5, 6, 5, 7, 8);
+			p[1] =  1/det * det(qsum, 0, 2, 3, 1, 5, 6, 2, 7, 8);
+			p[2] = -1/det * det(qsum, 0, 1, 3, 1, 4, 6, 2, 5, 8);
+			return vertexError(qsum, p[0], p[1], p[2]);
+		}
+		double x1 = vp[i0*3], y1 = vp[i0*3+1], z1 = vp[i0*3+2];
+		double x2 = vp[i1*3], y2 = vp[i1*3+1], z2 = vp[i1*3+2];
+		double x3 = (x1+x2)/2, y3 = (y1+y2)/2, z3 = (z1+z2)/2;
+		double e1 = vertexError(qsum, x1, y1, z1);
+		double e2 = vertexError(qsum, x2, y2, z2);
+		double e3 = vertexError(qsum, x3, y3, z3);
+		double error = Math.min(e1, Math.min(e2, e3));
+		if (error == e1) { p[0] = x1; p[1] = y1; p[2] = z1; }
+		else if (error == e2) { p[0] = x2; p[1] = y2; p[2] = z2; }
+		else { p[0] = x3; p[1] = y3; p[2] = z3; }
+		return error;
+	}
+
+	/** Build the result mesh, dropping unreferenced vertices. */
+	private IndexedMesh compact() {
+		int[] remap = new int[vertCount];
+		Arrays.fill(remap, -1);
+		int used = 0;
+		for (int i = 0; i < triCount*3; i++) {
+			if (remap[tv[i]] == -1) { remap[tv[i]] = used++; }
+		}
+		double[] vertices = new double[used*3];
+		for (int v = 0; v < vertCount; v++) {
+			if (remap[v] != -1) { System.arraycopy(vp, v*3, vertices, remap[v]*3, 3); }
+		}
+		int[] triangles = new int[triCount*3];
+		for (int i = 0; i < triangles.length; i++) { triangles[i] = remap[tv[i]]; }
+		return new IndexedMesh(vertices, triangles);
+	}
+}
@@ -29,6 +29,7 @@ public abstract class ModelWriter {
 	 * Write the given shape to the output stream, applying the given transform to all points.
 	 * @param shape
 	 * @param transform
+	 * @throws IOException if the shape couldn't be written
 	 */
-	abstract public void writeShape(Shape3D shape, Transform3D transform);
+	abstract public void writeShape(Shape3D shape, Transform3D transform) throws IOException;
 }
\ No newline at end of file
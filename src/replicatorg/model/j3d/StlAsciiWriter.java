@@ -1,5 +1,6 @@
 package replicatorg.model.j3d;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.Locale;
@@ -20,7 +21,7 @@ public class StlAsciiWriter extends ModelWriter {
 	Locale l = Locale.US;
 	
 	@Override
-	public void writeShape(Shape3D shape, Transform3D transform) {
+	public void writeShape(Shape3D shape, Transform3D transform) throws IOException {
 		PrintWriter w = new PrintWriter(ostream);
 		TriangleArray g = getGeometry(shape);
 		if (g == null) {
@@ -62,6 +63,10 @@ public class StlAsciiWriter extends ModelWriter {
 		}
 		w.printf(l,"endsolid %s\n", name);
 		w.close();
+		// PrintWriter keeps its errors to itself
+		if (w.checkError()) {
+			throw new IOException("Error writing ASCII STL");
+		}
 	}
 
 }
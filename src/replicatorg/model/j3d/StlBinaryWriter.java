@@ -0,0 +1,82 @@
+package replicatorg.model.j3d;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.media.j3d.Shape3D;
+import javax.media.j3d.Transform3D;
+import javax.media.j3d.TriangleArray;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3f;
+
+/**
+ * Writes binary STL, which is several times smaller and much faster to write and
+ * parse than the ASCII flavor.  Used for files we only hand to other programs.
+ */
+public class StlBinaryWriter extends ModelWriter {
+	private static final int HEADER_SIZE = 80;
+	private static final int RECORD_SIZE = 50;
+	/** Number of facets to buffer before each write. */
+	private static final int FACETS_PER_WRITE = 4096;
+
+	public StlBinaryWriter(OutputStream ostream) {
+		super(ostream);
+	}
+
+	@Override
+	public void writeShape(Shape3D shape, Transform3D transform) throws IOException {
+		writeShapes(new Shape3D[] { shape }, new Transform3D[] { transform });
+	}
+
+	/**
+	 * Write several shapes, each with its own transform, as a single mesh.
+	 */
+	public void writeShapes(Shape3D[] shapes, Transform3D[] transforms) throws IOException {
+		TriangleArray[] geometries = new TriangleArray[shapes.length];
+		int faces = 0;
+		for (int i = 0; i < shapes.length; i++) {
+			geometries[i] = getGeometry(shapes[i]);
+			if (geometries[i] == null) {
+				throw new IOException("Couldn't find valid geometry during save.");
+			}
+			faces += geometries[i].getVertexCount()/3;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * FACETS_PER_WRITE);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		byte[] header = new byte[HEADER_SIZE];
+		byte[] name = "ReplicatorG binary STL".getBytes("US-ASCII");
+		System.arraycopy(name, 0, header, 0, name.length);
+		buf.put(header);
+		buf.putInt(faces);
+		float[] norm = new float[3];
+		double[] coord = new double[3];
+		Vector3f norm3f = new Vector3f();
+		Point3d p = new Point3d();
+		for (int i = 0; i < shapes.length; i++) {
+			TriangleArray g = geometries[i];
+			Transform3D transform = transforms[i];
+			for (int faceIdx = 0; faceIdx < g.getVertexCount()/3; faceIdx++) {
+				if (buf.remaining() < RECORD_SIZE) {
+					ostream.write(buf.array(), 0, buf.position());
+					buf.clear();
+				}
+				g.getNormal(faceIdx*3, norm);
+				norm3f.set(norm);
+				transform.transform(norm3f);
+				if (norm3f.lengthSquared() > 0) { norm3f.normalize(); }
+				buf.putFloat(norm3f.x).putFloat(norm3f.y).putFloat(norm3f.z);
+				for (int k = 0; k < 3; k++) {
+					g.getCoordinate(faceIdx*3+k, coord);
+					p.set(coord);
+					transform.transform(p);
+					buf.putFloat((float)p.x).putFloat((float)p.y).putFloat((float)p.z);
+				}
+				buf.putShort((short)0);
+			}
+		}
+		ostream.write(buf.array(), 0, buf.position());
+		ostream.flush();
+	}
+}
@@ -5,8 +5,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -28,19 +26,7 @@ class ProgressDialog extends JDialog implements ToolpathGenerator.GeneratorListe
 	JLabel totalProgressLabel;
 	JProgressBar totalProgressBar;
 	JButton doneButton;
-	int layerIndex;
-	int layerTotal;
-    int currentProcessI = -1;
-	SkeinStep steps[] = {
-			new SkeinStep("Carve",13), 
-			new SkeinStep("Inset",27),
-			new SkeinStep("Fill",12),
-			new SkeinStep("Raft",36),
-			new SkeinStep("Clip",8),
-			new SkeinStep("Comb",4),
-			new SkeinStep("Oozebane",5),
-	};
-	
+
 	public ProgressDialog(Frame parent, Build build, Thread parentThread) { 
 		super(parent);
 		this.parentThread = parentThread;
@@ -117,126 +103,45 @@ class ProgressDialog extends JDialog implements ToolpathGenerator.GeneratorListe
 		parentThread.interrupt();
 	}
 
-	// Parsing for progress messages.  There is no need to compile all these patterns every single time.
-	static private Pattern patOfNum = Pattern.compile(" of ([0-9]+)...");
-    static private Pattern patLayerCount = Pattern.compile("([A-Za-z]+) layer count ([0-9]+)");
-	static private Pattern patOldLayerTotal = Pattern.compile("total Layer count is[^0-9]([0-9]+)[^0-9]");
-	static private Pattern patFillingLayer = Pattern.compile("^Filling layer.*[^0-9]([0-9]+)[^0-9]");
-	static private Pattern patOldFillingLayer = Pattern.compile("Filling layer[^0-9]([0-9]+)/([0-9]+)[^0-9]");
-	static private Pattern patSliceToGcode = Pattern.compile("Slice to GCode.*layer ([0-9]+)[^0-9]");//Slice to GCode... layer %s.
-	static private Pattern patProcedureTook = Pattern.compile("(.*) procedure took");
-			
+	/**
+	 * Format a time estimate for people: seconds when short, minutes when not.
+	 */
+	static String formatRemaining(long millis) {
+		long seconds = (millis + 999) / 1000;
+		if (seconds < 60) {
+			return "about " + seconds + (seconds == 1 ? " second" : " seconds") + " left";
+		}
+		long minutes = (seconds + 30) / 60;
+		return "about " + minutes + (minutes == 1 ? " minute" : " minutes") + " left";
+	}
+
 	@Override
 	public void updateGenerator(final ToolpathGenerator.GeneratorEvent evt) {
 
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				synchronized(ProgressDialog.this) {
-					String newMessage = evt.getMessage();
-					String processName = "";
-					boolean logIt = true;
-					boolean showProgress = false;
-					int sub;
-
-					if(newMessage.startsWith(""+'\033'))
-					{
-						newMessage = newMessage.substring(4);
-					}
-					// skeinforge 33 (and up) format: \033[1AFill layer count 28 of 35...
-					Matcher m = patOfNum.matcher(newMessage);
-					if (m.find( )) {
-						logIt = false;
-						layerTotal = Integer.parseInt(m.group(1));
+					SlicingProgress progress = evt.getProgress();
+					if (progress == null) {
+						Base.logger.info(evt.getMessage());
+						progressLabel.setText(evt.getMessage());
+						return;
 					}
-					// skeinforge 33 (and up)
-					m = patLayerCount.matcher(newMessage);
-					if (m.find( )) {
-						processName = m.group(1);
-						layerIndex = Integer.parseInt(m.group(2));
-						logIt = false;
-						if(layerTotal > 0) {
-							subProgressBar.setIndeterminate(false);
-							showProgress = true;
-							newMessage = processName + " (layer " + layerIndex +" of "+ layerTotal +")";
-						} else {
-							newMessage = processName + " (layer " + layerIndex +")";
-							subProgressBar.setIndeterminate(true);
-						}
-					}
-
-					// Older skeinforge's
-					m = patOldLayerTotal.matcher(newMessage);
-					if (m.find( )) {
-						layerTotal = Integer.parseInt(m.group(1));
-					}
-					m = patFillingLayer.matcher(newMessage);
-					if (m.find( ))
-					{
-						layerIndex = Integer.parseInt(m.group(1));
-						showProgress = true;
-						logIt = false;
-						sub = (int) (55*((double) layerIndex)/ layerTotal);
-						totalProgressBar.setValue(10 + sub);				    	
-					}
-
-					// THE ONE BELOW IS JUST FOR THE OLDER SKEINFORGE < 31!
-					m = patOldFillingLayer.matcher(newMessage);
-					if (m.find( )) {
-						layerIndex = Integer.parseInt(m.group(1));
-						layerTotal = Integer.parseInt(m.group(2));
-						showProgress = true;
-						logIt = false;
-						sub = (int) (55*((double) layerIndex)/ layerTotal);
-						totalProgressBar.setValue(10 + sub);
-					}				    
-
-					m = patSliceToGcode.matcher(newMessage);
-					if (m.find( ))
-					{
-						layerIndex = Integer.parseInt(m.group(1));
-						showProgress = true;
-						logIt = false;
-						sub = (int) (2*((double) layerIndex)/ layerTotal);
-						totalProgressBar.setValue(2 + sub);				    	
-					}
-					if(showProgress)
-					{
-						String j = new Integer(layerTotal).toString();
-						double completion =  ((double) layerIndex/layerTotal);
-						if((layerIndex>0) && (processName == ""))
-						{
-							newMessage += " ("+j+" layers)";//
-						}
-						subProgressBar.setValue((int) (100*completion));
-					}
-					m = patProcedureTook.matcher(newMessage);
-					if (m.find( ))
-					{	
-						for(int i=0;i<5;i++)
-						{
-							if(steps[i].stepName.equals(m.group(1)))
-							{
-								currentProcessI = i;
-								subProgressBar.setIndeterminate(true);
-								//Base.logger.info("Step: "+steps[i].stepName+" = "+ steps[i].thisStepTime+" of "+steps[i].totalStepTime + " = "+steps[i].getStepPercentage(layerIndex,layerTotal)+"%");
-
-							}
-						}
-					}
-					if(currentProcessI >= 0)
-					{
-						totalProgressBar.setValue((int) steps[currentProcessI].getStepPercentage(layerIndex,layerTotal));
+					progressLabel.setText(progress.toString());
+					double stage = progress.getStageFraction();
+					if (stage >= 0) {
+						subProgressBar.setIndeterminate(false);
+						subProgressBar.setValue((int)(100 * stage));
 					} else {
-						if(layerTotal > 0)
-						{
-							subProgressBar.setValue((int) (((double)layerIndex/layerTotal)*100));
-							subProgressBar.setIndeterminate(false);
-						}
+						subProgressBar.setIndeterminate(true);
+					}
+					double total = progress.getTotalFraction();
+					if (total >= 0) {
+						// Never move the bar backwards when an estimate grows
+						totalProgressBar.setValue(Math.max(totalProgressBar.getValue(), (int)(100 * total)));
+						totalProgressLabel.setText("Total progress: " +
+								formatRemaining(progress.getRemainingMillis()));
 					}
-					if(logIt==true)
-						Base.logger.info(newMessage);
-
-					progressLabel.setText(newMessage);
 				}
 			}
 		});
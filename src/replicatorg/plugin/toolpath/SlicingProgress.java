@@ -0,0 +1,66 @@
+package replicatorg.plugin.toolpath;
+
+/**
+ * Where a slicer is in its work: which stage it is running, which layer of that
+ * stage it has reached, how long things have taken so far and how long they are
+ * expected to take yet.  Generators send these with
+ * ToolpathGenerator.emitProgress() so that listeners don't have to pick the
+ * slicer's console output apart themselves.
+ */
+public class SlicingProgress {
+	private final String stage;
+	private final int layer;
+	private final int layerCount;
+	private final long stageMillis;
+	private final long totalMillis;
+	private final long remainingMillis;
+
+	/**
+	 * @param stage the name of the stage being run
+	 * @param layer the layer the stage has reached, or 0 if not known
+	 * @param layerCount the number of layers in the model, or 0 if not known yet
+	 * @param stageMillis time spent in this stage so far
+	 * @param totalMillis time spent slicing so far
+	 * @param remainingMillis the expected time left, or -1 if there is no estimate
+	 */
+	public SlicingProgress(String stage, int layer, int layerCount,
+			long stageMillis, long totalMillis, long remainingMillis) {
+		this.stage = stage;
+		this.layer = layer;
+		this.layerCount = layerCount;
+		this.stageMillis = stageMillis;
+		this.totalMillis = totalMillis;
+		this.remainingMillis = remainingMillis;
+	}
+
+	public String getStage() { return stage; }
+	public int getLayer() { return layer; }
+	public int getLayerCount() { return layerCount; }
+	public long getStageMillis() { return stageMillis; }
+	public long getTotalMillis() { return totalMillis; }
+	public long getRemainingMillis() { return remainingMillis; }
+
+	/**
+	 * @return how far through the current stage the slicer is, from 0 to 1, or
+	 * -1 if the layer count isn't known
+	 */
+	public double getStageFraction() {
+		if (layerCount <= 0) { return -1; }
+		return Math.min(1.0, (double)layer / layerCount);
+	}
+
+	/**
+	 * @return how far through the whole job the slicer is, from 0 to 1, or -1
+	 * if there is no estimate
+	 */
+	public double getTotalFraction() {
+		if (remainingMillis < 0) { return -1; }
+		return (double)totalMillis / Math.max(1, totalMillis + remainingMillis);
+	}
+
+	public String toString() {
+		if (layer <= 0) { return stage; }
+		if (layerCount <= 0) { return stage + " (layer " + layer + ")"; }
+		return stage + " (layer " + layer + " of " + layerCount + ")";
+	}
+}
@@ -0,0 +1,174 @@
+package replicatorg.plugin.toolpath;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.StreamLoggerThread;
+
+/**
+ * Runs slicer processes for every build and extruder in the application, at
+ * most a few at a time.  Slicing is CPU bound and single threaded, so one job
+ * per core is the most that helps; each job also needs a good chunk of memory,
+ * which caps the count on small machines.  Jobs wait their turn in the order
+ * they were submitted.
+ *
+ * The number of slots can be set with the "replicatorg.slicing.maxJobs"
+ * preference; 0 picks it from the core count and physical memory.
+ */
+public class SlicingScheduler {
+	/** Rough peak memory use of one skeinforge process, in MB. */
+	private static final int DEFAULT_JOB_MEMORY_MB = 512;
+
+	/**
+	 * Receives the output of a slicing job.
+	 */
+	public interface JobListener {
+		/** Called when the job has to wait for a free slot. */
+		public void jobQueued();
+		/** Called for every line the process writes to standard output. */
+		public void jobOutput(String line);
+	}
+
+	private static SlicingScheduler instance = null;
+
+	public static synchronized SlicingScheduler getScheduler() {
+		if (instance == null) {
+			instance = new SlicingScheduler(computeSlots());
+		}
+		return instance;
+	}
+
+	private static int computeSlots() {
+		int configured = Base.preferences.getInt("replicatorg.slicing.maxJobs", 0);
+		if (configured > 0) { return configured; }
+		int slots = Runtime.getRuntime().availableProcessors();
+		long physical = getPhysicalMemory();
+		if (physical > 0) {
+			long perJob = Base.preferences.getInt("replicatorg.slicing.jobMemoryMB",
+					DEFAULT_JOB_MEMORY_MB) * 1024L * 1024L;
+			// Leave half of the memory for everything else.
+			slots = (int)Math.min(slots, (physical/2)/perJob);
+		}
+		return Math.max(1, slots);
+	}
+
+	/**
+	 * Get the physical memory size where the platform MXBean reports it.
+	 * @return the size in bytes, or 0 if unknown
+	 */
+	private static long getPhysicalMemory() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		try {
+			Method m = os.getClass().getMethod("getTotalPhysicalMemorySize");
+			m.setAccessible(true);
+			return ((Number)m.invoke(os)).longValue();
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	private final Semaphore slots;
+	private final int slotCount;
+
+	public SlicingScheduler(int slotCount) {
+		this.slotCount = slotCount;
+		slots = new Semaphore(slotCount, true);
+		Base.logger.fine("Slicing up to "+slotCount+" models at once");
+	}
+
+	public int getSlotCount() { return slotCount; }
+
+	/**
+	 * Run a slicer process once a slot is free, and wait for it to finish.  If the
+	 * calling thread is interrupted, whether still queued or running, the process
+	 * and its children are killed and InterruptedException is thrown.
+	 * @return the exit code of the process
+	 */
+	public int run(ProcessBuilder pb, final JobListener listener)
+			throws IOException, InterruptedException {
+		acquire(listener);
+		Process process = null;
+		try {
+			process = pb.start();
+			StreamLoggerThread ist = new StreamLoggerThread(process.getInputStream()) {
+				@Override
+				protected void logMessage(String line) {
+					listener.jobOutput(line);
+					super.logMessage(line);
+				}
+			};
+			StreamLoggerThread est = new StreamLoggerThread(process.getErrorStream());
+			est.setDefaultLevel(Level.SEVERE);
+			ist.setDefaultLevel(Level.FINE);
+			ist.start();
+			est.start();
+			int value = process.waitFor();
+			// Let the loggers drain whatever is left in the pipes.
+			ist.join();
+			est.join();
+			return value;
+		} catch (InterruptedException ie) {
+			if (process != null) { killTree(process); }
+			throw ie;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Wait for a free slot, for jobs that don't start a process of their own.
+	 * Every successful call must be matched by a call to release().
+	 */
+	public void acquire(JobListener listener) throws InterruptedException {
+		if (!slots.tryAcquire()) {
+			listener.jobQueued();
+			slots.acquire();
+		}
+	}
+
+	public void release() {
+		slots.release();
+	}
+
+	/**
+	 * Kill a process and anything it has started.  Java has no portable way
+	 * to do this, so on Unix-like systems we signal the children by parent pid
+	 * before destroying the process itself.
+	 */
+	public static void killTree(Process process) {
+		int pid = getPid(process);
+		if (pid > 0 && !Base.isWindows()) {
+			try {
+				Process pkill = new ProcessBuilder("pkill", "-KILL", "-P", Integer.toString(pid)).start();
+				drain(pkill.getInputStream());
+				pkill.waitFor();
+			} catch (Exception e) {
+				Base.logger.log(Level.FINE, "Could not kill children of slicer process "+pid, e);
+			}
+		}
+		process.destroy();
+	}
+
+	private static int getPid(Process process) {
+		try {
+			Field f = process.getClass().getDeclaredField("pid");
+			f.setAccessible(true);
+			return f.getInt(process);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		byte[] buf = new byte[256];
+		while (in.read(buf) != -1) { }
+		in.close();
+	}
+}
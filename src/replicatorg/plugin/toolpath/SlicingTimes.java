@@ -0,0 +1,203 @@
+package replicatorg.plugin.toolpath;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+
+/**
+ * What slicing has taken before, used to estimate how long it will take now.
+ * For each profile this remembers the order the slicer's stages ran in and
+ * how many milliseconds per layer each of them took, as a moving average over
+ * past jobs.  The history is kept in a properties file in the user directory.
+ *
+ * A profile that has never been sliced with borrows the history of all
+ * profiles, and with no history at all rough built-in guesses are used.
+ */
+public class SlicingTimes {
+	private static final String FILE_NAME = "slicingtimes.properties";
+	/** History key for all profiles together. */
+	private static final String ANY_PROFILE = "*";
+	/** Weight of the newest job in the moving averages. */
+	private static final double NEW_WEIGHT = 0.3;
+
+	/** Stage order and milliseconds per layer to assume with no history. */
+	private static final String[] DEFAULT_STAGES = {
+		"Carve", "Inset", "Fill", "Raft", "Clip", "Comb", "Oozebane"
+	};
+	private static final double[] DEFAULT_RATES = {
+		130, 270, 120, 360, 80, 40, 50
+	};
+
+	private static SlicingTimes instance = null;
+
+	public static synchronized SlicingTimes getTimes() {
+		if (instance == null) {
+			instance = new SlicingTimes(new File(Base.getUserDirectory(), FILE_NAME));
+		}
+		return instance;
+	}
+
+	/** How long one stage of one job took. */
+	public static class StageTime {
+		public final String stage;
+		public final int layers;
+		public final long millis;
+		public StageTime(String stage, int layers, long millis) {
+			this.stage = stage;
+			this.layers = layers;
+			this.millis = millis;
+		}
+	}
+
+	private final File file;
+	private Properties history = null;
+
+	public SlicingTimes(File file) {
+		this.file = file;
+	}
+
+	private Properties getHistory() {
+		if (history == null) {
+			history = new Properties();
+			if (file.isFile()) {
+				try {
+					FileInputStream in = new FileInputStream(file);
+					try {
+						history.load(in);
+					} finally {
+						in.close();
+					}
+				} catch (IOException ioe) {
+					Base.logger.log(Level.FINE, "Could not read slicing times", ioe);
+				}
+			}
+		}
+		return history;
+	}
+
+	private static String rateKey(String profile, String stage) {
+		return profile + "|" + stage;
+	}
+
+	private static String orderKey(String profile) {
+		return profile + "|order";
+	}
+
+	private List<String> getOrder(String profile) {
+		String order = getHistory().getProperty(orderKey(profile));
+		if (order == null) { order = getHistory().getProperty(orderKey(ANY_PROFILE)); }
+		if (order == null) { return Arrays.asList(DEFAULT_STAGES); }
+		return Arrays.asList(order.split(","));
+	}
+
+	/**
+	 * @return the expected milliseconds per layer for a stage, or -1 if unknown
+	 */
+	private double getRate(String profile, String stage) {
+		String rate = getHistory().getProperty(rateKey(profile, stage));
+		if (rate == null) { rate = getHistory().getProperty(rateKey(ANY_PROFILE, stage)); }
+		if (rate != null) {
+			try {
+				return Double.parseDouble(rate);
+			} catch (NumberFormatException nfe) {
+				// Fall through to the defaults
+			}
+		}
+		for (int i = 0; i < DEFAULT_STAGES.length; i++) {
+			if (DEFAULT_STAGES[i].equals(stage)) { return DEFAULT_RATES[i]; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Estimate how much longer a job will take.
+	 * @param profile the profile being sliced with
+	 * @param stage the stage being run
+	 * @param layer the layer the stage has reached
+	 * @param layerCount the number of layers, or 0 if not known
+	 * @param stageMillis time spent in the stage so far
+	 * @return the expected milliseconds left, or -1 if there's no estimate
+	 */
+	public synchronized long estimateRemaining(String profile, String stage,
+			int layer, int layerCount, long stageMillis) {
+		if (layerCount <= 0) { return -1; }
+		double remaining;
+		if (layer > 0) {
+			// The stage's own pace so far is the best guess for the rest of it
+			remaining = (double)stageMillis * (layerCount - layer) / layer;
+		} else {
+			double rate = getRate(profile, stage);
+			remaining = rate < 0 ? 0 : Math.max(0, rate * layerCount - stageMillis);
+		}
+		List<String> order = getOrder(profile);
+		int idx = order.indexOf(stage);
+		if (idx < 0) { return (long)remaining; }
+		for (int i = idx + 1; i < order.size(); i++) {
+			double rate = getRate(profile, order.get(i));
+			if (rate > 0) { remaining += rate * layerCount; }
+		}
+		return (long)remaining;
+	}
+
+	/**
+	 * Learn from a finished job.
+	 * @param profile the profile that was sliced with
+	 * @param stages the stages the job ran, in order
+	 */
+	public synchronized void record(String profile, List<StageTime> stages) {
+		if (stages.isEmpty()) { return; }
+		Properties h = getHistory();
+		List<String> seen = new LinkedList<String>();
+		StringBuilder order = new StringBuilder();
+		for (StageTime st : stages) {
+			if (seen.contains(st.stage)) { continue; }
+			seen.add(st.stage);
+			if (order.length() > 0) { order.append(','); }
+			order.append(st.stage);
+			if (st.layers <= 0) { continue; }
+			double rate = (double)st.millis / st.layers;
+			for (String p : new String[] { profile, ANY_PROFILE }) {
+				String key = rateKey(p, st.stage);
+				String old = h.getProperty(key);
+				double value = rate;
+				if (old != null) {
+					try {
+						value = NEW_WEIGHT * rate + (1 - NEW_WEIGHT) * Double.parseDouble(old);
+					} catch (NumberFormatException nfe) {
+						// Replace the bad value
+					}
+				}
+				// Not String.format, which would write a decimal comma in some locales
+				h.setProperty(key, Double.toString(Math.round(value * 100) / 100.0));
+			}
+		}
+		h.setProperty(orderKey(profile), order.toString());
+		h.setProperty(orderKey(ANY_PROFILE), order.toString());
+		save();
+	}
+
+	private void save() {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				history.store(out, "ReplicatorG slicing times, in milliseconds per layer");
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!tmp.renameTo(file)) { tmp.delete(); }
+		} catch (IOException ioe) {
+			Base.logger.log(Level.FINE, "Could not save slicing times", ioe);
+			tmp.delete();
+		}
+	}
+}
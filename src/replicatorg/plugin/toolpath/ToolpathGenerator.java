@@ -6,6 +6,7 @@ import java.util.LinkedList;
 
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildModel;
+import replicatorg.model.BuildPlate;
 import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorListener.Completion;
 
 /**
@@ -26,6 +27,7 @@ public abstract class ToolpathGenerator {
 	public class GeneratorEvent extends EventObject {
 		private Completion completion;
 		private String message;
+		private SlicingProgress progress;
 		
 		public GeneratorEvent(Object source) {
 			this(source, "", null);
@@ -35,6 +37,10 @@ public abstract class ToolpathGenerator {
 			this.message = message;
 			this.completion = completion;
 		}
+		public GeneratorEvent(Object source, SlicingProgress progress) {
+			this(source, progress.toString(), null);
+			this.progress = progress;
+		}
 		
 		public Completion getCompletion() {
 			return completion;
@@ -44,6 +50,14 @@ public abstract class ToolpathGenerator {
 			return message;
 		}
 		
+		/**
+		 * @return where the generator is in its work, or null if this event
+		 * just carries a message
+		 */
+		public SlicingProgress getProgress() {
+			return progress;
+		}
+		
 	}
 	public static String displayName = "A Toolpath Generator";
 	
@@ -57,6 +71,13 @@ public abstract class ToolpathGenerator {
 	public void setModel(BuildModel model) {
 		this.model = model;
 	}
+
+	/** The plate the model is on; if it holds other models, they are sliced together. */
+	protected BuildPlate plate;
+
+	public void setPlate(BuildPlate plate) {
+		this.plate = plate;
+	}
 	
 	/**
 	 * Returns true if configuration successful; false if aborted.
@@ -102,6 +123,12 @@ public abstract class ToolpathGenerator {
 		}
 	}
 	
+	public void emitProgress(SlicingProgress progress) {
+		for (GeneratorListener listener : listeners) {
+			listener.updateGenerator(new GeneratorEvent(this, progress));
+		}
+	}
+	
 	public void emitCompletion(GeneratorListener.Completion completion) {
 		for (GeneratorListener listener : listeners) {
 			listener.generationComplete(new GeneratorEvent(this, null, completion));
@@ -50,6 +50,7 @@ public class ToolpathGeneratorThread extends Thread {
 	public void run() {
 		//System.out.println("alexpong");
 		generator.setModel(build.getModel());
+		generator.setPlate(build.getPlate());
 		ProgressDialog progressDialog = null;
 		if (parent != null) {
 			// Configure, if possible
@@ -137,27 +138,3 @@ public class ToolpathGeneratorThread extends Thread {
 		}
 	}
 }
-
-
-class SkeinStep {
-	public static int totalStepTime;
-	public String stepName;
-	public int thisStepTime; 
-	public int incrementalStepTime; 
-
-	public SkeinStep(String stepName, int thisStepTime){
-		SkeinStep.totalStepTime += thisStepTime;
-		this.stepName = stepName;
-		this.thisStepTime = thisStepTime;
-		this.incrementalStepTime = SkeinStep.totalStepTime;
-	}
-	public int getStepPercentage(int layerIndex, int layerTotal)
-	{
-		int percentage = (int) ((double) (this.incrementalStepTime-this.thisStepTime)/totalStepTime*100);
-		if((layerTotal > 0)&&(layerTotal!=layerIndex)){
-			//Base.logger.info("layer "+layerIndex+"/"+layerTotal+" step "+this.thisStepTime+"/"+this.totalStepTime);
-			percentage += (int) (((double) this.thisStepTime/SkeinStep.totalStepTime)*((double)layerIndex/layerTotal)*100);
-		}
-		return percentage;
-	}
-}
@@ -3,9 +3,11 @@ package replicatorg.plugin.toolpath.skeinforge;
 import java.awt.Frame;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.Arrays;
@@ -18,6 +20,9 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Level;
 
+import javax.media.j3d.BranchGroup;
+import javax.media.j3d.Shape3D;
+import javax.media.j3d.Transform3D;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
@@ -27,13 +32,23 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
+
+import org.j3d.renderer.java3d.loaders.STLLoader;
+
 import replicatorg.app.Base;
 import replicatorg.app.util.PythonUtils;
-import replicatorg.app.util.StreamLoggerThread;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.BuildCode;
+import replicatorg.model.j3d.IndexedMesh;
+import replicatorg.model.j3d.MeshRepair;
+import replicatorg.model.j3d.StlBinaryWriter;
+import replicatorg.plugin.toolpath.SlicingProgress;
+import replicatorg.plugin.toolpath.SlicingScheduler;
+import replicatorg.plugin.toolpath.SlicingTimes;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 
+import com.sun.j3d.loaders.Scene;
+
 public abstract class SkeinforgeGenerator extends ToolpathGenerator {
 
 	{
@@ -568,16 +583,174 @@ public abstract class SkeinforgeGenerator extends ToolpathGenerator {
 		return postprocess;
 	}
 	
+	/**
+	 * Check the model for degenerate faces, holes and inconsistently wound faces
+	 * before handing it to skeinforge, which otherwise spends minutes turning a
+	 * broken mesh into garbage.  If the mesh needed repair, the repaired version
+	 * is written to a new file in the temp directory and sliced instead; the
+	 * caller deletes it once slicing is done.
+	 * @return the path of the file to slice, or null if the model is unusable.
+	 */
+	private String prepareMesh(String path) {
+		if (!isRepairingMesh()) {
+			return path;
+		}
+		if (!path.toLowerCase().endsWith(".stl")) { return path; }
+		IndexedMesh mesh;
+		try {
+			long start = System.currentTimeMillis();
+			Scene scene = new STLLoader().load(path);
+			BranchGroup group = scene.getSceneGroup();
+			List<Shape3D> shapes = new LinkedList<Shape3D>();
+			for (int i = 0; i < group.numChildren(); i++) {
+				if (group.getChild(i) instanceof Shape3D) {
+					shapes.add((Shape3D)group.getChild(i));
+				}
+			}
+			mesh = IndexedMesh.fromShape(shapes.toArray(new Shape3D[shapes.size()]));
+			Base.logger.fine("Loaded "+mesh.getTriangleCount()+" triangles for mesh check in "+
+					(System.currentTimeMillis()-start)+" ms");
+		} catch (Exception e) {
+			// Let skeinforge have a go at it anyway.
+			Base.logger.log(Level.WARNING, "Could not load "+path+" for mesh check", e);
+			return path;
+		}
+		MeshRepair repair = new MeshRepair(mesh).run();
+		MeshRepair.Report report = repair.getReport();
+		emitUpdate("Mesh check: "+report);
+		Base.logger.info("Mesh check: "+report);
+		if (report.trianglesOut == 0) {
+			Base.logger.severe("The model has no usable faces; not slicing it.");
+			return null;
+		}
+		if (!report.isWatertight()) {
+			Base.logger.warning("The model is not watertight ("+report.openEdges+" open edges, "+
+					report.nonManifoldEdges+" non-manifold edges); the toolpath may have gaps.");
+		}
+		if (!report.isModified()) { return path; }
+
+		// A file of its own, so that two models of the same name being sliced
+		// at once don't write over each other's repairs
+		File tempDir = new File(Base.getUserDirectory(), "temp");
+		tempDir.mkdirs();
+		File repaired = null;
+		try {
+			repaired = File.createTempFile("repaired", ".stl", tempDir);
+			FileOutputStream ostream = new FileOutputStream(repaired);
+			StlBinaryWriter writer = new StlBinaryWriter(new BufferedOutputStream(ostream));
+			try {
+				writer.writeShape(new Shape3D(repair.getResult().toTriangleArray()), new Transform3D());
+			} finally {
+				writer.close();
+			}
+		} catch (IOException ioe) {
+			Base.logger.log(Level.WARNING, "Could not write repaired model; slicing the original", ioe);
+			if (repaired != null) { repaired.delete(); }
+			return path;
+		}
+		return repaired.getAbsolutePath();
+	}
+
+	private static boolean isRepairingMesh() {
+		return Base.preferences.getBoolean("replicatorg.skeinforge.repairMesh", true);
+	}
+
+	/**
+	 * Move skeinforge's output for a repaired copy of the model to where it would
+	 * have gone for the original.
+	 */
+	private void moveRepairedOutput(String slicedPath, String root) throws IOException {
+		File from = getOutputFile(slicedPath);
+		File to = new File(root + ".gcode");
+		to.delete();
+		if (!from.renameTo(to)) {
+			Base.copyFile(from, to);
+			from.delete();
+		}
+	}
+
+	/** @return where skeinforge writes the toolpath for a mesh */
+	private static File getOutputFile(String slicedPath) {
+		int idx = slicedPath.lastIndexOf('.');
+		return new File(slicedPath.substring(0, idx) + ".gcode");
+	}
+
 	public BuildCode generateToolpath() {
 		String path = model.getPath();
+		if (plate == null || plate.getModels().size() < 2) {
+			return generateToolpath(path, path);
+		}
+		// Slice every model on the plate together, as one mesh; the toolpath
+		// goes where the model's own would.
+		File combined = null;
+		try {
+			combined = File.createTempFile("plate", ".stl");
+			plate.writeCombined(combined);
+			return generateToolpath(path, combined.getAbsolutePath());
+		} catch (IOException ioe) {
+			Base.logger.log(Level.SEVERE, "Could not write the models on the plate for slicing", ioe);
+			return null;
+		} finally {
+			if (combined != null) { combined.delete(); }
+		}
+	}
 
-		List<String> arguments = new LinkedList<String>();
-		// The -u makes python output unbuffered. Oh joyous day.
-		String[] baseArguments = { PythonUtils.getPythonPath(), "-u",
-				"skeinforge.py", "-p", profile };
-		for (String arg : baseArguments) {
-			arguments.add(arg);
+	/**
+	 * Slice a mesh.
+	 * @param path the model's path, which says where the toolpath goes
+	 * @param meshPath the mesh to slice, if not the model's own file
+	 */
+	private BuildCode generateToolpath(String path, String meshPath) {
+		List<String> options = getOptions();
+		int lastIdx = path.lastIndexOf('.');
+		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
+		// Identical inputs give identical gcode, so look for it in the cache
+		// first, before spending time checking and repairing the mesh.
+		ToolpathCache cache = ToolpathCache.getCache();
+		String cacheKey = null;
+		if (cache != null) {
+			cacheKey = cache.computeKey(getSkeinforgeDir(), new File(profile), options,
+					new File(meshPath), isRepairingMesh() ? "repair" : "",
+					postprocess != null ? postprocess.getSettingsKey() : "");
+			if (cacheKey != null && cache.restore(cacheKey, new File(root + ".gcode"))) {
+				emitUpdate("Toolpath restored from cache");
+				Base.logger.info("Reused the cached toolpath for "+new File(path).getName()+
+						"; Skeinforge was not run.");
+				output = new BuildCode(root, new File(root + ".gcode"));
+				return output;
+			}
 		}
+
+		String slicePath = prepareMesh(meshPath);
+		if (slicePath == null) {
+			return null;
+		}
+		try {
+			output = slice(path, slicePath, options);
+			if (output != null && cacheKey != null) {
+				cache.store(cacheKey, output.file);
+			}
+			return output;
+		} finally {
+			// Whatever happened, don't leave copies behind; if all went well
+			// the toolpath for a copy has already been moved
+			if (!slicePath.equals(path)) {
+				getOutputFile(slicePath).delete();
+			}
+			if (!slicePath.equals(meshPath)) {
+				new File(slicePath).delete();
+			}
+		}
+	}
+
+	/**
+	 * @return everything after skeinforge.py on the command line, except the
+	 * file to slice
+	 */
+	private List<String> getOptions() {
+		List<String> arguments = new LinkedList<String>();
+		arguments.add("-p");
+		arguments.add(profile);
 		for (SkeinforgePreference preference : getPreferences()) {
 			List<SkeinforgeOption> options = preference.getOptions();
 			if (options != null) {
@@ -588,49 +761,77 @@ public abstract class SkeinforgeGenerator extends ToolpathGenerator {
 				}
 			}
 		}
-		arguments.add(path);
-for(String a : arguments) System.out.println(a);
-		ProcessBuilder pb = new ProcessBuilder(arguments);
-		pb.directory(getSkeinforgeDir());
-		Process process = null;
-		try {
-			process = pb.start();
-			StreamLoggerThread ist = new StreamLoggerThread(
-					process.getInputStream()) {
-				@Override
-				protected void logMessage(String line) {
+		return arguments;
+	}
+
+	/**
+	 * Run skeinforge on a mesh.
+	 * @param path the model's path, which says where the toolpath goes
+	 * @param slicePath the mesh to slice
+	 * @param options the command line options from getOptions()
+	 */
+	private BuildCode slice(String path, String slicePath, List<String> options) {
+		List<String> arguments = new LinkedList<String>(options);
+		arguments.add(slicePath);
+
+		int lastIdx = path.lastIndexOf('.');
+		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
+
+		final String profileName = new File(profile).getName();
+		final SkeinforgeProgress progress = new SkeinforgeProgress(profileName, SlicingTimes.getTimes());
+		SlicingScheduler.JobListener listener = new SlicingScheduler.JobListener() {
+			public void jobQueued() {
+				emitUpdate("Waiting for other models to finish slicing...");
+			}
+			public void jobOutput(String line) {
+				SlicingProgress p = progress.parse(line);
+				if (p != null) {
+					emitProgress(p);
+				} else {
 					emitUpdate(line);
-					super.logMessage(line);
 				}
-			};
-			StreamLoggerThread est = new StreamLoggerThread(
-					process.getErrorStream());
-			est.setDefaultLevel(Level.SEVERE);
-			ist.setDefaultLevel(Level.FINE);
-			ist.start();
-			est.start();
-			int value = process.waitFor();
+			}
+		};
+		try {
+			Integer value = null;
+			if (Base.preferences.getBoolean("replicatorg.skeinforge.useWorker", true)) {
+				value = SkeinforgeWorker.slice(getSkeinforgeDir(), arguments, listener);
+			}
+			if (value == null) {
+				List<String> command = new LinkedList<String>();
+				// The -u makes python output unbuffered. Oh joyous day.
+				command.add(PythonUtils.getPythonPath());
+				command.add("-u");
+				command.add("skeinforge.py");
+				command.addAll(arguments);
+				ProcessBuilder pb = new ProcessBuilder(command);
+				pb.directory(getSkeinforgeDir());
+				value = SlicingScheduler.getScheduler().run(pb, listener);
+			}
 			if (value != 0) {
 				Base.logger
 						.severe("Unrecognized error code returned by Skeinforge.");
 				// Throw ToolpathGeneratorException
 				return null;
 			}
+			SlicingTimes.getTimes().record(profileName, progress.getStageTimes());
 		} catch (IOException ioe) {
 			Base.logger.log(Level.SEVERE, "Could not run skeinforge.", ioe);
 			// Throw ToolpathGeneratorException
 			return null;
 		} catch (InterruptedException e) {
 			// We are most likely shutting down, or the process has been
-			// manually aborted.
-			// Kill the background process and bail out.
-			if (process != null) {
-				process.destroy();
-			}
+			// manually aborted.  The scheduler has already killed it.
 			return null;
 		}
-		int lastIdx = path.lastIndexOf('.');
-		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
+		if (!slicePath.equals(path)) {
+			try {
+				moveRepairedOutput(slicePath, root);
+			} catch (IOException ioe) {
+				Base.logger.log(Level.SEVERE, "Could not move toolpath for repaired model", ioe);
+				return null;
+			}
+		}
 		output = new BuildCode(root, new File(root + ".gcode"));
 
 		if(postprocess != null)
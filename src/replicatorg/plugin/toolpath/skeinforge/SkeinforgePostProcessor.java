@@ -3,12 +3,15 @@ package replicatorg.plugin.toolpath.skeinforge;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultComboBoxModel;
@@ -20,6 +23,7 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.LineFilter;
 import replicatorg.app.gcode.MutableGCodeSource;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
@@ -126,8 +130,6 @@ public class SkeinforgePostProcessor {
 	
 	private final SkeinforgeGenerator generator;
 	
-	private MutableGCodeSource source;
-	
 	// options:
 	private MutableGCodeSource startCode = null;
 	private MutableGCodeSource endCode = null;
@@ -152,31 +154,44 @@ public class SkeinforgePostProcessor {
 	
 	/**
 	 * does the post-processing, called by Skeinforge Generator
+	 * 
+	 * All the enabled steps are chained into one LineFilter, so the generated
+	 * file is read once, streamed through every step and written once, no
+	 * matter how big it is.
 	 * @return
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		File file = generator.output.file;
+		// The head of the chain just passes lines along
+		LineFilter chain = new LineFilter();
+		// The progress updates are spread over everything that reaches that step
+		long totalChars = file.length();
 		
 		if(!dualstruding)
 		{
-			if(prependStart)
-				runPrepend(startCode);
-			if(appendEnd)
-				runAppend(endCode);
+			if(prependStart && startCode != null)
+			{
+				chain.then(LineFilter.prepend(startCode));
+				totalChars += LineFilter.countChars(startCode);
+			}
+			if(appendEnd && endCode != null)
+			{
+				chain.then(LineFilter.append(endCode));
+				totalChars += LineFilter.countChars(endCode);
+			}
 
 			if( !multiHead )
 				toolheadTarget = ToolheadAlias.SINGLE; 
 		
 			if(toolheadTarget != null)
-				runToolheadSwap(toolheadTarget);
+				chain.then(LineFilter.changeToolhead(toolheadTarget));
 		}
 		
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
 		{
-			source.addProgressUpdates();
+			chain.then(LineFilter.progressUpdates(totalChars));
 		}
 		
 		if(prependMetaInfo)
@@ -192,7 +207,7 @@ public class SkeinforgePostProcessor {
 			metaInfo.add("(*  for a "+(multiHead?"Dual headed ":"Single headed ")+machineName+"  *)");
 			metaInfo.add("(*  on "+ curDate + " *)");
 			
-			runPrepend(metaInfo);
+			chain.then(LineFilter.prepend(metaInfo));
 		}
 		
 		// scans to cool unused head if required
@@ -200,11 +215,41 @@ public class SkeinforgePostProcessor {
 //			source.coolUnusedToolhead();
 		
 		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
+		try {
+			chain.rewrite(file);
+		} catch (IOException ioe) {
+			Base.logger.log(Level.SEVERE, "Could not post-process "+file.getPath(), ioe);
+		}
 		
 		return generator.output;
 	}
 	
+	/**
+	 * Describe every setting that changes what post-processing does to the
+	 * gcode, for the toolpath cache.  The date in the meta info is left out.
+	 */
+	String getSettingsKey() {
+		ToolheadAlias target = multiHead ? toolheadTarget : ToolheadAlias.SINGLE;
+		StringBuilder sb = new StringBuilder();
+		sb.append("version=").append(Base.VERSION_NAME);
+		sb.append(" generator=").append(generator.displayName);
+		sb.append(" machine=").append(machineType != null ? machineType.getName() : "-");
+		sb.append(" dualstruding=").append(dualstruding);
+		sb.append(" multiHead=").append(multiHead);
+		sb.append(" toolhead=").append(dualstruding || target == null ? "-" : target.name());
+		sb.append(" progress=").append(addProgressUpdates);
+		sb.append(" meta=").append(prependMetaInfo);
+		sb.append("\nstart:\n");
+		if (!dualstruding && prependStart && startCode != null) {
+			for (String line : startCode) { sb.append(line).append('\n'); }
+		}
+		sb.append("end:\n");
+		if (!dualstruding && appendEnd && endCode != null) {
+			for (String line : endCode) { sb.append(line).append('\n'); }
+		}
+		return sb.toString();
+	}
+
 	private String getPrettyPrintDate() {
 		DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss (Z)");
 		//get current date time with Date()
@@ -212,36 +257,6 @@ public class SkeinforgePostProcessor {
 		return dateFormat.format(date);
 	}
 		   
-	/**
-	 * switches all toolhead specific code to the target toolhead
-	 * @param switchTo
-	 */
-	private void runToolheadSwap(ToolheadAlias switchTo)
-	{
-		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
-	}
-	
-	/**
-	 * prepends code to the file
-	 * @param newCode
-	 */
-	private void runPrepend(GCodeSource newCode)
-	{
-		if(newCode != null)
-			source.add(0, newCode);
-	}
-	
-	/**
-	 * appends code to the file
-	 * @param newCode
-	 */
-	private void runAppend(GCodeSource newCode)
-	{
-		if(newCode != null)
-			source.add(newCode);
-	}
-	
 	/**
 	 * indicates that the code will be used as part of a dualstrusion print
 	 * implies a variety of things, supplies a special UI for the ConfigurationDialog
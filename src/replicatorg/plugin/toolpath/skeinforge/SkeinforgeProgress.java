@@ -0,0 +1,119 @@
+package replicatorg.plugin.toolpath.skeinforge;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import replicatorg.plugin.toolpath.SlicingProgress;
+import replicatorg.plugin.toolpath.SlicingTimes;
+
+/**
+ * Turns skeinforge's console output into progress events.  Each line is looked
+ * at once, here, as it arrives; lines that say where skeinforge is become
+ * SlicingProgress events with an estimate of the time left, and the time each
+ * stage took is kept so that it can be fed back to SlicingTimes when the job
+ * finishes.
+ *
+ * A stage is taken to run from the end of the one before it to its
+ * "procedure took" line, so stages that don't report layers are timed too.
+ */
+class SkeinforgeProgress {
+	// skeinforge 33 (and up) format: \033[1AFill layer count 28 of 35...
+	private static final Pattern patLayerCount = Pattern.compile("([A-Za-z]+) layer count ([0-9]+)");
+	private static final Pattern patOfNum = Pattern.compile(" of ([0-9]+)");
+	// Older skeinforges
+	private static final Pattern patOldLayerTotal = Pattern.compile("total Layer count is[^0-9]([0-9]+)[^0-9]");
+	// This one is just for skeinforge < 31
+	private static final Pattern patOldFillingLayer = Pattern.compile("Filling layer[^0-9]([0-9]+)/([0-9]+)[^0-9]");
+	private static final Pattern patFillingLayer = Pattern.compile("^Filling layer.*[^0-9]([0-9]+)[^0-9]");
+	private static final Pattern patSliceToGcode = Pattern.compile("Slice to GCode.*layer ([0-9]+)[^0-9]");
+	private static final Pattern patProcedureTook = Pattern.compile("^([A-Za-z]+) procedure took");
+
+	private final String profile;
+	private final SlicingTimes times;
+	private final long jobStart;
+	private long stageStart;
+	private String stage = null;
+	private int layerCount = 0;
+	private final List<SlicingTimes.StageTime> stageTimes = new LinkedList<SlicingTimes.StageTime>();
+
+	/**
+	 * @param profile the name of the profile being sliced with
+	 * @param times the history to estimate from, or null for no estimates
+	 */
+	SkeinforgeProgress(String profile, SlicingTimes times) {
+		this.profile = profile;
+		this.times = times;
+		jobStart = stageStart = System.currentTimeMillis();
+	}
+
+	/**
+	 * Read a line of skeinforge output.
+	 * @return the progress it reports, or null if it's just a message
+	 */
+	SlicingProgress parse(String line) {
+		if (line.length() > 0 && line.charAt(0) == '\033') {
+			line = line.substring(Math.min(4, line.length()));
+		}
+		long now = System.currentTimeMillis();
+		Matcher m = patLayerCount.matcher(line);
+		if (m.find()) {
+			int layer = Integer.parseInt(m.group(2));
+			Matcher total = patOfNum.matcher(line);
+			if (total.find()) { layerCount = Integer.parseInt(total.group(1)); }
+			return progress(m.group(1), layer, now);
+		}
+		m = patOldLayerTotal.matcher(line);
+		if (m.find()) {
+			layerCount = Integer.parseInt(m.group(1));
+			return null;
+		}
+		m = patOldFillingLayer.matcher(line);
+		if (m.find()) {
+			layerCount = Integer.parseInt(m.group(2));
+			return progress("Fill", Integer.parseInt(m.group(1)), now);
+		}
+		m = patFillingLayer.matcher(line);
+		if (m.find()) {
+			return progress("Fill", Integer.parseInt(m.group(1)), now);
+		}
+		m = patSliceToGcode.matcher(line);
+		if (m.find()) {
+			return progress("Slice", Integer.parseInt(m.group(1)), now);
+		}
+		m = patProcedureTook.matcher(line);
+		if (m.find()) {
+			String finished = m.group(1);
+			long millis = now - stageStart;
+			stageTimes.add(new SlicingTimes.StageTime(finished, layerCount, millis));
+			stage = null;
+			stageStart = now;
+			return event(finished, layerCount, millis, now);
+		}
+		return null;
+	}
+
+	private SlicingProgress progress(String name, int layer, long now) {
+		if (stage != null && !stage.equals(name)) {
+			// The last stage never said it was done; count it as done now
+			stageTimes.add(new SlicingTimes.StageTime(stage, layerCount, now - stageStart));
+			stageStart = now;
+		}
+		stage = name;
+		return event(name, layer, now - stageStart, now);
+	}
+
+	private SlicingProgress event(String name, int layer, long stageMillis, long now) {
+		long remaining = times == null ? -1 :
+			times.estimateRemaining(profile, name, layer, layerCount, stageMillis);
+		return new SlicingProgress(name, layer, layerCount, stageMillis, now - jobStart, remaining);
+	}
+
+	/**
+	 * @return how long each stage took so far, in the order they ran
+	 */
+	List<SlicingTimes.StageTime> getStageTimes() {
+		return stageTimes;
+	}
+}
@@ -0,0 +1,239 @@
+package replicatorg.plugin.toolpath.skeinforge;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.PythonUtils;
+import replicatorg.app.util.StreamLoggerThread;
+import replicatorg.plugin.toolpath.SlicingScheduler;
+
+/**
+ * A python interpreter with skeinforge already imported, kept running between
+ * jobs so that each slice doesn't pay for interpreter startup and module
+ * loading.  ReplicatorG talks to it over the process's stdin and stdout; see
+ * skein_engines/skeinforge_worker.py for the protocol.
+ *
+ * Idle workers are pooled per skeinforge directory.  A worker is pinged before
+ * it is reused, and one that doesn't answer, has died, or has run many jobs is
+ * replaced with a fresh one.  Workers exit by themselves when ReplicatorG does,
+ * since their stdin closes.
+ */
+public class SkeinforgeWorker {
+	private static final String WORKER_SCRIPT = "skein_engines/skeinforge_worker.py";
+	private static final String DONE = "@@RG DONE ";
+	private static final String PONG = "@@RG PONG";
+	/** How long an idle worker gets to answer a ping. */
+	private static final long PING_TIMEOUT_MS = 5000;
+	/** How long a new worker gets to import skeinforge and answer its first ping. */
+	private static final long START_TIMEOUT_MS = 60000;
+	/** Restart workers after this many jobs, in case skeinforge leaks state. */
+	private static final int MAX_JOBS = 50;
+
+	private static final Map<File,List<SkeinforgeWorker>> idle =
+		new HashMap<File,List<SkeinforgeWorker>>();
+
+	/**
+	 * Slice a model in a pooled worker, in a slot from the slicing scheduler.
+	 * @param args the arguments that would follow skeinforge.py on the command line
+	 * @return the exit code, or null if no worker could be started
+	 */
+	public static Integer slice(File skeinforgeDir, List<String> args,
+			SlicingScheduler.JobListener listener) throws InterruptedException {
+		SlicingScheduler scheduler = SlicingScheduler.getScheduler();
+		scheduler.acquire(listener);
+		try {
+			SkeinforgeWorker worker = borrow(skeinforgeDir);
+			if (worker == null) { return null; }
+			boolean ok = false;
+			try {
+				int value = worker.run(args, listener);
+				ok = true;
+				return value;
+			} catch (IOException ioe) {
+				Base.logger.log(Level.WARNING, "Skeinforge worker failed", ioe);
+				return null;
+			} finally {
+				if (ok) {
+					giveBack(worker);
+				} else {
+					worker.kill();
+				}
+			}
+		} finally {
+			scheduler.release();
+		}
+	}
+
+	private static SkeinforgeWorker borrow(File dir) throws InterruptedException {
+		while (true) {
+			SkeinforgeWorker worker = null;
+			synchronized (idle) {
+				List<SkeinforgeWorker> workers = idle.get(dir);
+				if (workers != null && !workers.isEmpty()) {
+					worker = workers.remove(0);
+				}
+			}
+			if (worker == null) { break; }
+			if (worker.ping(PING_TIMEOUT_MS)) { return worker; }
+			Base.logger.info("Skeinforge worker stopped responding; restarting it");
+			worker.kill();
+		}
+		SkeinforgeWorker worker = new SkeinforgeWorker(dir);
+		try {
+			worker.start();
+			if (worker.ping(START_TIMEOUT_MS)) { return worker; }
+			Base.logger.warning("Skeinforge worker did not start; slicing without it");
+		} catch (IOException ioe) {
+			Base.logger.log(Level.WARNING, "Could not start skeinforge worker", ioe);
+		}
+		worker.kill();
+		return null;
+	}
+
+	private static void giveBack(SkeinforgeWorker worker) {
+		if (worker.jobs >= MAX_JOBS || !worker.isAlive()) {
+			worker.quit();
+			return;
+		}
+		synchronized (idle) {
+			List<SkeinforgeWorker> workers = idle.get(worker.dir);
+			if (workers == null) {
+				workers = new LinkedList<SkeinforgeWorker>();
+				idle.put(worker.dir, workers);
+			}
+			workers.add(worker);
+		}
+	}
+
+	private final File dir;
+	private Process process;
+	private Writer toWorker;
+	/** Protocol replies from the worker, in order. */
+	private final BlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+	/** Gets the output of the job in progress. */
+	private volatile SlicingScheduler.JobListener listener = null;
+	private int jobs = 0;
+
+	private SkeinforgeWorker(File dir) {
+		this.dir = dir;
+	}
+
+	private void start() throws IOException {
+		String python = PythonUtils.getPythonPath();
+		if (python == null) { throw new IOException("Python not found"); }
+		String script = Base.getApplicationFile(WORKER_SCRIPT).getAbsolutePath();
+		ProcessBuilder pb = new ProcessBuilder(python, "-u", script);
+		pb.directory(dir);
+		process = pb.start();
+		toWorker = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+		new Thread("Skeinforge worker output") {
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(
+							new InputStreamReader(process.getInputStream(), "UTF-8"));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						dispatch(line);
+					}
+				} catch (IOException ioe) {
+					// The worker has gone away; isAlive() will say so.
+				}
+				replies.offer(DONE + "-1");
+			}
+		}.start();
+		StreamLoggerThread est = new StreamLoggerThread(process.getErrorStream());
+		est.setDefaultLevel(Level.SEVERE);
+		est.start();
+	}
+
+	private void dispatch(String line) {
+		if (line.startsWith(DONE) || line.equals(PONG)) {
+			replies.offer(line);
+			return;
+		}
+		// Skeinforge-31 and up separate progress lines with \r
+		for (String part : line.split("\r")) {
+			if (part.length() == 0) { continue; }
+			SlicingScheduler.JobListener l = listener;
+			if (l != null) { l.jobOutput(part); }
+			Base.logger.fine(part);
+		}
+	}
+
+	private boolean isAlive() {
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException itse) {
+			return true;
+		}
+	}
+
+	private boolean ping(long timeout) throws InterruptedException {
+		if (process == null || !isAlive()) { return false; }
+		try {
+			replies.clear();
+			send("PING\n");
+			String reply = replies.poll(timeout, TimeUnit.MILLISECONDS);
+			return PONG.equals(reply);
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	private int run(List<String> args, SlicingScheduler.JobListener listener)
+			throws IOException, InterruptedException {
+		StringBuilder sb = new StringBuilder("JOB\n");
+		for (String arg : args) {
+			sb.append("ARG ").append(arg.replace('\n', ' ')).append('\n');
+		}
+		sb.append("END\n");
+		replies.clear();
+		this.listener = listener;
+		jobs++;
+		try {
+			send(sb.toString());
+			String reply = replies.take();
+			int value = Integer.parseInt(reply.substring(DONE.length()).trim());
+			if (value < 0) { throw new IOException("Skeinforge worker exited during a job"); }
+			return value;
+		} catch (InterruptedException ie) {
+			// Cancelled: there's no way to stop skeinforge halfway, so lose the worker.
+			kill();
+			throw ie;
+		} finally {
+			this.listener = null;
+		}
+	}
+
+	private synchronized void send(String s) throws IOException {
+		toWorker.write(s);
+		toWorker.flush();
+	}
+
+	private void quit() {
+		try {
+			send("QUIT\n");
+			toWorker.close();
+		} catch (IOException ioe) {
+			kill();
+		}
+	}
+
+	private void kill() {
+		if (process != null) { SlicingScheduler.killTree(process); }
+	}
+}
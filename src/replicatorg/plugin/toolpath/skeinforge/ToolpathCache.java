@@ -0,0 +1,134 @@
+package replicatorg.plugin.toolpath.skeinforge;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.CacheDirectory;
+
+/**
+ * A disk cache of finished toolpaths.  Slicing the same mesh with the same
+ * profile, options and post-processing gives the same gcode, so the key is a
+ * hash over all of those: the mesh file contents, every file in the profile
+ * directory, the skeinforge command line options, the mesh repair and
+ * post-processor settings.  The mesh's name is left out, so that a plate or
+ * a repaired copy written to a new temp file each time still hits.
+ */
+public class ToolpathCache {
+	private static final String SUFFIX = ".gcode";
+
+	private static ToolpathCache instance = null;
+
+	/**
+	 * Get the cache in the user directory, or null if it has been turned off.
+	 */
+	public static synchronized ToolpathCache getCache() {
+		if (!Base.preferences.getBoolean("replicatorg.toolpathcache.enabled", true)) {
+			return null;
+		}
+		if (instance == null) {
+			instance = new ToolpathCache(new File(Base.getUserDirectory(), "toolpathcache"));
+		}
+		return instance;
+	}
+
+	private final File dir;
+
+	public ToolpathCache(File dir) {
+		this.dir = dir;
+	}
+
+	private long getMaxBytes() {
+		return Base.preferences.getInt("replicatorg.toolpathcache.maxMB", 512) * 1024L * 1024L;
+	}
+
+	/**
+	 * Compute the cache key for a slicing job.
+	 * @param skeinforgeDir the skeinforge version doing the slicing
+	 * @param profileDir the profile directory passed to skeinforge
+	 * @param options the command line options, not including the input file
+	 * @param mesh the mesh as the user made it, before any repair
+	 * @param preparation a description of the mesh repair settings
+	 * @param postProcessing a description of the post-processor settings
+	 * @return the key, or null if some input couldn't be read
+	 */
+	public String computeKey(File skeinforgeDir, File profileDir, List<String> options,
+			File mesh, String preparation, String postProcessing) {
+		try {
+			MessageDigest md = CacheDirectory.newDigest();
+			update(md, skeinforgeDir.getAbsolutePath());
+			CacheDirectory.update(md, mesh);
+			update(md, preparation);
+			updateTree(md, profileDir, "");
+			for (String option : options) { update(md, option); }
+			update(md, postProcessing);
+			return CacheDirectory.toHex(md.digest());
+		} catch (IOException ioe) {
+			Base.logger.log(Level.FINE, "Could not compute toolpath cache key", ioe);
+			return null;
+		}
+	}
+
+	private void update(MessageDigest md, String s) throws IOException {
+		md.update(s.getBytes("UTF-8"));
+		// Separator, so that ("ab","c") and ("a","bc") differ
+		md.update((byte)0);
+	}
+
+	private void updateTree(MessageDigest md, File f, String relative) throws IOException {
+		if (f.isDirectory()) {
+			String[] names = f.list();
+			if (names == null) { return; }
+			Arrays.sort(names);
+			for (String name : names) {
+				updateTree(md, new File(f, name), relative + "/" + name);
+			}
+		} else if (f.isFile()) {
+			update(md, relative);
+			CacheDirectory.update(md, f);
+		}
+	}
+
+	/**
+	 * Copy the cached toolpath for a key to the given file.
+	 * @return true on a hit
+	 */
+	public boolean restore(String key, File target) {
+		File entry = new File(dir, key + SUFFIX);
+		if (!entry.isFile()) { return false; }
+		try {
+			target.delete();
+			Base.copyFile(entry, target);
+			CacheDirectory.touch(entry);
+			return true;
+		} catch (IOException ioe) {
+			Base.logger.log(Level.WARNING, "Could not restore cached toolpath", ioe);
+			return false;
+		}
+	}
+
+	/**
+	 * Store a finished toolpath under a key, evicting old entries if the cache is full.
+	 */
+	public void store(String key, File gcode) {
+		if (!dir.exists() && !dir.mkdirs()) { return; }
+		File entry = new File(dir, key + SUFFIX);
+		File tmp = new File(dir, key + ".tmp");
+		try {
+			Base.copyFile(gcode, tmp);
+			entry.delete();
+			if (!tmp.renameTo(entry)) {
+				tmp.delete();
+				return;
+			}
+			CacheDirectory.trim(dir, getMaxBytes());
+		} catch (IOException ioe) {
+			Base.logger.log(Level.FINE, "Could not cache toolpath", ioe);
+			tmp.delete();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package gcodeTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeLayerIndex;
+
+public class GCodeLayerIndexTest {
+	File gcode;
+	File indexFile;
+
+	@Before
+	public void setUp() throws Exception {
+		gcode = File.createTempFile("indextest", ".gcode");
+		indexFile = GCodeLayerIndex.getIndexFile(gcode);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		gcode.delete();
+		indexFile.delete();
+	}
+
+	void write(String... lines) throws IOException {
+		FileWriter w = new FileWriter(gcode);
+		try {
+			for (String line : lines) {
+				w.write(line);
+				w.write("\n");
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	@Test
+	public void testScanHasCode() {
+		assertTrue(GCodeCommand.scanHasCode("G1 X-1 Y2", 'X'));
+		assertEquals(-1, GCodeCommand.scanCodeValue("G1 X-1 Y2", 'X'), 0);
+		assertFalse(GCodeCommand.scanHasCode("G1 X20 Y10 (EXTRUDE)", 'E'));
+		assertFalse(GCodeCommand.scanHasCode("G1 X20 Y10 ; EXTRUDE", 'E'));
+		assertTrue(GCodeCommand.scanHasCode("G1 X20 (comment) E2", 'E'));
+	}
+
+	@Test
+	public void testTaggedLayers() throws IOException {
+		write("G21", "G90", "G92 E0",
+				"(<layer> 0.3)",
+				"G1 X0 Y0 Z0.3 F1200",
+				"G1 X10 E1",
+				"(</layer>)",
+				"(<layer> 0.6)",
+				"G1 Z0.6",
+				"G1 Y10 E3",
+				"(</layer>)");
+		GCodeLayerIndex index = GCodeLayerIndex.build(gcode);
+		assertEquals(11, index.getLineCount());
+		assertEquals(2, index.getLayerCount());
+		assertEquals(3, index.getLayer(0).line);
+		assertEquals(0.3, index.getLayer(0).z, 1e-9);
+		assertEquals(1, index.getLayer(0).extrusion, 1e-9);
+		assertEquals(7, index.getLayer(1).line);
+		assertEquals(2, index.getLayer(1).extrusion, 1e-9);
+		assertEquals(10, index.getLayer(1).startX, 1e-9);
+		assertEquals(1, index.getLayer(1).startE, 1e-9);
+		assertEquals(1, index.findLayerForLine(9));
+		assertEquals(-1, index.findLayerForLine(1));
+	}
+
+	@Test
+	public void testUntaggedLayers() throws IOException {
+		write("G21", "G90", "G92 E0",
+				"G1 Z5 F1000", // A move in the start code isn't a layer
+				"G1 X0 Y0 Z0.3",
+				"G1 X10 E1",
+				"G1 Z1.3", // Nor is a Z hop
+				"G1 Z0.3",
+				"G1 Y10 E2",
+				"G1 Z0.6",
+				"G1 X0 E3");
+		GCodeLayerIndex index = GCodeLayerIndex.build(gcode);
+		assertEquals(2, index.getLayerCount());
+		assertEquals(0.3, index.getLayer(0).z, 1e-9);
+		assertEquals(2, index.getLayer(0).extrusion, 1e-9);
+		assertEquals(0.6, index.getLayer(1).z, 1e-9);
+		assertEquals(9, index.getLayer(1).line);
+	}
+
+	@Test
+	public void testCommentsAreNotCodes() throws IOException {
+		// The E in the comment must not make the move look like it sets E
+		write("G90", "G92 E0",
+				"(<layer> 0.3)",
+				"G1 X0 Y0 Z0.3 F1200",
+				"G1 X10 E2",
+				"G1 X20 Y10 (EXTRUDE)",
+				"G1 X30 E3",
+				"(</layer>)");
+		GCodeLayerIndex index = GCodeLayerIndex.build(gcode);
+		assertEquals(1, index.getLayerCount());
+		assertEquals(3, index.getLayer(0).extrusion, 1e-9);
+	}
+
+	@Test
+	public void testRelativeExtrusion() throws IOException {
+		write("G90", "M83",
+				"(<layer> 0.3)",
+				"G1 X0 Y0 Z0.3 F1200",
+				"G1 X10 E1",
+				"G1 Y10 E1",
+				"(</layer>)",
+				"(<layer> 0.6)",
+				"G1 Z0.6",
+				"G1 X0 E1",
+				"(</layer>)");
+		GCodeLayerIndex index = GCodeLayerIndex.build(gcode);
+		assertEquals(2, index.getLayer(0).extrusion, 1e-9);
+		assertEquals(1, index.getLayer(1).extrusion, 1e-9);
+		assertTrue(index.getLayer(1).startRelativeE);
+		assertFalse(index.getLayer(1).startRelative);
+		assertEquals(10, index.getLayer(1).startY, 1e-9);
+	}
+
+	@Test
+	public void testToolSelection() throws IOException {
+		// Setting a temperature with a T selects that tool, as it does when printing
+		write("G90", "G92 E0",
+				"M104 S220 T1",
+				"(<layer> 0.3)",
+				"G1 X0 Y0 Z0.3 F1200",
+				"G1 X10 E1",
+				"(</layer>)",
+				"M109 S200 T0",
+				"(<layer> 0.6)",
+				"G1 Z0.6",
+				"G1 Y10 E3",
+				"(</layer>)",
+				"T1",
+				"(<layer> 0.9)",
+				"G1 Z0.9",
+				"G1 X0 E4",
+				"(</layer>)");
+		GCodeLayerIndex index = GCodeLayerIndex.build(gcode);
+		assertEquals(3, index.getLayerCount());
+		assertEquals(1, index.getLayer(0).tool);
+		assertEquals(0, index.getLayer(1).tool);
+		assertEquals(1, index.getLayer(2).tool);
+	}
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		write("G90", "G92 E0",
+				"(<layer> 0.3)",
+				"G1 X0 Y0 Z0.3 F1200",
+				"G1 X10 E1",
+				"(</layer>)",
+				"(<layer> 0.6)",
+				"G1 Z0.6",
+				"G1 Y10 E3",
+				"(</layer>)");
+		GCodeLayerIndex index = GCodeLayerIndex.build(gcode);
+		assertTrue(index.save(indexFile, gcode));
+		GCodeLayerIndex loaded = GCodeLayerIndex.load(indexFile, gcode);
+		assertNotNull(loaded);
+		assertEquals(index.getLineCount(), loaded.getLineCount());
+		assertEquals(index.getTotalSeconds(), loaded.getTotalSeconds(), 1e-9);
+		assertEquals(index.getLayerCount(), loaded.getLayerCount());
+		for (int i = 0; i < index.getLayerCount(); i++) {
+			GCodeLayerIndex.Entry a = index.getLayer(i);
+			GCodeLayerIndex.Entry b = loaded.getLayer(i);
+			assertEquals(a.offset, b.offset);
+			assertEquals(a.line, b.line);
+			assertEquals(a.z, b.z, 0);
+			assertEquals(a.extrusion, b.extrusion, 0);
+			assertEquals(a.startX, b.startX, 0);
+			assertEquals(a.startE, b.startE, 0);
+			assertEquals(a.startRelativeE, b.startRelativeE);
+		}
+	}
+
+	@Test
+	public void testStaleIndex() throws IOException {
+		write("G90",
+				"(<layer> 0.3)",
+				"G1 X0 Y0 Z0.3 F1200",
+				"G1 X10 E1",
+				"(</layer>)");
+		GCodeLayerIndex index = GCodeLayerIndex.get(gcode);
+		assertTrue(indexFile.isFile());
+		assertTrue(index.isCurrent(gcode));
+		assertNotNull(GCodeLayerIndex.load(indexFile, gcode));
+
+		// Once the file changes, the saved index no longer counts
+		write("G90",
+				"(<layer> 0.3)",
+				"G1 X0 Y0 Z0.3 F1200",
+				"G1 X10 E1",
+				"(</layer>)",
+				"(<layer> 0.6)",
+				"G1 Z0.6",
+				"G1 Y10 E3",
+				"(</layer>)");
+		gcode.setLastModified(gcode.lastModified() + 2000);
+		assertFalse(index.isCurrent(gcode));
+		assertNull(GCodeLayerIndex.load(indexFile, gcode));
+		GCodeLayerIndex rebuilt = GCodeLayerIndex.get(gcode);
+		assertEquals(2, rebuilt.getLayerCount());
+		assertTrue(rebuilt.isCurrent(gcode));
+	}
+}
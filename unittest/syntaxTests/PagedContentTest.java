@@ -0,0 +1,253 @@
+package syntaxTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.GapContent;
+import javax.swing.text.Position;
+import javax.swing.undo.UndoableEdit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import replicatorg.app.syntax.LargeFileDocument;
+import replicatorg.app.syntax.PagedContent;
+
+public class PagedContentTest {
+	File file;
+	File saved;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("pagedtest", ".gcode");
+		saved = File.createTempFile("pagedtest", ".gcode");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+		saved.delete();
+	}
+
+	/** Write enough lines to fill several pages. */
+	String writeFile(String eol) throws IOException {
+		StringBuilder text = new StringBuilder();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for (int i = 0; i < 20000; i++) {
+				String line = "G1 X" + i + " Y" + (i % 97) + " E" + (i * 0.01);
+				out.write((line + eol).getBytes("ISO-8859-1"));
+				text.append(line).append('\n');
+			}
+		} finally {
+			out.close();
+		}
+		return text.toString();
+	}
+
+	static String readFile(File f) throws IOException {
+		byte[] bytes = new byte[(int)f.length()];
+		FileInputStream in = new FileInputStream(f);
+		try {
+			int done = 0;
+			while (done < bytes.length) {
+				int n = in.read(bytes, done, bytes.length - done);
+				if (n < 0) { break; }
+				done += n;
+			}
+		} finally {
+			in.close();
+		}
+		return new String(bytes, "ISO-8859-1");
+	}
+
+	static List<String> lines(PagedContent.Snapshot snapshot) {
+		List<String> lines = new ArrayList<String>();
+		for (Iterator<String> i = snapshot.lines(); i.hasNext();) {
+			lines.add(i.next());
+		}
+		return lines;
+	}
+
+	static void assertLines(String text, PagedContent.Snapshot snapshot) {
+		String[] expected = text.split("\n", -1);
+		assertEquals(expected.length, snapshot.getLineCount());
+		List<String> lines = lines(snapshot);
+		assertEquals(expected.length, lines.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("line " + i, expected[i], lines.get(i));
+		}
+	}
+
+	@Test
+	public void testInsertAndRemove() throws BadLocationException {
+		PagedContent content = new PagedContent();
+		assertEquals(1, content.length());
+		content.insertString(0, "G1 X1\nG1 X2\n");
+		content.insertString(6, "M101\n");
+		assertEquals("G1 X1\nM101\nG1 X2\n\n", content.getString(0, content.length()));
+		content.remove(0, 6);
+		assertEquals("M101\nG1 X2\n\n", content.getString(0, content.length()));
+		UndoableEdit edit = content.remove(4, 6);
+		assertEquals("M101\n\n", content.getString(0, content.length()));
+		edit.undo();
+		assertEquals("M101\nG1 X2\n\n", content.getString(0, content.length()));
+		try {
+			content.insertString(content.length(), "past the end");
+			fail("Inserted after the closing newline");
+		} catch (BadLocationException e) {
+		}
+	}
+
+	@Test
+	public void testFileText() throws IOException, BadLocationException {
+		String text = writeFile("\r\n");
+		LargeFileDocument doc = new LargeFileDocument(file);
+		assertEquals(text.length(), doc.getLength());
+		assertEquals(text, doc.getText(0, doc.getLength()));
+		assertEquals(20001, doc.getDefaultRootElement().getElementCount());
+	}
+
+	/**
+	 * Random edits to a PagedContent, a GapContent and a StringBuilder
+	 * should leave all three with the same text and the marks in the same places.
+	 */
+	@Test
+	public void testRandomEditsInMemory() throws BadLocationException {
+		Random random = new Random(1234);
+		PagedContent paged = new PagedContent();
+		GapContent gap = new GapContent();
+		StringBuilder sb = new StringBuilder("\n");
+		List<Position> pagedMarks = new ArrayList<Position>();
+		List<Position> gapMarks = new ArrayList<Position>();
+		for (int op = 0; op < 3000; op++) {
+			int length = sb.length() - 1;
+			int choice = random.nextInt(10);
+			if (choice < 6 || length == 0) {
+				int where = random.nextInt(length + 1);
+				String s = randomText(random, random.nextInt(20) == 0 ? 100000 : 50);
+				paged.insertString(where, s);
+				gap.insertString(where, s);
+				sb.insert(where, s);
+			} else if (choice < 9) {
+				int where = random.nextInt(length);
+				int n = random.nextInt(Math.min(length - where, random.nextInt(10) == 0 ? 50000 : 100) + 1);
+				paged.remove(where, n);
+				gap.remove(where, n);
+				sb.delete(where, where + n);
+			} else {
+				int where = random.nextInt(length + 1);
+				pagedMarks.add(paged.createPosition(where));
+				gapMarks.add(gap.createPosition(where));
+			}
+			assertEquals(sb.length(), paged.length());
+			if (op % 100 == 0) {
+				assertEquals(sb.toString(), paged.getString(0, paged.length()));
+			}
+		}
+		assertEquals(gap.getString(0, gap.length()), paged.getString(0, paged.length()));
+		for (int i = 0; i < gapMarks.size(); i++) {
+			assertEquals("mark " + i, gapMarks.get(i).getOffset(), pagedMarks.get(i).getOffset());
+		}
+		assertLines(sb.substring(0, sb.length() - 1), paged.snapshot());
+	}
+
+	/** Random edits to a document read from a file, then saved. */
+	@Test
+	public void testRandomEditsAndSave() throws IOException, BadLocationException {
+		StringBuilder sb = new StringBuilder(writeFile("\n"));
+		LargeFileDocument doc = new LargeFileDocument(file);
+		Random random = new Random(5678);
+		for (int op = 0; op < 500; op++) {
+			int length = doc.getLength();
+			if (random.nextBoolean() || length == 0) {
+				int where = random.nextInt(length + 1);
+				String s = randomText(random, 200);
+				doc.insertString(where, s, null);
+				sb.insert(where, s);
+			} else {
+				int where = random.nextInt(length);
+				int n = random.nextInt(Math.min(length - where, 300) + 1);
+				doc.remove(where, n);
+				sb.delete(where, where + n);
+			}
+		}
+		assertEquals(sb.toString(), doc.getText(0, doc.getLength()));
+
+		doc.save(saved, null);
+		assertEquals(sb.toString(), readFile(saved));
+		assertEquals(saved, doc.getFile());
+		// It reads from the saved file from now on, and edits still work
+		assertEquals(sb.toString(), doc.getText(0, doc.getLength()));
+		doc.insertString(0, "G21\n", null);
+		sb.insert(0, "G21\n");
+		doc.save(saved, null);
+		assertEquals(sb.toString(), readFile(saved));
+	}
+
+	/** A snapshot keeps the text as it was while the document goes on changing. */
+	@Test
+	public void testSnapshot() throws IOException, BadLocationException {
+		String text = writeFile("\n");
+		LargeFileDocument doc = new LargeFileDocument(file);
+		PagedContent.Snapshot before = doc.getSnapshot();
+		doc.insertString(0, "G21\n", null);
+		doc.remove(text.length() / 2, 1000);
+		PagedContent.Snapshot after = doc.getSnapshot();
+		doc.insertString(doc.getLength(), "M18\n", null);
+		assertLines(text, before);
+		String edited = "G21\n" + text;
+		edited = edited.substring(0, text.length() / 2) + edited.substring(text.length() / 2 + 1000);
+		assertLines(edited, after);
+	}
+
+	/** A snapshot that is closed part way through can still be read. */
+	@Test
+	public void testAbandonedSnapshot() throws IOException {
+		String text = writeFile("\n");
+		LargeFileDocument doc = new LargeFileDocument(file);
+		PagedContent.Snapshot snapshot = doc.getSnapshot();
+		Iterator<String> i = snapshot.lines();
+		assertEquals("G1 X0 Y0 E0.0", i.next());
+		snapshot.close();
+		snapshot.close();
+		assertEquals("G1 X1 Y1 E0.01", i.next());
+		assertLines(text, snapshot);
+	}
+
+	/** Saving fails, rather than mixing in the new text, if the file changed on disk. */
+	@Test
+	public void testChangedOnDisk() throws IOException, BadLocationException {
+		writeFile("\n");
+		LargeFileDocument doc = new LargeFileDocument(file);
+		doc.insertString(0, "G21\n", null);
+		String changed = writeFile("\r\n");
+		file.setLastModified(file.lastModified() + 2000);
+		try {
+			doc.save(saved, null);
+			fail("Saved from a file that had changed");
+		} catch (IOException e) {
+		}
+		assertEquals(changed.replace("\n", "\r\n"), readFile(file));
+		assertEquals(file, doc.getFile());
+	}
+
+	static String randomText(Random random, int maxLength) {
+		int n = random.nextInt(maxLength) + 1;
+		StringBuilder s = new StringBuilder(n);
+		for (int i = 0; i < n; i++) {
+			s.append(random.nextInt(8) == 0 ? '\n' : (char)('A' + random.nextInt(26)));
+		}
+		return s.toString();
+	}
+}